@@ -0,0 +1,523 @@
+/*
+* Copyright 2009 Gabriel Collin
+*
+* This file is part of javaCUDA.
+*
+* javaCUDA is free software: you can redistribute it and/or modify it
+* under the terms of the GNU Lesser General Public License as published
+* by the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* javaCUDA is distributed in the hope that it will be useful, but WITHOUT
+* ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+* FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public
+* License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public
+* License along with javaCUDA. If not, see <http://www.gnu.org/licenses/>.
+*/
+
+
+package org.lambdacomplex.nn.javacuda;
+
+import static java.lang.foreign.ValueLayout.*;
+
+import java.lang.foreign.*;
+import java.lang.invoke.MethodHandle;
+import java.nio.file.Path;
+
+import org.lambdacomplex.nn.javacuda.array.NativeByteArray;
+
+/**
+ * A backend that calls the CUDA driver library directly with java.lang.foreign, without the SWIG wrapper library.
+ * 
+ * Out-parameters are written to memory kept by each thread and reused, so calls do not allocate wrappers for 
+ * them. Handles are passed as 64-bit integers, so this backend needs a 64-bit platform. It needs Java 22, and 
+ * the JVM option --enable-native-access=ALL-UNNAMED to avoid warnings.
+ * 
+ * The library is libcuda.so.1, or nvcuda.dll on Windows. The system property javacuda.driver names another 
+ * library, such as the stub driver built from the 'stub' directory. To make this the default backend set 
+ * javacuda.backend to org.lambdacomplex.nn.javacuda.PanamaBackend.
+ * @author NewName
+ *
+ */
+public class PanamaBackend implements Backend {
+	private static final int CUDA_SUCCESS = 0;
+	private static final int CUDA_ERROR_NOT_READY = 600;
+	private static final long CU_LAUNCH_PARAM_BUFFER_POINTER = 1;
+	private static final long CU_LAUNCH_PARAM_BUFFER_SIZE = 2;
+	private static final Long DEFAULT_STREAM = 0L;
+	
+	private static final Linker linker = Linker.nativeLinker();
+	
+	private SymbolLookup library;
+	private int deviceCount;
+	
+	private MethodHandle cuGetErrorName;
+	private MethodHandle cuDeviceGetCount;
+	private MethodHandle cuDeviceGetAttribute;
+	private MethodHandle cuDeviceTotalMem;
+	private MethodHandle cuDeviceGetName;
+	private MethodHandle cuCtxCreate;
+	private MethodHandle cuCtxDestroy;
+	private MethodHandle cuCtxPushCurrent;
+	private MethodHandle cuCtxPopCurrent;
+	private MethodHandle cuCtxSynchronize;
+	private MethodHandle cuMemAlloc;
+	private MethodHandle cuMemFree;
+	private MethodHandle cuMemcpyHtoD;
+	private MethodHandle cuMemcpyDtoH;
+	private MethodHandle cuMemcpyHtoDAsync;
+	private MethodHandle cuMemcpyDtoHAsync;
+	private MethodHandle cuStreamCreate;
+	private MethodHandle cuStreamDestroy;
+	private MethodHandle cuStreamQuery;
+	private MethodHandle cuStreamSynchronize;
+	private MethodHandle cuStreamWaitEvent;
+	private MethodHandle cuEventCreate;
+	private MethodHandle cuEventRecord;
+	private MethodHandle cuEventQuery;
+	private MethodHandle cuEventSynchronize;
+	private MethodHandle cuEventElapsedTime;
+	private MethodHandle cuEventDestroy;
+	private MethodHandle cuModuleLoadData;
+	private MethodHandle cuModuleUnload;
+	private MethodHandle cuModuleGetFunction;
+	private MethodHandle cuLaunchKernel;
+	
+	/**
+	 * The memory a thread passes to the driver, allocated once per thread.
+	 */
+	private static class Scratch {
+		// freed once the thread and its scratch are gone
+		private Arena arena = Arena.ofAuto();
+		MemorySegment out = arena.allocate(8, 8);
+		// CU_LAUNCH_PARAM_BUFFER_POINTER, pointer, CU_LAUNCH_PARAM_BUFFER_SIZE, &size, CU_LAUNCH_PARAM_END
+		MemorySegment extra = arena.allocate(ADDRESS, 5);
+		MemorySegment size = arena.allocate(JAVA_LONG);
+		
+		Scratch() {
+			extra.setAtIndex(JAVA_LONG, 0, CU_LAUNCH_PARAM_BUFFER_POINTER);
+			extra.setAtIndex(JAVA_LONG, 2, CU_LAUNCH_PARAM_BUFFER_SIZE);
+			extra.setAtIndex(ADDRESS, 3, size);
+			extra.setAtIndex(JAVA_LONG, 4, 0);
+		}
+	}
+	
+	private static final ThreadLocal<Scratch> scratch = new ThreadLocal<Scratch>() {
+		protected Scratch initialValue() { return new Scratch(); }
+	};
+	
+	/**
+	 * A function, and the shared memory it is launched with.
+	 */
+	private static class PanamaFunction {
+		long function;
+		int sharedSize;
+		PanamaFunction(long f) { function = f; }
+	}
+	
+	public PanamaBackend() {
+		this(System.getProperty("javacuda.driver", 
+				System.getProperty("os.name").startsWith("Windows") ? "nvcuda.dll" : "libcuda.so.1"));
+	}
+	
+	/**
+	 * Bind to a driver library and initialise it.
+	 * @param driver The name or path of the library.
+	 * @throws UnsatisfiedLinkError If the library or one of its entry points is missing.
+	 */
+	public PanamaBackend(String driver) {
+		try {
+			library = driver.indexOf('/') >= 0 || driver.indexOf('\\') >= 0 
+					? SymbolLookup.libraryLookup(Path.of(driver), Arena.global()) 
+					: SymbolLookup.libraryLookup(driver, Arena.global());
+		} catch (IllegalArgumentException e) {
+			throw new UnsatisfiedLinkError("Unable to load " + driver);
+		}
+		
+		MethodHandle cuInit = bind("cuInit", JAVA_INT);
+		cuGetErrorName = bind("cuGetErrorName", JAVA_INT, ADDRESS);
+		cuDeviceGetCount = bind("cuDeviceGetCount", ADDRESS);
+		cuDeviceGetAttribute = bind("cuDeviceGetAttribute", ADDRESS, JAVA_INT, JAVA_INT);
+		cuDeviceTotalMem = bind("cuDeviceTotalMem_v2", ADDRESS, JAVA_INT);
+		cuDeviceGetName = bind("cuDeviceGetName", ADDRESS, JAVA_INT, JAVA_INT);
+		cuCtxCreate = bind("cuCtxCreate_v2", ADDRESS, JAVA_INT, JAVA_INT);
+		cuCtxDestroy = bind("cuCtxDestroy_v2", JAVA_LONG);
+		cuCtxPushCurrent = bind("cuCtxPushCurrent_v2", JAVA_LONG);
+		cuCtxPopCurrent = bind("cuCtxPopCurrent_v2", ADDRESS);
+		cuCtxSynchronize = bind("cuCtxSynchronize");
+		cuMemAlloc = bind("cuMemAlloc_v2", ADDRESS, JAVA_LONG);
+		cuMemFree = bind("cuMemFree_v2", JAVA_LONG);
+		cuMemcpyHtoD = bind("cuMemcpyHtoD_v2", JAVA_LONG, ADDRESS, JAVA_LONG);
+		cuMemcpyDtoH = bind("cuMemcpyDtoH_v2", ADDRESS, JAVA_LONG, JAVA_LONG);
+		cuMemcpyHtoDAsync = bind("cuMemcpyHtoDAsync_v2", JAVA_LONG, ADDRESS, JAVA_LONG, JAVA_LONG);
+		cuMemcpyDtoHAsync = bind("cuMemcpyDtoHAsync_v2", ADDRESS, JAVA_LONG, JAVA_LONG, JAVA_LONG);
+		cuStreamCreate = bind("cuStreamCreate", ADDRESS, JAVA_INT);
+		cuStreamDestroy = bind("cuStreamDestroy_v2", JAVA_LONG);
+		cuStreamQuery = bind("cuStreamQuery", JAVA_LONG);
+		cuStreamSynchronize = bind("cuStreamSynchronize", JAVA_LONG);
+		cuStreamWaitEvent = bind("cuStreamWaitEvent", JAVA_LONG, JAVA_LONG, JAVA_INT);
+		cuEventCreate = bind("cuEventCreate", ADDRESS, JAVA_INT);
+		cuEventRecord = bind("cuEventRecord", JAVA_LONG, JAVA_LONG);
+		cuEventQuery = bind("cuEventQuery", JAVA_LONG);
+		cuEventSynchronize = bind("cuEventSynchronize", JAVA_LONG);
+		cuEventElapsedTime = bind("cuEventElapsedTime", ADDRESS, JAVA_LONG, JAVA_LONG);
+		cuEventDestroy = bind("cuEventDestroy_v2", JAVA_LONG);
+		cuModuleLoadData = bind("cuModuleLoadData", ADDRESS, ADDRESS);
+		cuModuleUnload = bind("cuModuleUnload", JAVA_LONG);
+		cuModuleGetFunction = bind("cuModuleGetFunction", ADDRESS, JAVA_LONG, ADDRESS);
+		cuLaunchKernel = bind("cuLaunchKernel", JAVA_LONG, 
+				JAVA_INT, JAVA_INT, JAVA_INT, JAVA_INT, JAVA_INT, JAVA_INT, JAVA_INT, 
+				JAVA_LONG, ADDRESS, ADDRESS);
+		
+		try {
+			// no device is not an error here, the device count is just 0
+			if ((int)cuInit.invokeExact(0) == CUDA_SUCCESS) {
+				MemorySegment out = scratch.get().out;
+				check((int)cuDeviceGetCount.invokeExact(out));
+				deviceCount = out.get(JAVA_INT, 0);
+			}
+		} catch (Throwable t) {
+			throw rethrow(t);
+		}
+	}
+	
+	/**
+	 * Make a downcall handle for a driver entry point that returns a CUresult.
+	 */
+	private MethodHandle bind(String name, MemoryLayout... arguments) {
+		MemorySegment symbol = library.find(name).orElse(null);
+		if (symbol == null) throw new UnsatisfiedLinkError("No " + name + " in the driver library");
+		return linker.downcallHandle(symbol, FunctionDescriptor.of(JAVA_INT, arguments));
+	}
+	
+	private void check(int result) {
+		if (result != CUDA_SUCCESS) throw new CudaAPIError(errorName(result));
+	}
+	
+	private String errorName(int result) {
+		try {
+			MemorySegment out = scratch.get().out;
+			if ((int)cuGetErrorName.invokeExact(result, out) != CUDA_SUCCESS) return "CUresult " + result;
+			return out.get(ADDRESS, 0).reinterpret(Long.MAX_VALUE).getString(0);
+		} catch (Throwable t) {
+			throw rethrow(t);
+		}
+	}
+	
+	/**
+	 * Unchecked exceptions from invokeExact are thrown as they are, there are no checked ones.
+	 */
+	private static RuntimeException rethrow(Throwable t) {
+		if (t instanceof Error) throw (Error)t;
+		if (t instanceof RuntimeException) return (RuntimeException)t;
+		return new IllegalStateException(t);
+	}
+	
+	private boolean isReady(int result) {
+		if (result == CUDA_ERROR_NOT_READY) return false;
+		check(result);
+		return true;
+	}
+	
+	private static long handle(Object o) {
+		return (Long)o;
+	}
+	
+	private static MemorySegment segment(NativeByteArray array) {
+		return MemorySegment.ofBuffer(array.asByteBuffer());
+	}
+	
+	public String getName() {
+		return "panama";
+	}
+	
+	public int getDeviceCount() {
+		return deviceCount;
+	}
+	
+	public int getAttribute(int device, DeviceInfo.Attribute attribute) {
+		try {
+			MemorySegment out = scratch.get().out;
+			// a driver older than the attribute reports CUDA_ERROR_INVALID_VALUE
+			if ((int)cuDeviceGetAttribute.invokeExact(out, attribute.getCode(), device) != CUDA_SUCCESS) return -1;
+			return out.get(JAVA_INT, 0);
+		} catch (Throwable t) {
+			throw rethrow(t);
+		}
+	}
+	
+	public long getTotalMemory(int device) {
+		try {
+			MemorySegment out = scratch.get().out;
+			check((int)cuDeviceTotalMem.invokeExact(out, device));
+			return out.get(JAVA_LONG, 0);
+		} catch (Throwable t) {
+			throw rethrow(t);
+		}
+	}
+	
+	public String getDeviceName(int device) {
+		try (Arena arena = Arena.ofConfined()) {
+			MemorySegment name = arena.allocate(256);
+			check((int)cuDeviceGetName.invokeExact(name, (int)name.byteSize(), device));
+			return name.getString(0);
+		} catch (Throwable t) {
+			throw rethrow(t);
+		}
+	}
+	
+	public boolean hasPageLockedMemory() {
+		// page-locked memory comes from cuMemAllocHost in the SWIG wrapper, so arrays are ordinary here
+		return false;
+	}
+	
+	public boolean needsCubinImage() {
+		return true;
+	}
+	
+	public int getPointerSize() {
+		// the _v2 entry points take 64-bit device pointers, as do kernels compiled for a 64-bit host
+		return 8;
+	}
+	
+	public Object createContext(int device, Context.Flags flags) {
+		try {
+			MemorySegment out = scratch.get().out;
+			check((int)cuCtxCreate.invokeExact(out, flags.flag, device));
+			long context = out.get(JAVA_LONG, 0);
+			check((int)cuCtxPopCurrent.invokeExact(MemorySegment.NULL));
+			return context;
+		} catch (Throwable t) {
+			throw rethrow(t);
+		}
+	}
+	
+	public void destroyContext(Object context) {
+		try {
+			check((int)cuCtxDestroy.invokeExact(handle(context)));
+		} catch (Throwable t) {
+			throw rethrow(t);
+		}
+	}
+	
+	public void pushContext(Object context) {
+		try {
+			check((int)cuCtxPushCurrent.invokeExact(handle(context)));
+		} catch (Throwable t) {
+			throw rethrow(t);
+		}
+	}
+	
+	public void popContext() {
+		try {
+			check((int)cuCtxPopCurrent.invokeExact(MemorySegment.NULL));
+		} catch (Throwable t) {
+			throw rethrow(t);
+		}
+	}
+	
+	public void synchronizeContext() {
+		try {
+			check((int)cuCtxSynchronize.invokeExact());
+		} catch (Throwable t) {
+			throw rethrow(t);
+		}
+	}
+	
+	public long allocate(long size) {
+		try {
+			MemorySegment out = scratch.get().out;
+			check((int)cuMemAlloc.invokeExact(out, size));
+			return out.get(JAVA_LONG, 0);
+		} catch (Throwable t) {
+			throw rethrow(t);
+		}
+	}
+	
+	public void free(long address) {
+		try {
+			check((int)cuMemFree.invokeExact(address));
+		} catch (Throwable t) {
+			throw rethrow(t);
+		}
+	}
+	
+	public void copyToDevice(long address, NativeByteArray src, long size, Object stream) {
+		try {
+			if (stream == null) {
+				check((int)cuMemcpyHtoD.invokeExact(address, segment(src), size));
+			} else {
+				check((int)cuMemcpyHtoDAsync.invokeExact(address, segment(src), size, handle(stream)));
+			}
+		} catch (Throwable t) {
+			throw rethrow(t);
+		}
+	}
+	
+	public void copyFromDevice(NativeByteArray dst, long address, long size, Object stream) {
+		try {
+			if (stream == null) {
+				check((int)cuMemcpyDtoH.invokeExact(segment(dst), address, size));
+			} else {
+				check((int)cuMemcpyDtoHAsync.invokeExact(segment(dst), address, size, handle(stream)));
+			}
+		} catch (Throwable t) {
+			throw rethrow(t);
+		}
+	}
+	
+	public Object getDefaultStream(Object context) {
+		return DEFAULT_STREAM;
+	}
+	
+	public Object createStream() {
+		try {
+			MemorySegment out = scratch.get().out;
+			check((int)cuStreamCreate.invokeExact(out, 0));
+			return out.get(JAVA_LONG, 0);
+		} catch (Throwable t) {
+			throw rethrow(t);
+		}
+	}
+	
+	public void destroyStream(Object stream) {
+		try {
+			check((int)cuStreamDestroy.invokeExact(handle(stream)));
+		} catch (Throwable t) {
+			throw rethrow(t);
+		}
+	}
+	
+	public boolean queryStream(Object stream) {
+		try {
+			return isReady((int)cuStreamQuery.invokeExact(handle(stream)));
+		} catch (Throwable t) {
+			throw rethrow(t);
+		}
+	}
+	
+	public void synchronizeStream(Object stream) {
+		try {
+			check((int)cuStreamSynchronize.invokeExact(handle(stream)));
+		} catch (Throwable t) {
+			throw rethrow(t);
+		}
+	}
+	
+	public Object recordEvent(Object stream) {
+		try {
+			MemorySegment out = scratch.get().out;
+			check((int)cuEventCreate.invokeExact(out, 0));
+			long event = out.get(JAVA_LONG, 0);
+			int result = (int)cuEventRecord.invokeExact(event, handle(stream));
+			if (result != CUDA_SUCCESS) {
+				int ignored = (int)cuEventDestroy.invokeExact(event);
+				check(result);
+			}
+			return event;
+		} catch (Throwable t) {
+			throw rethrow(t);
+		}
+	}
+	
+	public boolean queryEvent(Object event) {
+		try {
+			return isReady((int)cuEventQuery.invokeExact(handle(event)));
+		} catch (Throwable t) {
+			throw rethrow(t);
+		}
+	}
+	
+	public void synchronizeEvent(Object event) {
+		try {
+			check((int)cuEventSynchronize.invokeExact(handle(event)));
+		} catch (Throwable t) {
+			throw rethrow(t);
+		}
+	}
+	
+	public void waitEvent(Object stream, Object event) {
+		try {
+			check((int)cuStreamWaitEvent.invokeExact(handle(stream), handle(event), 0));
+		} catch (Throwable t) {
+			throw rethrow(t);
+		}
+	}
+	
+	public float elapsedTime(Object start, Object end) {
+		try {
+			MemorySegment out = scratch.get().out;
+			check((int)cuEventElapsedTime.invokeExact(out, handle(start), handle(end)));
+			return out.get(JAVA_FLOAT, 0);
+		} catch (Throwable t) {
+			throw rethrow(t);
+		}
+	}
+	
+	public void destroyEvent(Object event) {
+		try {
+			check((int)cuEventDestroy.invokeExact(handle(event)));
+		} catch (Throwable t) {
+			throw rethrow(t);
+		}
+	}
+	
+	public Object loadModule(Cubin cubin) {
+		// the driver reads the image as a string, so it needs a terminator
+		byte[] image = cubin.getImage();
+		try (Arena arena = Arena.ofConfined()) {
+			MemorySegment data = arena.allocate(image.length + 1);
+			MemorySegment.copy(image, 0, data, JAVA_BYTE, 0, image.length);
+			data.set(JAVA_BYTE, image.length, (byte)0);
+			MemorySegment out = scratch.get().out;
+			check((int)cuModuleLoadData.invokeExact(out, data));
+			return out.get(JAVA_LONG, 0);
+		} catch (Throwable t) {
+			throw rethrow(t);
+		}
+	}
+	
+	public void unloadModule(Object module) {
+		try {
+			check((int)cuModuleUnload.invokeExact(handle(module)));
+		} catch (Throwable t) {
+			throw rethrow(t);
+		}
+	}
+	
+	public Object getFunction(Object module, String name) {
+		try (Arena arena = Arena.ofConfined()) {
+			MemorySegment out = scratch.get().out;
+			check((int)cuModuleGetFunction.invokeExact(out, handle(module), arena.allocateFrom(name)));
+			return new PanamaFunction(out.get(JAVA_LONG, 0));
+		} catch (Throwable t) {
+			throw rethrow(t);
+		}
+	}
+	
+	public void releaseFunction(Object function) {
+		// the function belongs to the module
+	}
+	
+	public void setSharedMemory(Object function, long size) {
+		((PanamaFunction)function).sharedSize = (int)size;
+	}
+	
+	public void launch(Object function, Function.GridSize grid, Function.BlockSize block, 
+			NativeByteArray params, int paramSize, Object stream) {
+		PanamaFunction f = (PanamaFunction)function;
+		Scratch s = scratch.get();
+		// the parameters are passed as one buffer, as they were built
+		s.extra.setAtIndex(ADDRESS, 1, segment(params));
+		s.size.set(JAVA_LONG, 0, paramSize);
+		try {
+			check((int)cuLaunchKernel.invokeExact(f.function, 
+					grid.x, grid.y, 1, block.x, block.y, block.z, f.sharedSize, 
+					handle(stream), MemorySegment.NULL, s.extra));
+		} catch (Throwable t) {
+			throw rethrow(t);
+		}
+	}
+}
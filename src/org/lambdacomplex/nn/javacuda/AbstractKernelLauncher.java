@@ -0,0 +1,82 @@
+/*
+* Copyright 2009 Gabriel Collin
+*
+* This file is part of javaCUDA.
+*
+* javaCUDA is free software: you can redistribute it and/or modify it
+* under the terms of the GNU Lesser General Public License as published
+* by the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* javaCUDA is distributed in the hope that it will be useful, but WITHOUT
+* ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+* FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public
+* License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public
+* License along with javaCUDA. If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package org.lambdacomplex.nn.javacuda;
+
+import java.util.*;
+
+/**
+ * The base of the launchers made by LauncherGenerator.
+ * @author NewName
+ *
+ */
+public abstract class AbstractKernelLauncher implements KernelLauncher {
+	private Module module;
+	private Context context;
+	private Stream stream;
+	private Map<String, Function> functions = new HashMap<String, Function>();
+	private List<KernelArguments> arguments = new ArrayList<KernelArguments>();
+	
+	protected AbstractKernelLauncher(Module module) {
+		this.module = module;
+		context = module.getContext();
+	}
+	
+	/**
+	 * Get a kernel of the module for a launch method.
+	 * @param name The name of the kernel.
+	 * @return The function, whose arguments are then made with arguments.
+	 */
+	protected Function bind(String name) {
+		Function f = module.getFunction(name);
+		functions.put(name, f);
+		return f;
+	}
+	
+	/**
+	 * Make the arguments a launch method reuses.
+	 * @param f The function from bind.
+	 * @return Empty arguments, freed when the launcher is closed.
+	 */
+	protected KernelArguments arguments(Function f) {
+		KernelArguments a = f.createArguments();
+		arguments.add(a);
+		return a;
+	}
+	
+	public Function getFunction(String name) {
+		Function f = functions.get(name);
+		if (f == null) throw new IllegalArgumentException("No kernel " + name + " in this launcher");
+		return f;
+	}
+	
+	public void setStream(Stream stream) {
+		this.stream = stream;
+	}
+	
+	public Stream getStream() {
+		if (stream == null) stream = context.getDefaultStream();
+		return stream;
+	}
+	
+	public void close() {
+		for (KernelArguments a : arguments) a.free();
+		arguments.clear();
+	}
+}
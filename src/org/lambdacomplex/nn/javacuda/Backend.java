@@ -0,0 +1,171 @@
+/*
+* Copyright 2009 Gabriel Collin
+*
+* This file is part of javaCUDA.
+*
+* javaCUDA is free software: you can redistribute it and/or modify it
+* under the terms of the GNU Lesser General Public License as published
+* by the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* javaCUDA is distributed in the hope that it will be useful, but WITHOUT
+* ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+* FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public
+* License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public
+* License along with javaCUDA. If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package org.lambdacomplex.nn.javacuda;
+
+import org.lambdacomplex.nn.javacuda.array.NativeByteArray;
+
+/**
+ * The implementation that devices, contexts, memory, streams and functions are built on.
+ * 
+ * Contexts, streams, events, modules and functions are opaque handles created by the backend, device memory is 
+ * addressed by longs. Apart from creating, destroying, pushing and popping contexts, every method is called with 
+ * a context of this backend current on the calling thread; the Context class takes care of that. Methods that 
+ * take a stream queue their work on it when it is not null, and are synchronous otherwise. Errors are reported 
+ * with CudaAPIError.
+ * 
+ * The backend of a Device is chosen when it is obtained from the Device class.
+ * @author NewName
+ *
+ */
+public interface Backend {
+	public String getName();
+	
+	public int getDeviceCount();
+	
+	/**
+	 * An attribute of a device, as cuDeviceGetAttribute gives it. DeviceInfo asks for each attribute once.
+	 * @param device The device-ID.
+	 * @param attribute The attribute.
+	 * @return The value, or -1 if the backend or driver does not have the attribute.
+	 */
+	public int getAttribute(int device, DeviceInfo.Attribute attribute);
+	
+	/**
+	 * The global memory of a device.
+	 * @param device The device-ID.
+	 * @return The size in bytes.
+	 */
+	public long getTotalMemory(int device);
+	
+	/**
+	 * The name of a device.
+	 * @param device The device-ID.
+	 * @return The name the driver gives it.
+	 */
+	public String getDeviceName(int device);
+	
+	/**
+	 * Whether host memory has to be page-locked through the backend for asynchronous copies.
+	 * @return True if page-locked memory should come from the context's host memory pool.
+	 */
+	public boolean hasPageLockedMemory();
+	
+	/**
+	 * Whether modules are loaded from compiled cubin images.
+	 * @return True if Cubins must be compiled before they are loaded.
+	 */
+	public boolean needsCubinImage();
+	
+	/**
+	 * The size of a pointer parameter of a kernel, which is how kernels for this backend are compiled.
+	 * @return 4 or 8.
+	 */
+	public int getPointerSize();
+	
+	/**
+	 * Create a context, which is not left current on the calling thread.
+	 */
+	public Object createContext(int device, Context.Flags flags);
+	
+	public void destroyContext(Object context);
+	
+	public void pushContext(Object context);
+	
+	public void popContext();
+	
+	/**
+	 * Block until all the work in the current context is complete.
+	 */
+	public void synchronizeContext();
+	
+	public long allocate(long size);
+	
+	public void free(long address);
+	
+	public void copyToDevice(long address, NativeByteArray src, long size, Object stream);
+	
+	public void copyFromDevice(NativeByteArray dst, long address, long size, Object stream);
+	
+	/**
+	 * Get the handle of the default stream of a context, which is never destroyed.
+	 */
+	public Object getDefaultStream(Object context);
+	
+	public Object createStream();
+	
+	public void destroyStream(Object stream);
+	
+	/**
+	 * Check whether a stream has finished all its work.
+	 */
+	public boolean queryStream(Object stream);
+	
+	public void synchronizeStream(Object stream);
+	
+	/**
+	 * Create an event and record it at this point in the stream.
+	 */
+	public Object recordEvent(Object stream);
+	
+	/**
+	 * Check whether the stream has reached an event.
+	 */
+	public boolean queryEvent(Object event);
+	
+	public void synchronizeEvent(Object event);
+	
+	/**
+	 * Make the work queued on a stream after this call wait until an event is reached, which may be on another 
+	 * stream. The calling thread does not wait unless the driver has no other way of doing it.
+	 */
+	public void waitEvent(Object stream, Object event);
+	
+	/**
+	 * The time in milliseconds between two events that have both been reached.
+	 */
+	public float elapsedTime(Object start, Object end);
+	
+	public void destroyEvent(Object event);
+	
+	/**
+	 * Load a module.
+	 * @param cubin The Cubin, compiled if this backend needs a cubin image.
+	 */
+	public Object loadModule(Cubin cubin);
+	
+	public void unloadModule(Object module);
+	
+	public Object getFunction(Object module, String name);
+	
+	/**
+	 * Free the handle of a function, which does not need a context.
+	 */
+	public void releaseFunction(Object function);
+	
+	public void setSharedMemory(Object function, long size);
+	
+	/**
+	 * Launch a function.
+	 * @param params The function's parameters, read before this returns.
+	 * @param paramSize The size of the parameters in bytes.
+	 */
+	public void launch(Object function, Function.GridSize grid, Function.BlockSize block, 
+			NativeByteArray params, int paramSize, Object stream);
+}
@@ -0,0 +1,211 @@
+/*
+* Copyright 2009 Gabriel Collin
+*
+* This file is part of javaCUDA.
+*
+* javaCUDA is free software: you can redistribute it and/or modify it
+* under the terms of the GNU Lesser General Public License as published
+* by the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* javaCUDA is distributed in the hope that it will be useful, but WITHOUT
+* ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+* FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public
+* License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public
+* License along with javaCUDA. If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package org.lambdacomplex.nn.javacuda;
+
+import java.util.ArrayList;
+
+import org.lambdacomplex.nn.javacuda.array.*;
+
+/**
+ * A scope that owns all the host and device buffers for a unit of work.
+ * 
+ * The scope reserves one page-locked host block and one device block up front, and hands out buffers
+ * by carving them from those blocks. Closing the scope releases every buffer at once; buffers taken
+ * from a scope must not be freed individually or used after it is closed. If a reservation runs out,
+ * further buffers are allocated separately and are still released when the scope closes.
+ * 
+ * The memory goes back for reuse straight away, so closing waits for the work queued on the buffers: 
+ * close() waits for the whole context, close(Stream) only for the stream the work was queued on.
+ * 
+ * A scope is meant to be used by one thread, in a try-with-resources statement:
+ * <pre>
+ * try (BufferScope scope = ctx.openScope(hostBytes, deviceBytes)) {
+ *     NativeFloatArray input = scope.allocateFloatArray(n);
+ *     DevicePointer input_gpu = scope.allocateDevice(input.getByteSize());
+ *     ...
+ * }
+ * </pre>
+ * Create scopes using the Context class.
+ * @author NewName
+ *
+ */
+public class BufferScope implements AutoCloseable {
+	public static final int HOST_ALIGNMENT = 16;
+	
+	private Context context;
+	private NativeByteArray host;
+	private DevicePointer device;
+	private int hostTop;
+	private long deviceTop;
+	private ArrayList<NativeByteArray> hostBuffers = new ArrayList<NativeByteArray>();
+	private ArrayList<DevicePointer> deviceBuffers = new ArrayList<DevicePointer>();
+	private boolean closed;
+	
+	protected BufferScope(Context ctx, int hostBytes, long deviceBytes) {
+		context = ctx;
+		if (hostBytes > 0) host = new NativeByteArray(ctx, hostBytes);
+		if (deviceBytes > 0) device = new DevicePointer(ctx, deviceBytes);
+	}
+	
+	/**
+	 * Find room for a host buffer in the reservation.
+	 * @return The offset of the buffer in the reservation, or -1 if there is not enough room.
+	 */
+	private int carveHost(int size) {
+		if (closed) throw new IllegalStateException("Scope is closed");
+		if (size < 0) throw new IllegalArgumentException("Negative size");
+		if (host == null) return -1;
+		int offset = (hostTop + HOST_ALIGNMENT - 1) / HOST_ALIGNMENT * HOST_ALIGNMENT;
+		if (offset + size > host.getByteSize()) return -1;
+		hostTop = offset + size;
+		return offset;
+	}
+	
+	private <T extends NativeByteArray> T keep(T buffer) {
+		hostBuffers.add(buffer);
+		return buffer;
+	}
+	
+	/**
+	 * Allocate a page-locked byte array in this scope.
+	 * @param size The size in bytes.
+	 * @return The array.
+	 */
+	public NativeByteArray allocateByteArray(int size) {
+		int offset = carveHost(size);
+		if (offset < 0) return keep(new NativeByteArray(context, size));
+		return keep(new NativeByteArray(host, offset, size));
+	}
+	
+	/**
+	 * Allocate a page-locked int array in this scope.
+	 * @param size The number of elements.
+	 * @return The array.
+	 */
+	public NativeIntArray allocateIntArray(int size) {
+		int offset = carveHost(Math.multiplyExact(size, NativeIntArray.intSize));
+		if (offset < 0) return keep(new NativeIntArray(context, size));
+		return keep(new NativeIntArray(host, offset, size));
+	}
+	
+	/**
+	 * Allocate a page-locked float array in this scope.
+	 * @param size The number of elements.
+	 * @return The array.
+	 */
+	public NativeFloatArray allocateFloatArray(int size) {
+		int offset = carveHost(Math.multiplyExact(size, NativeIntArray.intSize));
+		if (offset < 0) return keep(new NativeFloatArray(context, size));
+		return keep(new NativeFloatArray(host, offset, size));
+	}
+	
+	/**
+	 * Allocate a page-locked struct array in this scope.
+	 * @param size The number of structs.
+	 * @param length The length in bytes of each struct.
+	 * @return The array.
+	 */
+	public <T extends NativeStruct> NativeStructArray<T> allocateStructArray(int size, int length) {
+		int offset = carveHost(Math.multiplyExact(size, length));
+		if (offset < 0) return keep(new NativeStructArray<T>(context, size, length));
+		return keep(new NativeStructArray<T>(host, offset, size, length));
+	}
+	
+	/**
+	 * Allocate device memory in this scope.
+	 * @param size The size in bytes.
+	 * @return A pointer to the memory.
+	 */
+	public DevicePointer allocateDevice(long size) {
+		if (closed) throw new IllegalStateException("Scope is closed");
+		DevicePointer result;
+		long offset = (deviceTop + DeviceMemoryArena.ALIGNMENT - 1) / DeviceMemoryArena.ALIGNMENT * DeviceMemoryArena.ALIGNMENT;
+		if (device != null && offset + size <= device.getSize()) {
+			result = new DevicePointer(device, offset, size);
+			deviceTop = offset + size;
+		} else {
+			result = new DevicePointer(context, size);
+		}
+		deviceBuffers.add(result);
+		return result;
+	}
+	
+	/**
+	 * Allocate device memory in this scope and copy the given array into it.
+	 * @param data The array to copy.
+	 * @return A pointer to the copy on the device.
+	 */
+	public DevicePointer toDevice(NativeByteArray data) {
+		DevicePointer result = allocateDevice(data.getByteSize());
+		result.copyFrom(data);
+		return result;
+	}
+	
+	/**
+	 * The host memory handed out from the reservation so far, including padding.
+	 * @return The amount in bytes.
+	 */
+	public int getHostBytesUsed() {
+		return hostTop;
+	}
+	
+	/**
+	 * The device memory handed out from the reservation so far, including padding.
+	 * @return The amount in bytes.
+	 */
+	public long getDeviceBytesUsed() {
+		return deviceTop;
+	}
+	
+	public boolean isClosed() {
+		return closed;
+	}
+	
+	/**
+	 * Release every buffer allocated in this scope, once all the work queued in the context is done.
+	 */
+	public void close() {
+		if (closed) return;
+		context.synchronise();
+		release();
+	}
+	
+	/**
+	 * Release every buffer allocated in this scope, once the work queued on the given stream is done.
+	 * 
+	 * Only the stream is waited for, so the buffers must not be used by work queued on any other stream.
+	 * @param stream The stream the work on the buffers was queued on.
+	 */
+	public void close(Stream stream) {
+		if (closed) return;
+		stream.synchronise();
+		release();
+	}
+	
+	private void release() {
+		closed = true;
+		for (NativeByteArray a : hostBuffers) a.free();
+		for (DevicePointer p : deviceBuffers) p.freeIdle();
+		hostBuffers.clear();
+		deviceBuffers.clear();
+		if (host != null) host.free();
+		if (device != null) device.freeIdle();
+	}
+}
@@ -0,0 +1,429 @@
+/*
+* Copyright 2009 Gabriel Collin
+*
+* This file is part of javaCUDA.
+*
+* javaCUDA is free software: you can redistribute it and/or modify it
+* under the terms of the GNU Lesser General Public License as published
+* by the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* javaCUDA is distributed in the hope that it will be useful, but WITHOUT
+* ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+* FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public
+* License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public
+* License along with javaCUDA. If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package org.lambdacomplex.nn.javacuda;
+
+import java.util.*;
+
+import org.lambdacomplex.nn.javacuda.array.NativeByteArray;
+
+/**
+ * A recorded sequence of copies and launches, replayed as often as needed with new buffers and values bound to 
+ * its slots.
+ * 
+ * Record a graph with a Builder: declare slots for the device buffers, host arrays and scalar arguments that 
+ * change between replays, then add the copies and launches in order. Launch arguments are laid out once when 
+ * the graph is built, and the grid and block size of each function are fixed then too. A replay enters the 
+ * context once, writes only the slot arguments and queues every command on the stream, allocating nothing.
+ * <pre>
+ * CommandGraph.Builder b = new CommandGraph.Builder(ctx);
+ * CommandGraph.DeviceSlot data = b.deviceSlot("data");
+ * CommandGraph.HostSlot host = b.hostSlot("host");
+ * CommandGraph.ScalarSlot inc = b.scalarSlot("inc", KernelSignature.Kind.INT);
+ * b.copyToDevice(data, host).launch(increment, data, inc).copyToHost(host, data);
+ * CommandGraph graph = b.build();
+ * 
+ * graph.bind(data, pointer);
+ * graph.bind(host, array);
+ * graph.setInt(inc, 25);
+ * graph.replay(stream);
+ * </pre>
+ * The commands are replayed through the backend one by one. Neither driver binding here has the CUDA graph 
+ * API, so there is no native graph to map onto; a backend that has one could capture the same command list.
+ * 
+ * A graph is for one thread at a time: bind and replay on the same thread, or lock around them.
+ * @author NewName
+ *
+ */
+public class CommandGraph implements AutoCloseable {
+	/**
+	 * A value bound to a graph before each replay.
+	 */
+	public static abstract class Slot {
+		private String name;
+		Slot(String n) { name = n; }
+		
+		public String getName() {
+			return name;
+		}
+		
+		void unbound() {
+			throw new IllegalStateException("Slot " + name + " is not bound");
+		}
+	}
+	
+	/**
+	 * A device buffer.
+	 */
+	public static final class DeviceSlot extends Slot {
+		DevicePointer pointer;
+		DeviceSlot(String n) { super(n); }
+		
+		long address() {
+			if (pointer == null) unbound();
+			if (pointer.isFreed()) throw new IllegalStateException("Slot " + getName() + " is bound to freed memory");
+			return pointer.getValue();
+		}
+	}
+	
+	/**
+	 * A host array, page-locked if its copies are to be asynchronous.
+	 */
+	public static final class HostSlot extends Slot {
+		NativeByteArray array;
+		HostSlot(String n) { super(n); }
+		
+		NativeByteArray array() {
+			if (array == null) unbound();
+			return array;
+		}
+	}
+	
+	/**
+	 * A scalar kernel argument, or the size of a copy.
+	 */
+	public static final class ScalarSlot extends Slot {
+		KernelSignature.Kind kind;
+		long bits;
+		boolean bound;
+		ScalarSlot(String n, KernelSignature.Kind k) { super(n); kind = k; }
+		
+		public KernelSignature.Kind getKind() {
+			return kind;
+		}
+		
+		long bits() {
+			if (!bound) unbound();
+			return bits;
+		}
+	}
+	
+	/**
+	 * A recorded command, run with the context current.
+	 */
+	private static abstract class Command {
+		abstract void run(Backend backend, Object stream);
+	}
+	
+	private static class Copy extends Command {
+		boolean toDevice;
+		DeviceSlot device;
+		HostSlot host;
+		// null for the size of the host array
+		ScalarSlot size;
+		
+		void run(Backend backend, Object stream) {
+			NativeByteArray array = host.array();
+			long address = device.address();
+			long bytes = size == null ? array.getByteSize() : size.bits();
+			if (bytes > array.getByteSize() || bytes > device.pointer.getSize()) {
+				throw new IllegalArgumentException("Copy of " + bytes + " bytes between " + host.getName() + " and " 
+						+ device.getName() + " is larger than them");
+			}
+			if (toDevice) {
+				backend.copyToDevice(address, array, bytes, stream);
+			} else {
+				backend.copyFromDevice(array, address, bytes, stream);
+			}
+		}
+	}
+	
+	private static class Launch extends Command {
+		Object function;
+		Function.GridSize grid;
+		Function.BlockSize block;
+		KernelArguments arguments;
+		// the offsets of slot arguments, and their slots
+		int[] offsets;
+		Slot[] slots;
+		
+		void run(Backend backend, Object stream) {
+			for (int i = 0; i < slots.length; i++) {
+				Slot s = slots[i];
+				if (s instanceof DeviceSlot) {
+					arguments.setPointer(offsets[i], ((DeviceSlot)s).address());
+				} else {
+					ScalarSlot v = (ScalarSlot)s;
+					long bits = v.bits();
+					switch (v.kind) {
+					case INT: case FLOAT: arguments.setInt(offsets[i], (int)bits); break;
+					case LONG: case DOUBLE: arguments.setLong(offsets[i], bits); break;
+					default: arguments.setPointer(offsets[i], bits); break;
+					}
+				}
+			}
+			backend.launch(function, grid, block, arguments.getParams(), arguments.getSize(), stream);
+		}
+	}
+	
+	/**
+	 * Queues every command. Each graph keeps one, so replays allocate nothing.
+	 */
+	private static class Replay implements Runnable {
+		Command[] commands;
+		Backend backend;
+		Object stream;
+		public void run() {
+			for (Command c : commands) c.run(backend, stream);
+		}
+	}
+	
+	private Context context;
+	private Command[] commands;
+	private Set<Slot> slots;
+	private Replay replay = new Replay();
+	
+	private CommandGraph(Context ctx, List<Command> c, Set<Slot> s) {
+		context = ctx;
+		commands = c.toArray(new Command[c.size()]);
+		slots = s;
+		replay.commands = commands;
+		replay.backend = ctx.getBackend();
+	}
+	
+	/**
+	 * Records the commands of a graph.
+	 * @author NewName
+	 *
+	 */
+	public static class Builder {
+		private Context context;
+		private List<Command> commands = new ArrayList<Command>();
+		private Set<Slot> slots = new LinkedHashSet<Slot>();
+		private boolean built;
+		
+		public Builder(Context ctx) {
+			context = ctx;
+		}
+		
+		private <S extends Slot> S add(S slot) {
+			if (built) throw new IllegalStateException("Graph already built");
+			slots.add(slot);
+			return slot;
+		}
+		
+		public DeviceSlot deviceSlot(String name) {
+			return add(new DeviceSlot(name));
+		}
+		
+		public HostSlot hostSlot(String name) {
+			return add(new HostSlot(name));
+		}
+		
+		/**
+		 * Declare a scalar slot.
+		 * @param name The name of the slot, for errors.
+		 * @param kind The type of the argument, INT or LONG for copy sizes. POINTER takes a raw device address.
+		 * @return The slot.
+		 */
+		public ScalarSlot scalarSlot(String name, KernelSignature.Kind kind) {
+			return add(new ScalarSlot(name, kind));
+		}
+		
+		private void owned(Slot s) {
+			if (!slots.contains(s)) throw new IllegalArgumentException("Slot " + s.getName() + " is not of this graph");
+		}
+		
+		/**
+		 * Record a copy of a whole host array to a device buffer.
+		 */
+		public Builder copyToDevice(DeviceSlot dst, HostSlot src) {
+			return copy(true, dst, src, null);
+		}
+		
+		/**
+		 * Record a copy of the start of a host array to a device buffer.
+		 * @param size An INT or LONG slot holding the number of bytes to copy.
+		 */
+		public Builder copyToDevice(DeviceSlot dst, HostSlot src, ScalarSlot size) {
+			return copy(true, dst, src, size);
+		}
+		
+		/**
+		 * Record a copy of a device buffer into a whole host array.
+		 */
+		public Builder copyToHost(HostSlot dst, DeviceSlot src) {
+			return copy(false, src, dst, null);
+		}
+		
+		/**
+		 * Record a copy of the start of a device buffer into a host array.
+		 * @param size An INT or LONG slot holding the number of bytes to copy.
+		 */
+		public Builder copyToHost(HostSlot dst, DeviceSlot src, ScalarSlot size) {
+			return copy(false, src, dst, size);
+		}
+		
+		private Builder copy(boolean toDevice, DeviceSlot device, HostSlot host, ScalarSlot size) {
+			if (built) throw new IllegalStateException("Graph already built");
+			owned(device);
+			owned(host);
+			if (size != null) {
+				owned(size);
+				if (size.kind != KernelSignature.Kind.INT && size.kind != KernelSignature.Kind.LONG) {
+					throw new IllegalArgumentException("Size slot " + size.getName() + " is not INT or LONG");
+				}
+			}
+			Copy c = new Copy();
+			c.toDevice = toDevice;
+			c.device = device;
+			c.host = host;
+			c.size = size;
+			commands.add(c);
+			return this;
+		}
+		
+		/**
+		 * Record a launch with the function's current grid and block size.
+		 * @param function The function.
+		 * @param args The arguments in order: slots, DevicePointers, or Integer, Long, Float or Double constants.
+		 * @return This builder.
+		 */
+		public Builder launch(Function function, Object... args) {
+			if (built) throw new IllegalStateException("Graph already built");
+			if (function.getGridSize() == null || function.getBlockSize() == null) {
+				throw new IllegalStateException("Set the grid and block size of " + function.getName() + " first");
+			}
+			Launch l = new Launch();
+			l.function = function.getHandle();
+			l.grid = function.getGridSize();
+			l.block = function.getBlockSize();
+			l.arguments = function.createArguments();
+			List<Integer> offsets = new ArrayList<Integer>();
+			List<Slot> bound = new ArrayList<Slot>();
+			KernelArguments a = l.arguments;
+			for (Object arg : args) {
+				if (arg instanceof DeviceSlot) {
+					owned((Slot)arg);
+					offsets.add(a.putPointer(0L));
+					bound.add((Slot)arg);
+				} else if (arg instanceof ScalarSlot) {
+					ScalarSlot s = (ScalarSlot)arg;
+					owned(s);
+					switch (s.kind) {
+					case INT: offsets.add(a.putInt(0)); break;
+					case LONG: offsets.add(a.putLong(0)); break;
+					case FLOAT: offsets.add(a.putFloat(0)); break;
+					case DOUBLE: offsets.add(a.putDouble(0)); break;
+					default: offsets.add(a.putPointer(0L)); break;
+					}
+					bound.add(s);
+				} else if (arg instanceof DevicePointer) {
+					a.putPointer((DevicePointer)arg);
+				} else if (arg instanceof Integer) {
+					a.putInt((Integer)arg);
+				} else if (arg instanceof Long) {
+					a.putLong((Long)arg);
+				} else if (arg instanceof Float) {
+					a.putFloat((Float)arg);
+				} else if (arg instanceof Double) {
+					a.putDouble((Double)arg);
+				} else {
+					a.free();
+					throw new IllegalArgumentException("Unsupported launch argument " + arg);
+				}
+			}
+			l.offsets = new int[offsets.size()];
+			for (int i = 0; i < l.offsets.length; i++) l.offsets[i] = offsets.get(i);
+			l.slots = bound.toArray(new Slot[bound.size()]);
+			commands.add(l);
+			return this;
+		}
+		
+		/**
+		 * Finish recording.
+		 * @return The graph.
+		 */
+		public CommandGraph build() {
+			if (built) throw new IllegalStateException("Graph already built");
+			built = true;
+			return new CommandGraph(context, commands, slots);
+		}
+	}
+	
+	private void owned(Slot s) {
+		if (!slots.contains(s)) throw new IllegalArgumentException("Slot " + s.getName() + " is not of this graph");
+	}
+	
+	public void bind(DeviceSlot slot, DevicePointer pointer) {
+		owned(slot);
+		slot.pointer = pointer;
+	}
+	
+	public void bind(HostSlot slot, NativeByteArray array) {
+		owned(slot);
+		slot.array = array;
+	}
+	
+	private void set(ScalarSlot slot, KernelSignature.Kind kind, long bits) {
+		owned(slot);
+		if (slot.kind != kind) throw new IllegalArgumentException("Slot " + slot.getName() + " is " + slot.kind);
+		slot.bits = bits;
+		slot.bound = true;
+	}
+	
+	public void setInt(ScalarSlot slot, int value) {
+		set(slot, KernelSignature.Kind.INT, value);
+	}
+	
+	public void setLong(ScalarSlot slot, long value) {
+		set(slot, KernelSignature.Kind.LONG, value);
+	}
+	
+	public void setFloat(ScalarSlot slot, float value) {
+		set(slot, KernelSignature.Kind.FLOAT, Float.floatToRawIntBits(value));
+	}
+	
+	public void setDouble(ScalarSlot slot, double value) {
+		set(slot, KernelSignature.Kind.DOUBLE, Double.doubleToRawLongBits(value));
+	}
+	
+	/**
+	 * Queue every command of the graph on a stream, with the slots as they are bound now.
+	 * 
+	 * This does not wait. Use the stream's completion or an event to wait for the replay; the slots can be 
+	 * bound again as soon as this returns.
+	 * @param stream The stream.
+	 */
+	public void replay(Stream stream) {
+		if (commands == null) throw new IllegalStateException("Graph closed");
+		replay.stream = stream.getValue();
+		try {
+			context.run(replay);
+		} finally {
+			replay.stream = null;
+		}
+	}
+	
+	public int getCommandCount() {
+		return commands == null ? 0 : commands.length;
+	}
+	
+	/**
+	 * Free the graph's launch arguments. Bound buffers are not freed.
+	 */
+	public void close() {
+		if (commands == null) return;
+		for (Command c : commands) {
+			if (c instanceof Launch) ((Launch)c).arguments.free();
+		}
+		commands = null;
+		replay.commands = null;
+	}
+}
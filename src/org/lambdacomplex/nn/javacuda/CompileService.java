@@ -0,0 +1,185 @@
+/*
+* Copyright 2009 Gabriel Collin
+*
+* This file is part of javaCUDA.
+*
+* javaCUDA is free software: you can redistribute it and/or modify it
+* under the terms of the GNU Lesser General Public License as published
+* by the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* javaCUDA is distributed in the hope that it will be useful, but WITHOUT
+* ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+* FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public
+* License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public
+* License along with javaCUDA. If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package org.lambdacomplex.nn.javacuda;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Compiles many Cubins in the background, running a limited number of compilers at once.
+ * 
+ * Cubins are compiled in the order they are submitted. Loading a Cubin into a context only waits for that 
+ * Cubin: if it has not been started yet it is compiled straight away on the loading thread, so modules that 
+ * are needed first do not wait behind the rest of the queue.
+ * <pre>
+ * CompileService service = new CompileService(4);
+ * for (Cubin c : cubins) service.submit(c);
+ * Module first = ctx.loadCubin(cubins.get(0));
+ * </pre>
+ * @author NewName
+ *
+ */
+public class CompileService implements AutoCloseable {
+	
+	/**
+	 * Receives the compiler's output as it is produced, a line at a time.
+	 */
+	public interface Listener {
+		/**
+		 * Called from the compiling thread for each line of output.
+		 * @param cubin The Cubin being compiled.
+		 * @param line The line, without its terminator.
+		 */
+		public void diagnostic(Cubin cubin, String line);
+	}
+	
+	private ThreadPoolExecutor executor;
+	private Listener listener;
+	
+	/**
+	 * Create a service that runs up to one compiler per processor.
+	 */
+	public CompileService() {
+		this(Runtime.getRuntime().availableProcessors(), null);
+	}
+	
+	/**
+	 * Create a service.
+	 * @param processes The most compilers to run at once.
+	 */
+	public CompileService(int processes) {
+		this(processes, null);
+	}
+	
+	/**
+	 * Create a service.
+	 * @param processes The most compilers to run at once.
+	 * @param listener Receives the compilers' output, or null.
+	 */
+	public CompileService(int processes, Listener listener) {
+		if (processes < 1) throw new IllegalArgumentException();
+		this.listener = listener;
+		executor = new ThreadPoolExecutor(processes, processes, 30, TimeUnit.SECONDS, 
+				new LinkedBlockingQueue<Runnable>(), new Factory());
+		executor.allowCoreThreadTimeOut(true);
+	}
+	
+	private static class Factory implements ThreadFactory {
+		private static final AtomicInteger count = new AtomicInteger();
+		public Thread newThread(Runnable r) {
+			Thread t = new Thread(r, "javaCUDA compiler " + count.incrementAndGet());
+			t.setDaemon(true);
+			return t;
+		}
+	}
+	
+	/**
+	 * Queue a Cubin to be compiled.
+	 * @param cubin The Cubin.
+	 * @return A future that completes with the Cubin once it is compiled, or with its CudaCompileException.
+	 */
+	public CompletableFuture<Cubin> submit(Cubin cubin) {
+		CompletableFuture<Cubin> future = new CompletableFuture<Cubin>();
+		executor.execute(new Job(cubin, future));
+		return future;
+	}
+	
+	/**
+	 * Queue a number of Cubins to be compiled.
+	 * @param cubins The Cubins, in the order they should be started.
+	 * @return A future that completes once every Cubin is compiled, or with the first failure.
+	 */
+	public CompletableFuture<Void> submitAll(Collection<Cubin> cubins) {
+		List<CompletableFuture<Cubin>> futures = new ArrayList<CompletableFuture<Cubin>>();
+		for (Cubin c : cubins) futures.add(submit(c));
+		return CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[futures.size()]));
+	}
+	
+	private class Job implements Runnable {
+		private Cubin cubin;
+		private CompletableFuture<Cubin> future;
+		Job(Cubin c, CompletableFuture<Cubin> f) { cubin = c; future = f; }
+		public void run() {
+			try {
+				cubin.ensureCompiled(listener == null ? null : new LineWriter(cubin, listener));
+				future.complete(cubin);
+			} catch (Throwable t) {
+				future.completeExceptionally(t);
+			}
+		}
+	}
+	
+	/**
+	 * Splits what is written to it into lines for a listener.
+	 */
+	private static class LineWriter extends Writer {
+		private Cubin cubin;
+		private Listener listener;
+		private StringBuilder line = new StringBuilder();
+		LineWriter(Cubin c, Listener l) { cubin = c; listener = l; }
+		public void write(char[] buf, int off, int len) {
+			int end = off + len;
+			for (int i = off; i < end; i++) {
+				char c = buf[i];
+				if (c == '\n') {
+					int n = line.length();
+					if (n > 0 && line.charAt(n - 1) == '\r') line.setLength(n - 1);
+					listener.diagnostic(cubin, line.toString());
+					line.setLength(0);
+				} else {
+					line.append(c);
+				}
+			}
+		}
+		public void flush() {
+			if (line.length() > 0) {
+				listener.diagnostic(cubin, line.toString());
+				line.setLength(0);
+			}
+		}
+		public void close() {
+			flush();
+		}
+	}
+	
+	/**
+	 * The number of Cubins waiting for a compiler.
+	 * @return The number of Cubins.
+	 */
+	public int getQueued() {
+		return executor.getQueue().size();
+	}
+	
+	/**
+	 * Stop accepting Cubins. Those already queued are still compiled.
+	 */
+	public void shutdown() {
+		executor.shutdown();
+	}
+	
+	/**
+	 * Stop accepting Cubins, so that the service can be used in a try-with-resources statement.
+	 */
+	public void close() {
+		shutdown();
+	}
+}
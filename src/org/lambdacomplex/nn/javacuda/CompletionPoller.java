@@ -0,0 +1,263 @@
+/*
+* Copyright 2009 Gabriel Collin
+*
+* This file is part of javaCUDA.
+*
+* javaCUDA is free software: you can redistribute it and/or modify it
+* under the terms of the GNU Lesser General Public License as published
+* by the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* javaCUDA is distributed in the hope that it will be useful, but WITHOUT
+* ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+* FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public
+* License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public
+* License along with javaCUDA. If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package org.lambdacomplex.nn.javacuda;
+
+import java.lang.ref.WeakReference;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A thread that watches for asynchronous work to complete and completes futures for it.
+ * 
+ * Each context has one poller, shared by every stream in it. The poller checks all the work it is watching 
+ * in one pass. When a pass finds nothing new, it waits a little longer before the next, from spinning up to
+ * sleeping for the maximum backoff. It sleeps without polling while there is nothing to watch.
+ * 
+ * Futures are completed on the poller thread, so dependent actions that take a while should use the async 
+ * variants of the CompletableFuture methods.
+ * @author NewName
+ *
+ */
+public class CompletionPoller {
+	private static final int SPINS = 16;
+	private static final int YIELDS = 16;
+	
+	/**
+	 * Something that completes at some point, such as an event on a stream.
+	 */
+	public interface Source {
+		/**
+		 * Check whether the work has completed. Throwing completes the future exceptionally.
+		 * @return Whether the work has completed.
+		 */
+		public boolean isComplete();
+	}
+	
+	private static class Entry {
+		Source source;
+		CompletableFuture<Object> future;
+		Object value;
+		Throwable failure;
+	}
+	
+	private String name;
+	private WeakReference<Context> context;
+	private ConcurrentLinkedQueue<Entry> incoming = new ConcurrentLinkedQueue<Entry>();
+	private ArrayList<Entry> pending = new ArrayList<Entry>();
+	private ArrayList<Entry> done = new ArrayList<Entry>();
+	private AtomicInteger watching = new AtomicInteger();
+	private Thread thread;
+	private volatile boolean running = true;
+	private volatile boolean sleeping;
+	private volatile long minBackoff = 10000;
+	private volatile long maxBackoff = 1000000;
+	
+	/**
+	 * Create a poller whose sources do not need a context.
+	 * @param name The name of the poller thread.
+	 */
+	public CompletionPoller(String name) {
+		this(name, null);
+	}
+	
+	/**
+	 * Create a poller that checks its sources with the given context current.
+	 * 
+	 * The context is only referred to weakly.
+	 * @param name The name of the poller thread.
+	 * @param ctx The context.
+	 */
+	public CompletionPoller(String name, Context ctx) {
+		this.name = name;
+		if (ctx != null) context = new WeakReference<Context>(ctx);
+	}
+	
+	/**
+	 * Set how long to wait between passes that find nothing.
+	 * @param min The first wait in nanoseconds, after spinning and yielding.
+	 * @param max The longest wait in nanoseconds.
+	 */
+	public void setBackoff(long min, long max) {
+		if (min <= 0 || max < min) throw new IllegalArgumentException();
+		minBackoff = min;
+		maxBackoff = max;
+	}
+	
+	/**
+	 * Watch a source until it completes.
+	 * @param source The source.
+	 * @param value The value to complete the future with.
+	 * @return A future that is completed once the source has completed.
+	 */
+	@SuppressWarnings("unchecked")
+	public <T> CompletableFuture<T> watch(Source source, T value) {
+		Entry e = new Entry();
+		e.source = source;
+		e.value = value;
+		e.future = new CompletableFuture<Object>();
+		if (!running) throw new RejectedExecutionException("Completion poller stopped");
+		synchronized (this) {
+			if (thread == null) {
+				thread = new Thread(new Loop(), name);
+				thread.setDaemon(true);
+				thread.start();
+			}
+		}
+		watching.incrementAndGet();
+		incoming.offer(e);
+		// a new entry resets the backoff, so the poller is woken even when sleeping with work pending
+		if (sleeping) LockSupport.unpark(thread);
+		if (!running && incoming.remove(e)) {
+			watching.decrementAndGet();
+			throw new RejectedExecutionException("Completion poller stopped");
+		}
+		return (CompletableFuture<T>)e.future;
+	}
+	
+	/**
+	 * The number of sources being watched.
+	 * @return The number of sources.
+	 */
+	public int getPending() {
+		return watching.get();
+	}
+	
+	private class Loop implements Runnable {
+		private Runnable pass = new Runnable() {
+			public void run() { scan(); }
+		};
+		
+		public void run() {
+			int idle = 0;
+			while (running) {
+				Entry e;
+				boolean fresh = false;
+				while ((e = incoming.poll()) != null) {
+					pending.add(e);
+					fresh = true;
+				}
+				if (fresh) idle = 0;
+				
+				if (!pending.isEmpty()) {
+					Context ctx = context == null ? null : context.get();
+					if (ctx == null) {
+						scan();
+					} else {
+						ctx.run(pass);
+					}
+				}
+				if (!done.isEmpty()) {
+					// completed outside the context, dependent actions may use it themselves
+					for (Entry d : done) {
+						watching.decrementAndGet();
+						if (d.failure == null) {
+							d.future.complete(d.value);
+						} else {
+							d.future.completeExceptionally(d.failure);
+						}
+					}
+					done.clear();
+					idle = 0;
+					continue;
+				}
+				
+				if (pending.isEmpty()) {
+					await(0);
+				} else if (idle < SPINS) {
+					Thread.onSpinWait();
+				} else if (idle < SPINS + YIELDS) {
+					Thread.yield();
+				} else {
+					int shift = Math.min(idle - SPINS - YIELDS, 30);
+					await(Math.min(minBackoff << shift, maxBackoff));
+				}
+				idle++;
+			}
+			cancel();
+		}
+		
+		private void await(long nanos) {
+			sleeping = true;
+			try {
+				if (!incoming.isEmpty() || !running) return;
+				if (nanos == 0) {
+					LockSupport.park(this);
+				} else {
+					LockSupport.parkNanos(this, nanos);
+				}
+			} finally {
+				sleeping = false;
+			}
+		}
+	}
+	
+	private void scan() {
+		Iterator<Entry> i = pending.iterator();
+		while (i.hasNext()) {
+			Entry e = i.next();
+			try {
+				if (!e.source.isComplete()) continue;
+			} catch (Throwable t) {
+				e.failure = t;
+			}
+			i.remove();
+			done.add(e);
+		}
+	}
+	
+	private void cancel() {
+		Entry e;
+		while ((e = incoming.poll()) != null) pending.add(e);
+		for (Entry p : pending) {
+			watching.decrementAndGet();
+			p.future.completeExceptionally(new CancellationException("Completion poller stopped"));
+		}
+		pending.clear();
+	}
+	
+	/**
+	 * Stop the poller. Futures that have not completed yet are completed with a CancellationException.
+	 */
+	public void shutdown() {
+		running = false;
+		Thread t;
+		synchronized (this) {
+			t = thread;
+		}
+		if (t == null || t == Thread.currentThread()) return;
+		LockSupport.unpark(t);
+		boolean interrupted = false;
+		while (true) {
+			try {
+				t.join();
+				break;
+			} catch (InterruptedException e) {
+				interrupted = true;
+			}
+		}
+		if (interrupted) Thread.currentThread().interrupt();
+	}
+	
+	public boolean isRunning() {
+		return running;
+	}
+}
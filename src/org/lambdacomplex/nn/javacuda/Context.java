@@ -19,18 +19,27 @@
 
 package org.lambdacomplex.nn.javacuda;
 
+import java.util.concurrent.*;
+
+import org.lambdacomplex.nn.javacuda.array.HostMemoryPool;
+import org.lambdacomplex.nn.javacuda.array.PinnedHostAllocator;
 import org.lambdacomplex.nn.javacuda.swig.*;
 
 /**
  * This class encapsulates the CUDA context.
  * 
- * CUDA contexts are often associated with threads, so many static methods are used.
+ * CUDA contexts are often associated with threads, so many static methods are used. These always use the CUDA 
+ * driver, everything else goes through the context's Backend.
+ * 
+ * Every driver call that needs the context goes through execute. By default this pushes the context onto 
+ * the calling thread under the context's lock. A context created with ExecutionMode.DRIVER_THREAD instead 
+ * stays current on a thread of its own, and calls are sent to that thread.
  * 
  * Create contexts using the Device class.
  * @author NewName
  *
  */
-public class Context {
+public class Context implements AutoCloseable {
 	
 	/**
 	 * Increment the usage count on the context currently associated with this thread. When done with this context, the detach method should be called on it.
@@ -39,14 +48,13 @@ public class Context {
 	 * @return The context currently associated with this thread.
 	 */
 	protected static Context attachCurrent() {
-		CUPContext ctx = new CUPContext();
+		CudaBackend.Slots s = CudaBackend.slots();
 		int flags = 0; // this is a must, as stated in the reference
-		Util.safeCall(Cuda.cuCtxAttach(ctx.cast(), flags));
+		Util.safeCall(Cuda.cuCtxAttach(s.contextOut, flags));
 		
-		CPint device = new CPint();
-		Util.safeCall(Cuda.cuCtxGetDevice(device.cast()));
+		Util.safeCall(Cuda.cuCtxGetDevice(s.integerOut));
 		
-		Context result = new Context(ctx);
+		Context result = new Context(s.context.value());
 		return result; 
 	}
 	
@@ -66,9 +74,9 @@ public class Context {
 	 * @return The device associated with the current context.
 	 */
 	protected static Device getCurrentDevice() {
-		CPint result = new CPint();
-		Util.safeCall(Cuda.cuCtxGetDevice(result.cast()));
-		return Device.getDevice(result.value());
+		CudaBackend.Slots s = CudaBackend.slots();
+		Util.safeCall(Cuda.cuCtxGetDevice(s.integerOut));
+		return Device.getDevice(new CudaBackend(), s.integer.value());
 	}
 	
 	/**
@@ -80,51 +88,268 @@ public class Context {
 		Util.safeCall(Cuda.cuCtxSynchronize());
 	}
 	
-	protected CUPContext context;
+	protected Object context;
+	private Backend backend;
+	private DriverThread driverThread;
+	private CompletionPoller completionPoller;
+	private Destroyer destroyer;
+	private int depth;
+	private volatile boolean destroying;
+	// the thread in destroy, which still unloads and frees what the context holds
+	private Thread destroyingThread;
+	private Runnable synchroniser;
 	private Stream zeroStream = null;
+	private HostMemoryPool<CUByteArray> hostMemoryPool = null;
+	private DeviceMemoryArena deviceMemoryArena = null;
+	private ResourceCleaner.Handle handle;
+	private final ModuleRegistry moduleRegistry = new ModuleRegistry(this);
 	
-	protected Context(int deviceID, Flags flag) {
-		context = new CUPContext();
-		context.setMemoryManaged(false);
-		Util.safeCall(Cuda.cuCtxCreate(context.cast(), flag.flag.swigValue(), deviceID));
-		popCurrent();
+	protected Context(Backend backend, int deviceID, Flags flag) {
+		this(backend, deviceID, flag, ExecutionMode.MONITOR);
 	}
 	
-	protected Context(CUPContext context) {
+	protected Context(Backend backend, int deviceID, Flags flag, ExecutionMode mode) {
+		backend = MeteredBackend.wrap(backend);
+		this.backend = backend;
+		context = backend.createContext(deviceID, flag);
+		if (mode == ExecutionMode.DRIVER_THREAD) {
+			driverThread = new DriverThread("javaCUDA driver " + deviceID, 
+					new Pusher(backend, context), new Popper(backend));
+		}
+		destroyer = new Destroyer(backend, context, driverThread);
+		handle = ResourceCleaner.register(this, destroyer);
+		synchroniser = new Synchroniser(backend);
+	}
+	
+	protected Context(SWIGTYPE_p_CUctx_st context) {
 		this.context = context;
+		backend = new MeteredBackend(new CudaBackend());
+		synchroniser = new Synchroniser(backend);
+		// attached to a context owned elsewhere, so cleaning up only gives back this usage count
+		destroyer = new Destroyer(backend, context, null);
+		destroyer.attached = true;
+		handle = ResourceCleaner.register(this, destroyer);
+	}
+	
+	private static class Pusher implements Runnable {
+		private Backend backend;
+		private Object context;
+		Pusher(Backend b, Object ctx) { backend = b; context = ctx; }
+		public void run() { backend.pushContext(context); }
+	}
+	
+	private static class Popper implements Runnable {
+		private Backend backend;
+		Popper(Backend b) { backend = b; }
+		public void run() { backend.popContext(); }
+	}
+	
+	private static class Synchroniser implements Runnable {
+		private Backend backend;
+		Synchroniser(Backend b) { backend = b; }
+		public void run() { backend.synchronizeContext(); }
+	}
+	
+	private static class Destroyer implements Runnable {
+		private Backend backend;
+		private Object context;
+		private DriverThread driverThread;
+		private volatile CompletionPoller poller;
+		private boolean attached;
+		Destroyer(Backend b, Object ctx, DriverThread t) { backend = b; context = ctx; driverThread = t; }
+		public void run() {
+			if (poller != null) poller.shutdown();
+			// the driver thread pops the context when it stops, leaving it floating
+			if (driverThread != null) driverThread.shutdown();
+			if (attached) {
+				Util.safeCall(Cuda.cuCtxDetach((SWIGTYPE_p_CUctx_st)context));
+			} else {
+				backend.destroyContext(context);
+			}
+		}
 	}
 	
 	public enum Flags {
-		SCHEDULER_AUTO (CUctx_flags.CU_CTX_SCHED_AUTO),
-		SCHEDULER_SPIN (CUctx_flags.CU_CTX_SCHED_SPIN),
-		SCHEDULER_YIELD (CUctx_flags.CU_CTX_SCHED_YIELD);
+		// the values of the CUctx_flags the driver takes
+		SCHEDULER_AUTO (0),
+		SCHEDULER_SPIN (1),
+		SCHEDULER_YIELD (2);
 		
-		protected CUctx_flags flag;
-		private Flags (CUctx_flags f) { flag = f; }
+		protected int flag;
+		private Flags (int f) { flag = f; }
+	}
+	
+	/**
+	 * How driver calls are made current for this context.
+	 */
+	public enum ExecutionMode {
+		/**
+		 * Push the context onto the calling thread for each call, holding the context's lock.
+		 */
+		MONITOR,
+		/**
+		 * Keep the context current on a dedicated driver thread and run every call there.
+		 */
+		DRIVER_THREAD
+	}
+	
+	/**
+	 * A piece of work that needs this context to be current.
+	 * @param <T> The type of the result.
+	 */
+	public interface Task<T> {
+		public T run();
+	}
+	
+	private static class TaskCall<T> implements Callable<T> {
+		private Task<T> task;
+		TaskCall(Task<T> t) { task = t; }
+		public T call() { return task.run(); }
+	}
+	
+	/**
+	 * Run a task with this context current, and wait for its result.
+	 * 
+	 * Calls may be nested, a task can call execute again on the same context. With ExecutionMode.MONITOR 
+	 * this allocates nothing itself.
+	 * @param task The task.
+	 * @return The result of the task.
+	 * @throws IllegalStateException If the context has been destroyed.
+	 */
+	public <T> T execute(Task<T> task) {
+		if (driverThread == null) {
+			long waiting = DriverMetrics.start();
+			synchronized (this) {
+				DriverMetrics.contextWaited(waiting);
+				checkUsable();
+				enter();
+				try {
+					return task.run();
+				} finally {
+					leave();
+				}
+			}
+		}
+		if (driverThread.isCurrent()) return task.run();
+		checkUsable();
+		return await(driverThread.submit(new TaskCall<T>(task)));
+	}
+	
+	/**
+	 * Run a task with this context current without waiting for it.
+	 * 
+	 * With ExecutionMode.DRIVER_THREAD the task is queued on the driver thread. Otherwise it is run straight away.
+	 * @param task The task.
+	 * @return A future for the result of the task.
+	 * @throws IllegalStateException If the context has been destroyed.
+	 */
+	public <T> Future<T> submit(Task<T> task) {
+		if (driverThread == null) {
+			FutureTask<T> result = new FutureTask<T>(new TaskCall<T>(task));
+			run(result);
+			return result;
+		}
+		if (driverThread.isCurrent()) {
+			FutureTask<T> result = new FutureTask<T>(new TaskCall<T>(task));
+			result.run();
+			return result;
+		}
+		checkUsable();
+		return driverThread.submit(new TaskCall<T>(task));
+	}
+	
+	/**
+	 * Whether calls can still be made on this context from the calling thread. While the context is being 
+	 * destroyed only the thread destroying it can make them.
+	 */
+	private boolean isUsable() {
+		return !destroying || (context != null && destroyingThread == Thread.currentThread());
+	}
+	
+	private void checkUsable() {
+		if (!isUsable()) throw new IllegalStateException("Context destroyed");
+	}
+	
+	// only called holding the lock
+	private void enter() {
+		if (depth == 0) push();
+		depth++;
+	}
+	
+	private void leave() {
+		if (--depth == 0) backend.popContext();
+	}
+	
+	private static <T> T await(Future<T> future) {
+		boolean interrupted = false;
+		try {
+			while (true) {
+				try {
+					return future.get();
+				} catch (InterruptedException e) {
+					interrupted = true;
+				}
+			}
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof RuntimeException) throw (RuntimeException)cause;
+			if (cause instanceof Error) throw (Error)cause;
+			throw new CudaAPIError(cause.toString());
+		} finally {
+			if (interrupted) Thread.currentThread().interrupt();
+		}
+	}
+	
+	public ExecutionMode getExecutionMode() {
+		return driverThread == null ? ExecutionMode.MONITOR : ExecutionMode.DRIVER_THREAD;
 	}
 	
-	public synchronized void synchronise() {
-		push();
-		syncWithCurrent();
-		popCurrent();
+	public void synchronise() {
+		run(synchroniser);
+	}
+	
+	/**
+	 * Get the backend this context was created by.
+	 * 
+	 * Calls through it are recorded in DriverMetrics.
+	 * @return The backend.
+	 */
+	public Backend getBackend() {
+		return backend;
 	}
 	
 	/**
 	 * Load the given Cubin onto the GPU, to ready it for use.
+	 * 
+	 * The module is loaded when the first function is taken from it, or when Module.load is called. A Cubin 
+	 * that has not been compiled yet is compiled then. If a CompileService is compiling it, that waits for 
+	 * this Cubin only.
+	 * 
+	 * Loading a Cubin that is already loaded in this context returns the same module.
 	 * @param cubin The Cubin object to be loaded.
 	 * @return The resulting module on the GPU.
 	 */
 	public Module loadCubin(Cubin cubin) {
-		return new Module(this, cubin);
+		return moduleRegistry.getModule(cubin);
+	}
+	
+	/**
+	 * Get the registry of the modules loaded in this context.
+	 * @return The registry.
+	 */
+	public ModuleRegistry getModuleRegistry() {
+		return moduleRegistry;
 	}
 	
 	/**
 	 * Decrement the current usage count by 1, if the count reaches zero then destroy this context.
 	 * 
-	 * This context must be associated with the calling thread.
+	 * This context must have come from attachCurrent, and be associated with the calling thread. Destroying 
+	 * an attached context, or letting it become unreachable, detaches it the same way.
 	 */
 	protected void detach() {
-		Util.safeCall(Cuda.cuCtxDetach(context.value()));
+		if (!destroyer.attached) throw new IllegalStateException("Context was not attached");
+		destroy();
 	}
 	
 	/**
@@ -133,24 +358,129 @@ public class Context {
 	 * The context must be floating (not associated with any thread).
 	 */
 	protected void push() {
-		Util.safeCall(Cuda.cuCtxPushCurrent(context.value()));
+		backend.pushContext(context);
 	}
 	
-	public synchronized void run(Runnable r) {
-		push();
-		r.run();
-		popCurrent();
+	/**
+	 * Run the given code with this context current, and wait for it to finish.
+	 * @param r The code to run.
+	 * @throws IllegalStateException If the context has been destroyed.
+	 */
+	public void run(final Runnable r) {
+		if (driverThread == null) {
+			long waiting = DriverMetrics.start();
+			synchronized (this) {
+				DriverMetrics.contextWaited(waiting);
+				checkUsable();
+				enter();
+				try {
+					r.run();
+				} finally {
+					leave();
+				}
+			}
+			return;
+		}
+		execute(new Task<Void>() {
+			public Void run() {
+				r.run();
+				return null;
+			}
+		});
+	}
+	
+	/**
+	 * Run the given code with this context current, unless the context has been destroyed.
+	 * 
+	 * This is for giving back what belongs to the context, such as streams, events and modules. Destroying 
+	 * the context gives all of them back to the driver, so there is nothing left to do once it is destroyed.
+	 * @param r The code to run.
+	 * @return Whether the code was run.
+	 */
+	public boolean runUnlessDestroyed(Runnable r) {
+		if (driverThread == null) {
+			synchronized (this) {
+				if (!isUsable()) return false;
+				enter();
+				try {
+					r.run();
+				} finally {
+					leave();
+				}
+			}
+			return true;
+		}
+		if (driverThread.isCurrent()) {
+			r.run();
+			return true;
+		}
+		if (!isUsable()) return false;
+		Future<Object> done;
+		try {
+			done = driverThread.submit(Executors.callable(r));
+		} catch (RejectedExecutionException e) {
+			// the driver thread stopped after the check, so the context is being destroyed
+			return false;
+		}
+		await(done);
+		return true;
+	}
+	
+	/**
+	 * Get the pool that page-locked host memory for this context is allocated from.
+	 * 
+	 * Only backends with page-locked memory have a pool.
+	 * @return The pool, created on first use.
+	 */
+	public synchronized HostMemoryPool<CUByteArray> getHostMemoryPool() {
+		if (!backend.hasPageLockedMemory()) throw new UnsupportedOperationException(
+				"The " + backend.getName() + " backend has no page-locked memory");
+		if (hostMemoryPool == null) {
+			hostMemoryPool = new HostMemoryPool<CUByteArray>(new PinnedHostAllocator(this));
+		}
+		return hostMemoryPool;
+	}
+	
+	/**
+	 * Get the arena that device memory for this context is allocated from.
+	 * @return The arena, created on first use.
+	 */
+	public synchronized DeviceMemoryArena getDeviceMemoryArena() {
+		if (deviceMemoryArena == null) {
+			deviceMemoryArena = new DeviceMemoryArena(new DriverAddressSpace(this));
+		}
+		return deviceMemoryArena;
+	}
+	
+	/**
+	 * Get the poller that completes the futures of asynchronous work in this context.
+	 * @return The poller, started on first use.
+	 */
+	public synchronized CompletionPoller getCompletionPoller() {
+		if (completionPoller == null) {
+			completionPoller = new CompletionPoller("javaCUDA completion", this);
+			destroyer.poller = completionPoller;
+		}
+		return completionPoller;
+	}
+	
+	/**
+	 * Open a scope that reserves host and device memory for a unit of work in one go.
+	 * @param hostBytes The amount of page-locked host memory to reserve.
+	 * @param deviceBytes The amount of device memory to reserve.
+	 * @return The new scope, which should be closed when the work is done.
+	 */
+	public BufferScope openScope(int hostBytes, long deviceBytes) {
+		return new BufferScope(this, hostBytes, deviceBytes);
 	}
 	
 	public Stream createStream() {
 		return new Stream(this);
 	}
 	
-	public Stream getDefaultStream() {
+	public synchronized Stream getDefaultStream() {
 		if (zeroStream == null) {
-			CUPStream result = new CUPStream();
-			result.assign(Cuda.toStream(0));
-			zeroStream = new Stream(this, result);
+			zeroStream = new Stream(this, backend.getDefaultStream(context));
 		}
 		
 		return zeroStream;
@@ -158,20 +488,40 @@ public class Context {
 	
 	/**
 	 * Destroy this context.
+	 * 
+	 * Calls on the context from other threads throw an IllegalStateException from the time this starts. Giving 
+	 * back its streams, events and modules afterwards does nothing, as they go with the context.
 	 */
-	public synchronized void destroy() {
-		if (context == null) return;
-		push();
-		Util.safeCall(Cuda.cuCtxDestroy(context.value()));
-		context.delete();
-		context = null;
+	public void destroy() {
+		CompletionPoller poller;
+		synchronized (this) {
+			if (context == null || destroying) return;
+			destroyingThread = Thread.currentThread();
+			destroying = true;
+			poller = completionPoller;
+		}
+		// nothing here waits on the driver holding this context's lock: the poller takes it on each pass, and 
+		// tasks on the driver thread may call the synchronized getters
+		if (poller != null) poller.shutdown();
+		moduleRegistry.unloadAll();
+		HostMemoryPool<CUByteArray> pool;
+		DeviceMemoryArena arena;
+		synchronized (this) {
+			pool = hostMemoryPool;
+			arena = deviceMemoryArena;
+		}
+		if (pool != null) pool.trim();
+		if (arena != null) arena.trim();
+		handle.release();
+		synchronized (this) {
+			context = null;
+		}
 	}
 	
-	public void finalize() throws Throwable {
-		try {
-			destroy();
-		} finally {
-			super.finalize();
-		}
+	/**
+	 * Destroy this context, so that it can be used in a try-with-resources statement.
+	 */
+	public void close() {
+		destroy();
 	}
 }
@@ -0,0 +1,544 @@
+/*
+* Copyright 2009 Gabriel Collin
+*
+* This file is part of javaCUDA.
+*
+* javaCUDA is free software: you can redistribute it and/or modify it
+* under the terms of the GNU Lesser General Public License as published
+* by the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* javaCUDA is distributed in the hope that it will be useful, but WITHOUT
+* ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+* FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public
+* License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public
+* License along with javaCUDA. If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package org.lambdacomplex.nn.javacuda;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.*;
+import java.util.concurrent.*;
+
+import org.lambdacomplex.nn.javacuda.array.NativeByteArray;
+
+/**
+ * A backend that runs everything on the CPU, for machines without a CUDA device.
+ * 
+ * Device memory is off-heap memory given addresses of its own. Each stream runs its work in order on a 
+ * ForkJoinPool, and kernels are CpuKernels registered by name, run with their thread blocks spread over the 
+ * pool. There is one device, and Cubins are never compiled.
+ * 
+ * The pool has a thread per processor, the system property javacuda.cpu.threads changes this. Copies take 
+ * no time beyond the copying itself, unless simulateTransfers gives them the latency and bandwidth of a bus.
+ * 
+ * Unlike the legacy default stream of the driver, the default stream here is ordered only with itself: work 
+ * on it does not wait for other streams, and work on other streams does not wait for it. Code that relies on 
+ * the implicit ordering has to wait for an event or synchronize explicitly to run the same way on both.
+ * @author NewName
+ *
+ */
+public class CpuBackend implements Backend {
+	private static final long ALIGNMENT = 256;
+	// addresses fit in 32 bits, like the pointer parameters of the driver
+	private static final long BASE = 0x10000;
+	private static final long LIMIT = 0x100000000L;
+	
+	private static final ConcurrentHashMap<String, CpuKernel> kernels = new ConcurrentHashMap<String, CpuKernel>();
+	
+	/**
+	 * Register the Java implementation of a kernel.
+	 * @param name The name of the CUDA function it implements.
+	 * @param kernel The implementation.
+	 */
+	public static void register(String name, CpuKernel kernel) {
+		kernels.put(name, kernel);
+	}
+	
+	public static void unregister(String name) {
+		kernels.remove(name);
+	}
+	
+	private ForkJoinPool pool;
+	private volatile Link link;
+	private ConcurrentSkipListMap<Long, ByteBuffer> allocations = new ConcurrentSkipListMap<Long, ByteBuffer>();
+	private TreeMap<Long, Long> freeRanges = new TreeMap<Long, Long>();
+	private long top = BASE;
+	private ThreadLocal<ArrayDeque<CpuContext>> current = new ThreadLocal<ArrayDeque<CpuContext>>() {
+		protected ArrayDeque<CpuContext> initialValue() { return new ArrayDeque<CpuContext>(); }
+	};
+	
+	public CpuBackend() {
+		this(Integer.getInteger("javacuda.cpu.threads", Runtime.getRuntime().availableProcessors()));
+	}
+	
+	/**
+	 * Create a CPU backend.
+	 * @param threads The number of threads to run kernels on.
+	 */
+	public CpuBackend(int threads) {
+		pool = new ForkJoinPool(threads);
+	}
+	
+	private static class CpuContext {
+		CpuStream defaultStream;
+		Set<CpuStream> streams = Collections.newSetFromMap(new ConcurrentHashMap<CpuStream, Boolean>());
+	}
+	
+	/**
+	 * Runs its work in order on the pool. A failure stops the stream, as in the driver.
+	 */
+	private class CpuStream {
+		private CompletableFuture<Void> tail = CompletableFuture.completedFuture(null);
+		
+		synchronized CompletableFuture<Void> enqueue(Runnable work) {
+			tail = tail.thenRunAsync(work, pool);
+			return tail;
+		}
+		
+		/**
+		 * Queue a simulated copy, which waits for its turn on the link without holding a pool thread.
+		 */
+		synchronized CompletableFuture<Void> enqueue(final Runnable work, final Link link, final boolean toDevice, 
+				final long bytes) {
+			tail = tail.thenCompose(new java.util.function.Function<Void, CompletionStage<Void>>() {
+				public CompletionStage<Void> apply(Void v) {
+					long delay = link.reserve(toDevice, bytes) - System.nanoTime();
+					return CompletableFuture.runAsync(work, 
+							CompletableFuture.delayedExecutor(delay, TimeUnit.NANOSECONDS, pool));
+				}
+			});
+			return tail;
+		}
+		
+		synchronized void await(CompletableFuture<Void> other) {
+			// a failure of the other stream is its own, this one carries on
+			tail = tail.runAfterBoth(other.exceptionally(IGNORE), NOTHING);
+		}
+		
+		synchronized CompletableFuture<Void> tail() {
+			return tail;
+		}
+	}
+	
+	private static class CpuEvent implements Runnable {
+		volatile long time;
+		CompletableFuture<Void> done;
+		public void run() { time = System.nanoTime(); }
+	}
+	
+	private static class CpuFunction {
+		String name;
+		CpuKernel kernel;
+		int sharedSize;
+	}
+	
+	public String getName() {
+		return "cpu";
+	}
+	
+	public int getDeviceCount() {
+		return 1;
+	}
+	
+	public int getAttribute(int device, DeviceInfo.Attribute attribute) {
+		// a pool thread is a multiprocessor running one thread at a time, the limits are those of the driver
+		switch (attribute) {
+		case MULTIPROCESSOR_COUNT: return pool.getParallelism();
+		case WARP_SIZE: return 1;
+		case MAX_THREADS_PER_BLOCK: return 1024;
+		case MAX_BLOCK_DIM_X: return 1024;
+		case MAX_BLOCK_DIM_Y: return 1024;
+		case MAX_BLOCK_DIM_Z: return 64;
+		case MAX_GRID_DIM_X: return Integer.MAX_VALUE;
+		case MAX_GRID_DIM_Y: return 65535;
+		case MAX_GRID_DIM_Z: return 65535;
+		case CONCURRENT_KERNELS: return 1;
+		case INTEGRATED: return 1;
+		default: return -1;
+		}
+	}
+	
+	public long getTotalMemory(int device) {
+		return LIMIT - BASE;
+	}
+	
+	public String getDeviceName(int device) {
+		return "CPU (" + pool.getParallelism() + " threads)";
+	}
+	
+	public boolean hasPageLockedMemory() {
+		return false;
+	}
+	
+	public boolean needsCubinImage() {
+		return false;
+	}
+	
+	public int getPointerSize() {
+		// addresses are made up and fit in 32 bits
+		return 4;
+	}
+	
+	public ForkJoinPool getPool() {
+		return pool;
+	}
+	
+	private CpuContext current() {
+		CpuContext ctx = current.get().peek();
+		if (ctx == null) throw new CudaAPIError("CUDA_ERROR_INVALID_CONTEXT");
+		return ctx;
+	}
+	
+	public Object createContext(int device, Context.Flags flags) {
+		if (device != 0) throw new CudaAPIError("CUDA_ERROR_INVALID_DEVICE");
+		CpuContext ctx = new CpuContext();
+		ctx.defaultStream = new CpuStream();
+		return ctx;
+	}
+	
+	public void destroyContext(Object context) {
+		// let queued work finish, its errors no longer matter
+		CpuContext ctx = (CpuContext)context;
+		ctx.defaultStream.tail().exceptionally(IGNORE).join();
+		for (CpuStream s : ctx.streams) s.tail().exceptionally(IGNORE).join();
+	}
+	
+	private static final java.util.function.Function<Throwable, Void> IGNORE = 
+			new java.util.function.Function<Throwable, Void>() {
+		public Void apply(Throwable t) { return null; }
+	};
+	
+	private static final Runnable NOTHING = new Runnable() {
+		public void run() {}
+	};
+	
+	public void pushContext(Object context) {
+		current.get().push((CpuContext)context);
+	}
+	
+	public void popContext() {
+		if (current.get().poll() == null) throw new CudaAPIError("CUDA_ERROR_INVALID_CONTEXT");
+	}
+	
+	public void synchronizeContext() {
+		CpuContext ctx = current();
+		await(ctx.defaultStream.tail());
+		for (CpuStream s : ctx.streams) await(s.tail());
+	}
+	
+	private static void await(CompletableFuture<Void> future) {
+		try {
+			future.join();
+		} catch (CompletionException e) {
+			throw new CudaAPIError("CUDA_ERROR_LAUNCH_FAILED: " + e.getCause());
+		} catch (CancellationException e) {
+			throw new CudaAPIError("CUDA_ERROR_LAUNCH_FAILED: " + e);
+		}
+	}
+	
+	public long allocate(long size) {
+		long length = (Math.max(size, 1) + ALIGNMENT - 1) / ALIGNMENT * ALIGNMENT;
+		if (length > Integer.MAX_VALUE) throw new CudaAPIError("CUDA_ERROR_OUT_OF_MEMORY");
+		long address = -1;
+		synchronized (freeRanges) {
+			for (Map.Entry<Long, Long> r : freeRanges.entrySet()) {
+				long free = r.getValue();
+				if (free >= length) {
+					// the entry is not to be read once it is removed
+					address = r.getKey();
+					freeRanges.remove(address);
+					if (free > length) freeRanges.put(address + length, free - length);
+					break;
+				}
+			}
+			if (address < 0) {
+				if (top + length > LIMIT) throw new CudaAPIError("CUDA_ERROR_OUT_OF_MEMORY");
+				address = top;
+				top += length;
+			}
+		}
+		ByteBuffer memory;
+		try {
+			memory = ByteBuffer.allocateDirect((int)length).order(ByteOrder.LITTLE_ENDIAN);
+		} catch (OutOfMemoryError e) {
+			release(address, length);
+			throw new CudaAPIError("CUDA_ERROR_OUT_OF_MEMORY");
+		}
+		allocations.put(address, memory);
+		return address;
+	}
+	
+	public void free(long address) {
+		ByteBuffer memory = allocations.remove(address);
+		if (memory == null) throw new CudaAPIError("CUDA_ERROR_INVALID_VALUE");
+		release(address, memory.capacity());
+	}
+	
+	/**
+	 * Give a range of addresses back, merged with the free ranges either side of it so that the space does 
+	 * not fragment. A range that reaches the top lowers the top instead.
+	 */
+	private void release(long address, long length) {
+		synchronized (freeRanges) {
+			Map.Entry<Long, Long> before = freeRanges.floorEntry(address);
+			if (before != null && before.getKey() + before.getValue() == address) {
+				freeRanges.remove(before.getKey());
+				address = before.getKey();
+				length += before.getValue();
+			}
+			Long after = freeRanges.remove(address + length);
+			if (after != null) length += after;
+			if (address + length == top) {
+				top = address;
+			} else {
+				freeRanges.put(address, length);
+			}
+		}
+	}
+	
+	/**
+	 * Get the device memory at an address.
+	 * @param address The address, anywhere in an allocation.
+	 * @return A little-endian buffer from the address to the end of its allocation.
+	 */
+	public ByteBuffer memory(long address) {
+		Map.Entry<Long, ByteBuffer> a = allocations.floorEntry(address);
+		if (a == null || address - a.getKey() >= a.getValue().capacity()) {
+			throw new CudaAPIError("CUDA_ERROR_INVALID_VALUE");
+		}
+		ByteBuffer b = a.getValue().duplicate();
+		b.position((int)(address - a.getKey()));
+		return b.slice().order(ByteOrder.LITTLE_ENDIAN);
+	}
+	
+	private ByteBuffer memory(long address, long size) {
+		ByteBuffer b = memory(address);
+		if (size > b.remaining()) throw new CudaAPIError("CUDA_ERROR_INVALID_VALUE");
+		b.limit((int)size);
+		return b;
+	}
+	
+	/**
+	 * Make copies take as long as they would over a bus, so that overlapping copies with kernels can be tried 
+	 * without a device. As on most devices there is one copy engine for each direction, so copies in the same 
+	 * direction take turns, whichever stream they are on.
+	 * @param latencyNanos The time every copy takes before any bytes move.
+	 * @param bytesPerSecond The bandwidth in each direction, or 0 to stop simulating.
+	 */
+	public void simulateTransfers(long latencyNanos, long bytesPerSecond) {
+		link = bytesPerSecond <= 0 ? null : new Link(latencyNanos, bytesPerSecond);
+	}
+	
+	/**
+	 * The simulated bus, which keeps the time each copy engine is busy until.
+	 */
+	private static class Link {
+		private long latency;
+		private double nanosPerByte;
+		private long[] busyUntil = new long[2];
+		
+		Link(long latency, long bytesPerSecond) {
+			this.latency = latency;
+			nanosPerByte = 1e9 / bytesPerSecond;
+		}
+		
+		/**
+		 * Take the next turn of a copy engine.
+		 * @return The time the copy is done, by System.nanoTime.
+		 */
+		long reserve(boolean toDevice, long bytes) {
+			int engine = toDevice ? 0 : 1;
+			synchronized (busyUntil) {
+				long start = Math.max(System.nanoTime(), busyUntil[engine]);
+				busyUntil[engine] = start + latency + (long)(bytes * nanosPerByte);
+				return busyUntil[engine];
+			}
+		}
+	}
+	
+	private static class Copy implements Runnable {
+		private ByteBuffer from, to;
+		Copy(ByteBuffer f, ByteBuffer t) { from = f; to = t; }
+		public void run() { to.duplicate().put(from.duplicate()); }
+	}
+	
+	private void copy(ByteBuffer from, ByteBuffer to, boolean toDevice, Object stream) {
+		Copy copy = new Copy(from, to);
+		Link l = link;
+		if (stream == null) {
+			// ordered after all the work queued in the context, like the driver's synchronous copies
+			synchronizeContext();
+			if (l != null) sleepUntil(l.reserve(toDevice, from.remaining()));
+			copy.run();
+		} else if (l == null) {
+			((CpuStream)stream).enqueue(copy);
+		} else {
+			((CpuStream)stream).enqueue(copy, l, toDevice, from.remaining());
+		}
+	}
+	
+	private static void sleepUntil(long time) {
+		boolean interrupted = false;
+		long left;
+		while ((left = time - System.nanoTime()) > 0) {
+			try {
+				TimeUnit.NANOSECONDS.sleep(left);
+			} catch (InterruptedException e) {
+				interrupted = true;
+			}
+		}
+		if (interrupted) Thread.currentThread().interrupt();
+	}
+	
+	public void copyToDevice(long address, NativeByteArray src, long size, Object stream) {
+		ByteBuffer from = src.asByteBuffer();
+		from.limit((int)size);
+		copy(from, memory(address, size), true, stream);
+	}
+	
+	public void copyFromDevice(NativeByteArray dst, long address, long size, Object stream) {
+		ByteBuffer to = dst.asByteBuffer();
+		to.limit((int)size);
+		copy(memory(address, size), to, false, stream);
+	}
+	
+	public Object getDefaultStream(Object context) {
+		return ((CpuContext)context).defaultStream;
+	}
+	
+	public Object createStream() {
+		CpuStream stream = new CpuStream();
+		current().streams.add(stream);
+		return stream;
+	}
+	
+	public void destroyStream(Object stream) {
+		CpuStream s = (CpuStream)stream;
+		current().streams.remove(s);
+	}
+	
+	public boolean queryStream(Object stream) {
+		CompletableFuture<Void> tail = ((CpuStream)stream).tail();
+		if (!tail.isDone()) return false;
+		await(tail);
+		return true;
+	}
+	
+	public void synchronizeStream(Object stream) {
+		await(((CpuStream)stream).tail());
+	}
+	
+	public Object recordEvent(Object stream) {
+		CpuEvent event = new CpuEvent();
+		event.done = ((CpuStream)stream).enqueue(event);
+		return event;
+	}
+	
+	public boolean queryEvent(Object event) {
+		CompletableFuture<Void> done = ((CpuEvent)event).done;
+		if (!done.isDone()) return false;
+		await(done);
+		return true;
+	}
+	
+	public void synchronizeEvent(Object event) {
+		await(((CpuEvent)event).done);
+	}
+	
+	public void waitEvent(Object stream, Object event) {
+		((CpuStream)stream).await(((CpuEvent)event).done);
+	}
+	
+	public float elapsedTime(Object start, Object end) {
+		CpuEvent a = (CpuEvent)start, b = (CpuEvent)end;
+		if (!a.done.isDone() || !b.done.isDone()) throw new CudaAPIError("CUDA_ERROR_NOT_READY");
+		return (b.time - a.time) / 1000000f;
+	}
+	
+	public void destroyEvent(Object event) {
+	}
+	
+	public Object loadModule(Cubin cubin) {
+		// kernels are looked up in the registry, the module itself holds nothing
+		return new Object();
+	}
+	
+	public void unloadModule(Object module) {
+	}
+	
+	public Object getFunction(Object module, String name) {
+		CpuKernel kernel = kernels.get(name);
+		if (kernel == null) throw new CudaAPIError("CUDA_ERROR_NOT_FOUND: no CPU kernel registered as " + name);
+		CpuFunction f = new CpuFunction();
+		f.name = name;
+		f.kernel = kernel;
+		return f;
+	}
+	
+	public void releaseFunction(Object function) {
+	}
+	
+	public void setSharedMemory(Object function, long size) {
+		((CpuFunction)function).sharedSize = (int)size;
+	}
+	
+	public void launch(Object function, Function.GridSize grid, Function.BlockSize block, 
+			NativeByteArray params, int paramSize, Object stream) {
+		CpuFunction f = (CpuFunction)function;
+		byte[] p = new byte[paramSize];
+		params.get(0, p, 0, paramSize);
+		int blocks = grid.x * grid.y;
+		// a few leaves per thread, so uneven blocks still balance
+		int leaf = Math.max(1, blocks / (pool.getParallelism() * 4));
+		((CpuStream)stream).enqueue(new Launch(new Grid(this, f, p, grid, block), 0, blocks, leaf));
+	}
+	
+	/**
+	 * What every block of a launch shares.
+	 */
+	private static class Grid {
+		CpuBackend backend;
+		CpuFunction function;
+		byte[] params;
+		Function.GridSize grid;
+		Function.BlockSize block;
+		Grid(CpuBackend b, CpuFunction f, byte[] p, Function.GridSize g, Function.BlockSize bl) {
+			backend = b; function = f; params = p; grid = g; block = bl;
+		}
+	}
+	
+	/**
+	 * Runs a range of blocks, splitting it until it is small enough.
+	 */
+	private static class Launch extends RecursiveAction implements Runnable {
+		private static final long serialVersionUID = 1L;
+		
+		private Grid grid;
+		private int from, to, leaf;
+		Launch(Grid g, int from, int to, int leaf) { grid = g; this.from = from; this.to = to; this.leaf = leaf; }
+		
+		public void run() {
+			invoke();
+		}
+		
+		protected void compute() {
+			if (to - from > leaf) {
+				int middle = (from + to) >>> 1;
+				invokeAll(new Launch(grid, from, middle, leaf), new Launch(grid, middle, to, leaf));
+				return;
+			}
+			CpuKernel.Block b = new CpuKernel.Block(grid.backend, grid.params, grid.function.sharedSize, 
+					grid.grid, grid.block);
+			for (int i = from; i < to; i++) {
+				b.blockX = i % grid.grid.x;
+				b.blockY = i / grid.grid.x;
+				grid.function.kernel.run(b);
+			}
+		}
+	}
+}
@@ -0,0 +1,129 @@
+/*
+* Copyright 2009 Gabriel Collin
+*
+* This file is part of javaCUDA.
+*
+* javaCUDA is free software: you can redistribute it and/or modify it
+* under the terms of the GNU Lesser General Public License as published
+* by the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* javaCUDA is distributed in the hope that it will be useful, but WITHOUT
+* ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+* FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public
+* License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public
+* License along with javaCUDA. If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package org.lambdacomplex.nn.javacuda;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * A Java implementation of a kernel, run by the CPU backend.
+ * 
+ * The kernel is called once for each thread block, and runs every thread of the block itself, so it can 
+ * share memory between the threads and order them as __syncthreads would. Blocks may run in parallel. 
+ * Register kernels under the names of their CUDA functions with CpuBackend.register.
+ * <pre>
+ * CpuBackend.register("increment_kernel", new CpuKernel() {
+ *     public void run(Block block) {
+ *         ByteBuffer data = block.getPointer(0);
+ *         int inc = block.getInt(4);
+ *         int first = block.getBlockX() * block.getBlockDimX();
+ *         for (int i = first; i < first + block.getBlockDimX(); i++) data.putInt(i * 4, data.getInt(i * 4) + inc);
+ *     }
+ * });
+ * </pre>
+ * @author NewName
+ *
+ */
+public interface CpuKernel {
+	/**
+	 * Run one thread block.
+	 * @param block The position of the block, and the kernel's parameters.
+	 */
+	public void run(Block block);
+	
+	/**
+	 * A thread block, and the parameters of the launch it belongs to.
+	 * 
+	 * A Block object is reused for other blocks once the kernel returns.
+	 * @author NewName
+	 *
+	 */
+	public static final class Block {
+		private CpuBackend backend;
+		private ByteBuffer params;
+		private ByteBuffer shared;
+		private int gridX, gridY;
+		private int dimX, dimY, dimZ;
+		int blockX, blockY;
+		
+		Block(CpuBackend backend, byte[] params, int sharedSize, Function.GridSize grid, Function.BlockSize block) {
+			this.backend = backend;
+			this.params = ByteBuffer.wrap(params).order(ByteOrder.LITTLE_ENDIAN);
+			if (sharedSize > 0) shared = ByteBuffer.allocate(sharedSize).order(ByteOrder.LITTLE_ENDIAN);
+			gridX = grid.x; gridY = grid.y;
+			dimX = block.x; dimY = block.y; dimZ = block.z;
+		}
+		
+		public int getBlockX() { return blockX; }
+		public int getBlockY() { return blockY; }
+		public int getGridDimX() { return gridX; }
+		public int getGridDimY() { return gridY; }
+		public int getBlockDimX() { return dimX; }
+		public int getBlockDimY() { return dimY; }
+		public int getBlockDimZ() { return dimZ; }
+		
+		/**
+		 * The block's shared memory, as set with Function.setSharedMemory. Its contents are undefined at the 
+		 * start of each block.
+		 * @return The memory, or null if there is none.
+		 */
+		public ByteBuffer getShared() {
+			return shared;
+		}
+		
+		public int getInt(int offset) {
+			return params.getInt(offset);
+		}
+		
+		public float getFloat(int offset) {
+			return params.getFloat(offset);
+		}
+		
+		public long getLong(int offset) {
+			return params.getLong(offset);
+		}
+		
+		public double getDouble(int offset) {
+			return params.getDouble(offset);
+		}
+		
+		/**
+		 * Get a struct parameter passed by value.
+		 * @param offset The offset of the parameter.
+		 * @param length The length of the struct.
+		 * @return A little-endian buffer holding the struct.
+		 */
+		public ByteBuffer getStruct(int offset, int length) {
+			ByteBuffer b = params.duplicate();
+			b.position(offset);
+			b.limit(offset + length);
+			return b.slice().order(ByteOrder.LITTLE_ENDIAN);
+		}
+		
+		/**
+		 * Get the device memory pointed to by a pointer parameter.
+		 * @param offset The offset of the parameter.
+		 * @return A little-endian buffer from the address to the end of its allocation.
+		 */
+		public ByteBuffer getPointer(int offset) {
+			return backend.memory(params.getInt(offset) & 0xffffffffL);
+		}
+	}
+}
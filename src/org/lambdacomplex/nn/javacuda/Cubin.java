@@ -20,22 +20,35 @@
 package org.lambdacomplex.nn.javacuda;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * This class encapsulates modules in their source and compiled forms.
  * 
- * The compiled data exists as a temporary file on the hard drive of the computer.
+ * The compiled module is kept in memory, and can come from a file, a buffer, a resource on the classpath or 
+ * compiling source. Compiling goes through a CubinCache, so source that has been compiled before is not 
+ * compiled again.
  * @author NewName
  *
  */
 public class Cubin {
+	private static final AtomicLong ids = new AtomicLong();
 	
+	private final long id = ids.incrementAndGet();
 	private Reader source;
 	private File cubin;
+	private byte[] image;
 	private boolean compiled;
+	private CubinCompiler compiler;
+	private CubinCache cache;
+	private CudaCompileException failure;
 	
 	/**
 	 * Create a Cubin object from a pre-compiled module.
+	 * 
+	 * The file is read when the Cubin is first loaded.
 	 * @param moduleFile The file containing the pre-compiled module.
 	 */
 	public Cubin(File moduleFile) {
@@ -44,11 +57,74 @@ public class Cubin {
 	}
 	
 	/**
-	 * Create a Cubin from source code.
+	 * Create a Cubin object from a pre-compiled module in memory.
+	 * @param moduleImage The pre-compiled module. The array is not copied.
+	 */
+	public Cubin(byte[] moduleImage) {
+		image = moduleImage;
+		compiled = true;
+	}
+	
+	/**
+	 * Create a Cubin object from a pre-compiled module in a buffer.
+	 * @param moduleImage The buffer, the bytes between its position and limit are copied.
+	 */
+	public Cubin(ByteBuffer moduleImage) {
+		image = new byte[moduleImage.remaining()];
+		moduleImage.duplicate().get(image);
+		compiled = true;
+	}
+	
+	/**
+	 * Create a Cubin object from a pre-compiled module on the classpath, such as one bundled in a jar.
+	 * @param name The name of the resource, as given to ClassLoader.getResource.
+	 * @return The Cubin.
+	 * @throws IOException If the resource does not exist or could not be read.
+	 */
+	public static Cubin fromResource(String name) throws IOException {
+		ClassLoader loader = Thread.currentThread().getContextClassLoader();
+		if (loader == null) loader = Cubin.class.getClassLoader();
+		return fromStream(loader.getResourceAsStream(name), name);
+	}
+	
+	/**
+	 * Create a Cubin object from a pre-compiled module on the classpath, relative to a class.
+	 * @param c The class the name is relative to.
+	 * @param name The name of the resource, as given to Class.getResource.
+	 * @return The Cubin.
+	 * @throws IOException If the resource does not exist or could not be read.
+	 */
+	public static Cubin fromResource(Class<?> c, String name) throws IOException {
+		return fromStream(c.getResourceAsStream(name), name);
+	}
+	
+	private static Cubin fromStream(InputStream in, String name) throws IOException {
+		if (in == null) throw new FileNotFoundException("No cubin resource " + name);
+		try {
+			return new Cubin(in.readAllBytes());
+		} finally {
+			in.close();
+		}
+	}
+	
+	/**
+	 * Create a Cubin from source code, using the default compiler and cache.
 	 * @param moduleSource A Reader object from which the source will be read from.
 	 */
 	public Cubin(Reader moduleSource) {
+		this(moduleSource, null, CubinCache.getDefault());
+	}
+	
+	/**
+	 * Create a Cubin from source code.
+	 * @param moduleSource A Reader object from which the source will be read from.
+	 * @param compiler The compiler to use, or null for the default compiler.
+	 * @param cache The cache to use, or null to always compile.
+	 */
+	public Cubin(Reader moduleSource, CubinCompiler compiler, CubinCache cache) {
 		source = moduleSource;
+		this.compiler = compiler;
+		this.cache = cache;
 		compiled = false;
 	}
 	
@@ -66,98 +142,98 @@ public class Cubin {
 	
 	/**
 	 * Compile this Cubin and write the output to an output stream.
+	 * 
+	 * If the cubin is found in the cache the compiler is not run, and nothing is written.
 	 * @param output The Writer object to which the output of the compilation will be written.
 	 * @throws CudaCompileException
 	 * @throws IOException
 	 */
-	public void compile(Writer output) throws CudaCompileException,IOException {
+	public synchronized void compile(Writer output) throws CudaCompileException,IOException {
 		if (compiled) throw new IllegalStateException("Cubin allready compiled");
+		if (failure != null) throw failure;
 		
-		File cu;
-		
-		FileWriter writer;
-		try {
-			cu = File.createTempFile("javaCuda", ".cu");
-			cu.deleteOnExit();
-			writer = new FileWriter(cu);
-		} catch (IOException e) {
-			throw new CudaCompileException("Unable to create temporary file: " + e.getLocalizedMessage());
-		}
-		int c;
-		try {
-			while ((c = source.read()) != -1) writer.write(c);
-			writer.close();
-		} catch (IOException e) {
-			throw new CudaCompileException("Unable to copy module to cu file: " + e.getLocalizedMessage());
-		}
-		
+		StringBuilder text = new StringBuilder();
+		char[] buffer = new char[4096];
+		int n;
 		try {
-			cubin = File.createTempFile("javaCuda", ".cubin");
-			cubin.deleteOnExit();
+			while ((n = source.read(buffer)) != -1) text.append(buffer, 0, n);
 		} catch (IOException e) {
-			throw new CudaCompileException("Unable to create temporary file: " + e.getLocalizedMessage());
+			throw new CudaCompileException("Unable to read module source: " + e.getLocalizedMessage());
 		}
 		
-		Process p;
+		CubinCompiler c = compiler != null ? compiler : CubinCompiler.getDefault();
+		CompileEvent event = new CompileEvent();
+		event.begin();
 		try {
-			String cudaDir = System.getenv("CUDA_BIN_PATH");
-			p = Runtime.getRuntime().exec(
-					cudaDir + "/nvcc.exe -cubin " + 
-					cu.getName() + 
-					" -o " + cubin.getName(),
-					null, cu.getParentFile());
-		} catch (IOException e) {
-			throw new CudaCompileException("Unable to execute nvcc: " + e.getLocalizedMessage());
-		}
-		
-		if (output != null) {
-			try {
-				BufferedReader input = new BufferedReader(new InputStreamReader(p
-						.getInputStream()));
-				while ((c = input.read()) != -1) {
-					output.write(c);
+			String key = null;
+			// no key when the compiler's version is unknown, and then the cache is not used
+			if (cache != null) key = cache.key(text.toString(), c);
+			if (key != null) image = cache.get(key);
+			event.cached = image != null;
+			if (image == null) {
+				try {
+					image = c.compile(text.toString(), output);
+				} catch (CudaCompileException e) {
+					// the source has been read, so a later attempt can only fail the same way
+					failure = e;
+					event.failed = true;
+					throw e;
 				}
-				input.close();
-			} catch (IOException e) {
-				throw e;
+				if (key != null) cache.put(key, image);
 			}
-		} 
-		
-		boolean finished = false;
-		while (!finished) {
-			try {
-				p.waitFor();
-				finished = true;
-			} catch (InterruptedException e1) {
-
+		} finally {
+			if (event.shouldCommit()) {
+				event.compiler = c.getClass().getName();
+				event.sourceLength = text.length();
+				event.imageSize = image == null ? 0 : image.length;
+				event.commit();
 			}
 		}
-		if (p.exitValue() == -1) {
-			StringBuffer error = new StringBuffer();
+		
+		compiled = true;
+	}
+	
+	/**
+	 * Compile this Cubin unless it has been compiled already, or read it if it is in a file.
+	 * 
+	 * If another thread is compiling it, this waits for that thread instead.
+	 * @param output The Writer object to which the output of the compilation will be written, or null.
+	 * @throws CudaCompileException If this Cubin could not be compiled or read, now or earlier.
+	 */
+	public synchronized void ensureCompiled(Writer output) throws CudaCompileException {
+		if (image != null) return;
+		if (cubin != null) {
 			try {
-				String line;
-				BufferedReader input = new BufferedReader(new InputStreamReader(p
-						.getErrorStream()));
-				while ((line = input.readLine()) != null) {
-					error.append(line);
-					error.append('\n');
-				}
-				input.close();
+				image = Files.readAllBytes(cubin.toPath());
 			} catch (IOException e) {
-				throw new CudaCompileException("Error compiling module:\nError while reading error.");
+				throw new CudaCompileException("Unable to read cubin file: " + e.getLocalizedMessage());
 			}
-			throw new CudaCompileException("Error compiling module:\n" + error);
+			return;
+		}
+		try {
+			compile(output);
+		} catch (IOException e) {
+			throw new CudaCompileException("Error writing compiler output: " + e.getLocalizedMessage());
 		}
-		
-		compiled = true;
 	}
 	
 	/**
-	 * Get the compiled Cubin file on the hard drive.
-	 * @return A File object describing the location of the Cubin file.
+	 * A number no other Cubin in this process has, so modules can be told apart by their Cubin without 
+	 * keeping it.
 	 */
+	long getId() {
+		return id;
+	}
 	
-	protected File getCubinFile() {
-		return cubin;
+	public synchronized boolean isCompiled() {
+		return compiled;
+	}
+	
+	/**
+	 * Get the compiled cubin in memory.
+	 * @return The cubin image, or null if it has not been compiled or read yet.
+	 */
+	protected synchronized byte[] getImage() {
+		return image;
 	}
 }
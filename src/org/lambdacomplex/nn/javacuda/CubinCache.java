@@ -0,0 +1,269 @@
+/*
+* Copyright 2009 Gabriel Collin
+*
+* This file is part of javaCUDA.
+*
+* javaCUDA is free software: you can redistribute it and/or modify it
+* under the terms of the GNU Lesser General Public License as published
+* by the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* javaCUDA is distributed in the hope that it will be useful, but WITHOUT
+* ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+* FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public
+* License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public
+* License along with javaCUDA. If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package org.lambdacomplex.nn.javacuda;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.security.*;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A cache of compiled cubins, kept in a directory and in memory.
+ * 
+ * Cubins are stored under a hash of their source, the compiler's version, target architecture and flags, so a 
+ * source that has been compiled before by the same compiler is never compiled again. Recently used cubins are
+ * also kept in memory. Both layers drop the least recently used cubins when they grow past their limits.
+ * 
+ * Entries are written to a temporary file and moved into place, so several processes can share a directory.
+ * 
+ * The default cache is in .javacuda/cubin under the user's home directory. The system properties 
+ * javacuda.cubinCache and javacuda.cubinCache.maxBytes change its directory and size.
+ * @author NewName
+ *
+ */
+public class CubinCache {
+	public static final long DEFAULT_MAX_DISK_BYTES = 256L << 20;
+	public static final long DEFAULT_MAX_MEMORY_BYTES = 32L << 20;
+	private static final String SUFFIX = ".cubin";
+	private static final long STALE_TEMP_MILLIS = 3600000;
+	
+	private static CubinCache defaultCache;
+	
+	/**
+	 * Get the cache used by Cubins that are not given one.
+	 * @return The default cache.
+	 */
+	public static synchronized CubinCache getDefault() {
+		if (defaultCache == null) {
+			String dir = System.getProperty("javacuda.cubinCache");
+			File directory = dir != null ? new File(dir) 
+				: new File(new File(System.getProperty("user.home"), ".javacuda"), "cubin");
+			long max = Long.getLong("javacuda.cubinCache.maxBytes", DEFAULT_MAX_DISK_BYTES);
+			defaultCache = new CubinCache(directory, max, DEFAULT_MAX_MEMORY_BYTES);
+		}
+		return defaultCache;
+	}
+	
+	public static synchronized void setDefault(CubinCache cache) {
+		defaultCache = cache;
+	}
+	
+	private File directory;
+	private long maxDiskBytes;
+	private long maxMemoryBytes;
+	private long memoryBytes;
+	private long diskBytes = -1;
+	private LinkedHashMap<String, byte[]> memory = new LinkedHashMap<String, byte[]>(16, 0.75f, true);
+	private AtomicLong memoryHits = new AtomicLong();
+	private AtomicLong diskHits = new AtomicLong();
+	private AtomicLong misses = new AtomicLong();
+	
+	/**
+	 * Create a cache.
+	 * @param directory The directory the cubins are stored in, which is created if needed.
+	 * @param maxDiskBytes The most the cubins in the directory should take up.
+	 * @param maxMemoryBytes The most the cubins kept in memory should take up.
+	 */
+	public CubinCache(File directory, long maxDiskBytes, long maxMemoryBytes) {
+		this.directory = directory;
+		this.maxDiskBytes = maxDiskBytes;
+		this.maxMemoryBytes = maxMemoryBytes;
+	}
+	
+	/**
+	 * Find the key of a cubin compiled from the given source.
+	 * 
+	 * Without the compiler's version a key could match a cubin from another compiler, so there is none.
+	 * @param source The source code.
+	 * @param compiler The compiler.
+	 * @return The key, a hex string, or null if the compiler's version is unknown and the cubin must not be cached.
+	 */
+	public String key(String source, CubinCompiler compiler) {
+		String version = compiler.getVersion();
+		if (version == null) return null;
+		MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+		update(digest, version);
+		update(digest, String.valueOf(compiler.getArch()));
+		for (String flag : compiler.getFlags()) update(digest, flag);
+		update(digest, source);
+		
+		StringBuilder key = new StringBuilder();
+		for (byte b : digest.digest()) {
+			key.append(Character.forDigit((b >> 4) & 0xf, 16));
+			key.append(Character.forDigit(b & 0xf, 16));
+		}
+		return key.toString();
+	}
+	
+	private static void update(MessageDigest digest, String s) {
+		byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+		// the length keeps the fields apart
+		digest.update(Integer.toString(bytes.length).getBytes(StandardCharsets.UTF_8));
+		digest.update((byte)':');
+		digest.update(bytes);
+	}
+	
+	/**
+	 * Get a cubin from the cache.
+	 * @param key The key of the cubin.
+	 * @return A copy of the cubin image, or null if it is not cached.
+	 */
+	public byte[] get(String key) {
+		synchronized (this) {
+			byte[] image = memory.get(key);
+			if (image != null) {
+				memoryHits.incrementAndGet();
+				return image.clone();
+			}
+		}
+		
+		File file = new File(directory, key + SUFFIX);
+		byte[] image;
+		try {
+			image = Files.readAllBytes(file.toPath());
+		} catch (IOException e) {
+			// missing, or evicted by another process
+			misses.incrementAndGet();
+			return null;
+		}
+		file.setLastModified(System.currentTimeMillis());
+		diskHits.incrementAndGet();
+		remember(key, image.clone());
+		return image;
+	}
+	
+	/**
+	 * Add a cubin to the cache.
+	 * @param key The key of the cubin.
+	 * @param image The cubin image, which is copied.
+	 */
+	public void put(String key, byte[] image) {
+		remember(key, image.clone());
+		
+		File file = new File(directory, key + SUFFIX);
+		try {
+			directory.mkdirs();
+			File temp = File.createTempFile(key, ".tmp", directory);
+			try {
+				Files.write(temp.toPath(), image);
+				try {
+					Files.move(temp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE);
+				} catch (AtomicMoveNotSupportedException e) {
+					Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+				}
+			} finally {
+				temp.delete();
+			}
+		} catch (IOException e) {
+			// the cache is only an optimisation, the cubin is still in memory
+			return;
+		}
+		
+		boolean full;
+		synchronized (this) {
+			if (diskBytes >= 0) diskBytes += image.length;
+			full = diskBytes < 0 || diskBytes > maxDiskBytes;
+		}
+		if (full) evict();
+	}
+	
+	private synchronized void remember(String key, byte[] image) {
+		if (image.length > maxMemoryBytes) return;
+		byte[] old = memory.put(key, image);
+		if (old != null) memoryBytes -= old.length;
+		memoryBytes += image.length;
+		Iterator<byte[]> i = memory.values().iterator();
+		while (memoryBytes > maxMemoryBytes && i.hasNext()) {
+			memoryBytes -= i.next().length;
+			i.remove();
+		}
+	}
+	
+	/**
+	 * Remove the least recently used cubins from the directory until it is within its limit.
+	 * 
+	 * Temporary files left behind by processes that died while writing are removed too.
+	 */
+	public void evict() {
+		File[] files = directory.listFiles();
+		if (files == null) return;
+		long now = System.currentTimeMillis();
+		List<File> entries = new ArrayList<File>();
+		long total = 0;
+		for (File f : files) {
+			if (f.getName().endsWith(SUFFIX)) {
+				entries.add(f);
+				total += f.length();
+			} else if (f.getName().endsWith(".tmp") && now - f.lastModified() > STALE_TEMP_MILLIS) {
+				f.delete();
+			}
+		}
+		
+		if (total > maxDiskBytes) {
+			final Map<File, Long> used = new HashMap<File, Long>();
+			for (File f : entries) used.put(f, f.lastModified());
+			Collections.sort(entries, new Comparator<File>() {
+				public int compare(File a, File b) {
+					return Long.compare(used.get(a), used.get(b));
+				}
+			});
+			for (File f : entries) {
+				if (total <= maxDiskBytes) break;
+				long length = f.length();
+				// another process may have removed it already
+				if (f.delete() || !f.exists()) total -= length;
+			}
+		}
+		synchronized (this) {
+			diskBytes = total;
+		}
+	}
+	
+	/**
+	 * Forget the cubins kept in memory. The directory is left as it is.
+	 */
+	public synchronized void clearMemory() {
+		memory.clear();
+		memoryBytes = 0;
+	}
+	
+	public File getDirectory() {
+		return directory;
+	}
+	
+	public long getMemoryHits() {
+		return memoryHits.get();
+	}
+	
+	public long getDiskHits() {
+		return diskHits.get();
+	}
+	
+	public long getMisses() {
+		return misses.get();
+	}
+}
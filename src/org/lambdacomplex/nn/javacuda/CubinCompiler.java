@@ -0,0 +1,242 @@
+/*
+* Copyright 2009 Gabriel Collin
+*
+* This file is part of javaCUDA.
+*
+* javaCUDA is free software: you can redistribute it and/or modify it
+* under the terms of the GNU Lesser General Public License as published
+* by the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* javaCUDA is distributed in the hope that it will be useful, but WITHOUT
+* ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+* FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public
+* License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public
+* License along with javaCUDA. If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package org.lambdacomplex.nn.javacuda;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.util.*;
+
+/**
+ * The command used to compile CUDA source into cubins.
+ * 
+ * The default compiler is nvcc from the directory in the CUDA_BIN_PATH environment variable. The system property 
+ * javacuda.nvcc overrides this with the path of another executable, which is run with the same arguments as nvcc.
+ * @author NewName
+ *
+ */
+public class CubinCompiler {
+	private static CubinCompiler defaultCompiler;
+	
+	/**
+	 * Get the compiler used by Cubins that are not given one.
+	 * @return The default compiler.
+	 */
+	public static synchronized CubinCompiler getDefault() {
+		if (defaultCompiler == null) {
+			String executable = System.getProperty("javacuda.nvcc");
+			if (executable == null) {
+				String name = System.getProperty("os.name").startsWith("Windows") ? "nvcc.exe" : "nvcc";
+				executable = System.getenv("CUDA_BIN_PATH") + File.separator + name;
+			}
+			defaultCompiler = new CubinCompiler(executable, null);
+		}
+		return defaultCompiler;
+	}
+	
+	public static synchronized void setDefault(CubinCompiler compiler) {
+		defaultCompiler = compiler;
+	}
+	
+	private String executable;
+	private String arch;
+	private List<String> flags;
+	private String version;
+	private boolean versionChecked;
+	
+	/**
+	 * Create a compiler.
+	 * @param executable The path of nvcc, or of a command taking the same arguments.
+	 * @param arch The architecture to compile for, such as sm_13, or null for the compiler's default.
+	 * @param flags Any other flags to pass to the compiler.
+	 */
+	public CubinCompiler(String executable, String arch, String... flags) {
+		this.executable = executable;
+		this.arch = arch;
+		this.flags = Collections.unmodifiableList(new ArrayList<String>(Arrays.asList(flags)));
+	}
+	
+	public String getExecutable() {
+		return executable;
+	}
+	
+	public String getArch() {
+		return arch;
+	}
+	
+	public List<String> getFlags() {
+		return flags;
+	}
+	
+	/**
+	 * Get the version reported by the compiler with --version, which is run the first time it is needed.
+	 * @return The version text, or null if the compiler could not be run or did not report one.
+	 */
+	public synchronized String getVersion() {
+		if (!versionChecked) {
+			versionChecked = true;
+			try {
+				Process p = new ProcessBuilder(executable, "--version").redirectErrorStream(true).start();
+				StringWriter text = new StringWriter();
+				drain(p.getInputStream(), text);
+				String output = text.toString().trim();
+				if (waitFor(p) == 0 && !output.isEmpty()) version = output;
+			} catch (IOException e) {
+				// left null
+			}
+		}
+		return version;
+	}
+	
+	/**
+	 * Compile CUDA source into a cubin.
+	 * @param source The source code.
+	 * @param output The Writer the compiler's output is written to, or null.
+	 * @return The cubin image.
+	 * @throws CudaCompileException If the compiler could not be run or failed.
+	 */
+	public byte[] compile(String source, Writer output) throws CudaCompileException {
+		File dir;
+		try {
+			dir = Files.createTempDirectory("javaCuda").toFile();
+		} catch (IOException e) {
+			throw new CudaCompileException("Unable to create temporary directory: " + e.getLocalizedMessage());
+		}
+		File cu = new File(dir, "module.cu");
+		File cubin = new File(dir, "module.cubin");
+		try {
+			try {
+				Writer writer = new OutputStreamWriter(new FileOutputStream(cu), "UTF-8");
+				writer.write(source);
+				writer.close();
+			} catch (IOException e) {
+				throw new CudaCompileException("Unable to copy module to cu file: " + e.getLocalizedMessage());
+			}
+			
+			List<String> command = new ArrayList<String>();
+			command.add(executable);
+			command.add("-cubin");
+			if (arch != null) {
+				command.add("-arch");
+				command.add(arch);
+			}
+			command.addAll(flags);
+			command.add(cu.getName());
+			command.add("-o");
+			command.add(cubin.getName());
+			
+			Process p;
+			try {
+				p = new ProcessBuilder(command).directory(dir).redirectErrorStream(true).start();
+			} catch (IOException e) {
+				throw new CudaCompileException("Unable to execute nvcc: " + e.getLocalizedMessage());
+			}
+			
+			StringWriter errors = new StringWriter();
+			try {
+				drain(p.getInputStream(), output == null ? errors : new Tee(output, errors));
+			} catch (OutputFailed e) {
+				// the caller's writer failed, not the compiler
+				p.destroy();
+				throw new CudaCompileException("Unable to write compiler output: " 
+						+ e.getCause().getLocalizedMessage(), e.getCause());
+			} catch (IOException e) {
+				p.destroy();
+				throw new CudaCompileException("Error compiling module:\nError while reading output.", e);
+			}
+			if (waitFor(p) != 0 || !cubin.isFile()) {
+				throw new CudaCompileException("Error compiling module:\n" + errors);
+			}
+			
+			try {
+				return Files.readAllBytes(cubin.toPath());
+			} catch (IOException e) {
+				throw new CudaCompileException("Unable to read cubin file: " + e.getLocalizedMessage());
+			}
+		} finally {
+			cu.delete();
+			cubin.delete();
+			dir.delete();
+		}
+	}
+	
+	private static void drain(InputStream in, Writer out) throws IOException {
+		Reader reader = new InputStreamReader(in);
+		char[] buffer = new char[4096];
+		int n;
+		try {
+			while ((n = reader.read(buffer)) != -1) out.write(buffer, 0, n);
+			out.flush();
+		} finally {
+			reader.close();
+		}
+	}
+	
+	private static int waitFor(Process p) {
+		boolean interrupted = false;
+		try {
+			while (true) {
+				try {
+					return p.waitFor();
+				} catch (InterruptedException e) {
+					interrupted = true;
+				}
+			}
+		} finally {
+			if (interrupted) Thread.currentThread().interrupt();
+		}
+	}
+	
+	/**
+	 * A failure of the output Writer given to compile, told apart from a failure to read the compiler's output.
+	 */
+	private static class OutputFailed extends IOException {
+		private static final long serialVersionUID = 1L;
+		
+		OutputFailed(IOException cause) { super(cause); }
+	}
+	
+	/**
+	 * Writes to two writers at once. The first is the caller's, and its failures are thrown as OutputFailed.
+	 */
+	private static class Tee extends Writer {
+		private Writer a, b;
+		Tee(Writer a, Writer b) { this.a = a; this.b = b; }
+		public void write(char[] buf, int off, int len) throws IOException {
+			try {
+				a.write(buf, off, len);
+			} catch (IOException e) {
+				throw new OutputFailed(e);
+			}
+			b.write(buf, off, len);
+		}
+		public void flush() throws IOException {
+			try {
+				a.flush();
+			} catch (IOException e) {
+				throw new OutputFailed(e);
+			}
+			b.flush();
+		}
+		public void close() throws IOException {
+			a.close();
+			b.close();
+		}
+	}
+}
@@ -0,0 +1,375 @@
+/*
+* Copyright 2009 Gabriel Collin
+*
+* This file is part of javaCUDA.
+*
+* javaCUDA is free software: you can redistribute it and/or modify it
+* under the terms of the GNU Lesser General Public License as published
+* by the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* javaCUDA is distributed in the hope that it will be useful, but WITHOUT
+* ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+* FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public
+* License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public
+* License along with javaCUDA. If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package org.lambdacomplex.nn.javacuda;
+
+import java.nio.charset.StandardCharsets;
+
+import org.lambdacomplex.nn.javacuda.array.NativeByteArray;
+import org.lambdacomplex.nn.javacuda.swig.*;
+
+/**
+ * The backend that calls the CUDA driver through the SWIG generated wrapper library.
+ * 
+ * Handles are the driver's own pointers, converted once when they are created. Out-parameters are written to 
+ * slots that each thread allocates once and reuses, so copies, launches and queries allocate no wrappers.
+ * @author NewName
+ *
+ */
+public class CudaBackend implements Backend {
+	private static Boolean available;
+	private static int deviceCount;
+	
+	/**
+	 * Load the wrapper library and initialise the driver, the first time this is called.
+	 * @return Whether the driver could be initialised.
+	 */
+	public static synchronized boolean isAvailable() {
+		if (available == null) {
+			try {
+				System.loadLibrary("CUDAWrapper");
+			} catch (UnsatisfiedLinkError e) {
+				available = false;
+				return false;
+			}
+			Slots s = slots();
+			s.integer.assign(0);
+			if (Cuda.cuInit(0) == CUresult.CUDA_SUCCESS) 
+				Util.safeCall(Cuda.cuDeviceGetCount(s.integerOut));
+			deviceCount = s.integer.value();
+			available = true;
+		}
+		return available;
+	}
+	
+	public CudaBackend() {
+		if (!isAvailable()) throw new UnsatisfiedLinkError("CUDAWrapper library not found");
+	}
+	
+	/**
+	 * The out-parameters of one thread, with their pointers converted once.
+	 */
+	static final class Slots {
+		final CPint integer = new CPint();
+		final CPfloat real = new CPfloat();
+		final CUDevicePointer pointer = new CUDevicePointer();
+		final CUPContext context = new CUPContext();
+		final CUPModule module = new CUPModule();
+		final CUPFunction function = new CUPFunction();
+		final CUPStream stream = new CUPStream();
+		final CUPEvent event = new CUPEvent();
+		final SWIGTYPE_p_int integerOut = integer.cast();
+		final SWIGTYPE_p_float realOut = real.cast();
+		final SWIGTYPE_p_unsigned_int pointerOut = pointer.cast();
+		final SWIGTYPE_p_p_CUctx_st contextOut = context.cast();
+		final SWIGTYPE_p_p_CUmod_st moduleOut = module.cast();
+		final SWIGTYPE_p_p_CUfunc_st functionOut = function.cast();
+		final SWIGTYPE_p_p_CUstream_st streamOut = stream.cast();
+		final SWIGTYPE_p_p_CUevent_st eventOut = event.cast();
+		
+		Slots() {
+			ResourceCleaner.registerUntracked(this, new Deleter(this));
+		}
+	}
+	
+	/**
+	 * Frees the slots of a thread that has gone, holding the wrappers rather than the Slots.
+	 */
+	private static class Deleter implements Runnable {
+		private CPint integer;
+		private CPfloat real;
+		private CUDevicePointer pointer;
+		private CUPContext context;
+		private CUPModule module;
+		private CUPFunction function;
+		private CUPStream stream;
+		private CUPEvent event;
+		Deleter(Slots s) {
+			integer = s.integer; real = s.real; pointer = s.pointer; context = s.context;
+			module = s.module; function = s.function; stream = s.stream; event = s.event;
+		}
+		public void run() {
+			integer.delete(); real.delete(); pointer.delete(); context.delete();
+			module.delete(); function.delete(); stream.delete(); event.delete();
+		}
+	}
+	
+	private static final ThreadLocal<Slots> slots = new ThreadLocal<Slots>() {
+		protected Slots initialValue() { return new Slots(); }
+	};
+	
+	/**
+	 * Get the out-parameter slots of the calling thread.
+	 */
+	static Slots slots() {
+		return slots.get();
+	}
+	
+	/**
+	 * A function, and the configuration last given to the driver for it.
+	 */
+	private static class CudaFunction {
+		SWIGTYPE_p_CUfunc_st function;
+		int shapeX, shapeY, shapeZ;
+		int paramSize = -1;
+		CudaFunction(SWIGTYPE_p_CUfunc_st f) { function = f; }
+	}
+	
+	public String getName() {
+		return "cuda";
+	}
+	
+	public int getDeviceCount() {
+		return deviceCount;
+	}
+	
+	public int getAttribute(int device, DeviceInfo.Attribute attribute) {
+		Slots s = slots();
+		CUdevice_attribute a;
+		try {
+			a = CUdevice_attribute.swigToEnum(attribute.getCode());
+		} catch (IllegalArgumentException e) {
+			// not in the cuda.h the wrapper was generated from
+			a = null;
+		}
+		if (a != null && Cuda.cuDeviceGetAttribute(s.integerOut, a, device) == CUresult.CUDA_SUCCESS) 
+			return s.integer.value();
+		switch (attribute) {
+		case COMPUTE_CAPABILITY_MAJOR:
+		case COMPUTE_CAPABILITY_MINOR:
+			// older drivers only have it from cuDeviceComputeCapability
+			CPint minor = new CPint();
+			try {
+				if (Cuda.cuDeviceComputeCapability(s.integerOut, minor.cast(), device) != CUresult.CUDA_SUCCESS) return -1;
+				return attribute == DeviceInfo.Attribute.COMPUTE_CAPABILITY_MAJOR ? s.integer.value() : minor.value();
+			} finally {
+				minor.delete();
+			}
+		default:
+			return -1;
+		}
+	}
+	
+	public long getTotalMemory(int device) {
+		Slots s = slots();
+		Util.safeCall(Cuda.cuDeviceTotalMem(s.pointerOut, device));
+		return s.pointer.value();
+	}
+	
+	public String getDeviceName(int device) {
+		byte[] name = new byte[256];
+		Util.safeCall(Cuda.cuDeviceGetName(name, name.length, device));
+		int length = 0;
+		while (length < name.length && name[length] != 0) length++;
+		return new String(name, 0, length, StandardCharsets.US_ASCII);
+	}
+	
+	public boolean hasPageLockedMemory() {
+		return true;
+	}
+	
+	public int getPointerSize() {
+		// nvcc compiles kernels for the host's pointer size, so on a 64-bit host pointer parameters take 8 bytes
+		return hostPointerSize();
+	}
+	
+	static int hostPointerSize() {
+		String model = System.getProperty("sun.arch.data.model");
+		if (model != null) return model.equals("32") ? 4 : 8;
+		return System.getProperty("os.arch", "").matches(".*64.*") ? 8 : 4;
+	}
+	
+	public boolean needsCubinImage() {
+		return true;
+	}
+	
+	public Object createContext(int device, Context.Flags flags) {
+		Slots s = slots();
+		Util.safeCall(Cuda.cuCtxCreate(s.contextOut, flags.flag, device));
+		popContext();
+		return s.context.value();
+	}
+	
+	public void destroyContext(Object context) {
+		SWIGTYPE_p_CUctx_st ctx = (SWIGTYPE_p_CUctx_st)context;
+		Util.safeCall(Cuda.cuCtxPushCurrent(ctx));
+		Util.safeCall(Cuda.cuCtxDestroy(ctx));
+	}
+	
+	public void pushContext(Object context) {
+		Util.safeCall(Cuda.cuCtxPushCurrent((SWIGTYPE_p_CUctx_st)context));
+	}
+	
+	public void popContext() {
+		Util.safeCall(Cuda.cuCtxPopCurrent(null));
+	}
+	
+	public void synchronizeContext() {
+		Util.safeCall(Cuda.cuCtxSynchronize());
+	}
+	
+	public long allocate(long size) {
+		Slots s = slots();
+		Util.safeCall(Cuda.cuMemAlloc(s.pointerOut, size));
+		return s.pointer.value();
+	}
+	
+	public void free(long address) {
+		Util.safeCall(Cuda.cuMemFree(address));
+	}
+	
+	public void copyToDevice(long address, NativeByteArray src, long size, Object stream) {
+		if (stream == null) {
+			Util.safeCall(Cuda.cuMemcpyHtoD(address, src.getVoidPointer(), size));
+		} else {
+			Util.safeCall(Cuda.cuMemcpyHtoDAsync(address, src.getVoidPointer(), size, (SWIGTYPE_p_CUstream_st)stream));
+		}
+	}
+	
+	public void copyFromDevice(NativeByteArray dst, long address, long size, Object stream) {
+		if (stream == null) {
+			Util.safeCall(Cuda.cuMemcpyDtoH(dst.getVoidPointer(), address, size));
+		} else {
+			Util.safeCall(Cuda.cuMemcpyDtoHAsync(dst.getVoidPointer(), address, size, (SWIGTYPE_p_CUstream_st)stream));
+		}
+	}
+	
+	public Object getDefaultStream(Object context) {
+		return Cuda.toStream(0);
+	}
+	
+	public Object createStream() {
+		Slots s = slots();
+		long flags = 0; // currently required by the API
+		Util.safeCall(Cuda.cuStreamCreate(s.streamOut, flags));
+		return s.stream.value();
+	}
+	
+	public void destroyStream(Object stream) {
+		Util.safeCall(Cuda.cuStreamDestroy((SWIGTYPE_p_CUstream_st)stream));
+	}
+	
+	public boolean queryStream(Object stream) {
+		return isReady(Cuda.cuStreamQuery((SWIGTYPE_p_CUstream_st)stream));
+	}
+	
+	public void synchronizeStream(Object stream) {
+		Util.safeCall(Cuda.cuStreamSynchronize((SWIGTYPE_p_CUstream_st)stream));
+	}
+	
+	public Object recordEvent(Object stream) {
+		Slots s = slots();
+		long flags = 0; // currently required by the API
+		Util.safeCall(Cuda.cuEventCreate(s.eventOut, flags));
+		SWIGTYPE_p_CUevent_st event = s.event.value();
+		try {
+			Util.safeCall(Cuda.cuEventRecord(event, (SWIGTYPE_p_CUstream_st)stream));
+		} catch (Error e) {
+			Cuda.cuEventDestroy(event);
+			throw e;
+		}
+		return event;
+	}
+	
+	public boolean queryEvent(Object event) {
+		return isReady(Cuda.cuEventQuery((SWIGTYPE_p_CUevent_st)event));
+	}
+	
+	private static boolean isReady(CUresult result) {
+		if (result == CUresult.CUDA_SUCCESS) {
+			return true;
+		} else if (result == CUresult.CUDA_ERROR_NOT_READY) {
+			return false;
+		} else {
+			// this will throw an exception, so the return value is unimportant
+			Util.safeCall(result);
+			return false;
+		}
+	}
+	
+	public void synchronizeEvent(Object event) {
+		Util.safeCall(Cuda.cuEventSynchronize((SWIGTYPE_p_CUevent_st)event));
+	}
+	
+	public void waitEvent(Object stream, Object event) {
+		// cuStreamWaitEvent came with CUDA 3.2, after the driver this wrapper was made for, so the host waits instead
+		synchronizeEvent(event);
+	}
+	
+	public float elapsedTime(Object start, Object end) {
+		Slots s = slots();
+		Util.safeCall(Cuda.cuEventElapsedTime(s.realOut, (SWIGTYPE_p_CUevent_st)start, (SWIGTYPE_p_CUevent_st)end));
+		return s.real.value();
+	}
+	
+	public void destroyEvent(Object event) {
+		Util.safeCall(Cuda.cuEventDestroy((SWIGTYPE_p_CUevent_st)event));
+	}
+	
+	public Object loadModule(Cubin cubin) {
+		// the driver reads the image as a string, so it needs a terminator
+		byte[] image = cubin.getImage();
+		NativeByteArray data = new NativeByteArray(image.length + 1);
+		data.put(0, image, 0, image.length);
+		data.setByte(image.length, (byte)0);
+		Slots s = slots();
+		try {
+			Util.safeCall(Cuda.cuModuleLoadData(s.moduleOut, data.getVoidPointer()));
+		} finally {
+			data.free();
+		}
+		return s.module.value();
+	}
+	
+	public void unloadModule(Object module) {
+		Util.safeCall(Cuda.cuModuleUnload((SWIGTYPE_p_CUmod_st)module));
+	}
+	
+	public Object getFunction(Object module, String name) {
+		Slots s = slots();
+		Util.safeCall(Cuda.cuModuleGetFunction(s.functionOut, (SWIGTYPE_p_CUmod_st)module, name));
+		return new CudaFunction(s.function.value());
+	}
+	
+	public void releaseFunction(Object function) {
+		// the function belongs to the module
+	}
+	
+	public void setSharedMemory(Object function, long size) {
+		Util.safeCall(Cuda.cuFuncSetSharedSize(((CudaFunction)function).function, size));
+	}
+	
+	public void launch(Object function, Function.GridSize grid, Function.BlockSize block, 
+			NativeByteArray params, int paramSize, Object stream) {
+		CudaFunction f = (CudaFunction)function;
+		SWIGTYPE_p_CUfunc_st func = f.function;
+		if (block.x != f.shapeX || block.y != f.shapeY || block.z != f.shapeZ) {
+			Util.safeCall(Cuda.cuFuncSetBlockShape(func, block.x, block.y, block.z));
+			f.shapeX = block.x; f.shapeY = block.y; f.shapeZ = block.z;
+		}
+		
+		// one copy of the whole parameter block
+		if (paramSize > 0) Util.safeCall(Cuda.cuParamSetv(func, 0, params.getVoidPointer(), paramSize));
+		if (paramSize != f.paramSize) {
+			Util.safeCall(Cuda.cuParamSetSize(func, paramSize));
+			f.paramSize = paramSize;
+		}
+		Util.safeCall(Cuda.cuLaunchGridAsync(func, grid.x, grid.y, (SWIGTYPE_p_CUstream_st)stream));
+	}
+}
@@ -21,4 +21,5 @@ package org.lambdacomplex.nn.javacuda;
 
 public class CudaCompileException extends Throwable {
 	public CudaCompileException(String s) { super(s); };
+	public CudaCompileException(String s, Throwable cause) { super(s, cause); };
 }
@@ -19,27 +19,76 @@
 
 package org.lambdacomplex.nn.javacuda;
 
+import java.lang.reflect.InvocationTargetException;
+import java.util.*;
+
 import org.lambdacomplex.nn.javacuda.Context.Flags;
-import org.lambdacomplex.nn.javacuda.swig.*;
 
 /**
  * This class describes a physical GPU on the computer, and provides methods for obtaining devices.
+ * 
+ * Devices belong to a Backend. The default backend is chosen by the system property javacuda.backend: "cuda" 
+ * for the CUDA driver, "cpu" for the CpuBackend, "auto", the default, for the CUDA driver if it has a 
+ * device and the CPU otherwise, or the name of a Backend class with a public no-argument constructor.
  * @author NewName
  *
  */
 public class Device {
-	static int deviceCount;
+	private static Backend defaultBackend;
 	
-	static {
-		System.loadLibrary("CUDAWrapper");
-		
-		CPint count = new CPint();
-		count.assign(0);
-		if (Cuda.cuInit(0) == CUresult.CUDA_SUCCESS) 
-			Util.safeCall(Cuda.cuDeviceGetCount(count.cast()));
-		if (count.value() == 0)
-			throw new NoCudaDeviceError();
-		deviceCount = count.value();
+	/**
+	 * Get the backend that devices come from when none is given, choosing it the first time.
+	 * @return The default backend.
+	 * @throws NoCudaDeviceError If javacuda.backend is "cuda" and there is no CUDA device.
+	 */
+	public static synchronized Backend getDefaultBackend() {
+		if (defaultBackend == null) {
+			defaultBackend = createBackend(System.getProperty("javacuda.backend", "auto"));
+		}
+		return defaultBackend;
+	}
+	
+	/**
+	 * Create a backend by name.
+	 * @param name "cuda", "cpu", "auto" or the name of a Backend class, as for javacuda.backend.
+	 * @return The new backend.
+	 * @throws NoCudaDeviceError If the name is "cuda" and there is no CUDA device.
+	 */
+	public static Backend createBackend(String name) {
+		if (name.equals("cpu")) {
+			return new CpuBackend();
+		} else if (name.equals("cuda")) {
+			if (!CudaBackend.isAvailable()) throw new NoCudaDeviceError();
+			Backend backend = new CudaBackend();
+			if (backend.getDeviceCount() == 0) throw new NoCudaDeviceError();
+			return backend;
+		} else if (name.equals("auto")) {
+			if (CudaBackend.isAvailable()) {
+				Backend backend = new CudaBackend();
+				if (backend.getDeviceCount() > 0) return backend;
+			}
+			return new CpuBackend();
+		}
+		try {
+			return (Backend)Class.forName(name).getConstructor().newInstance();
+		} catch (InvocationTargetException e) {
+			// such as an UnsatisfiedLinkError from a backend whose library is missing
+			if (e.getCause() instanceof Error) throw (Error)e.getCause();
+			if (e.getCause() instanceof RuntimeException) throw (RuntimeException)e.getCause();
+			throw new IllegalArgumentException("Unable to create backend " + name, e.getCause());
+		} catch (ReflectiveOperationException e) {
+			throw new IllegalArgumentException("Unknown backend " + name, e);
+		} catch (ClassCastException e) {
+			throw new IllegalArgumentException(name + " is not a Backend", e);
+		}
+	}
+	
+	/**
+	 * Set the backend that devices come from when none is given.
+	 * @param backend The backend.
+	 */
+	public static synchronized void setDefaultBackend(Backend backend) {
+		defaultBackend = backend;
 	}
 	
 	/**
@@ -50,49 +99,91 @@ public class Device {
 	 * @return The Device object describing it.
 	 */
 	public static Device getDevice(int ord) {
-		if (ord < 0 || ord >= deviceCount) throw new IndexOutOfBoundsException();
+		return getDevice(getDefaultBackend(), ord);
+	}
+	
+	/**
+	 * Get the device of a backend with the given device-ID.
+	 * @param backend The backend.
+	 * @param ord The device-ID.
+	 * @return The Device object describing it.
+	 */
+	public static Device getDevice(Backend backend, int ord) {
+		if (ord < 0 || ord >= backend.getDeviceCount()) throw new IndexOutOfBoundsException();
 		
-		return new Device(ord);
+		return new Device(backend, ord);
+	}
+	
+	/**
+	 * Get every device of a backend.
+	 * @param backend The backend.
+	 * @return The devices in order of device-ID.
+	 */
+	public static List<Device> getDevices(Backend backend) {
+		List<Device> devices = new ArrayList<Device>();
+		for (int i = 0; i < backend.getDeviceCount(); i++) devices.add(new Device(backend, i));
+		return devices;
+	}
+	
+	/**
+	 * Get every device of the default backend.
+	 * @return The devices in order of device-ID.
+	 */
+	public static List<Device> getDevices() {
+		return getDevices(getDefaultBackend());
 	}
 	
-	// TODO: CUdevprop doesn't have a multiprocessor count, find out why/alternatives
 	/**
-	 * Find the device with the most processing power.
+	 * Find the device of the default backend with the most processing power.
 	 * @return The Device object describing it.
+	 * @throws NoCudaDeviceError If the default backend has no devices.
 	 */
 	public static Device getMaxGFlopsDevice() {
-		CPint count = new CPint();
-		Util.safeCall(Cuda.cuDeviceGetCount(count.cast()));
-		
-		CUdevprop deviceProperties = new CUdevprop();
-		int currentDevice = 0, maxDevice = 0, maxGFlops = -1;
-		
-		while (currentDevice < count.value()) {
-			Util.safeCall(Cuda.cuDeviceGetProperties(deviceProperties, currentDevice));
-			int GFlops = deviceProperties.getClockRate();
-			
-			if (GFlops > maxGFlops) {
-				maxGFlops = GFlops;
-				maxDevice = currentDevice;
-			}
-			currentDevice++;
-		}
-		
-		return getDevice(maxDevice);
+		return getMaxGFlopsDevice(getDefaultBackend());
 	}
 	
+	/**
+	 * Find the device with the most processing power, by its peak throughput as DeviceInfo.BY_THROUGHPUT 
+	 * ranks it, rather than by its clock rate alone.
+	 * @param backend The backend whose devices are compared.
+	 * @return The Device object describing it.
+	 * @throws NoCudaDeviceError If the backend has no devices.
+	 */
+	public static Device getMaxGFlopsDevice(Backend backend) {
+		if (backend.getDeviceCount() == 0) throw new NoCudaDeviceError();
+		return getDevice(backend, DeviceInfo.rank(backend).get(0).getDeviceID());
+	}
+	
+	private Backend backend;
 	private int deviceID;
 	
-	protected Device(int ord) {
+	protected Device(Backend backend, int ord) {
+		this.backend = backend;
 		deviceID = ord;
 	}
 	
+	public Backend getBackend() {
+		return backend;
+	}
+	
+	public int getID() {
+		return deviceID;
+	}
+	
+	/**
+	 * Get what this device is capable of. It is queried the first time and kept for later calls.
+	 * @return The DeviceInfo of this device.
+	 */
+	public DeviceInfo getInfo() {
+		return DeviceInfo.get(backend, deviceID);
+	}
+	
 	/**
 	 * Gets a CUDA context for this device with the default flag.
 	 * @return The Context object encapsulating the CUDA context.
 	 */
 	public Context getContext() {
-		return new Context(deviceID, Flags.SCHEDULER_AUTO);
+		return new Context(backend, deviceID, Flags.SCHEDULER_AUTO);
 	}
 	
 	
@@ -102,6 +193,16 @@ public class Device {
 	 * @return The Context object encapsulating the CUDA context.
 	 */
 	public Context getContext(Context.Flags flag) {
-		return new Context(deviceID, flag);
+		return new Context(backend, deviceID, flag);
+	}
+	
+	/**
+	 * Get a CUDA context for this device with the given flag and execution mode.
+	 * @param flag The flag to create the context with.
+	 * @param mode How calls on the context are made.
+	 * @return The Context object encapsulating the CUDA context.
+	 */
+	public Context getContext(Context.Flags flag, Context.ExecutionMode mode) {
+		return new Context(backend, deviceID, flag, mode);
 	}
 }
@@ -0,0 +1,41 @@
+/*
+* Copyright 2009 Gabriel Collin
+*
+* This file is part of javaCUDA.
+*
+* javaCUDA is free software: you can redistribute it and/or modify it
+* under the terms of the GNU Lesser General Public License as published
+* by the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* javaCUDA is distributed in the hope that it will be useful, but WITHOUT
+* ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+* FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public
+* License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public
+* License along with javaCUDA. If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package org.lambdacomplex.nn.javacuda;
+
+/**
+ * The source of raw device memory for a DeviceMemoryArena.
+ * @author NewName
+ *
+ */
+public interface DeviceAddressSpace {
+	/**
+	 * Reserve a range of device memory.
+	 * @param size The size of the range in bytes.
+	 * @return The device address of the start of the range.
+	 * @throws CudaAPIError If the memory could not be reserved.
+	 */
+	public long reserve(long size);
+	
+	/**
+	 * Give back a range obtained from reserve.
+	 * @param address The device address returned by reserve.
+	 */
+	public void release(long address);
+}
@@ -0,0 +1,309 @@
+/*
+* Copyright 2009 Gabriel Collin
+*
+* This file is part of javaCUDA.
+*
+* javaCUDA is free software: you can redistribute it and/or modify it
+* under the terms of the GNU Lesser General Public License as published
+* by the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* javaCUDA is distributed in the hope that it will be useful, but WITHOUT
+* ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+* FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public
+* License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public
+* License along with javaCUDA. If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package org.lambdacomplex.nn.javacuda;
+
+import java.util.*;
+
+/**
+ * What a device is capable of, queried from its backend once and kept.
+ * 
+ * Every attribute the driver reports is read when the DeviceInfo of a device is first asked for, so launch 
+ * configuration and scheduling can look at them as often as they like without calling the driver. Attributes 
+ * the driver or backend does not have are -1; older drivers have no memory clock or bus width, for example.
+ * 
+ * The peak arithmetic throughput, from the multiprocessor count, the cores per multiprocessor of the compute 
+ * capability and the clock rate, ranks devices for getMaxGFlopsDevice.
+ * @author NewName
+ *
+ */
+public final class DeviceInfo {
+	
+	/**
+	 * The device attributes of the CUDA driver, with the driver's codes.
+	 */
+	public enum Attribute {
+		MAX_THREADS_PER_BLOCK (1),
+		MAX_BLOCK_DIM_X (2),
+		MAX_BLOCK_DIM_Y (3),
+		MAX_BLOCK_DIM_Z (4),
+		MAX_GRID_DIM_X (5),
+		MAX_GRID_DIM_Y (6),
+		MAX_GRID_DIM_Z (7),
+		MAX_SHARED_MEMORY_PER_BLOCK (8),
+		TOTAL_CONSTANT_MEMORY (9),
+		WARP_SIZE (10),
+		MAX_PITCH (11),
+		MAX_REGISTERS_PER_BLOCK (12),
+		CLOCK_RATE (13),
+		TEXTURE_ALIGNMENT (14),
+		GPU_OVERLAP (15),
+		MULTIPROCESSOR_COUNT (16),
+		KERNEL_EXEC_TIMEOUT (17),
+		INTEGRATED (18),
+		CAN_MAP_HOST_MEMORY (19),
+		COMPUTE_MODE (20),
+		CONCURRENT_KERNELS (31),
+		ECC_ENABLED (32),
+		MEMORY_CLOCK_RATE (36),
+		GLOBAL_MEMORY_BUS_WIDTH (37),
+		L2_CACHE_SIZE (38),
+		MAX_THREADS_PER_MULTIPROCESSOR (39),
+		ASYNC_ENGINE_COUNT (40),
+		COMPUTE_CAPABILITY_MAJOR (75),
+		COMPUTE_CAPABILITY_MINOR (76),
+		MAX_SHARED_MEMORY_PER_MULTIPROCESSOR (81),
+		MAX_REGISTERS_PER_MULTIPROCESSOR (82);
+		
+		private int code;
+		
+		Attribute(int c) {
+			code = c;
+		}
+		
+		/**
+		 * The value of CUdevice_attribute for this attribute.
+		 */
+		public int getCode() {
+			return code;
+		}
+	}
+	
+	// a CudaBackend keeps no state of its own, so all of them share one entry; other backends, such as each 
+	// CpuBackend or a PanamaBackend bound to another library, have devices of their own
+	private static final Map<Object, DeviceInfo[]> cache = new WeakHashMap<Object, DeviceInfo[]>();
+	
+	/**
+	 * Get the information about a device, querying it the first time. Every CudaBackend shares the same information.
+	 * @param backend The backend.
+	 * @param device The device-ID.
+	 * @return The information.
+	 */
+	public static DeviceInfo get(Backend backend, int device) {
+		if (backend instanceof MeteredBackend) backend = ((MeteredBackend)backend).getBackend();
+		if (device < 0 || device >= backend.getDeviceCount()) throw new IndexOutOfBoundsException();
+		Object key = backend instanceof CudaBackend ? CudaBackend.class : backend;
+		synchronized (cache) {
+			DeviceInfo[] infos = cache.get(key);
+			if (infos == null) {
+				infos = new DeviceInfo[backend.getDeviceCount()];
+				cache.put(key, infos);
+			}
+			if (infos[device] == null) infos[device] = new DeviceInfo(backend, device);
+			return infos[device];
+		}
+	}
+	
+	/**
+	 * Get the information about every device of a backend.
+	 * @return The information in order of device-ID.
+	 */
+	public static List<DeviceInfo> getAll(Backend backend) {
+		List<DeviceInfo> infos = new ArrayList<DeviceInfo>();
+		for (int i = 0; i < backend.getDeviceCount(); i++) infos.add(get(backend, i));
+		return infos;
+	}
+	
+	/**
+	 * Get the devices of a backend, fastest first.
+	 * @return The information of every device, in order of BY_THROUGHPUT.
+	 */
+	public static List<DeviceInfo> rank(Backend backend) {
+		List<DeviceInfo> infos = getAll(backend);
+		Collections.sort(infos, BY_THROUGHPUT);
+		return infos;
+	}
+	
+	/**
+	 * Orders devices fastest first: by peak arithmetic throughput, and where that is not known by multiprocessors 
+	 * times clock rate, then by clock rate, then by memory bandwidth, then by device-ID.
+	 */
+	public static final Comparator<DeviceInfo> BY_THROUGHPUT = new Comparator<DeviceInfo>() {
+		public int compare(DeviceInfo a, DeviceInfo b) {
+			int c = Double.compare(b.getPeakGFlops(), a.getPeakGFlops());
+			if (c == 0) c = Long.compare((long)b.multiprocessors * b.clockRate, (long)a.multiprocessors * a.clockRate);
+			if (c == 0) c = Integer.compare(b.clockRate, a.clockRate);
+			if (c == 0) c = Double.compare(b.getMemoryBandwidth(), a.getMemoryBandwidth());
+			if (c == 0) c = Integer.compare(a.device, b.device);
+			return c;
+		}
+	};
+	
+	private String backendName;
+	private int device;
+	private String name;
+	private long totalMemory;
+	private int[] attributes = new int[Attribute.values().length];
+	private int multiprocessors, clockRate;
+	
+	private DeviceInfo(Backend backend, int device) {
+		backendName = backend.getName();
+		this.device = device;
+		name = backend.getDeviceName(device);
+		totalMemory = backend.getTotalMemory(device);
+		for (Attribute a : Attribute.values()) attributes[a.ordinal()] = backend.getAttribute(device, a);
+		multiprocessors = attributes[Attribute.MULTIPROCESSOR_COUNT.ordinal()];
+		clockRate = attributes[Attribute.CLOCK_RATE.ordinal()];
+	}
+	
+	public String getBackendName() {
+		return backendName;
+	}
+	
+	public int getDeviceID() {
+		return device;
+	}
+	
+	public String getName() {
+		return name;
+	}
+	
+	/**
+	 * The global memory of the device in bytes.
+	 */
+	public long getTotalMemory() {
+		return totalMemory;
+	}
+	
+	/**
+	 * Get any attribute.
+	 * @return The value, or -1 if it is not known.
+	 */
+	public int getAttribute(Attribute attribute) {
+		return attributes[attribute.ordinal()];
+	}
+	
+	public int getMultiprocessorCount() {
+		return multiprocessors;
+	}
+	
+	public int getComputeCapabilityMajor() {
+		return getAttribute(Attribute.COMPUTE_CAPABILITY_MAJOR);
+	}
+	
+	public int getComputeCapabilityMinor() {
+		return getAttribute(Attribute.COMPUTE_CAPABILITY_MINOR);
+	}
+	
+	/**
+	 * The clock rate of the multiprocessors in kilohertz.
+	 */
+	public int getClockRate() {
+		return clockRate;
+	}
+	
+	/**
+	 * The peak clock rate of the memory in kilohertz.
+	 */
+	public int getMemoryClockRate() {
+		return getAttribute(Attribute.MEMORY_CLOCK_RATE);
+	}
+	
+	/**
+	 * The width of the memory bus in bits.
+	 */
+	public int getMemoryBusWidth() {
+		return getAttribute(Attribute.GLOBAL_MEMORY_BUS_WIDTH);
+	}
+	
+	/**
+	 * The peak memory bandwidth, from the memory clock and bus width with two transfers a clock.
+	 * @return Bytes per second, or -1 if not known.
+	 */
+	public double getMemoryBandwidth() {
+		int clock = getMemoryClockRate(), width = getMemoryBusWidth();
+		if (clock <= 0 || width <= 0) return -1;
+		return 2.0 * clock * 1000 * width / 8;
+	}
+	
+	public int getWarpSize() {
+		return getAttribute(Attribute.WARP_SIZE);
+	}
+	
+	public int getMaxThreadsPerBlock() {
+		return getAttribute(Attribute.MAX_THREADS_PER_BLOCK);
+	}
+	
+	/**
+	 * The shared memory a block can have in bytes.
+	 */
+	public int getMaxSharedMemoryPerBlock() {
+		return getAttribute(Attribute.MAX_SHARED_MEMORY_PER_BLOCK);
+	}
+	
+	/**
+	 * The registers a block can have.
+	 */
+	public int getMaxRegistersPerBlock() {
+		return getAttribute(Attribute.MAX_REGISTERS_PER_BLOCK);
+	}
+	
+	public int getMaxThreadsPerMultiprocessor() {
+		return getAttribute(Attribute.MAX_THREADS_PER_MULTIPROCESSOR);
+	}
+	
+	/**
+	 * The largest block, which is also limited by getMaxThreadsPerBlock.
+	 */
+	public Function.BlockSize getMaxBlockSize() {
+		return new Function.BlockSize(getAttribute(Attribute.MAX_BLOCK_DIM_X), getAttribute(Attribute.MAX_BLOCK_DIM_Y), 
+				getAttribute(Attribute.MAX_BLOCK_DIM_Z));
+	}
+	
+	/**
+	 * The CUDA cores of each multiprocessor, from the compute capability.
+	 * @return The number of cores, or -1 if the compute capability is not known.
+	 */
+	public int getCoresPerMultiprocessor() {
+		int major = getComputeCapabilityMajor(), minor = getComputeCapabilityMinor();
+		switch (major) {
+		case 1: return 8;
+		case 2: return minor == 0 ? 32 : 48;
+		case 3: return 192;
+		case 5: return 128;
+		case 6: return minor == 0 ? 64 : 128;
+		case 7: return 64;
+		case 8: return minor == 0 ? 64 : 128;
+		case 9: return 128;
+		default: return major > 9 ? 128 : -1;
+		}
+	}
+	
+	/**
+	 * The peak single precision throughput, counting a fused multiply-add as two operations.
+	 * @return GFLOP/s, or -1 if the multiprocessors, compute capability or clock rate are not known.
+	 */
+	public double getPeakGFlops() {
+		int cores = getCoresPerMultiprocessor();
+		if (cores <= 0 || multiprocessors <= 0 || clockRate <= 0) return -1;
+		return 2.0 * multiprocessors * cores * clockRate / 1e6;
+	}
+	
+	public String toString() {
+		StringBuilder b = new StringBuilder();
+		b.append(backendName).append(" device ").append(device).append(": ").append(name);
+		b.append(", ").append(totalMemory >> 20).append(" MB\n");
+		if (getPeakGFlops() > 0) b.append(String.format("  %.1f GFLOP/s peak%n", getPeakGFlops()));
+		if (getMemoryBandwidth() > 0) b.append(String.format("  %.1f GB/s peak%n", getMemoryBandwidth() / 1e9));
+		for (Attribute a : Attribute.values()) {
+			if (getAttribute(a) >= 0) b.append("  ").append(a).append(" = ").append(getAttribute(a)).append('\n');
+		}
+		return b.toString();
+	}
+}
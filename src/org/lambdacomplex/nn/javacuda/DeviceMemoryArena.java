@@ -0,0 +1,496 @@
+/*
+* Copyright 2009 Gabriel Collin
+*
+* This file is part of javaCUDA.
+*
+* javaCUDA is free software: you can redistribute it and/or modify it
+* under the terms of the GNU Lesser General Public License as published
+* by the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* javaCUDA is distributed in the hope that it will be useful, but WITHOUT
+* ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+* FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public
+* License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public
+* License along with javaCUDA. If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package org.lambdacomplex.nn.javacuda;
+
+import java.util.*;
+
+/**
+ * A caching sub-allocator for device memory.
+ * 
+ * Small allocations are carved out of large blocks reserved from the address space, and are rounded
+ * up to a power-of-two bucket. Large allocations are reserved individually. Freed memory is cached by
+ * size and reused rather than given back to the driver, until the arena is trimmed.
+ * 
+ * Memory can be freed in stream order: it is handed to the next allocation on the same stream straight
+ * away, and to anyone else once the stream has passed the point where it was freed.
+ * 
+ * Each context has an arena that DevicePointer objects are allocated from.
+ * @author NewName
+ *
+ */
+public class DeviceMemoryArena {
+	public static final long ALIGNMENT = 256;
+	public static final long DEFAULT_BLOCK_SIZE = 2 * 1024 * 1024;
+	public static final long DEFAULT_MAX_SMALL_SIZE = 1024 * 1024;
+	public static final long LARGE_GRANULARITY = 1024 * 1024;
+	
+	/**
+	 * Marks a point in a stream, used for memory freed in stream order.
+	 * @author NewName
+	 *
+	 */
+	public interface Fence {
+		/**
+		 * Returns true once the stream has passed this fence.
+		 * @return Whether work queued before the fence is complete.
+		 */
+		public boolean isPassed();
+		
+		/**
+		 * Release whatever marks the point in the stream. The arena calls this once the memory leaves the 
+		 * pending list, whether the fence was passed or the memory went to the same stream.
+		 */
+		public void release();
+	}
+	
+	/**
+	 * A range of device memory handed out by the arena.
+	 * @author NewName
+	 *
+	 */
+	public static class Allocation {
+		private long address;
+		private long size;
+		private long capacity;
+		private int bucket;
+		private Block block;
+		private Object stream;
+		private Fence fence;
+		private boolean live;
+		
+		private Allocation(long address, long capacity, int bucket, Block block) {
+			this.address = address;
+			this.capacity = capacity;
+			this.bucket = bucket;
+			this.block = block;
+		}
+		
+		public long getAddress() {
+			return address;
+		}
+		
+		/**
+		 * The size that was asked for.
+		 * @return The size in bytes.
+		 */
+		public long getSize() {
+			return size;
+		}
+		
+		/**
+		 * The size of the range actually set aside, including rounding.
+		 * @return The size in bytes.
+		 */
+		public long getCapacity() {
+			return capacity;
+		}
+	}
+	
+	private static class Block {
+		private long base;
+		private long size;
+		private long top;
+		private int liveChunks;
+		
+		private Block(long base, long size) {
+			this.base = base;
+			this.size = size;
+		}
+	}
+	
+	private DeviceAddressSpace addressSpace;
+	private long blockSize;
+	private long maxSmallSize;
+	
+	private List<ArrayDeque<Allocation>> smallFree;
+	private TreeMap<Long, ArrayDeque<Allocation>> largeFree = new TreeMap<Long, ArrayDeque<Allocation>>();
+	private ArrayList<Allocation> pending = new ArrayList<Allocation>();
+	private ArrayList<Block> blocks = new ArrayList<Block>();
+	private Block currentBlock;
+	
+	private long reservedBytes;
+	private long bytesInUse;
+	private long cachedBytes;
+	private long hits;
+	private long misses;
+	
+	public DeviceMemoryArena(DeviceAddressSpace addressSpace) {
+		this(addressSpace, DEFAULT_BLOCK_SIZE, DEFAULT_MAX_SMALL_SIZE);
+	}
+	
+	/**
+	 * Create an arena.
+	 * @param addressSpace Where the arena reserves its memory from.
+	 * @param blockSize The size of the blocks small allocations are carved from.
+	 * @param maxSmallSize The largest allocation carved from a block, must be no larger than blockSize.
+	 */
+	public DeviceMemoryArena(DeviceAddressSpace addressSpace, long blockSize, long maxSmallSize) {
+		if (maxSmallSize < ALIGNMENT || maxSmallSize > blockSize) throw new IllegalArgumentException();
+		this.addressSpace = addressSpace;
+		this.blockSize = blockSize;
+		this.maxSmallSize = roundUp(maxSmallSize);
+		int buckets = bucket(this.maxSmallSize) + 1;
+		smallFree = new ArrayList<ArrayDeque<Allocation>>(buckets);
+		for (int i = 0; i < buckets; i++) {
+			smallFree.add(new ArrayDeque<Allocation>());
+		}
+	}
+	
+	private static long roundUp(long size) {
+		if (size <= ALIGNMENT) return ALIGNMENT;
+		long rounded = Long.highestOneBit(size);
+		return rounded == size ? size : rounded << 1;
+	}
+	
+	private static int bucket(long size) {
+		return Long.numberOfTrailingZeros(roundUp(size)) - Long.numberOfTrailingZeros(ALIGNMENT);
+	}
+	
+	/**
+	 * Allocate device memory that is not ordered with respect to any stream.
+	 * @param size The size in bytes.
+	 * @return The allocation.
+	 */
+	public Allocation allocate(long size) {
+		return allocate(size, null);
+	}
+	
+	/**
+	 * Allocate device memory for use on the given stream.
+	 * 
+	 * Memory freed earlier on the same stream may be reused immediately.
+	 * @param size The size in bytes.
+	 * @param stream The stream the memory will be used on, or null.
+	 * @return The allocation.
+	 */
+	public Allocation allocate(long size, Object stream) {
+		if (size < 0) throw new IllegalArgumentException();
+		
+		// fences and the address space call the driver, which may hold its own lock while allocating from 
+		// here, so they are only called without the arena locked
+		if (size <= maxSmallSize) {
+			int b = bucket(size);
+			Allocation result = reuse(b, 0, size, stream);
+			return result != null ? result : carve(b, size);
+		} else {
+			long capacity = (size + LARGE_GRANULARITY - 1) / LARGE_GRANULARITY * LARGE_GRANULARITY;
+			Allocation result = reuse(-1, capacity, size, stream);
+			if (result != null) return result;
+			long address = reserve(capacity);
+			synchronized (this) {
+				misses++;
+				result = new Allocation(address, capacity, -1, null);
+				begin(result, size);
+			}
+			return result;
+		}
+	}
+	
+	/**
+	 * Take cached memory of a size class, or pending memory freed on the same stream or whose fence has passed.
+	 * @return The allocation, or null if there is none.
+	 */
+	private Allocation reuse(int bucket, long capacity, long size, Object stream) {
+		// only made when the pending list has to be looked through, so a cached hit allocates nothing
+		List<Allocation> candidates = null;
+		List<Fence> fences = null;
+		Allocation result;
+		Fence fence = null;
+		synchronized (this) {
+			result = bucket >= 0 ? smallFree.get(bucket).pollFirst() : takeLarge(capacity);
+			for (int i = 0; result == null && i < pending.size(); i++) {
+				Allocation a = pending.get(i);
+				if (a.bucket != bucket || (bucket < 0 && a.capacity != capacity)) continue;
+				if (stream != null && stream == a.stream) {
+					pending.remove(i);
+					result = a;
+				} else {
+					if (candidates == null) {
+						candidates = new ArrayList<Allocation>();
+						fences = new ArrayList<Fence>();
+					}
+					candidates.add(a);
+					fences.add(a.fence);
+				}
+			}
+			if (result != null) {
+				fence = result.fence;
+				hit(result, size);
+			}
+		}
+		
+		for (int i = 0; result == null && candidates != null && i < candidates.size(); i++) {
+			if (!fences.get(i).isPassed()) continue;
+			synchronized (this) {
+				Allocation a = candidates.get(i);
+				// someone else may have taken it, and even freed it again, in the meantime
+				if (a.fence != fences.get(i) || !pending.remove(a)) continue;
+				fence = a.fence;
+				hit(a, size);
+				result = a;
+			}
+		}
+		
+		if (fence != null) fence.release();
+		return result;
+	}
+	
+	private void hit(Allocation a, long size) {
+		hits++;
+		cachedBytes -= a.capacity;
+		begin(a, size);
+	}
+	
+	private void begin(Allocation a, long size) {
+		a.size = size;
+		a.live = true;
+		a.stream = null;
+		a.fence = null;
+		if (a.block != null) a.block.liveChunks++;
+		bytesInUse += size;
+	}
+	
+	private Allocation takeLarge(long capacity) {
+		// accept a cached range up to an eighth larger than needed
+		Map.Entry<Long, ArrayDeque<Allocation>> entry = largeFree.ceilingEntry(capacity);
+		if (entry == null || entry.getKey() > capacity + capacity / 8) return null;
+		Allocation a = entry.getValue().pollFirst();
+		if (entry.getValue().isEmpty()) largeFree.remove(entry.getKey());
+		return a;
+	}
+	
+	private Allocation carve(int bucket, long size) {
+		long capacity = ALIGNMENT << bucket;
+		Block block = null;
+		while (true) {
+			synchronized (this) {
+				if (block != null) {
+					blocks.add(block);
+					currentBlock = block;
+				}
+				// another thread may have used up a block reserved here before it is carved from
+				if (currentBlock != null && currentBlock.top + capacity <= currentBlock.size) {
+					// carving from a block reserved earlier reserves nothing
+					if (block != null) {
+						misses++;
+					} else {
+						hits++;
+					}
+					Allocation a = new Allocation(currentBlock.base + currentBlock.top, capacity, bucket, currentBlock);
+					currentBlock.top += capacity;
+					begin(a, size);
+					return a;
+				}
+			}
+			block = new Block(reserve(blockSize), blockSize);
+		}
+	}
+	
+	private long reserve(long size) {
+		long address;
+		try {
+			address = addressSpace.reserve(size);
+		} catch (CudaAPIError e) {
+			// give back what we are holding on to and try once more
+			if (getCachedBytes() == 0) throw e;
+			trim();
+			address = addressSpace.reserve(size);
+		}
+		synchronized (this) {
+			reservedBytes += size;
+		}
+		return address;
+	}
+	
+	/**
+	 * Free an allocation, making it available for reuse immediately. No work queued on the device may still 
+	 * use the memory.
+	 * @param a The allocation to free.
+	 */
+	public void free(Allocation a) {
+		free(a, null, null);
+	}
+	
+	/**
+	 * Free an allocation in stream order.
+	 * 
+	 * The memory may be reused by allocations on the same stream straight away, and by other allocations
+	 * once the fence has been passed.
+	 * @param a The allocation to free.
+	 * @param stream The stream the memory was last used on, or null.
+	 * @param fence A fence placed in the stream after the last use of the memory, or null if the memory is idle.
+	 */
+	public synchronized void free(Allocation a, Object stream, Fence fence) {
+		if (!a.live) throw new IllegalStateException("Allocation allready freed");
+		a.live = false;
+		bytesInUse -= a.size;
+		if (a.block != null) a.block.liveChunks--;
+		cachedBytes += a.capacity;
+		
+		if (fence != null) {
+			a.stream = stream;
+			a.fence = fence;
+			pending.add(a);
+		} else {
+			cache(a);
+		}
+	}
+	
+	private void cache(Allocation a) {
+		if (a.bucket >= 0) {
+			smallFree.get(a.bucket).addFirst(a);
+		} else {
+			ArrayDeque<Allocation> list = largeFree.get(a.capacity);
+			if (list == null) {
+				list = new ArrayDeque<Allocation>();
+				largeFree.put(a.capacity, list);
+			}
+			list.addFirst(a);
+		}
+	}
+	
+	/**
+	 * Move memory whose stream has passed its fence onto the free lists.
+	 */
+	private void collectPending() {
+		List<Allocation> waiting;
+		List<Fence> fences = new ArrayList<Fence>();
+		synchronized (this) {
+			waiting = new ArrayList<Allocation>(pending);
+			for (Allocation a : waiting) fences.add(a.fence);
+		}
+		
+		List<Fence> passed = new ArrayList<Fence>();
+		for (int i = 0; i < waiting.size(); i++) {
+			if (!fences.get(i).isPassed()) continue;
+			synchronized (this) {
+				Allocation a = waiting.get(i);
+				if (a.fence != fences.get(i) || !pending.remove(a)) continue;
+				a.stream = null;
+				a.fence = null;
+				cache(a);
+			}
+			passed.add(fences.get(i));
+		}
+		for (Fence f : passed) f.release();
+	}
+	
+	/**
+	 * Give back to the address space all cached large ranges, and every block that has nothing allocated from it.
+	 * 
+	 * Memory freed in stream order is only given back once its fence has passed.
+	 */
+	public void trim() {
+		collectPending();
+		
+		List<Long> released = new ArrayList<Long>();
+		synchronized (this) {
+			for (ArrayDeque<Allocation> list : largeFree.values()) {
+				for (Allocation a : list) {
+					released.add(a.address);
+					reservedBytes -= a.capacity;
+					cachedBytes -= a.capacity;
+				}
+			}
+			largeFree.clear();
+			
+			Iterator<Block> b = blocks.iterator();
+			while (b.hasNext()) {
+				Block block = b.next();
+				if (block.liveChunks > 0 || hasPending(block)) continue;
+				for (ArrayDeque<Allocation> list : smallFree) {
+					Iterator<Allocation> i = list.iterator();
+					while (i.hasNext()) {
+						Allocation a = i.next();
+						if (a.block == block) {
+							i.remove();
+							cachedBytes -= a.capacity;
+						}
+					}
+				}
+				released.add(block.base);
+				reservedBytes -= block.size;
+				if (block == currentBlock) currentBlock = null;
+				b.remove();
+			}
+		}
+		
+		for (long address : released) addressSpace.release(address);
+	}
+	
+	private boolean hasPending(Block block) {
+		for (Allocation a : pending) {
+			if (a.block == block) return true;
+		}
+		return false;
+	}
+	
+	/**
+	 * The total device memory reserved from the address space.
+	 * @return The amount in bytes.
+	 */
+	public synchronized long getReservedBytes() {
+		return reservedBytes;
+	}
+	
+	/**
+	 * The memory asked for by live allocations, not including rounding.
+	 * @return The amount in bytes.
+	 */
+	public synchronized long getBytesInUse() {
+		return bytesInUse;
+	}
+	
+	/**
+	 * The memory held for reuse, including memory waiting on a fence.
+	 * @return The amount in bytes.
+	 */
+	public synchronized long getCachedBytes() {
+		return cachedBytes;
+	}
+	
+	/**
+	 * The fraction of reserved memory that is not being used by live allocations.
+	 * 
+	 * This counts rounding, cached memory and the unused tails of blocks.
+	 * @return A value between 0 and 1.
+	 */
+	public synchronized double getFragmentation() {
+		if (reservedBytes == 0) return 0;
+		return 1 - (double)bytesInUse / reservedBytes;
+	}
+	
+	/**
+	 * The fraction of allocations served without reserving memory.
+	 * @return A value between 0 and 1.
+	 */
+	public synchronized double getHitRate() {
+		long total = hits + misses;
+		return total == 0 ? 0 : (double)hits / total;
+	}
+	
+	public synchronized long getHits() {
+		return hits;
+	}
+	
+	public synchronized long getMisses() {
+		return misses;
+	}
+}
@@ -19,8 +19,9 @@
 
 package org.lambdacomplex.nn.javacuda;
 
+import java.util.concurrent.CompletableFuture;
+
 import org.lambdacomplex.nn.javacuda.array.NativeByteArray;
-import org.lambdacomplex.nn.javacuda.swig.*;
 
 /**
  * A pointer to memory on the GPU.
@@ -29,7 +30,7 @@ import org.lambdacomplex.nn.javacuda.swig.*;
  * @author NewName
  *
  */
-public class DevicePointer {
+public class DevicePointer implements AutoCloseable {
 	
 	/**
 	 * Automatically allocate space for and move the data inside the given native byte array to the device.
@@ -43,28 +44,143 @@ public class DevicePointer {
 	}
 	
 	public static DevicePointer toDeviceAsync(Context ctx, NativeByteArray data, Stream stream) {
-		DevicePointer result = new DevicePointer(ctx, data.getByteSize());
+		DevicePointer result = new DevicePointer(ctx, data.getByteSize(), stream);
 		result.copyFromAsync(data, stream);
 		return result;
 	}
 	
 	private Context context;
-	private CUDevicePointer devPtr;
+	private long pointer;
 	private long size;
+	private boolean freed;
+	private Freer freer;
+	private ResourceCleaner.Handle handle;
 	
 	/**
 	 * Allocate memory on the device. This pointer will then point to it.
+	 * 
+	 * The memory comes from the context's DeviceMemoryArena.
 	 * @param size The amount of memory to allocate in bytes.
 	 */
 	protected DevicePointer(Context ctx, long size) {
+		this(ctx, size, null);
+	}
+	
+	/**
+	 * Allocate memory on the device for use on the given stream.
+	 * 
+	 * Memory freed earlier on the same stream can be reused without waiting for the stream.
+	 * @param size The amount of memory to allocate in bytes.
+	 * @param stream The stream the memory will be used on.
+	 */
+	protected DevicePointer(Context ctx, long size, Stream stream) {
 		context = ctx;
-		devPtr = new CUDevicePointer();
-		devPtr.setMemoryManaged(false);
 		this.size = size;
-		synchronized (context) {
-			context.push();
-			Util.safeCall(Cuda.cuMemAlloc(devPtr.cast(), size));
-			Context.popCurrent();
+		DeviceMemoryArena.Allocation allocation = context.getDeviceMemoryArena().allocate(size, stream);
+		pointer = allocation.getAddress();
+		freer = new Freer(context, allocation);
+		handle = ResourceCleaner.register(this, freer);
+	}
+	
+	/**
+	 * Create a pointer into part of the memory of another pointer.
+	 * 
+	 * The new pointer does not own the memory. Freeing it does nothing to the parent, and it must not be used once the parent is freed.
+	 * @param parent The pointer to the memory.
+	 * @param offset The offset in bytes from the start of the parent.
+	 * @param size The size of the part in bytes.
+	 */
+	protected DevicePointer(DevicePointer parent, long offset, long size) {
+		if (parent.isFreed()) throw new IllegalStateException();
+		if (offset < 0 || size < 0 || offset + size > parent.size) throw new IndexOutOfBoundsException();
+		context = parent.context;
+		pointer = parent.pointer + offset;
+		this.size = size;
+	}
+	
+	private static class Freer implements Runnable {
+		private Context context;
+		private DeviceMemoryArena arena;
+		private DeviceMemoryArena.Allocation allocation;
+		private Stream stream;
+		private DeviceMemoryArena.Fence fence;
+		private boolean idle;
+		Freer(Context ctx, DeviceMemoryArena.Allocation a) { context = ctx; arena = ctx.getDeviceMemoryArena(); allocation = a; }
+		public void run() {
+			if (fence == null && !idle) {
+				// work queued on any stream may still use the memory, and the arena hands it out again at once, 
+				// so wait for the context the way cuMemFree does
+				final Backend backend = context.getBackend();
+				context.runUnlessDestroyed(new Runnable() {
+					public void run() {
+						backend.synchronizeContext();
+					}
+				});
+			}
+			arena.free(allocation, stream, fence);
+		}
+	}
+	
+	/**
+	 * A copy between host and device. Each thread keeps one and reuses it, so copies allocate nothing.
+	 */
+	private static class Transfer implements Runnable {
+		Backend backend;
+		boolean toDevice;
+		long pointer;
+		NativeByteArray host;
+		long size;
+		Object stream;
+		
+		public void run() {
+			if (toDevice) {
+				backend.copyToDevice(pointer, host, size, stream);
+			} else {
+				backend.copyFromDevice(host, pointer, size, stream);
+			}
+		}
+	}
+	
+	private static final ThreadLocal<Transfer> transfers = new ThreadLocal<Transfer>() {
+		protected Transfer initialValue() { return new Transfer(); }
+	};
+	
+	private void transfer(boolean toDevice, NativeByteArray host, long size, Stream stream) {
+		Transfer t = transfers.get();
+		t.backend = context.getBackend();
+		t.toDevice = toDevice;
+		t.pointer = pointer;
+		t.host = host;
+		t.size = size;
+		t.stream = stream == null ? null : stream.getValue();
+		TransferEvent event = new TransferEvent();
+		event.begin();
+		try {
+			context.run(t);
+		} finally {
+			t.host = null;
+			t.stream = null;
+		}
+		if (event.shouldCommit()) {
+			event.toDevice = toDevice;
+			event.bytes = size;
+			event.queued = stream != null;
+			event.stream = stream == null ? 0 : System.identityHashCode(stream.getValue());
+			event.commit();
+		}
+	}
+	
+	private static class EventFence implements DeviceMemoryArena.Fence {
+		private Stream.Event event;
+		EventFence(Stream.Event e) { event = e; }
+		public boolean isPassed() {
+			if (event.isDestroyed()) return true;
+			if (!event.isReached()) return false;
+			event.destroy();
+			return true;
+		}
+		public void release() {
+			event.destroy();
 		}
 	}
 	
@@ -72,28 +188,25 @@ public class DevicePointer {
 	 * Move the data inside the given native byte array into the memory pointed to by this pointer.
 	 * @param data The NativeByteArray object containing the data.
 	 */
-	public void copyFrom(NativeByteArray data) {
+	public void copyFrom(final NativeByteArray data) {
 		if (isFreed()) throw new IllegalStateException();
 		if (data.getByteSize() > size) throw new IllegalArgumentException();
 		
-		SWIGTYPE_p_void voidData = Cuda.toPVoid(data.getNativePointer());
-		synchronized (context) {
-			context.push();
-			Util.safeCall(Cuda.cuMemcpyHtoD(devPtr.value(), voidData, data.getByteSize()));
-			Context.popCurrent();
-		}
+		transfer(true, data, data.getByteSize(), null);
 	}
 	
-	public void copyFromAsync(NativeByteArray data, Stream stream) {
+	/**
+	 * Queue a copy of the data inside the given page-locked array into the memory pointed to by this pointer.
+	 * @param data The NativeByteArray object containing the data.
+	 * @param stream The stream to queue the copy on.
+	 * @return A future that completes with this pointer once the copy is done.
+	 */
+	public CompletableFuture<DevicePointer> copyFromAsync(final NativeByteArray data, final Stream stream) {
 		if (isFreed()) throw new IllegalStateException();
 		if (data.getByteSize() > size) throw new IllegalArgumentException();
 		
-		SWIGTYPE_p_void voidData = Cuda.toPVoid(data.getNativePointer());
-		synchronized (context) {
-			context.push();
-			Util.safeCall(Cuda.cuMemcpyHtoDAsync(devPtr.value(), voidData, data.getByteSize(), stream.getValue().value()));
-			Context.popCurrent();
-		}
+		transfer(true, data, data.getByteSize(), stream);
+		return stream.track(this);
 	}
 	
 	/**
@@ -104,24 +217,21 @@ public class DevicePointer {
 		if (isFreed()) throw new IllegalStateException();
 		if (dest.getByteSize() < size) throw new IllegalArgumentException();
 		
-		SWIGTYPE_p_void voidDest = Cuda.toPVoid(dest.getNativePointer());
-		synchronized (context) {
-			context.push();
-			Util.safeCall(Cuda.cuMemcpyDtoH(voidDest, devPtr.value(), size));
-			Context.popCurrent();
-		}
+		transfer(false, dest, size, null);
 	}
 	
-	public void copyToAsync(NativeByteArray dest, Stream stream) {
+	/**
+	 * Queue a copy of the data pointed to by this pointer into the given page-locked array.
+	 * @param dest The NativeByteArray object to copy the data into.
+	 * @param stream The stream to queue the copy on.
+	 * @return A future that completes with the array once the copy is done.
+	 */
+	public <T extends NativeByteArray> CompletableFuture<T> copyToAsync(T dest, final Stream stream) {
 		if (isFreed()) throw new IllegalStateException();
 		if (dest.getByteSize() < size) throw new IllegalArgumentException();
 		
-		SWIGTYPE_p_void voidDest = Cuda.toPVoid(dest.getNativePointer());
-		synchronized (context) {
-			context.push();
-			Util.safeCall(Cuda.cuMemcpyDtoHAsync(voidDest, devPtr.value(), size, stream.getValue().value()));
-			Context.popCurrent();
-		}
+		transfer(false, dest, size, stream);
+		return stream.track(dest);
 	}
 	
 	/**
@@ -129,32 +239,78 @@ public class DevicePointer {
 	 * @return Whether the memory is freed.
 	 */
 	public boolean isFreed() {
-		return devPtr == null;
+		return freed;
+	}
+	
+	/**
+	 * Get a pointer to part of the memory pointed to by this pointer.
+	 * @param offset The offset in bytes from the start of this pointer's memory.
+	 * @param size The size of the part in bytes.
+	 * @return A pointer that does not own the memory it points to.
+	 */
+	public DevicePointer slice(long offset, long size) {
+		return new DevicePointer(this, offset, size);
+	}
+	
+	/**
+	 * The size of the memory pointed to by this pointer.
+	 * @return The size in bytes.
+	 */
+	public long getSize() {
+		return size;
 	}
 	
 	/**
 	 * Deallocate the memory pointed to by this pointer.
+	 * 
+	 * The memory is returned to the context's arena for reuse. As with cuMemFree, this first waits for all the 
+	 * work queued in the context, on every stream, since any of it may still use the memory. free(Stream) 
+	 * does not block.
+	 */
+	public synchronized void free() {
+		if (isFreed()) return;
+		if (handle != null) handle.release();
+		freed = true;
+	}
+	
+	/**
+	 * Deallocate memory that no queued work uses any more, without waiting for the context.
 	 */
-	public void free() {
-		synchronized (context) {
-			if (isFreed()) return;
-			context.push();
-			Util.safeCall(Cuda.cuMemFree(devPtr.value()));
-			Context.popCurrent();
-			devPtr.delete();
-			devPtr = null;
+	synchronized void freeIdle() {
+		if (isFreed()) return;
+		if (handle != null) {
+			freer.idle = true;
+			handle.release();
 		}
+		freed = true;
 	}
 	
-	public void finalize() throws Throwable {
-		try {
-			free();
-		} finally {
-			super.finalize();
+	
+	/**
+	 * Deallocate the memory pointed to by this pointer once the given stream has finished with it.
+	 * 
+	 * This does not block. The memory can be reused straight away by allocations on the same stream, 
+	 * and by other allocations once the stream has reached this point.
+	 * @param stream The stream that last uses the memory.
+	 */
+	public synchronized void free(Stream stream) {
+		if (isFreed()) return;
+		if (handle != null) {
+			freer.stream = stream;
+			freer.fence = new EventFence(stream.createEvent());
+			handle.release();
 		}
+		freed = true;
+	}
+	
+	/**
+	 * Deallocate the memory, so that this pointer can be used in a try-with-resources statement.
+	 */
+	public void close() {
+		free();
 	}
 	
 	protected long getValue() {
-		return devPtr.value();
+		return pointer;
 	}
 }
@@ -0,0 +1,323 @@
+/*
+* Copyright 2009 Gabriel Collin
+*
+* This file is part of javaCUDA.
+*
+* javaCUDA is free software: you can redistribute it and/or modify it
+* under the terms of the GNU Lesser General Public License as published
+* by the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* javaCUDA is distributed in the hope that it will be useful, but WITHOUT
+* ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+* FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public
+* License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public
+* License along with javaCUDA. If not, see <http://www.gnu.org/licenses/>.
+*/
+
+
+package org.lambdacomplex.nn.javacuda;
+
+import java.lang.management.ManagementFactory;
+import java.util.*;
+import java.util.concurrent.atomic.*;
+
+import javax.management.*;
+
+/**
+ * Counts and times the driver calls of every context, and the bytes they copy.
+ * 
+ * For each driver entry point there is a call count, an error count and a histogram of latencies with a bucket 
+ * per power of two nanoseconds. Also counted are the bytes copied each way, and how long threads wait for a 
+ * context's lock. Metrics are off unless the system property javacuda.metrics is true, or setEnabled is called; 
+ * when off, each call costs one volatile read.
+ * 
+ * The metrics are registered with the platform MBean server as org.lambdacomplex.nn.javacuda:type=DriverMetrics 
+ * the first time they are enabled.
+ * @author NewName
+ *
+ */
+public final class DriverMetrics implements DriverMetricsMXBean {
+	static final long DISABLED = Long.MIN_VALUE;
+	private static final int BUCKETS = 64;
+	
+	private static volatile boolean enabled;
+	private static final DriverMetrics metrics = new DriverMetrics();
+	private static boolean registered;
+	
+	static {
+		if (Boolean.getBoolean("javacuda.metrics")) setEnabled(true);
+	}
+	
+	/**
+	 * The driver entry points that are measured, named as in the CUDA driver API.
+	 */
+	public enum Call {
+		CTX_CREATE ("cuCtxCreate"),
+		CTX_DESTROY ("cuCtxDestroy"),
+		CTX_PUSH_CURRENT ("cuCtxPushCurrent"),
+		CTX_POP_CURRENT ("cuCtxPopCurrent"),
+		CTX_SYNCHRONIZE ("cuCtxSynchronize"),
+		MEM_ALLOC ("cuMemAlloc"),
+		MEM_FREE ("cuMemFree"),
+		MEMCPY_HTOD ("cuMemcpyHtoD"),
+		MEMCPY_HTOD_ASYNC ("cuMemcpyHtoDAsync"),
+		MEMCPY_DTOH ("cuMemcpyDtoH"),
+		MEMCPY_DTOH_ASYNC ("cuMemcpyDtoHAsync"),
+		STREAM_CREATE ("cuStreamCreate"),
+		STREAM_DESTROY ("cuStreamDestroy"),
+		STREAM_QUERY ("cuStreamQuery"),
+		STREAM_SYNCHRONIZE ("cuStreamSynchronize"),
+		STREAM_WAIT_EVENT ("cuStreamWaitEvent"),
+		EVENT_RECORD ("cuEventRecord"),
+		EVENT_QUERY ("cuEventQuery"),
+		EVENT_SYNCHRONIZE ("cuEventSynchronize"),
+		EVENT_ELAPSED_TIME ("cuEventElapsedTime"),
+		EVENT_DESTROY ("cuEventDestroy"),
+		MODULE_LOAD ("cuModuleLoadData"),
+		MODULE_UNLOAD ("cuModuleUnload"),
+		MODULE_GET_FUNCTION ("cuModuleGetFunction"),
+		FUNC_SET_SHARED_SIZE ("cuFuncSetSharedSize"),
+		LAUNCH ("cuLaunchGridAsync");
+		
+		private String entryPoint;
+		private Call (String e) { entryPoint = e; }
+		
+		public String getEntryPoint() {
+			return entryPoint;
+		}
+	}
+	
+	/**
+	 * The running totals for one entry point.
+	 */
+	private static class Counter {
+		LongAdder calls = new LongAdder();
+		LongAdder errors = new LongAdder();
+		LongAdder nanos = new LongAdder();
+		AtomicLong max = new AtomicLong();
+		AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+		
+		void record(long elapsed, boolean failed) {
+			calls.increment();
+			if (failed) errors.increment();
+			if (elapsed < 0) elapsed = 0;
+			nanos.add(elapsed);
+			buckets.incrementAndGet(bucket(elapsed));
+			long m;
+			while (elapsed > (m = max.get()) && !max.compareAndSet(m, elapsed));
+		}
+		
+		void reset() {
+			calls.reset(); errors.reset(); nanos.reset(); max.set(0);
+			for (int i = 0; i < BUCKETS; i++) buckets.set(i, 0);
+		}
+	}
+	
+	private static int bucket(long nanos) {
+		return nanos == 0 ? 0 : 63 - Long.numberOfLeadingZeros(nanos);
+	}
+	
+	private Counter[] counters = new Counter[Call.values().length];
+	private LongAdder bytesToDevice = new LongAdder();
+	private LongAdder bytesFromDevice = new LongAdder();
+	private LongAdder contextWaits = new LongAdder();
+	private LongAdder contextWaitNanos = new LongAdder();
+	
+	private DriverMetrics() {
+		for (int i = 0; i < counters.length; i++) counters[i] = new Counter();
+	}
+	
+	/**
+	 * Get the metrics.
+	 * @return The one set of metrics for all contexts.
+	 */
+	public static DriverMetrics get() {
+		return metrics;
+	}
+	
+	public static boolean isEnabled() {
+		return enabled;
+	}
+	
+	/**
+	 * Turn the metrics on or off. Turning them off keeps what has been counted so far.
+	 * @param on Whether to count.
+	 */
+	public static void setEnabled(boolean on) {
+		if (on) register();
+		enabled = on;
+	}
+	
+	private static synchronized void register() {
+		if (registered) return;
+		registered = true;
+		try {
+			ManagementFactory.getPlatformMBeanServer().registerMBean(metrics, 
+					new ObjectName("org.lambdacomplex.nn.javacuda:type=DriverMetrics"));
+		} catch (JMException e) {
+			// such as another copy of the library having registered first, the metrics still work without JMX
+		}
+	}
+	
+	/**
+	 * Start timing a call.
+	 * @return The start time, or DISABLED.
+	 */
+	static long start() {
+		return enabled ? System.nanoTime() : DISABLED;
+	}
+	
+	static void done(Call call, long start) {
+		if (start != DISABLED) metrics.counters[call.ordinal()].record(System.nanoTime() - start, false);
+	}
+	
+	static void failed(Call call, long start) {
+		if (start != DISABLED) metrics.counters[call.ordinal()].record(System.nanoTime() - start, true);
+	}
+	
+	static void copied(long bytes, boolean toDevice, long start) {
+		if (start == DISABLED) return;
+		if (toDevice) {
+			metrics.bytesToDevice.add(bytes);
+		} else {
+			metrics.bytesFromDevice.add(bytes);
+		}
+	}
+	
+	/**
+	 * Record the time taken to get a context's lock.
+	 * @param start The time from start(), before trying to get the lock.
+	 */
+	static void contextWaited(long start) {
+		if (start == DISABLED) return;
+		metrics.contextWaits.increment();
+		metrics.contextWaitNanos.add(System.nanoTime() - start);
+	}
+	
+	/**
+	 * A snapshot of the metrics of one entry point.
+	 * @author NewName
+	 *
+	 */
+	public static final class CallStatistics {
+		private String entryPoint;
+		private long calls, errors, totalNanos, maxNanos;
+		private long[] buckets;
+		
+		CallStatistics(Call call, Counter c) {
+			entryPoint = call.getEntryPoint();
+			// the histogram is read first, so the count is never less than it
+			buckets = new long[BUCKETS];
+			for (int i = 0; i < BUCKETS; i++) buckets[i] = c.buckets.get(i);
+			calls = c.calls.sum();
+			errors = c.errors.sum();
+			totalNanos = c.nanos.sum();
+			maxNanos = c.max.get();
+		}
+		
+		public String getEntryPoint() { return entryPoint; }
+		public long getCalls() { return calls; }
+		public long getErrors() { return errors; }
+		public long getTotalNanos() { return totalNanos; }
+		public long getMaxNanos() { return maxNanos; }
+		
+		public long getMeanNanos() {
+			return calls == 0 ? 0 : totalNanos / calls;
+		}
+		
+		/**
+		 * Estimate a percentile of the latency from the histogram.
+		 * @param percentile The percentile, from 0 to 100.
+		 * @return The upper bound of the bucket the percentile falls in, in nanoseconds.
+		 */
+		public long getPercentileNanos(double percentile) {
+			long total = 0;
+			for (long b : buckets) total += b;
+			if (total == 0) return 0;
+			long rank = (long)Math.ceil(total * percentile / 100);
+			long seen = 0;
+			for (int i = 0; i < BUCKETS; i++) {
+				seen += buckets[i];
+				if (seen >= rank && buckets[i] > 0) return i == 62 ? Long.MAX_VALUE : (2L << i) - 1;
+			}
+			return maxNanos;
+		}
+		
+		public long getMedianNanos() { return getPercentileNanos(50); }
+		public long getP99Nanos() { return getPercentileNanos(99); }
+		
+		/**
+		 * The latency histogram.
+		 * @return The number of calls taking from 2^i to 2^(i+1) - 1 nanoseconds, at index i.
+		 */
+		public long[] getHistogram() { return buckets.clone(); }
+		
+		public String toString() {
+			return entryPoint + ": " + calls + " calls, " + errors + " errors, mean " + getMeanNanos() 
+				+ "ns, median < " + getMedianNanos() + "ns, 99% < " + getP99Nanos() + "ns, max " + maxNanos + "ns";
+		}
+	}
+	
+	/**
+	 * Get the metrics of one entry point.
+	 * @param call The entry point.
+	 * @return A snapshot of its metrics.
+	 */
+	public CallStatistics getStatistics(Call call) {
+		return new CallStatistics(call, counters[call.ordinal()]);
+	}
+	
+	public Map<String, CallStatistics> getCalls() {
+		Map<String, CallStatistics> result = new TreeMap<String, CallStatistics>();
+		for (Call call : Call.values()) {
+			CallStatistics s = getStatistics(call);
+			if (s.getCalls() > 0) result.put(call.getEntryPoint(), s);
+		}
+		return result;
+	}
+	
+	public boolean isCounting() {
+		return enabled;
+	}
+	
+	public void setCounting(boolean on) {
+		setEnabled(on);
+	}
+	
+	public long getBytesToDevice() {
+		return bytesToDevice.sum();
+	}
+	
+	public long getBytesFromDevice() {
+		return bytesFromDevice.sum();
+	}
+	
+	public long getContextWaits() {
+		return contextWaits.sum();
+	}
+	
+	public long getContextWaitNanos() {
+		return contextWaitNanos.sum();
+	}
+	
+	public void reset() {
+		for (Counter c : counters) c.reset();
+		bytesToDevice.reset();
+		bytesFromDevice.reset();
+		contextWaits.reset();
+		contextWaitNanos.reset();
+	}
+	
+	public String toString() {
+		StringBuilder b = new StringBuilder();
+		for (CallStatistics s : getCalls().values()) b.append(s).append('\n');
+		b.append(getBytesToDevice()).append(" bytes to the device, ").append(getBytesFromDevice())
+			.append(" bytes from the device\n");
+		b.append(getContextWaits()).append(" context lock waits, ").append(getContextWaitNanos() / 1000)
+			.append("us in all\n");
+		return b.toString();
+	}
+}
@@ -0,0 +1,61 @@
+/*
+* Copyright 2009 Gabriel Collin
+*
+* This file is part of javaCUDA.
+*
+* javaCUDA is free software: you can redistribute it and/or modify it
+* under the terms of the GNU Lesser General Public License as published
+* by the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* javaCUDA is distributed in the hope that it will be useful, but WITHOUT
+* ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+* FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public
+* License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public
+* License along with javaCUDA. If not, see <http://www.gnu.org/licenses/>.
+*/
+
+
+package org.lambdacomplex.nn.javacuda;
+
+import java.util.Map;
+
+/**
+ * The management interface of DriverMetrics.
+ * @author NewName
+ *
+ */
+public interface DriverMetricsMXBean {
+	/**
+	 * Whether calls are being counted.
+	 */
+	public boolean isCounting();
+	
+	public void setCounting(boolean on);
+	
+	/**
+	 * The metrics of every entry point that has been called, by entry point.
+	 */
+	public Map<String, DriverMetrics.CallStatistics> getCalls();
+	
+	public long getBytesToDevice();
+	
+	public long getBytesFromDevice();
+	
+	/**
+	 * The number of times a thread took a context's lock.
+	 */
+	public long getContextWaits();
+	
+	/**
+	 * The total time threads spent waiting for contexts' locks.
+	 */
+	public long getContextWaitNanos();
+	
+	/**
+	 * Set every count back to zero.
+	 */
+	public void reset();
+}
@@ -0,0 +1,164 @@
+/*
+* Copyright 2009 Gabriel Collin
+*
+* This file is part of javaCUDA.
+*
+* javaCUDA is free software: you can redistribute it and/or modify it
+* under the terms of the GNU Lesser General Public License as published
+* by the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* javaCUDA is distributed in the hope that it will be useful, but WITHOUT
+* ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+* FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public
+* License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public
+* License along with javaCUDA. If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package org.lambdacomplex.nn.javacuda;
+
+import java.util.concurrent.*;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A single thread that runs commands submitted from any number of threads, in submission order.
+ * 
+ * Contexts created with ExecutionMode.DRIVER_THREAD use one of these, so the context is made current once
+ * on this thread and stays current, instead of being pushed and popped under a lock for every call.
+ * 
+ * Commands go through a lock-free queue, and the thread spins briefly before parking when the queue is empty.
+ * @author NewName
+ *
+ */
+public class DriverThread {
+	private static final int SPINS = 1000;
+	
+	private ConcurrentLinkedQueue<Runnable> queue = new ConcurrentLinkedQueue<Runnable>();
+	private Thread thread;
+	private volatile boolean sleeping;
+	private volatile boolean running = true;
+	private Runnable onStart;
+	private Runnable onStop;
+	
+	/**
+	 * Start a driver thread.
+	 * @param name The name of the thread.
+	 * @param onStart Run on the thread before any command, or null.
+	 * @param onStop Run on the thread after the last command, or null.
+	 */
+	public DriverThread(String name, Runnable onStart, Runnable onStop) {
+		this.onStart = onStart;
+		this.onStop = onStop;
+		thread = new Thread(new Loop(), name);
+		thread.setDaemon(true);
+		thread.start();
+	}
+	
+	private class Loop implements Runnable {
+		public void run() {
+			if (onStart != null) onStart.run();
+			try {
+				while (running) {
+					Runnable command = queue.poll();
+					if (command == null) command = await();
+					if (command != null) runCommand(command);
+				}
+				// anything that got in before the stop was seen still runs
+				Runnable command;
+				while ((command = queue.poll()) != null) runCommand(command);
+			} finally {
+				if (onStop != null) onStop.run();
+			}
+		}
+		
+		/**
+		 * Run one command. A command given to execute has no future to take its failure, so the failure is 
+		 * reported to the thread's uncaught exception handler and the loop goes on with the next command.
+		 */
+		private void runCommand(Runnable command) {
+			try {
+				command.run();
+			} catch (Throwable t) {
+				Thread current = Thread.currentThread();
+				current.getUncaughtExceptionHandler().uncaughtException(current, t);
+			}
+		}
+		
+		private Runnable await() {
+			for (int i = 0; i < SPINS; i++) {
+				Runnable command = queue.poll();
+				if (command != null) return command;
+				Thread.onSpinWait();
+			}
+			sleeping = true;
+			try {
+				// a command offered after this check will see sleeping and unpark us
+				if (queue.isEmpty() && running) LockSupport.park(this);
+			} finally {
+				sleeping = false;
+			}
+			return queue.poll();
+		}
+	}
+	
+	/**
+	 * Returns true if the calling thread is this driver thread.
+	 * @return Whether the caller is the driver thread.
+	 */
+	public boolean isCurrent() {
+		return Thread.currentThread() == thread;
+	}
+	
+	/**
+	 * Queue a command to be run on this thread.
+	 * @param task The command.
+	 * @return A future for the result of the command.
+	 */
+	public <T> Future<T> submit(Callable<T> task) {
+		FutureTask<T> future = new FutureTask<T>(task);
+		execute(future);
+		return future;
+	}
+	
+	/**
+	 * Queue a command to be run on this thread, without a future.
+	 * 
+	 * If the command throws, the exception goes to the thread's uncaught exception handler, and later commands 
+	 * still run.
+	 * @param command The command.
+	 */
+	public void execute(Runnable command) {
+		if (!running) throw new RejectedExecutionException("Driver thread stopped");
+		queue.offer(command);
+		if (sleeping) LockSupport.unpark(thread);
+		if (!running && queue.remove(command))
+			throw new RejectedExecutionException("Driver thread stopped");
+	}
+	
+	/**
+	 * Run the commands already queued, then stop the thread and wait for it to finish.
+	 */
+	public void shutdown() {
+		if (!running) return;
+		execute(new Runnable() {
+			public void run() { running = false; }
+		});
+		if (isCurrent()) return;
+		boolean interrupted = false;
+		while (true) {
+			try {
+				thread.join();
+				break;
+			} catch (InterruptedException e) {
+				interrupted = true;
+			}
+		}
+		if (interrupted) Thread.currentThread().interrupt();
+	}
+	
+	public boolean isRunning() {
+		return running;
+	}
+}
@@ -19,7 +19,7 @@
 
 package org.lambdacomplex.nn.javacuda;
 
-import org.lambdacomplex.nn.javacuda.swig.*;
+import java.util.concurrent.CompletableFuture;
 
 /**
  * A function inside a module.
@@ -32,18 +32,39 @@ import org.lambdacomplex.nn.javacuda.swig.*;
  */
 public class Function {
 	private Context context;
-	private CUPFunction function;
+	private Object function;
+	private String name;
 	private GridSize grid;
 	private BlockSize block;
+	// Argument arrays are laid out here, only touched with the context current
+	private KernelArguments params;
 	
-	protected Function(Context ctx, CUPModule module, String name) {
+	protected Function(Context ctx, final Object module, final String name) {
 		context = ctx;
-		function = new CUPFunction();
-		synchronized (context) {
-			context.push();
-			Util.safeCall(Cuda.cuModuleGetFunction(function.cast(), module.value(), name));
-			Context.popCurrent();
-		}
+		this.name = name;
+		final Backend backend = context.getBackend();
+		function = context.execute(new Context.Task<Object>() {
+			public Object run() {
+				return backend.getFunction(module, name);
+			}
+		});
+		// the function goes with its module, so there is nothing for the user to close and no leak to report
+		ResourceCleaner.registerUntracked(this, new Deleter(backend, function));
+	}
+	
+	private static class Deleter implements Runnable {
+		private Backend backend;
+		private Object function;
+		Deleter(Backend b, Object f) { backend = b; function = f; }
+		public void run() { backend.releaseFunction(function); }
+	}
+	
+	/**
+	 * Get the name of the function in its module.
+	 * @return The name.
+	 */
+	public String getName() {
+		return name;
 	}
 	
 	/**
@@ -70,16 +91,39 @@ public class Function {
 		grid = size;
 	}
 	
+	public GridSize getGridSize() {
+		return grid;
+	}
+	
+	/**
+	 * The backend's handle of this function.
+	 */
+	Object getHandle() {
+		return function;
+	}
+	
 	/**
 	 * Set the amount of shared memory for each thread block to use.
 	 * @param size The amount of memory in bytes.
 	 */
-	public void setSharedMemory(long size) {
-		synchronized (context) {
-			context.push();
-			Util.safeCall(Cuda.cuFuncSetSharedSize(function.value(), size));
-			Context.popCurrent();
-		}
+	public void setSharedMemory(final long size) {
+		final Backend backend = context.getBackend();
+		context.run(new Runnable() {
+			public void run() {
+				backend.setSharedMemory(function, size);
+			}
+		});
+	}
+	
+	/**
+	 * Create an empty set of arguments for this function, with pointers sized for its backend.
+	 * 
+	 * Build the arguments once and reuse them, changing values with their set methods, so that launches 
+	 * allocate nothing.
+	 * @return The arguments.
+	 */
+	public KernelArguments createArguments() {
+		return new KernelArguments(context.getBackend().getPointerSize());
 	}
 	
 	/**
@@ -89,35 +133,153 @@ public class Function {
 	 * 
 	 * Use the correct Argument types to ensure type safety.
 	 * @param args An array containing the arguments for the function.
+	 * @return A future that completes once the function has finished.
 	 */
-	public void call(Argument[] args) {
-		call(args, context.getDefaultStream());
+	public CompletableFuture<Void> call(Argument[] args) {
+		return call(args, context.getDefaultStream());
 	}
 	
 	/**
 	 * Call the function with the given arguments and place it in the given stream at this point.
-	 * @param args
-	 */
-	public void call(Argument[] args, Stream stream) {
-		synchronized (context) {
-			context.push();
-			Util.safeCall(Cuda.cuFuncSetBlockShape(function.value(), block.x, block.y, block.z));
-			
-			int offset = 0;
-			for (Argument a : args) {
-				offset += a.setParam(function, offset);
+	 * 
+	 * This does not wait for the function to finish. Use Stream.synchronise or an event on the stream to wait 
+	 * for it; errors in the function itself are reported there.
+	 * 
+	 * While a flight recording has KernelExecutionEvent enabled, the launch is bracketed by events and the time 
+	 * the device took is recorded once the future completes.
+	 * @param args An array containing the arguments for the function.
+	 * @param stream The stream to launch the function in.
+	 * @return A future that completes once the function has finished.
+	 */
+	public CompletableFuture<Void> call(Argument[] args, Stream stream) {
+		return call(args, null, stream);
+	}
+	
+	/**
+	 * Call the function with arguments from createArguments, and place it in the given stream at this point.
+	 * @param args The arguments, which may be changed again once this returns.
+	 * @param stream The stream to launch the function in.
+	 * @return A future that completes once the function has finished.
+	 */
+	public CompletableFuture<Void> call(KernelArguments args, Stream stream) {
+		return call(null, args, stream);
+	}
+	
+	private CompletableFuture<Void> call(Argument[] args, KernelArguments prepared, Stream stream) {
+		KernelExecutionEvent execution = new KernelExecutionEvent();
+		if (!execution.isEnabled()) {
+			launch(args, prepared, stream);
+			return stream.<Void>track(null);
+		}
+		execution.begin();
+		Stream.Event start = stream.createEvent();
+		launch(args, prepared, stream);
+		Stream.Event end = stream.createEvent();
+		execution.kernel = name;
+		execution.stream = System.identityHashCode(stream.getValue());
+		return context.getCompletionPoller().watch(new Timing(execution, start, end), (Void)null);
+	}
+	
+	/**
+	 * Waits for the event after a launch, then records the time between it and the event before.
+	 */
+	private static class Timing implements CompletionPoller.Source {
+		private KernelExecutionEvent execution;
+		private Stream.Event start, end;
+		Timing(KernelExecutionEvent x, Stream.Event s, Stream.Event e) { execution = x; start = s; end = e; }
+		public boolean isComplete() {
+			try {
+				if (!end.isReached()) return false;
+				execution.deviceTime = (long)(Stream.Event.elapsedTime(start, end) * 1e6);
+				execution.commit();
+			} catch (Error e) {
+				start.destroy();
+				end.destroy();
+				throw e;
 			}
-			
-			Util.safeCall(Cuda.cuParamSetSize(function.value(), offset));
-			Util.safeCall(Cuda.cuLaunchGrid(
-					function.value(), grid.x, grid.y//, 
-					//stream.getValue().value()
-				));
-			Context.syncWithCurrent();
-			Context.popCurrent();
+			start.destroy();
+			end.destroy();
+			return true;
 		}
 	}
 	
+	/**
+	 * Place the function in the given stream at this point, without a future to wait on.
+	 * 
+	 * This allocates nothing, for launching many times and waiting on the stream or an event afterwards.
+	 * @param args An array containing the arguments for the function.
+	 * @param stream The stream to launch the function in.
+	 */
+	public void launch(Argument[] args, Stream stream) {
+		launch(args, null, stream);
+	}
+	
+	/**
+	 * Place the function in the given stream at this point with arguments from createArguments, without a 
+	 * future to wait on.
+	 * 
+	 * The arguments are handed to the driver in one piece, and nothing is allocated.
+	 * @param args The arguments, which may be changed again once this returns.
+	 * @param stream The stream to launch the function in.
+	 */
+	public void launch(KernelArguments args, Stream stream) {
+		launch(null, args, stream);
+	}
+	
+	private void launch(Argument[] args, KernelArguments prepared, Stream stream) {
+		Launch l = launches.get();
+		l.function = this;
+		l.args = args;
+		l.prepared = prepared;
+		l.stream = stream.getValue();
+		LaunchEvent event = new LaunchEvent();
+		event.begin();
+		try {
+			context.run(l);
+		} finally {
+			l.function = null;
+			l.args = null;
+			l.prepared = null;
+			l.stream = null;
+		}
+		if (event.shouldCommit()) {
+			event.kernel = name;
+			event.gridX = grid.x;
+			event.gridY = grid.y;
+			event.blockX = block.x;
+			event.blockY = block.y;
+			event.blockZ = block.z;
+			event.stream = System.identityHashCode(stream.getValue());
+			event.commit();
+		}
+	}
+	
+	/**
+	 * A launch. Each thread keeps one and reuses it.
+	 */
+	private static class Launch implements Runnable {
+		Function function;
+		Argument[] args;
+		KernelArguments prepared;
+		Object stream;
+		public void run() { function.launchCurrent(args, prepared, stream); }
+	}
+	
+	private static final ThreadLocal<Launch> launches = new ThreadLocal<Launch>() {
+		protected Launch initialValue() { return new Launch(); }
+	};
+	
+	// only called with the context current
+	private void launchCurrent(Argument[] args, KernelArguments prepared, Object stream) {
+		if (prepared == null) {
+			if (params == null) params = createArguments();
+			prepared = params.clear();
+			for (Argument a : args) a.addTo(prepared);
+		}
+		
+		context.getBackend().launch(function, grid, block, prepared.getParams(), prepared.getSize(), stream);
+	}
+	
 	public static class BlockSize {
 		protected int x,y,z;
 		public BlockSize(int x, int y, int z) {
@@ -136,7 +298,11 @@ public class Function {
 	}
 	
 	public static abstract class Argument {
-		protected abstract int setParam(CUPFunction func, int offset);
+		/**
+		 * Append this argument to the parameters of a launch.
+		 * @param arguments The parameters.
+		 */
+		protected abstract void addTo(KernelArguments arguments);
 	}
 	
 	/**
@@ -147,9 +313,9 @@ public class Function {
 	public static class PointerArgument extends Argument {
 		private DevicePointer ptr;
 		public PointerArgument(DevicePointer p) { ptr = p; }
-		protected int setParam(CUPFunction func, int offset) {
-			Util.safeCall(Cuda.cuParamSeti(func.value(), offset, ptr.getValue()));
-			return 4;
+		DevicePointer getPointer() { return ptr; }
+		protected void addTo(KernelArguments arguments) {
+			arguments.putPointer(ptr);
 		}
 	}
 	
@@ -159,11 +325,67 @@ public class Function {
 	 *
 	 */
 	public static class IntegerArgument extends Argument {
-		private long integer;
+		private int integer;
 		public IntegerArgument(int i) { integer = i; }
-		protected int setParam(CUPFunction func, int offset) {
-			Util.safeCall(Cuda.cuParamSeti(func.value(), offset, integer));
-			return 4;
+		protected void addTo(KernelArguments arguments) {
+			arguments.putInt(integer);
+		}
+	}
+	
+	/**
+	 * A long argument to a function.
+	 * @author NewName
+	 *
+	 */
+	public static class LongArgument extends Argument {
+		private long value;
+		public LongArgument(long l) { value = l; }
+		protected void addTo(KernelArguments arguments) {
+			arguments.putLong(value);
+		}
+	}
+	
+	/**
+	 * A float argument to a function.
+	 * @author NewName
+	 *
+	 */
+	public static class FloatArgument extends Argument {
+		private float value;
+		public FloatArgument(float f) { value = f; }
+		protected void addTo(KernelArguments arguments) {
+			arguments.putFloat(value);
+		}
+	}
+	
+	/**
+	 * A double argument to a function.
+	 * @author NewName
+	 *
+	 */
+	public static class DoubleArgument extends Argument {
+		private double value;
+		public DoubleArgument(double d) { value = d; }
+		protected void addTo(KernelArguments arguments) {
+			arguments.putDouble(value);
+		}
+	}
+	
+	/**
+	 * A struct argument to a function, passed by value.
+	 * @author NewName
+	 *
+	 */
+	public static class StructArgument extends Argument {
+		private NativeStruct struct;
+		private int alignment;
+		/**
+		 * @param s The struct.
+		 * @param alignment The alignment of the struct in device code.
+		 */
+		public StructArgument(NativeStruct s, int alignment) { struct = s; this.alignment = alignment; }
+		protected void addTo(KernelArguments arguments) {
+			arguments.putStruct(struct, alignment);
 		}
 	}
 }
@@ -0,0 +1,232 @@
+/*
+* Copyright 2009 Gabriel Collin
+*
+* This file is part of javaCUDA.
+*
+* javaCUDA is free software: you can redistribute it and/or modify it
+* under the terms of the GNU Lesser General Public License as published
+* by the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* javaCUDA is distributed in the hope that it will be useful, but WITHOUT
+* ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+* FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public
+* License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public
+* License along with javaCUDA. If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package org.lambdacomplex.nn.javacuda;
+
+import java.nio.ByteBuffer;
+
+import org.lambdacomplex.nn.javacuda.array.NativeByteArray;
+
+/**
+ * The parameters of a kernel launch, laid out in native memory as the kernel expects them.
+ * 
+ * Each put appends a parameter at the next offset aligned for its type, as the compiler lays out a kernel's 
+ * parameter list, and returns the offset. The set methods overwrite a parameter at an offset a put returned, so 
+ * the arguments can be built once and changed between launches without allocating anything. The whole block is 
+ * handed to the driver in one call when the kernel is launched.
+ * 
+ * Get these from Function.createArguments, which sizes pointers for the function's backend. An instance is not 
+ * safe for use by several threads at once, and must not be changed while a launch using it is being made.
+ * @author NewName
+ *
+ */
+public class KernelArguments implements AutoCloseable {
+	/**
+	 * The most parameter space a kernel has.
+	 */
+	public static final int MAX_SIZE = 256;
+	
+	private NativeByteArray params;
+	private ByteBuffer buffer;
+	private int pointerSize;
+	private int size;
+	
+	/**
+	 * Create an empty set of arguments.
+	 * @param pointerSize The size of a pointer parameter, 4 or 8, as Backend.getPointerSize gives it.
+	 */
+	public KernelArguments(int pointerSize) {
+		if (pointerSize != 4 && pointerSize != 8) throw new IllegalArgumentException("Pointer size " + pointerSize);
+		this.pointerSize = pointerSize;
+		params = new NativeByteArray(MAX_SIZE);
+		buffer = params.asByteBuffer();
+	}
+	
+	/**
+	 * Remove every parameter, to build a different list.
+	 * @return These arguments.
+	 */
+	public KernelArguments clear() {
+		size = 0;
+		return this;
+	}
+	
+	/**
+	 * Get the size of the parameters so far.
+	 * @return The size in bytes.
+	 */
+	public int getSize() {
+		return size;
+	}
+	
+	public int getPointerSize() {
+		return pointerSize;
+	}
+	
+	// reserve the next parameter, returning its offset
+	private int next(int length, int alignment) {
+		int offset = (size + alignment - 1) & -alignment;
+		if (offset + length > MAX_SIZE) {
+			throw new IllegalStateException("Kernel parameters exceed " + MAX_SIZE + " bytes");
+		}
+		size = offset + length;
+		return offset;
+	}
+	
+	private void check(int offset, int length) {
+		if (offset < 0 || offset + length > size) throw new IndexOutOfBoundsException("No parameter at " + offset);
+	}
+	
+	public int putInt(int i) {
+		int offset = next(4, 4);
+		buffer.putInt(offset, i);
+		return offset;
+	}
+	
+	public int putLong(long l) {
+		int offset = next(8, 8);
+		buffer.putLong(offset, l);
+		return offset;
+	}
+	
+	public int putFloat(float f) {
+		int offset = next(4, 4);
+		buffer.putFloat(offset, f);
+		return offset;
+	}
+	
+	public int putDouble(double d) {
+		int offset = next(8, 8);
+		buffer.putDouble(offset, d);
+		return offset;
+	}
+	
+	/**
+	 * Append a device pointer.
+	 * @param ptr The pointer.
+	 * @return The offset of the parameter.
+	 */
+	public int putPointer(DevicePointer ptr) {
+		return putPointer(ptr.getValue());
+	}
+	
+	/**
+	 * Append a device address.
+	 * @param address The address.
+	 * @return The offset of the parameter.
+	 */
+	public int putPointer(long address) {
+		int offset = next(pointerSize, pointerSize);
+		writePointer(offset, address);
+		return offset;
+	}
+	
+	/**
+	 * Append a struct passed by value, as raw bytes.
+	 * @param src The bytes of the struct, including any padding.
+	 * @param from The index in src of the first byte.
+	 * @param length The length of the struct.
+	 * @param alignment The alignment of the struct in device code, a power of two.
+	 * @return The offset of the parameter.
+	 */
+	public int putBytes(byte[] src, int from, int length, int alignment) {
+		if (Integer.bitCount(alignment) != 1) throw new IllegalArgumentException("Alignment " + alignment);
+		int offset = next(length, alignment);
+		params.put(offset, src, from, length);
+		return offset;
+	}
+	
+	/**
+	 * Append a struct passed by value.
+	 * @param s The struct, which serialises itself in place.
+	 * @param alignment The alignment of the struct in device code, a power of two.
+	 * @return The offset of the parameter.
+	 */
+	public int putStruct(NativeStruct s, int alignment) {
+		if (Integer.bitCount(alignment) != 1) throw new IllegalArgumentException("Alignment " + alignment);
+		int offset = next(s.length(), alignment);
+		s.serialiseInto(params, offset);
+		return offset;
+	}
+	
+	public void setInt(int offset, int i) {
+		check(offset, 4);
+		buffer.putInt(offset, i);
+	}
+	
+	public void setLong(int offset, long l) {
+		check(offset, 8);
+		buffer.putLong(offset, l);
+	}
+	
+	public void setFloat(int offset, float f) {
+		check(offset, 4);
+		buffer.putFloat(offset, f);
+	}
+	
+	public void setDouble(int offset, double d) {
+		check(offset, 8);
+		buffer.putDouble(offset, d);
+	}
+	
+	public void setPointer(int offset, DevicePointer ptr) {
+		setPointer(offset, ptr.getValue());
+	}
+	
+	public void setPointer(int offset, long address) {
+		check(offset, pointerSize);
+		writePointer(offset, address);
+	}
+	
+	public void setBytes(int offset, byte[] src, int from, int length) {
+		check(offset, length);
+		params.put(offset, src, from, length);
+	}
+	
+	public void setStruct(int offset, NativeStruct s) {
+		check(offset, s.length());
+		s.serialiseInto(params, offset);
+	}
+	
+	private void writePointer(int offset, long address) {
+		if (pointerSize == 8) {
+			buffer.putLong(offset, address);
+		} else {
+			buffer.putInt(offset, (int)address);
+		}
+	}
+	
+	/**
+	 * The native memory the parameters are in.
+	 */
+	NativeByteArray getParams() {
+		return params;
+	}
+	
+	/**
+	 * Free the native memory of these arguments. They cannot be used afterwards.
+	 */
+	public void free() {
+		params.free();
+	}
+	
+	public void close() {
+		free();
+	}
+}
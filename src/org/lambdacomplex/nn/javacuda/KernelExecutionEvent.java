@@ -0,0 +1,49 @@
+/*
+* Copyright 2009 Gabriel Collin
+*
+* This file is part of javaCUDA.
+*
+* javaCUDA is free software: you can redistribute it and/or modify it
+* under the terms of the GNU Lesser General Public License as published
+* by the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* javaCUDA is distributed in the hope that it will be useful, but WITHOUT
+* ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+* FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public
+* License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public
+* License along with javaCUDA. If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package org.lambdacomplex.nn.javacuda;
+
+import jdk.jfr.*;
+
+/**
+ * A flight recorder event for a kernel running, from its launch until its completion was seen, with the time 
+ * the device measured between events recorded either side of it.
+ * 
+ * This needs two driver events for each Function.call, so unlike the other events it is off unless a 
+ * recording turns it on.
+ * @author NewName
+ *
+ */
+@Name("org.lambdacomplex.nn.javacuda.KernelExecution")
+@Label("Kernel Execution")
+@Category("javaCUDA")
+@StackTrace(false)
+@Enabled(false)
+class KernelExecutionEvent extends Event {
+	@Label("Kernel")
+	String kernel;
+	
+	@Label("Stream")
+	@Description("Identity hash of the stream handle")
+	int stream;
+	
+	@Label("Device Time")
+	@Timespan(Timespan.NANOSECONDS)
+	long deviceTime;
+}
@@ -0,0 +1,50 @@
+/*
+* Copyright 2009 Gabriel Collin
+*
+* This file is part of javaCUDA.
+*
+* javaCUDA is free software: you can redistribute it and/or modify it
+* under the terms of the GNU Lesser General Public License as published
+* by the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* javaCUDA is distributed in the hope that it will be useful, but WITHOUT
+* ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+* FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public
+* License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public
+* License along with javaCUDA. If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package org.lambdacomplex.nn.javacuda;
+
+/**
+ * What every launcher made by LauncherGenerator has, besides its typed launch methods.
+ * 
+ * A launcher launches its module's kernels on one stream, and keeps one set of arguments for each kernel, so 
+ * launching through it allocates nothing. It is for one thread at a time; bind one for each thread that launches.
+ * @author NewName
+ *
+ */
+public interface KernelLauncher extends AutoCloseable {
+	/**
+	 * Get a kernel of the launcher, to set its grid, block and shared memory sizes.
+	 * @param name The name of the kernel.
+	 * @return The function.
+	 */
+	public Function getFunction(String name);
+	
+	/**
+	 * Set the stream the kernels are launched on. The context's default stream is used until this is called.
+	 * @param stream The stream.
+	 */
+	public void setStream(Stream stream);
+	
+	public Stream getStream();
+	
+	/**
+	 * Free the launcher's arguments. The module is not unloaded.
+	 */
+	public void close();
+}
@@ -0,0 +1,195 @@
+/*
+* Copyright 2009 Gabriel Collin
+*
+* This file is part of javaCUDA.
+*
+* javaCUDA is free software: you can redistribute it and/or modify it
+* under the terms of the GNU Lesser General Public License as published
+* by the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* javaCUDA is distributed in the hope that it will be useful, but WITHOUT
+* ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+* FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public
+* License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public
+* License along with javaCUDA. If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package org.lambdacomplex.nn.javacuda;
+
+import java.io.*;
+import java.util.*;
+import java.util.regex.*;
+
+/**
+ * The name and parameters of an extern "C" __global__ function, as read from module source.
+ * 
+ * Only the parameter types a launch can marshal directly are understood: pointers, which become DevicePointer, 
+ * and int, unsigned int, long long, float and double and their fixed width equivalents. Structs passed by value, 
+ * and types whose size depends on the host such as long and size_t, have to be marshalled by hand with 
+ * KernelArguments.
+ * @author NewName
+ *
+ */
+public class KernelSignature {
+	/**
+	 * How a parameter is marshalled.
+	 */
+	public enum Kind {
+		POINTER ("DevicePointer", "Pointer"),
+		INT ("int", "Int"),
+		LONG ("long", "Long"),
+		FLOAT ("float", "Float"),
+		DOUBLE ("double", "Double");
+		
+		private String javaType;
+		private String accessor;
+		private Kind (String t, String a) { javaType = t; accessor = a; }
+		
+		/**
+		 * The Java type the parameter is passed as.
+		 */
+		public String getJavaType() {
+			return javaType;
+		}
+		
+		/**
+		 * The suffix of the KernelArguments put and set methods for the parameter, such as Int for putInt.
+		 */
+		public String getAccessor() {
+			return accessor;
+		}
+	}
+	
+	/**
+	 * A parameter of a kernel.
+	 */
+	public static class Parameter {
+		private String name;
+		private String type;
+		private Kind kind;
+		Parameter(String n, String t, Kind k) { name = n; type = t; kind = k; }
+		
+		public String getName() { return name; }
+		
+		/**
+		 * The type as written in the source, without qualifiers.
+		 */
+		public String getType() { return type; }
+		
+		public Kind getKind() { return kind; }
+	}
+	
+	private static final Pattern KERNEL = Pattern.compile(
+			"extern\\s*\"C\"\\s*(?:__global__\\s+void|void\\s+__global__)\\s+(\\w+)\\s*\\(([^)]*)\\)");
+	private static final Pattern COMMENT = Pattern.compile("//[^\\n]*|/\\*.*?\\*/", Pattern.DOTALL);
+	private static final Set<String> QUALIFIERS = new HashSet<String>(Arrays.asList(
+			"const", "volatile", "__restrict__", "__restrict", "restrict", "signed"));
+	private static final Map<String, Kind> TYPES = new HashMap<String, Kind>();
+	static {
+		for (String t : new String[] {"int", "unsigned", "unsigned int", "int32_t", "uint32_t"}) 
+			TYPES.put(t, Kind.INT);
+		for (String t : new String[] {"long long", "long long int", "unsigned long long", 
+				"unsigned long long int", "int64_t", "uint64_t"}) 
+			TYPES.put(t, Kind.LONG);
+		TYPES.put("float", Kind.FLOAT);
+		TYPES.put("double", Kind.DOUBLE);
+	}
+	
+	private String name;
+	private List<Parameter> parameters;
+	private String declaration;
+	
+	KernelSignature(String n, List<Parameter> p, String d) {
+		name = n;
+		parameters = Collections.unmodifiableList(p);
+		declaration = d;
+	}
+	
+	public String getName() {
+		return name;
+	}
+	
+	public List<Parameter> getParameters() {
+		return parameters;
+	}
+	
+	/**
+	 * The declaration as it was found in the source, with whitespace collapsed.
+	 */
+	public String getDeclaration() {
+		return declaration;
+	}
+	
+	/**
+	 * Find every extern "C" __global__ function in module source.
+	 * @param source The source.
+	 * @return The signatures, in the order they appear.
+	 * @throws IllegalArgumentException If a kernel has a parameter of a type that is not understood.
+	 */
+	public static List<KernelSignature> parse(String source) {
+		String text = COMMENT.matcher(source).replaceAll(" ");
+		List<KernelSignature> result = new ArrayList<KernelSignature>();
+		Matcher m = KERNEL.matcher(text);
+		while (m.find()) {
+			String kernel = m.group(1);
+			List<Parameter> params = new ArrayList<Parameter>();
+			String list = m.group(2).trim();
+			if (!list.isEmpty() && !list.equals("void")) {
+				for (String p : list.split(",")) params.add(parameter(kernel, p));
+			}
+			result.add(new KernelSignature(kernel, params, m.group().replaceAll("\\s+", " ")));
+		}
+		return result;
+	}
+	
+	/**
+	 * Find every extern "C" __global__ function in module source.
+	 * @param source The source, which is read to the end but not closed.
+	 * @return The signatures, in the order they appear.
+	 * @throws IOException If the source could not be read.
+	 */
+	public static List<KernelSignature> parse(Reader source) throws IOException {
+		StringBuilder text = new StringBuilder();
+		char[] buffer = new char[4096];
+		int n;
+		while ((n = source.read(buffer)) != -1) text.append(buffer, 0, n);
+		return parse(text.toString());
+	}
+	
+	private static Parameter parameter(String kernel, String declaration) {
+		String d = declaration.trim();
+		boolean pointer = false;
+		if (d.endsWith("]")) {
+			// float data[] is a pointer
+			d = d.substring(0, d.lastIndexOf('[')).trim();
+			pointer = true;
+		}
+		if (d.contains("*")) {
+			pointer = true;
+			d = d.replace("*", " ");
+		}
+		List<String> words = new ArrayList<String>();
+		for (String w : d.trim().split("\\s+")) {
+			if (!QUALIFIERS.contains(w)) words.add(w);
+		}
+		if (words.size() < 2) {
+			throw new IllegalArgumentException("Parameter '" + declaration.trim() + "' of " + kernel + " has no name");
+		}
+		String name = words.remove(words.size() - 1);
+		String type = String.join(" ", words);
+		if (pointer) return new Parameter(name, type + " *", Kind.POINTER);
+		Kind kind = TYPES.get(type);
+		if (kind == null) {
+			throw new IllegalArgumentException("Parameter " + name + " of " + kernel + " has type " + type 
+					+ ", which is not understood; marshal it with KernelArguments");
+		}
+		return new Parameter(name, type, kind);
+	}
+	
+	public String toString() {
+		return declaration;
+	}
+}
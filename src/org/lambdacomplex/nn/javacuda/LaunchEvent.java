@@ -0,0 +1,58 @@
+/*
+* Copyright 2009 Gabriel Collin
+*
+* This file is part of javaCUDA.
+*
+* javaCUDA is free software: you can redistribute it and/or modify it
+* under the terms of the GNU Lesser General Public License as published
+* by the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* javaCUDA is distributed in the hope that it will be useful, but WITHOUT
+* ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+* FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public
+* License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public
+* License along with javaCUDA. If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package org.lambdacomplex.nn.javacuda;
+
+import jdk.jfr.*;
+
+/**
+ * A flight recorder event for queueing a kernel launch, timed on the calling thread.
+ * 
+ * The duration covers waiting for the context as well as the driver call, but not running the kernel; see 
+ * KernelExecutionEvent for that.
+ * @author NewName
+ *
+ */
+@Name("org.lambdacomplex.nn.javacuda.KernelLaunch")
+@Label("Kernel Launch")
+@Category("javaCUDA")
+@StackTrace(false)
+class LaunchEvent extends Event {
+	@Label("Kernel")
+	String kernel;
+	
+	@Label("Grid Width")
+	int gridX;
+	
+	@Label("Grid Height")
+	int gridY;
+	
+	@Label("Block Width")
+	int blockX;
+	
+	@Label("Block Height")
+	int blockY;
+	
+	@Label("Block Depth")
+	int blockZ;
+	
+	@Label("Stream")
+	@Description("Identity hash of the stream handle")
+	int stream;
+}
@@ -0,0 +1,163 @@
+/*
+* Copyright 2009 Gabriel Collin
+*
+* This file is part of javaCUDA.
+*
+* javaCUDA is free software: you can redistribute it and/or modify it
+* under the terms of the GNU Lesser General Public License as published
+* by the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* javaCUDA is distributed in the hope that it will be useful, but WITHOUT
+* ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+* FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public
+* License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public
+* License along with javaCUDA. If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package org.lambdacomplex.nn.javacuda;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+
+import javax.lang.model.SourceVersion;
+
+/**
+ * Writes the Java source of a typed launcher for the kernels in module source.
+ * 
+ * The launcher is an interface with a method for each extern "C" __global__ function, taking its parameters as 
+ * Java types, and a bind method that makes an implementation for a loaded module. The implementation writes the 
+ * arguments straight into KernelArguments it keeps, at offsets worked out once, so a launch through it costs the 
+ * same as one written by hand and allocates nothing.
+ * <pre>
+ * MandelbrotKernels kernels = MandelbrotKernels.bind(ctx.loadCubin(cubin));
+ * kernels.getFunction("squarecmplx").setBlockSize(new Function.BlockSize(16,16,1));
+ * kernels.squarecmplx(real, imaginary, 1000, 1000);
+ * </pre>
+ * Run it as part of the build, before compiling:
+ * LauncherGenerator &lt;module source&gt; &lt;fully qualified interface name&gt; [source directory]
+ * @author NewName
+ *
+ */
+public class LauncherGenerator {
+	public static void main(String args[]) throws IOException {
+		if (args.length < 2) {
+			System.err.println("Usage: LauncherGenerator <module source> <interface name> [source directory]");
+			System.exit(1);
+		}
+		Path source = Paths.get(args[0]);
+		String name = args[1];
+		Path directory = Paths.get(args.length > 2 ? args[2] : ".");
+		
+		List<KernelSignature> kernels = KernelSignature.parse(new String(Files.readAllBytes(source), 
+				StandardCharsets.UTF_8));
+		int dot = name.lastIndexOf('.');
+		String packageName = dot < 0 ? "" : name.substring(0, dot);
+		String interfaceName = name.substring(dot + 1);
+		
+		Path output = directory.resolve(name.replace('.', File.separatorChar) + ".java");
+		if (output.getParent() != null) Files.createDirectories(output.getParent());
+		Files.write(output, generate(packageName, interfaceName, kernels, source.getFileName().toString())
+				.getBytes(StandardCharsets.UTF_8));
+		System.out.println("Wrote " + kernels.size() + " kernels to " + output);
+	}
+	
+	/**
+	 * Generate the source of a launcher.
+	 * @param packageName The package of the launcher, or an empty string.
+	 * @param interfaceName The simple name of the launcher interface.
+	 * @param kernels The kernels, from KernelSignature.parse.
+	 * @param sourceName Where the kernels came from, for the comments.
+	 * @return The Java source, of the public interface and its package-private implementation.
+	 */
+	public static String generate(String packageName, String interfaceName, List<KernelSignature> kernels, 
+			String sourceName) {
+		String impl = interfaceName + "Launcher";
+		StringBuilder b = new StringBuilder();
+		b.append("// Generated by LauncherGenerator from ").append(sourceName).append(", do not edit.\n\n");
+		if (!packageName.isEmpty()) b.append("package ").append(packageName).append(";\n\n");
+		for (String c : new String[] {"AbstractKernelLauncher", "DevicePointer", "Function", "KernelArguments", 
+				"KernelLauncher", "Module"}) {
+			b.append("import org.lambdacomplex.nn.javacuda.").append(c).append(";\n");
+		}
+		
+		b.append("\n/**\n * Typed launch methods for the kernels of ").append(sourceName).append(".\n */\n");
+		b.append("public interface ").append(interfaceName).append(" extends KernelLauncher {\n");
+		for (KernelSignature k : kernels) {
+			b.append("\t/**\n\t * Launch ").append(k.getDeclaration()).append("\n\t */\n");
+			b.append("\tpublic void ").append(identifier(k.getName())).append(parameters(k)).append(";\n\t\n");
+		}
+		b.append("\t/**\n\t * Bind the kernels of a module.\n\t * @param module The module.\n");
+		b.append("\t * @return A launcher for the calling thread.\n\t */\n");
+		b.append("\tpublic static ").append(interfaceName).append(" bind(Module module) {\n");
+		b.append("\t\treturn new ").append(impl).append("(module);\n\t}\n}\n\n");
+		
+		b.append("class ").append(impl).append(" extends AbstractKernelLauncher implements ")
+			.append(interfaceName).append(" {\n");
+		for (KernelSignature k : kernels) {
+			String f = identifier(k.getName());
+			b.append("\tprivate Function ").append(f).append(";\n");
+			b.append("\tprivate KernelArguments ").append(f).append("Arguments;\n");
+			if (!k.getParameters().isEmpty()) {
+				b.append("\tprivate int ");
+				for (int i = 0; i < k.getParameters().size(); i++) {
+					b.append(i == 0 ? "" : ", ").append(f).append("Offset").append(i);
+				}
+				b.append(";\n");
+			}
+		}
+		b.append("\t\n\t").append(impl).append("(Module module) {\n\t\tsuper(module);\n");
+		for (KernelSignature k : kernels) {
+			String f = identifier(k.getName());
+			b.append("\t\t").append(f).append(" = bind(\"").append(k.getName()).append("\");\n");
+			b.append("\t\t").append(f).append("Arguments = arguments(").append(f).append(");\n");
+			for (int i = 0; i < k.getParameters().size(); i++) {
+				KernelSignature.Kind kind = k.getParameters().get(i).getKind();
+				b.append("\t\t").append(f).append("Offset").append(i).append(" = ").append(f)
+					.append("Arguments.put").append(kind.getAccessor()).append("(").append(zero(kind)).append(");\n");
+			}
+		}
+		b.append("\t}\n");
+		for (KernelSignature k : kernels) {
+			String f = identifier(k.getName());
+			b.append("\t\n\tpublic void ").append(f).append(parameters(k)).append(" {\n");
+			for (int i = 0; i < k.getParameters().size(); i++) {
+				KernelSignature.Parameter p = k.getParameters().get(i);
+				b.append("\t\t").append(f).append("Arguments.set").append(p.getKind().getAccessor()).append("(")
+					.append(f).append("Offset")
+					.append(i).append(", ").append(identifier(p.getName())).append(");\n");
+			}
+			b.append("\t\t").append(f).append(".launch(").append(f).append("Arguments, getStream());\n\t}\n");
+		}
+		b.append("}\n");
+		return b.toString();
+	}
+	
+	private static String parameters(KernelSignature k) {
+		StringBuilder b = new StringBuilder("(");
+		for (KernelSignature.Parameter p : k.getParameters()) {
+			if (b.length() > 1) b.append(", ");
+			b.append(p.getKind().getJavaType()).append(" ").append(identifier(p.getName()));
+		}
+		return b.append(")").toString();
+	}
+	
+	private static String zero(KernelSignature.Kind kind) {
+		switch (kind) {
+		case POINTER: return "0L";
+		case LONG: return "0L";
+		case FLOAT: return "0f";
+		case DOUBLE: return "0d";
+		default: return "0";
+		}
+	}
+	
+	// C names that are Java keywords get an underscore
+	private static String identifier(String name) {
+		return SourceVersion.isKeyword(name) ? name + "_" : name;
+	}
+}
@@ -0,0 +1,380 @@
+/*
+* Copyright 2009 Gabriel Collin
+*
+* This file is part of javaCUDA.
+*
+* javaCUDA is free software: you can redistribute it and/or modify it
+* under the terms of the GNU Lesser General Public License as published
+* by the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* javaCUDA is distributed in the hope that it will be useful, but WITHOUT
+* ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+* FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public
+* License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public
+* License along with javaCUDA. If not, see <http://www.gnu.org/licenses/>.
+*/
+
+
+package org.lambdacomplex.nn.javacuda;
+
+import org.lambdacomplex.nn.javacuda.DriverMetrics.Call;
+import org.lambdacomplex.nn.javacuda.array.NativeByteArray;
+
+/**
+ * Passes every call on to another backend, recording it in DriverMetrics when they are enabled.
+ * 
+ * Every context's backend is wrapped in one of these, so driver calls are measured whichever backend makes them.
+ * @author NewName
+ *
+ */
+class MeteredBackend implements Backend {
+	private Backend backend;
+	
+	MeteredBackend(Backend b) {
+		backend = b;
+	}
+	
+	/**
+	 * Wrap a backend, unless it is already wrapped.
+	 */
+	static Backend wrap(Backend b) {
+		return b instanceof MeteredBackend ? b : new MeteredBackend(b);
+	}
+	
+	/**
+	 * Get the backend that does the work.
+	 */
+	Backend getBackend() {
+		return backend;
+	}
+	
+	public String getName() {
+		return backend.getName();
+	}
+	
+	public int getDeviceCount() {
+		return backend.getDeviceCount();
+	}
+	
+	public int getAttribute(int device, DeviceInfo.Attribute attribute) {
+		return backend.getAttribute(device, attribute);
+	}
+	
+	public long getTotalMemory(int device) {
+		return backend.getTotalMemory(device);
+	}
+	
+	public String getDeviceName(int device) {
+		return backend.getDeviceName(device);
+	}
+	
+	public boolean hasPageLockedMemory() {
+		return backend.hasPageLockedMemory();
+	}
+	
+	public boolean needsCubinImage() {
+		return backend.needsCubinImage();
+	}
+	
+	public int getPointerSize() {
+		return backend.getPointerSize();
+	}
+	
+	public Object createContext(int device, Context.Flags flags) {
+		long start = DriverMetrics.start();
+		Object result;
+		try {
+			result = backend.createContext(device, flags);
+		} catch (Throwable t) {
+			DriverMetrics.failed(Call.CTX_CREATE, start);
+			throw t;
+		}
+		DriverMetrics.done(Call.CTX_CREATE, start);
+		return result;
+	}
+	
+	public void destroyContext(Object context) {
+		long start = DriverMetrics.start();
+		try {
+			backend.destroyContext(context);
+		} catch (Throwable t) {
+			DriverMetrics.failed(Call.CTX_DESTROY, start);
+			throw t;
+		}
+		DriverMetrics.done(Call.CTX_DESTROY, start);
+	}
+	
+	public void pushContext(Object context) {
+		long start = DriverMetrics.start();
+		try {
+			backend.pushContext(context);
+		} catch (Throwable t) {
+			DriverMetrics.failed(Call.CTX_PUSH_CURRENT, start);
+			throw t;
+		}
+		DriverMetrics.done(Call.CTX_PUSH_CURRENT, start);
+	}
+	
+	public void popContext() {
+		long start = DriverMetrics.start();
+		try {
+			backend.popContext();
+		} catch (Throwable t) {
+			DriverMetrics.failed(Call.CTX_POP_CURRENT, start);
+			throw t;
+		}
+		DriverMetrics.done(Call.CTX_POP_CURRENT, start);
+	}
+	
+	public void synchronizeContext() {
+		long start = DriverMetrics.start();
+		try {
+			backend.synchronizeContext();
+		} catch (Throwable t) {
+			DriverMetrics.failed(Call.CTX_SYNCHRONIZE, start);
+			throw t;
+		}
+		DriverMetrics.done(Call.CTX_SYNCHRONIZE, start);
+	}
+	
+	public long allocate(long size) {
+		long start = DriverMetrics.start();
+		long result;
+		try {
+			result = backend.allocate(size);
+		} catch (Throwable t) {
+			DriverMetrics.failed(Call.MEM_ALLOC, start);
+			throw t;
+		}
+		DriverMetrics.done(Call.MEM_ALLOC, start);
+		return result;
+	}
+	
+	public void free(long address) {
+		long start = DriverMetrics.start();
+		try {
+			backend.free(address);
+		} catch (Throwable t) {
+			DriverMetrics.failed(Call.MEM_FREE, start);
+			throw t;
+		}
+		DriverMetrics.done(Call.MEM_FREE, start);
+	}
+	
+	public void copyToDevice(long address, NativeByteArray src, long size, Object stream) {
+		Call call = stream == null ? Call.MEMCPY_HTOD : Call.MEMCPY_HTOD_ASYNC;
+		long start = DriverMetrics.start();
+		try {
+			backend.copyToDevice(address, src, size, stream);
+		} catch (Throwable t) {
+			DriverMetrics.failed(call, start);
+			throw t;
+		}
+		DriverMetrics.done(call, start);
+		DriverMetrics.copied(size, true, start);
+	}
+	
+	public void copyFromDevice(NativeByteArray dst, long address, long size, Object stream) {
+		Call call = stream == null ? Call.MEMCPY_DTOH : Call.MEMCPY_DTOH_ASYNC;
+		long start = DriverMetrics.start();
+		try {
+			backend.copyFromDevice(dst, address, size, stream);
+		} catch (Throwable t) {
+			DriverMetrics.failed(call, start);
+			throw t;
+		}
+		DriverMetrics.done(call, start);
+		DriverMetrics.copied(size, false, start);
+	}
+	
+	public Object getDefaultStream(Object context) {
+		return backend.getDefaultStream(context);
+	}
+	
+	public Object createStream() {
+		long start = DriverMetrics.start();
+		Object result;
+		try {
+			result = backend.createStream();
+		} catch (Throwable t) {
+			DriverMetrics.failed(Call.STREAM_CREATE, start);
+			throw t;
+		}
+		DriverMetrics.done(Call.STREAM_CREATE, start);
+		return result;
+	}
+	
+	public void destroyStream(Object stream) {
+		long start = DriverMetrics.start();
+		try {
+			backend.destroyStream(stream);
+		} catch (Throwable t) {
+			DriverMetrics.failed(Call.STREAM_DESTROY, start);
+			throw t;
+		}
+		DriverMetrics.done(Call.STREAM_DESTROY, start);
+	}
+	
+	public boolean queryStream(Object stream) {
+		long start = DriverMetrics.start();
+		boolean result;
+		try {
+			result = backend.queryStream(stream);
+		} catch (Throwable t) {
+			DriverMetrics.failed(Call.STREAM_QUERY, start);
+			throw t;
+		}
+		DriverMetrics.done(Call.STREAM_QUERY, start);
+		return result;
+	}
+	
+	public void synchronizeStream(Object stream) {
+		long start = DriverMetrics.start();
+		try {
+			backend.synchronizeStream(stream);
+		} catch (Throwable t) {
+			DriverMetrics.failed(Call.STREAM_SYNCHRONIZE, start);
+			throw t;
+		}
+		DriverMetrics.done(Call.STREAM_SYNCHRONIZE, start);
+	}
+	
+	public Object recordEvent(Object stream) {
+		long start = DriverMetrics.start();
+		Object result;
+		try {
+			result = backend.recordEvent(stream);
+		} catch (Throwable t) {
+			DriverMetrics.failed(Call.EVENT_RECORD, start);
+			throw t;
+		}
+		DriverMetrics.done(Call.EVENT_RECORD, start);
+		return result;
+	}
+	
+	public boolean queryEvent(Object event) {
+		long start = DriverMetrics.start();
+		boolean result;
+		try {
+			result = backend.queryEvent(event);
+		} catch (Throwable t) {
+			DriverMetrics.failed(Call.EVENT_QUERY, start);
+			throw t;
+		}
+		DriverMetrics.done(Call.EVENT_QUERY, start);
+		return result;
+	}
+	
+	public void synchronizeEvent(Object event) {
+		long start = DriverMetrics.start();
+		try {
+			backend.synchronizeEvent(event);
+		} catch (Throwable t) {
+			DriverMetrics.failed(Call.EVENT_SYNCHRONIZE, start);
+			throw t;
+		}
+		DriverMetrics.done(Call.EVENT_SYNCHRONIZE, start);
+	}
+	
+	public void waitEvent(Object stream, Object event) {
+		long start = DriverMetrics.start();
+		try {
+			backend.waitEvent(stream, event);
+		} catch (Throwable t) {
+			DriverMetrics.failed(Call.STREAM_WAIT_EVENT, start);
+			throw t;
+		}
+		DriverMetrics.done(Call.STREAM_WAIT_EVENT, start);
+	}
+	
+	public float elapsedTime(Object start, Object end) {
+		long begun = DriverMetrics.start();
+		float result;
+		try {
+			result = backend.elapsedTime(start, end);
+		} catch (Throwable t) {
+			DriverMetrics.failed(Call.EVENT_ELAPSED_TIME, begun);
+			throw t;
+		}
+		DriverMetrics.done(Call.EVENT_ELAPSED_TIME, begun);
+		return result;
+	}
+	
+	public void destroyEvent(Object event) {
+		long start = DriverMetrics.start();
+		try {
+			backend.destroyEvent(event);
+		} catch (Throwable t) {
+			DriverMetrics.failed(Call.EVENT_DESTROY, start);
+			throw t;
+		}
+		DriverMetrics.done(Call.EVENT_DESTROY, start);
+	}
+	
+	public Object loadModule(Cubin cubin) {
+		long start = DriverMetrics.start();
+		Object result;
+		try {
+			result = backend.loadModule(cubin);
+		} catch (Throwable t) {
+			DriverMetrics.failed(Call.MODULE_LOAD, start);
+			throw t;
+		}
+		DriverMetrics.done(Call.MODULE_LOAD, start);
+		return result;
+	}
+	
+	public void unloadModule(Object module) {
+		long start = DriverMetrics.start();
+		try {
+			backend.unloadModule(module);
+		} catch (Throwable t) {
+			DriverMetrics.failed(Call.MODULE_UNLOAD, start);
+			throw t;
+		}
+		DriverMetrics.done(Call.MODULE_UNLOAD, start);
+	}
+	
+	public Object getFunction(Object module, String name) {
+		long start = DriverMetrics.start();
+		Object result;
+		try {
+			result = backend.getFunction(module, name);
+		} catch (Throwable t) {
+			DriverMetrics.failed(Call.MODULE_GET_FUNCTION, start);
+			throw t;
+		}
+		DriverMetrics.done(Call.MODULE_GET_FUNCTION, start);
+		return result;
+	}
+	
+	public void releaseFunction(Object function) {
+		backend.releaseFunction(function);
+	}
+	
+	public void setSharedMemory(Object function, long size) {
+		long start = DriverMetrics.start();
+		try {
+			backend.setSharedMemory(function, size);
+		} catch (Throwable t) {
+			DriverMetrics.failed(Call.FUNC_SET_SHARED_SIZE, start);
+			throw t;
+		}
+		DriverMetrics.done(Call.FUNC_SET_SHARED_SIZE, start);
+	}
+	
+	public void launch(Object function, Function.GridSize grid, Function.BlockSize block, 
+			NativeByteArray params, int paramSize, Object stream) {
+		long start = DriverMetrics.start();
+		try {
+			backend.launch(function, grid, block, params, paramSize, stream);
+		} catch (Throwable t) {
+			DriverMetrics.failed(Call.LAUNCH, start);
+			throw t;
+		}
+		DriverMetrics.done(Call.LAUNCH, start);
+	}
+}
@@ -19,25 +19,82 @@
 
 package org.lambdacomplex.nn.javacuda;
 
-import org.lambdacomplex.nn.javacuda.swig.*;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
- * A module currently loaded on the GPU.
+ * A module on the GPU.
+ * 
+ * The module is loaded from its Cubin's image in memory the first time a function is taken from it. Functions 
+ * are kept by name, so taking the same function again does not go to the driver.
  * @author NewName
  *
  */
-public class Module {
+public class Module implements AutoCloseable {
 	private Context context;
-	private CUPModule module;
+	private Cubin cubin;
+	// the id of the cubin, which is let go once the module is loaded
+	private long key;
+	private ModuleRegistry registry;
+	private ConcurrentHashMap<String, Function> functions = new ConcurrentHashMap<String, Function>();
+	private Object module;
+	private volatile boolean loaded;
+	private volatile boolean unloaded;
+	private ResourceCleaner.Handle handle;
 	
 	protected Module(Context ctx, Cubin cubin) {
+		this(ctx, cubin, null);
+	}
+	
+	Module(Context ctx, Cubin cubin, ModuleRegistry registry) {
 		context = ctx;
-		module = new CUPModule();
-		module.setMemoryManaged(false);
-		synchronized (context) {
-			context.push();
-			Util.safeCall(Cuda.cuModuleLoad(module.cast(), cubin.getCubinFile().getAbsolutePath()));
-			Context.popCurrent();
+		this.cubin = cubin;
+		key = cubin.getId();
+		this.registry = registry;
+	}
+	
+	/**
+	 * Load the module onto the device now, unless it is loaded already.
+	 * 
+	 * getFunction does this when needed, so this is only for loading a module ahead of time.
+	 */
+	public void load() {
+		if (loaded) return;
+		synchronized (this) {
+			if (loaded) return;
+			if (unloaded) throw new IllegalStateException("Module unloaded");
+			final Backend backend = context.getBackend();
+			if (backend.needsCubinImage()) {
+				try {
+					// only waits for this cubin, even if others are still compiling
+					cubin.ensureCompiled(null);
+				} catch (CudaCompileException e) {
+					throw new IllegalStateException("Unable to compile module", e);
+				}
+			}
+			
+			final Cubin c = cubin;
+			module = context.execute(new Context.Task<Object>() {
+				public Object run() {
+					return backend.loadModule(c);
+				}
+			});
+			handle = ResourceCleaner.register(this, new Unloader(context, module));
+			cubin = null;
+			loaded = true;
+		}
+	}
+	
+	private static class Unloader implements Runnable {
+		private Context context;
+		private Object module;
+		Unloader(Context ctx, Object m) { context = ctx; module = m; }
+		public void run() {
+			final Backend backend = context.getBackend();
+			context.runUnlessDestroyed(new Runnable() {
+				public void run() {
+					backend.unloadModule(module);
+				}
+			});
 		}
 	}
 	
@@ -47,11 +104,28 @@ public class Module {
 	 * @return The requested function.
 	 */
 	public Function getFunction(String name) {
-		return new Function(context, module, name);
+		Function function = functions.get(name);
+		if (function != null) {
+			if (registry != null) registry.functionHit();
+			return function;
+		}
+		if (registry != null) registry.functionMiss();
+		load();
+		function = new Function(context, module, name);
+		Function existing = functions.putIfAbsent(name, function);
+		return existing != null ? existing : function;
+	}
+	
+	public Context getContext() {
+		return context;
+	}
+	
+	public boolean isLoaded() {
+		return loaded;
 	}
 	
 	public boolean isUnloaded() {
-		return module == null;
+		return unloaded;
 	}
 	
 	/**
@@ -59,22 +133,21 @@ public class Module {
 	 * 
 	 * Call this method once the module becomes unused. This will prevent memory leaks.
 	 */
-	public void unload() {
-		synchronized (context) {
-			if (isUnloaded()) return;
-			context.push();
-			Util.safeCall(Cuda.cuModuleUnload(module.value()));
-			Context.popCurrent();
-			module.delete();
-			module = null;
-		}
+	public synchronized void unload() {
+		if (isUnloaded()) return;
+		if (handle != null) handle.release();
+		module = null;
+		cubin = null;
+		loaded = false;
+		unloaded = true;
+		functions.clear();
+		if (registry != null) registry.removed(key, this);
 	}
 	
-	public void finalize() throws Throwable {
-		try {
-			unload();
-		} finally {
-			super.finalize();
-		}
+	/**
+	 * Unload the module, so that it can be used in a try-with-resources statement.
+	 */
+	public void close() {
+		unload();
 	}
 }
@@ -0,0 +1,125 @@
+/*
+* Copyright 2009 Gabriel Collin
+*
+* This file is part of javaCUDA.
+*
+* javaCUDA is free software: you can redistribute it and/or modify it
+* under the terms of the GNU Lesser General Public License as published
+* by the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* javaCUDA is distributed in the hope that it will be useful, but WITHOUT
+* ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+* FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public
+* License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public
+* License along with javaCUDA. If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package org.lambdacomplex.nn.javacuda;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The modules loaded in a context, one for each Cubin.
+ * 
+ * Loading a Cubin that is already loaded returns the same module, and each module keeps the functions taken 
+ * from it by name. Lookups of modules and functions that are already there do not lock, so they can be done 
+ * on every request. A module stays in the registry until it is unloaded or the context is destroyed.
+ * 
+ * Get the registry of a context using the Context class.
+ * @author NewName
+ *
+ */
+public class ModuleRegistry {
+	private Context context;
+	// keyed by the id of the Cubin, so a loaded module's Cubin and its image can be collected
+	private ConcurrentHashMap<Long, Module> modules = new ConcurrentHashMap<Long, Module>();
+	private LongAdder moduleHits = new LongAdder();
+	private LongAdder moduleMisses = new LongAdder();
+	private LongAdder functionHits = new LongAdder();
+	private LongAdder functionMisses = new LongAdder();
+	
+	protected ModuleRegistry(Context ctx) {
+		context = ctx;
+	}
+	
+	/**
+	 * Get the module for a Cubin, creating it the first time.
+	 * @param cubin The Cubin. Cubins are told apart by identity.
+	 * @return The module.
+	 */
+	public Module getModule(Cubin cubin) {
+		Long key = cubin.getId();
+		Module module = modules.get(key);
+		if (module != null && !module.isUnloaded()) {
+			moduleHits.increment();
+			return module;
+		}
+		moduleMisses.increment();
+		Module created = new Module(context, cubin, this);
+		while (true) {
+			if (module == null) {
+				module = modules.putIfAbsent(key, created);
+				if (module == null) return created;
+			} else if (module.isUnloaded()) {
+				if (modules.replace(key, module, created)) return created;
+				module = modules.get(key);
+			} else {
+				// another thread got there first, the unused module was never loaded
+				return module;
+			}
+		}
+	}
+	
+	/**
+	 * Get a function from the module for a Cubin.
+	 * @param cubin The Cubin.
+	 * @param name The name of the function.
+	 * @return The function.
+	 */
+	public Function getFunction(Cubin cubin, String name) {
+		return getModule(cubin).getFunction(name);
+	}
+	
+	protected void removed(long key, Module module) {
+		modules.remove(key, module);
+	}
+	
+	protected void functionHit() {
+		functionHits.increment();
+	}
+	
+	protected void functionMiss() {
+		functionMisses.increment();
+	}
+	
+	/**
+	 * Unload every module in the registry.
+	 */
+	public void unloadAll() {
+		for (Module m : modules.values()) m.unload();
+	}
+	
+	public int getModuleCount() {
+		return modules.size();
+	}
+	
+	public long getModuleHits() {
+		return moduleHits.sum();
+	}
+	
+	public long getModuleMisses() {
+		return moduleMisses.sum();
+	}
+	
+	public long getFunctionHits() {
+		return functionHits.sum();
+	}
+	
+	public long getFunctionMisses() {
+		return functionMisses.sum();
+	}
+}
@@ -0,0 +1,483 @@
+/*
+* Copyright 2009 Gabriel Collin
+*
+* This file is part of javaCUDA.
+*
+* javaCUDA is free software: you can redistribute it and/or modify it
+* under the terms of the GNU Lesser General Public License as published
+* by the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* javaCUDA is distributed in the hope that it will be useful, but WITHOUT
+* ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+* FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public
+* License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public
+* License along with javaCUDA. If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package org.lambdacomplex.nn.javacuda;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Runs a data-parallel job over several devices at once, sharing it out by how fast each device has been.
+ * 
+ * A job is a 1D range of items or a 2D range split into bands of rows, cut into chunks. Each device starts with 
+ * a run of consecutive chunks in proportion to its throughput, measured on earlier jobs, and works through 
+ * them from the front on a thread of its own. A device that runs out takes chunks from the back of the device 
+ * with the most time's worth left, as long as it would finish the chunk sooner than that device would get to 
+ * it, so a slow or busy device does not hold up the job even when the proportions are wrong. Throughput is 
+ * measured as the job goes, and kept for sharing out the next job. Before a device has been measured, its 
+ * peak throughput from DeviceInfo, scaled by how the measured devices compare with theirs, stands in for it.
+ * <pre>
+ * MultiDeviceExecutor executor = new MultiDeviceExecutor(Device.getDefaultBackend());
+ * executor.execute(size, new MultiDeviceExecutor.Work() {
+ *     public void run(int device, Context context, MultiDeviceExecutor.Range range) {
+ *         ... copy, launch and copy back items range.getStart() to range.getEnd(), and wait
+ *     }
+ * });
+ * </pre>
+ * Work on a chunk must be finished when run returns, as the time it takes is what the throughput is measured 
+ * from. Each device has its own context, and runs its chunks one at a time.
+ * @author NewName
+ *
+ */
+public class MultiDeviceExecutor implements AutoCloseable {
+	
+	/**
+	 * A chunk of a job: items start to end of a 1D job, or rows start to end of a 2D one.
+	 * @author NewName
+	 *
+	 */
+	public static class Range {
+		private long start, end;
+		private long width;
+		
+		Range(long start, long end, long width) {
+			this.start = start;
+			this.end = end;
+			this.width = width;
+		}
+		
+		public long getStart() {
+			return start;
+		}
+		
+		public long getEnd() {
+			return end;
+		}
+		
+		/**
+		 * The width of the rows of a 2D job, 1 for a 1D job.
+		 */
+		public long getWidth() {
+			return width;
+		}
+		
+		/**
+		 * The number of items in the chunk.
+		 */
+		public long getSize() {
+			return (end - start) * width;
+		}
+		
+		public String toString() {
+			return "[" + start + ", " + end + ")" + (width == 1 ? "" : " x " + width);
+		}
+	}
+	
+	/**
+	 * The job, run on chunks of it.
+	 */
+	public interface Work {
+		/**
+		 * Do a chunk of the job, and wait for it to be done.
+		 * @param device The index of the device among the executor's contexts.
+		 * @param context The device's context.
+		 * @param range The chunk.
+		 */
+		public void run(int device, Context context, Range range);
+	}
+	
+	/**
+	 * What each device did in a job.
+	 * @author NewName
+	 *
+	 */
+	public static class Statistics {
+		private long[] items, chunks, stolen, busy;
+		private long elapsed;
+		
+		Statistics(int devices) {
+			items = new long[devices];
+			chunks = new long[devices];
+			stolen = new long[devices];
+			busy = new long[devices];
+		}
+		
+		public int getDeviceCount() {
+			return items.length;
+		}
+		
+		public long getItems(int device) {
+			return items[device];
+		}
+		
+		public long getChunks(int device) {
+			return chunks[device];
+		}
+		
+		/**
+		 * The number of chunks the device took from other devices.
+		 */
+		public long getStolen(int device) {
+			return stolen[device];
+		}
+		
+		/**
+		 * The time the device spent on chunks, in milliseconds.
+		 */
+		public double getBusyTime(int device) {
+			return busy[device] / 1e6;
+		}
+		
+		/**
+		 * The time the job took, in milliseconds.
+		 */
+		public double getElapsedTime() {
+			return elapsed / 1e6;
+		}
+		
+		/**
+		 * The items the device did per second of its busy time.
+		 */
+		public double getThroughput(int device) {
+			return busy[device] == 0 ? 0 : items[device] * 1e9 / busy[device];
+		}
+		
+		public String toString() {
+			StringBuilder b = new StringBuilder(String.format("%.3f ms%n", getElapsedTime()));
+			for (int i = 0; i < items.length; i++) {
+				b.append(String.format("device %d: %d items in %d chunks, %d stolen, busy %.3f ms, %.0f items/s%n", 
+						i, items[i], chunks[i], stolen[i], getBusyTime(i), getThroughput(i)));
+			}
+			return b.toString();
+		}
+	}
+	
+	private List<Context> contexts;
+	private boolean owned;
+	private ExecutorService threads;
+	private double[] throughput;
+	private double[] peak;
+	private int chunksPerDevice = 16;
+	
+	/**
+	 * Create an executor over every device of a backend, with a context for each.
+	 * @param backend The backend.
+	 */
+	public MultiDeviceExecutor(Backend backend) {
+		this(contexts(backend));
+		owned = true;
+		for (int i = 0; i < peak.length; i++) peak[i] = Math.max(0, DeviceInfo.get(backend, i).getPeakGFlops());
+	}
+	
+	private static List<Context> contexts(Backend backend) {
+		List<Context> contexts = new ArrayList<Context>();
+		boolean created = false;
+		try {
+			for (Device d : Device.getDevices(backend)) contexts.add(d.getContext());
+			created = true;
+			return contexts;
+		} finally {
+			// a device that fails leaves the contexts made before it to destroy here
+			if (!created) {
+				for (Context c : contexts) c.destroy();
+			}
+		}
+	}
+	
+	/**
+	 * Create an executor over contexts that already exist, which are not destroyed with it.
+	 * @param contexts The contexts, one for each device.
+	 */
+	public MultiDeviceExecutor(List<Context> contexts) {
+		if (contexts.isEmpty()) throw new IllegalArgumentException("No devices");
+		this.contexts = new ArrayList<Context>(contexts);
+		throughput = new double[contexts.size()];
+		peak = new double[contexts.size()];
+		threads = Executors.newFixedThreadPool(contexts.size(), new ThreadFactory() {
+			private int count;
+			public synchronized Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "javaCUDA device " + count++);
+				t.setDaemon(true);
+				return t;
+			}
+		});
+	}
+	
+	public List<Context> getContexts() {
+		return Collections.unmodifiableList(contexts);
+	}
+	
+	/**
+	 * Set how finely jobs are cut: the number of chunks per device. More chunks balance better and cost more 
+	 * calls. The default is 16.
+	 */
+	public void setChunksPerDevice(int chunks) {
+		if (chunks < 1) throw new IllegalArgumentException();
+		chunksPerDevice = chunks;
+	}
+	
+	/**
+	 * The throughput the next job is shared out by.
+	 * @return Items per second, or 0 if the device has not done any work yet.
+	 */
+	public synchronized double getThroughput(int device) {
+		return throughput[device];
+	}
+	
+	/**
+	 * Set the throughput of a device before it has been measured, such as from its specification. Only the 
+	 * proportions between devices matter.
+	 */
+	public synchronized void setThroughput(int device, double itemsPerSecond) {
+		throughput[device] = itemsPerSecond;
+	}
+	
+	/**
+	 * Run a 1D job.
+	 * @param size The number of items.
+	 * @param work The job.
+	 * @return What each device did.
+	 */
+	public Statistics execute(long size, Work work) {
+		return execute(1, size, work);
+	}
+	
+	/**
+	 * Run a 2D job, cut into bands of rows.
+	 * @param width The width of the rows.
+	 * @param height The number of rows.
+	 * @param work The job.
+	 * @return What each device did.
+	 */
+	public Statistics execute(long width, long height, Work work) {
+		if (threads == null) throw new IllegalStateException("Executor closed");
+		int n = contexts.size();
+		long chunkCount = Math.min(height, (long)n * chunksPerDevice);
+		
+		// consecutive chunks for each device, in proportion to its throughput
+		double[] share = shares();
+		List<Deque<Range>> queues = new ArrayList<Deque<Range>>();
+		for (int i = 0; i < n; i++) queues.add(new ArrayDeque<Range>());
+		double total = 0;
+		int device = 0;
+		for (long c = 0; c < chunkCount; c++) {
+			Range r = new Range(height * c / chunkCount, height * (c + 1) / chunkCount, width);
+			// the chunk goes to the device whose share its middle falls in
+			double middle = (c + 0.5) / chunkCount;
+			while (device < n - 1 && middle > total + share[device]) total += share[device++];
+			queues.get(device).addLast(r);
+		}
+		
+		Job job = new Job(queues, work);
+		long start = System.nanoTime();
+		List<Future<?>> futures = new ArrayList<Future<?>>();
+		for (int i = 0; i < n; i++) futures.add(threads.submit(job.worker(i)));
+		for (Future<?> f : futures) {
+			boolean interrupted = false;
+			while (true) {
+				try {
+					f.get();
+					break;
+				} catch (InterruptedException e) {
+					// the job is running on other threads, so it is finished rather than abandoned
+					interrupted = true;
+				} catch (ExecutionException e) {
+					// the worker catches everything, so this does not happen
+					break;
+				}
+			}
+			if (interrupted) Thread.currentThread().interrupt();
+		}
+		job.statistics.elapsed = System.nanoTime() - start;
+		
+		if (job.failure instanceof RuntimeException) throw (RuntimeException)job.failure;
+		if (job.failure instanceof Error) throw (Error)job.failure;
+		
+		synchronized (this) {
+			for (int i = 0; i < n; i++) {
+				if (job.statistics.items[i] > 0) throughput[i] = job.statistics.getThroughput(i);
+			}
+		}
+		return job.statistics;
+	}
+	
+	/**
+	 * The fraction of the next job for each device.
+	 */
+	private synchronized double[] shares() {
+		double[] share = estimate(throughput);
+		double sum = 0;
+		for (double s : share) sum += s;
+		for (int i = 0; i < share.length; i++) share[i] /= sum;
+		return share;
+	}
+	
+	/**
+	 * Fill in the throughput of devices not measured yet. A device with a known peak throughput gets it, scaled 
+	 * by the average ratio of measured to peak throughput of the others; with nothing measured the peaks are 
+	 * used as they are, as only proportions matter. Any other device gets the average of the rest, or 1.
+	 * @param measured Items per second, or 0 where not measured.
+	 */
+	private double[] estimate(double[] measured) {
+		int n = measured.length;
+		boolean any = false;
+		for (double t : measured) any |= t > 0;
+		double[] known = any ? measured : peak;
+		double ratio = 0;
+		int ratios = 0;
+		for (int i = 0; i < n; i++) {
+			if (known[i] > 0 && peak[i] > 0) {
+				ratio += known[i] / peak[i];
+				ratios++;
+			}
+		}
+		double[] rate = new double[n];
+		double sum = 0;
+		int count = 0;
+		for (int i = 0; i < n; i++) {
+			if (known[i] > 0) rate[i] = known[i];
+			else if (peak[i] > 0 && ratios > 0) rate[i] = peak[i] * ratio / ratios;
+			if (rate[i] > 0) {
+				sum += rate[i];
+				count++;
+			}
+		}
+		for (int i = 0; i < n; i++) {
+			if (rate[i] <= 0) rate[i] = count == 0 ? 1 : sum / count;
+		}
+		return rate;
+	}
+	
+	/**
+	 * One run of a job: the queues of chunks, and what each device has done.
+	 */
+	private class Job {
+		private List<Deque<Range>> queues;
+		private Work work;
+		private double[] prior;
+		private Statistics statistics;
+		private volatile Throwable failure;
+		
+		Job(List<Deque<Range>> q, Work w) {
+			queues = q;
+			work = w;
+			synchronized (MultiDeviceExecutor.this) {
+				prior = throughput.clone();
+			}
+			statistics = new Statistics(q.size());
+		}
+		
+		/**
+		 * The throughput of a device so far in this job, or from earlier jobs, or else estimated from the others.
+		 */
+		private double rate(int device) {
+			synchronized (statistics) {
+				if (statistics.busy[device] > 0) return statistics.getThroughput(device);
+				if (prior[device] > 0) return prior[device];
+				double[] measured = new double[prior.length];
+				for (int i = 0; i < prior.length; i++) {
+					measured[i] = statistics.busy[i] > 0 ? statistics.getThroughput(i) : prior[i];
+				}
+				return estimate(measured)[device];
+			}
+		}
+		
+		Runnable worker(final int device) {
+			return new Runnable() {
+				public void run() {
+					Context context = contexts.get(device);
+					try {
+						Range r;
+						while (failure == null && (r = next(device)) != null) {
+							long start = System.nanoTime();
+							work.run(device, context, r);
+							long time = System.nanoTime() - start;
+							synchronized (statistics) {
+								statistics.busy[device] += time;
+								statistics.items[device] += r.getSize();
+								statistics.chunks[device]++;
+							}
+						}
+					} catch (Throwable t) {
+						if (failure == null) failure = t;
+					}
+				}
+			};
+		}
+		
+		/**
+		 * The next chunk for a device: the front of its own queue, or else the back of another queue, if it would 
+		 * be done sooner here. Queues are tried in order of the time's worth of work they have left, and null 
+		 * means no queue has a chunk worth taking.
+		 */
+		private Range next(int device) {
+			Deque<Range> own = queues.get(device);
+			synchronized (own) {
+				Range r = own.pollFirst();
+				if (r != null) return r;
+			}
+			final double[] time = new double[queues.size()];
+			List<Integer> victims = new ArrayList<Integer>();
+			for (int i = 0; i < queues.size(); i++) {
+				if (i == device) continue;
+				Deque<Range> q = queues.get(i);
+				long left = 0;
+				synchronized (q) {
+					for (Range r : q) left += r.getSize();
+				}
+				if (left > 0) {
+					time[i] = left / rate(i);
+					victims.add(i);
+				}
+			}
+			Collections.sort(victims, new Comparator<Integer>() {
+				public int compare(Integer a, Integer b) {
+					return Double.compare(time[b], time[a]);
+				}
+			});
+			double rate = rate(device);
+			for (int victim : victims) {
+				Deque<Range> q = queues.get(victim);
+				Range r;
+				synchronized (q) {
+					r = q.peekLast();
+					if (r == null || r.getSize() / rate >= time[victim]) continue;
+					q.pollLast();
+				}
+				synchronized (statistics) {
+					statistics.stolen[device]++;
+				}
+				return r;
+			}
+			return null;
+		}
+	}
+	
+	/**
+	 * Stop the device threads, and destroy the contexts if the executor made them.
+	 */
+	public void close() {
+		if (threads == null) return;
+		threads.shutdown();
+		threads = null;
+		if (owned) {
+			for (Context c : contexts) c.destroy();
+		}
+	}
+}
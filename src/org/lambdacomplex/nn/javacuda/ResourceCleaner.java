@@ -0,0 +1,155 @@
+/*
+* Copyright 2009 Gabriel Collin
+*
+* This file is part of javaCUDA.
+*
+* javaCUDA is free software: you can redistribute it and/or modify it
+* under the terms of the GNU Lesser General Public License as published
+* by the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* javaCUDA is distributed in the hope that it will be useful, but WITHOUT
+* ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+* FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public
+* License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public
+* License along with javaCUDA. If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package org.lambdacomplex.nn.javacuda;
+
+import java.lang.ref.Cleaner;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Releases native resources that were not closed explicitly once their owner becomes unreachable.
+ * 
+ * This is only a safety net, resources should be closed as soon as they are no longer needed. With leak
+ * detection on, the stack trace of every allocation is recorded so that resources that were never closed
+ * can be found. Leak detection can be turned on with the system property javacuda.leakDetection.
+ * @author NewName
+ *
+ */
+public final class ResourceCleaner {
+	private static final Cleaner cleaner = Cleaner.create();
+	private static volatile boolean leakDetection = Boolean.getBoolean("javacuda.leakDetection");
+	private static final Set<Handle> unreleased = Collections.newSetFromMap(new ConcurrentHashMap<Handle, Boolean>());
+	
+	private ResourceCleaner() {}
+	
+	/**
+	 * The link between an owner and the action that releases its native resource.
+	 * @author NewName
+	 *
+	 */
+	public static final class Handle {
+		private Cleaner.Cleanable cleanable;
+		private Throwable origin;
+		private volatile boolean released;
+		
+		/**
+		 * Run the release action now, unless it has already run.
+		 */
+		public void release() {
+			released = true;
+			cleanable.clean();
+		}
+		
+		public boolean isReleased() {
+			return released;
+		}
+		
+		/**
+		 * The stack trace of the allocation, if leak detection was on when it was made.
+		 * @return The trace, or null.
+		 */
+		public Throwable getOrigin() {
+			return origin;
+		}
+	}
+	
+	private static class Action implements Runnable {
+		private Handle handle;
+		private Runnable release;
+		private String type;
+		
+		public void run() {
+			unreleased.remove(handle);
+			if (!handle.released && handle.origin != null) {
+				System.err.println("javaCUDA: " + type + " was never closed, released by the garbage collector");
+				handle.origin.printStackTrace();
+			}
+			handle.released = true;
+			release.run();
+		}
+	}
+	
+	/**
+	 * Register the action that releases the native resource of an owner.
+	 * 
+	 * The action must not refer to the owner, or the owner will never become unreachable.
+	 * @param owner The object owning the resource.
+	 * @param release The action that releases the resource.
+	 * @return The handle used to release the resource explicitly.
+	 */
+	public static Handle register(Object owner, Runnable release) {
+		return register(owner, owner.getClass().getSimpleName(), release);
+	}
+	
+	/**
+	 * Register the action that releases a native resource, with the name it is reported as a leak under.
+	 * 
+	 * For a resource that is reachable through more than the object the user holds, such as memory viewed by 
+	 * buffers, the owner is the object everything else refers to.
+	 * @param owner The object whose reachability decides when the resource is released.
+	 * @param type The name of the resource in leak reports.
+	 * @param release The action that releases the resource.
+	 * @return The handle used to release the resource explicitly.
+	 */
+	public static Handle register(Object owner, String type, Runnable release) {
+		Handle handle = new Handle();
+		Action action = new Action();
+		action.handle = handle;
+		action.release = release;
+		action.type = type;
+		if (leakDetection) {
+			handle.origin = new Throwable(action.type + " allocated here");
+			unreleased.add(handle);
+		}
+		handle.cleanable = cleaner.register(owner, action);
+		return handle;
+	}
+	
+	/**
+	 * Register an action that only the garbage collector runs, such as for memory kept by each thread.
+	 * 
+	 * These are never reported as leaks. The action must not refer to the owner.
+	 * @param owner The object owning the resource.
+	 * @param release The action that releases the resource.
+	 */
+	public static void registerUntracked(Object owner, Runnable release) {
+		cleaner.register(owner, release);
+	}
+	
+	public static void setLeakDetection(boolean on) {
+		leakDetection = on;
+	}
+	
+	public static boolean isLeakDetection() {
+		return leakDetection;
+	}
+	
+	/**
+	 * Get the allocation stack traces of every resource registered with leak detection on that is still open.
+	 * @return The stack traces.
+	 */
+	public static List<Throwable> getUnreleased() {
+		List<Throwable> result = new ArrayList<Throwable>();
+		for (Handle h : unreleased) {
+			result.add(h.origin);
+		}
+		return result;
+	}
+}
@@ -19,37 +19,55 @@
 
 package org.lambdacomplex.nn.javacuda;
 
-import org.lambdacomplex.nn.javacuda.swig.*;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
 
 /**
  * A stream for managing asynchronous activities.
  * @author NewName
  *
  */
-public class Stream {
+public class Stream implements AutoCloseable {
 	private Context context;
-	private CUPStream stream;
+	private Object stream;
+	private ResourceCleaner.Handle handle;
 	
 	/**
 	 * Create a stream
 	 */
 	protected Stream(Context ctx) {
 		context = ctx;
-		stream = new CUPStream();
-		stream.setMemoryManaged(false);
-		long flags = 0; // currently required by the API
-		synchronized (context) {
-			context.push();
-			Util.safeCall(Cuda.cuStreamCreate(stream.cast(), flags));
-			Context.popCurrent();
-		}
+		final Backend backend = context.getBackend();
+		stream = context.execute(new Context.Task<Object>() {
+			public Object run() {
+				return backend.createStream();
+			}
+		});
+		handle = ResourceCleaner.register(this, new Destroyer(context, stream));
 	}
 	
-	protected Stream(Context ctx, CUPStream st) {
+	/**
+	 * Wrap a stream that is not owned by this object, such as the default stream. Destroying it does nothing.
+	 */
+	protected Stream(Context ctx, Object st) {
 		stream = st;
 		context = ctx;
 	}
 	
+	private static class Destroyer implements Runnable {
+		private Context context;
+		private Object stream;
+		Destroyer(Context ctx, Object st) { context = ctx; stream = st; }
+		public void run() {
+			final Backend backend = context.getBackend();
+			context.runUnlessDestroyed(new Runnable() {
+				public void run() {
+					backend.destroyStream(stream);
+				}
+			});
+		}
+	}
+	
 	public boolean isDestroyed() {
 		return stream == null;
 	}
@@ -57,23 +75,17 @@ public class Stream {
 	/**
 	 * Destroy this stream
 	 */
-	public void destroy() {
-		synchronized (context) {
-			if (isDestroyed()) return;
-			context.push();
-			Util.safeCall(Cuda.cuStreamDestroy(stream.value()));
-			Context.popCurrent();
-			stream.delete();
-			stream = null;
-		}
+	public synchronized void destroy() {
+		if (isDestroyed()) return;
+		if (handle != null) handle.release();
+		stream = null;
 	}
 	
-	public void finalize() throws Throwable {
-		try {
-			destroy();
-		} finally {
-			super.finalize();
-		}
+	/**
+	 * Destroy this stream, so that it can be used in a try-with-resources statement.
+	 */
+	public void close() {
+		destroy();
 	}
 	
 	/**
@@ -83,33 +95,88 @@ public class Stream {
 	 * @return Whether tasks still remain to be completed.
 	 */
 	public boolean isReady() {
-		CUresult result;
-		synchronized (context) {
-			context.push();
-			result = Cuda.cuStreamQuery(stream.value());
-			Context.popCurrent();
-		}
-		
-		if (result == CUresult.CUDA_SUCCESS) {
-			return true;
-		} else if (result == CUresult.CUDA_ERROR_NOT_READY) {
-			return false;
-		} else {
-			// this will throw an exception, so the return value is unimportant
-			Util.safeCall(result);
-			return false;
-		}
+		return Call.run(context, Call.QUERY_STREAM, stream, null);
 	}
 	
 	/**
 	 * Blocks the current thread until all associated tasks are complete.
 	 */
 	public void synchronise() {
-		synchronized (context) {
-			context.push();
-			Util.safeCall(Cuda.cuStreamSynchronize(stream.value()));
-			Context.popCurrent();
+		Call.run(context, Call.SYNCHRONISE_STREAM, stream, null);
+	}
+	
+	/**
+	 * Make the work queued on this stream from now on wait until an event is reached, without blocking the 
+	 * current thread. The event can be on another stream of the same context.
+	 * @param event The event to wait for.
+	 */
+	public void waitFor(Event event) {
+		if (event.isDestroyed()) throw new IllegalStateException("Event destroyed");
+		Call.run(context, Call.WAIT_EVENT, stream, event.event);
+	}
+	
+	/**
+	 * A query or wait on a stream or event. Each thread keeps one and reuses it, so these allocate nothing.
+	 */
+	private static class Call implements Context.Task<Boolean> {
+		static final int QUERY_STREAM = 0, SYNCHRONISE_STREAM = 1, QUERY_EVENT = 2, SYNCHRONISE_EVENT = 3, 
+				ELAPSED_TIME = 4, WAIT_EVENT = 5;
+		
+		private static final ThreadLocal<Call> calls = new ThreadLocal<Call>() {
+			protected Call initialValue() { return new Call(); }
+		};
+		
+		private Backend backend;
+		private int operation;
+		private Object handle, other;
+		private float time;
+		
+		public Boolean run() {
+			switch (operation) {
+			case QUERY_STREAM: return backend.queryStream(handle);
+			case SYNCHRONISE_STREAM: backend.synchronizeStream(handle); break;
+			case QUERY_EVENT: return backend.queryEvent(handle);
+			case SYNCHRONISE_EVENT: backend.synchronizeEvent(handle); break;
+			case ELAPSED_TIME: time = backend.elapsedTime(handle, other); break;
+			case WAIT_EVENT: backend.waitEvent(handle, other); break;
+			}
+			return true;
 		}
+		
+		static boolean run(Context context, int operation, Object handle, Object other) {
+			Call c = calls.get();
+			c.backend = context.getBackend();
+			c.operation = operation;
+			c.handle = handle;
+			c.other = other;
+			try {
+				return context.execute(c);
+			} finally {
+				c.handle = null;
+				c.other = null;
+			}
+		}
+		
+		static float elapsedTime(Context context, Object start, Object end) {
+			run(context, ELAPSED_TIME, start, end);
+			return calls.get().time;
+		}
+	}
+	
+	/**
+	 * Get a future that completes once this stream has finished everything queued on it so far.
+	 * @return The future.
+	 */
+	public CompletableFuture<Stream> completion() {
+		return track(this);
+	}
+	
+	/**
+	 * Get a future for the work queued on this stream so far, completed with the given value.
+	 */
+	protected <T> CompletableFuture<T> track(T value) {
+		Event event = new Event(this);
+		return context.getCompletionPoller().watch(new Event.Reached(event, true), value);
 	}
 	
 	/**
@@ -117,23 +184,34 @@ public class Stream {
 	 * @author NewName
 	 *
 	 */
-	public static class Event {
+	public static class Event implements AutoCloseable {
 		private Context context;
-		private CUPEvent event;
+		private Object event;
+		private ResourceCleaner.Handle handle;
+		private CompletableFuture<Event> completion;
 		
-		protected Event(Stream stream) {
+		protected Event(final Stream stream) {
 			context = stream.context;
-			event = new CUPEvent();
-			event.setMemoryManaged(false);
-			long flags = 0; // currently required by the API
-			synchronized (context) {
-				context.push();
-				Util.safeCall(Cuda.cuEventCreate(event.cast(), flags));
-				Util.safeCall(Cuda.cuEventRecord(
-						event.value(), 
-						stream.stream.value()
-					));
-				Context.popCurrent();
+			final Backend backend = context.getBackend();
+			event = context.execute(new Context.Task<Object>() {
+				public Object run() {
+					return backend.recordEvent(stream.stream);
+				}
+			});
+			handle = ResourceCleaner.register(this, new Destroyer(context, event));
+		}
+		
+		private static class Destroyer implements Runnable {
+			private Context context;
+			private Object event;
+			Destroyer(Context ctx, Object e) { context = ctx; event = e; }
+			public void run() {
+				final Backend backend = context.getBackend();
+				context.runUnlessDestroyed(new Runnable() {
+					public void run() {
+						backend.destroyEvent(event);
+					}
+				});
 			}
 		}
 		
@@ -142,21 +220,37 @@ public class Stream {
 		 * @return If this event has been reached.
 		 */
 		public boolean isReached() {
-			CUresult result;
-			synchronized (context) {
-				context.push();
-				result = Cuda.cuEventQuery(event.value());
-				Context.popCurrent();
+			return Call.run(context, Call.QUERY_EVENT, event, null);
+		}
+		
+		/**
+		 * Get a future that completes once the associated stream has reached this event.
+		 * 
+		 * Destroying the event before then completes the future with a CancellationException.
+		 * @return The future.
+		 */
+		public synchronized CompletableFuture<Event> getCompletion() {
+			if (completion == null) {
+				completion = context.getCompletionPoller().watch(new Reached(this, false), this);
 			}
-			
-			if (result == CUresult.CUDA_SUCCESS) {
-				return true;
-			} else if (result == CUresult.CUDA_ERROR_NOT_READY) {
-				return false;
-			} else {
-				// this will throw an exception, so the return value is unimportant
-				Util.safeCall(result);
-				return false;
+			return completion;
+		}
+		
+		private static class Reached implements CompletionPoller.Source {
+			private Event event;
+			private boolean owned;
+			Reached(Event e, boolean o) { event = e; owned = o; }
+			public boolean isComplete() {
+				if (event.isDestroyed()) throw new CancellationException("Event destroyed");
+				boolean reached;
+				try {
+					reached = event.isReached();
+				} catch (Error e) {
+					if (owned) event.destroy();
+					throw e;
+				}
+				if (reached && owned) event.destroy();
+				return reached;
 			}
 		}
 		
@@ -164,11 +258,7 @@ public class Stream {
 		 * Blocks the current thread until this event has been reached by the associated stream.
 		 */
 		public void synchronise() {
-			synchronized (context) {
-				context.push();
-				Util.safeCall(Cuda.cuEventSynchronize(event.value()));
-				Context.popCurrent();
-			}
+			Call.run(context, Call.SYNCHRONISE_EVENT, event, null);
 		}
 		
 		public boolean isDestroyed() {
@@ -178,23 +268,17 @@ public class Stream {
 		/**
 		 * Destroy this event.
 		 */
-		public void destroy() {
-			synchronized (context) {
-				if (isDestroyed()) return;
-				context.push();
-				Util.safeCall(Cuda.cuEventDestroy(event.value()));
-				Context.popCurrent();
-				event.delete();
-				event = null;
-			}
+		public synchronized void destroy() {
+			if (isDestroyed()) return;
+			handle.release();
+			event = null;
 		}
 		
-		public void finalize() throws Throwable {
-			try {
-				destroy();
-			} finally {
-				super.finalize();
-			}
+		/**
+		 * Destroy this event, so that it can be used in a try-with-resources statement.
+		 */
+		public void close() {
+			destroy();
 		}
 		
 		/**
@@ -208,16 +292,7 @@ public class Stream {
 		public static float elapsedTime(Event start, Event end) {
 			// TODO: create a specfic exception if the events have not been recorded yet.
 			// TODO: find out the requirements on context.
-			Context context = start.context;
-			CPfloat result = new CPfloat();
-			synchronized (context) {
-				context.push();
-				Util.safeCall(Cuda.cuEventElapsedTime(
-					result.cast(), start.event.value(), end.event.value()
-				));
-				Context.popCurrent();
-			}
-			return result.value();
+			return Call.elapsedTime(start.context, start.event, end.event);
 		}
 	}
 	
@@ -231,7 +306,7 @@ public class Stream {
 		return new Event(this);
 	}
 	
-	protected CUPStream getValue() {
+	protected Object getValue() {
 		return stream;
 	}
 }
@@ -0,0 +1,525 @@
+/*
+* Copyright 2009 Gabriel Collin
+*
+* This file is part of javaCUDA.
+*
+* javaCUDA is free software: you can redistribute it and/or modify it
+* under the terms of the GNU Lesser General Public License as published
+* by the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* javaCUDA is distributed in the hope that it will be useful, but WITHOUT
+* ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+* FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public
+* License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public
+* License along with javaCUDA. If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package org.lambdacomplex.nn.javacuda;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+
+import org.lambdacomplex.nn.javacuda.array.NativeByteArray;
+
+/**
+ * Streams data too large for the device through it in chunks, overlapping the copies and kernels of 
+ * consecutive chunks.
+ * 
+ * The pipeline has a number of slots, its depth, each with a stream, page-locked staging arrays for input and 
+ * output, and device buffers. Chunk i goes through slot i modulo the depth: the host waits for the slot's 
+ * previous chunk, hands its output to the sink and fills the staging array from the source, then queues the 
+ * copy to the device, the stage's kernels and the copy back on the slot's stream. While the host reads and 
+ * writes one chunk, the other slots' copies and kernels run on the device, so with a depth of three or more 
+ * the copy in, the kernel and the copy out of different chunks can all be running at once.
+ * <pre>
+ * StreamingPipeline pipeline = new StreamingPipeline(ctx, 16 * 1024 * 1024, 3);
+ * StreamingPipeline.Statistics s = pipeline.run(
+ *     StreamingPipeline.fromChannel(FileChannel.open(input)),
+ *     new StreamingPipeline.Stage() {
+ *         public int process(StreamingPipeline.Chunk chunk) {
+ *             ... launch on chunk.getStream() with chunk.getInput() and chunk.getOutput()
+ *             return chunk.getSize();
+ *         }
+ *     },
+ *     StreamingPipeline.toChannel(FileChannel.open(output, StandardOpenOption.WRITE)));
+ * System.out.println(s);
+ * </pre>
+ * Every chunk is timed with events, and the statistics give the time spent in each part, the throughput, and 
+ * the overlap: the device time of all the chunks over the time the run took.
+ * @author NewName
+ *
+ */
+public class StreamingPipeline implements AutoCloseable {
+	
+	/**
+	 * Where the input comes from.
+	 */
+	public interface Source {
+		/**
+		 * Fill a staging array from its start.
+		 * @param staging The array.
+		 * @return The number of bytes read, which is only less than the size of the array at the end, and 0 
+		 *     once the input is used up.
+		 */
+		public int read(NativeByteArray staging) throws IOException;
+	}
+	
+	/**
+	 * Where the output goes.
+	 */
+	public interface Sink {
+		/**
+		 * Take the output of a chunk. The chunks come in order.
+		 * @param staging The array holding the output from its start.
+		 * @param bytes The size of the output.
+		 */
+		public void write(NativeByteArray staging, int bytes) throws IOException;
+	}
+	
+	/**
+	 * The work done on each chunk on the device.
+	 */
+	public interface Stage {
+		/**
+		 * Queue the work for a chunk on its stream.
+		 * @param chunk The chunk, with its input already queued for copying to the device.
+		 * @return The number of bytes of output to copy back from the start of the output buffer.
+		 */
+		public int process(Chunk chunk);
+	}
+	
+	/**
+	 * A chunk of the input, in one of the slots of the pipeline.
+	 * @author NewName
+	 *
+	 */
+	public static class Chunk {
+		private long index;
+		private long offset;
+		private int size;
+		private DevicePointer input, output;
+		private Stream stream;
+		
+		public long getIndex() {
+			return index;
+		}
+		
+		/**
+		 * The position of this chunk in the input.
+		 * @return The number of bytes of input before this chunk.
+		 */
+		public long getOffset() {
+			return offset;
+		}
+		
+		/**
+		 * The size of the chunk's input, which is the chunk size except for the last chunk.
+		 */
+		public int getSize() {
+			return size;
+		}
+		
+		public DevicePointer getInput() {
+			return input;
+		}
+		
+		/**
+		 * The device buffer the output is copied back from, the input buffer for a pipeline that works in place.
+		 */
+		public DevicePointer getOutput() {
+			return output;
+		}
+		
+		public Stream getStream() {
+			return stream;
+		}
+	}
+	
+	private class Slot implements Runnable {
+		Stream stream;
+		NativeByteArray hostInput, hostOutput;
+		Chunk chunk = new Chunk();
+		
+		// the events of the chunk in the slot: before and after the copy in, after the stage and after the copy out
+		Object[] events = new Object[4];
+		boolean copyIn;
+		int outputBytes;
+		boolean busy;
+		
+		/**
+		 * Queue a copy and record the events around it.
+		 */
+		public void run() {
+			Backend backend = context.getBackend();
+			Object s = stream.getValue();
+			if (copyIn) {
+				events[0] = backend.recordEvent(s);
+				backend.copyToDevice(chunk.input.getValue(), hostInput, chunk.size, s);
+				events[1] = backend.recordEvent(s);
+			} else {
+				events[2] = backend.recordEvent(s);
+				if (outputBytes > 0) backend.copyFromDevice(hostOutput, chunk.output.getValue(), outputBytes, s);
+				events[3] = backend.recordEvent(s);
+			}
+		}
+	}
+	
+	/**
+	 * Waits for a slot and reads its times.
+	 */
+	private static class Finish implements Runnable {
+		Backend backend;
+		Object[] events;
+		float copyIn, stage, copyOut;
+		
+		public void run() {
+			try {
+				backend.synchronizeEvent(events[3]);
+				copyIn = backend.elapsedTime(events[0], events[1]);
+				stage = backend.elapsedTime(events[1], events[2]);
+				copyOut = backend.elapsedTime(events[2], events[3]);
+			} finally {
+				for (int i = 0; i < events.length; i++) {
+					if (events[i] != null) backend.destroyEvent(events[i]);
+					events[i] = null;
+				}
+			}
+		}
+	}
+	
+	/**
+	 * What a run did and how long it took.
+	 * @author NewName
+	 *
+	 */
+	public static class Statistics {
+		private long chunks, bytesIn, bytesOut;
+		private long elapsed, waiting, reading, writing;
+		private double copyIn, stage, copyOut;
+		
+		public long getChunks() {
+			return chunks;
+		}
+		
+		public long getBytesIn() {
+			return bytesIn;
+		}
+		
+		public long getBytesOut() {
+			return bytesOut;
+		}
+		
+		/**
+		 * The time the run took, from the first read to the last write.
+		 * @return The time in milliseconds.
+		 */
+		public double getElapsedTime() {
+			return elapsed / 1e6;
+		}
+		
+		/**
+		 * The time the host spent waiting for slots to be free, in milliseconds.
+		 */
+		public double getWaitingTime() {
+			return waiting / 1e6;
+		}
+		
+		/**
+		 * The time spent in the source, in milliseconds.
+		 */
+		public double getReadingTime() {
+			return reading / 1e6;
+		}
+		
+		/**
+		 * The time spent in the sink, in milliseconds.
+		 */
+		public double getWritingTime() {
+			return writing / 1e6;
+		}
+		
+		/**
+		 * The device time of all the copies to the device, in milliseconds.
+		 */
+		public double getCopyInTime() {
+			return copyIn;
+		}
+		
+		/**
+		 * The device time of all the stage's work, in milliseconds.
+		 */
+		public double getStageTime() {
+			return stage;
+		}
+		
+		/**
+		 * The device time of all the copies from the device, in milliseconds.
+		 */
+		public double getCopyOutTime() {
+			return copyOut;
+		}
+		
+		/**
+		 * The input processed per second.
+		 * @return The throughput in bytes per second.
+		 */
+		public double getThroughput() {
+			return elapsed == 0 ? 0 : bytesIn * 1e9 / elapsed;
+		}
+		
+		/**
+		 * The device time of every chunk over the time the run took. 1 is no better than doing the chunks one 
+		 * after another on the device, and with the copies and kernels all overlapping it approaches 3.
+		 * @return The overlap.
+		 */
+		public double getOverlap() {
+			return elapsed == 0 ? 0 : (copyIn + stage + copyOut) / getElapsedTime();
+		}
+		
+		public String toString() {
+			return String.format("%d chunks, %d bytes in, %d bytes out in %.3f ms: %.1f MB/s, overlap %.2f%n" 
+					+ "device: copy in %.3f ms, stage %.3f ms, copy out %.3f ms%n" 
+					+ "host: reading %.3f ms, writing %.3f ms, waiting %.3f ms", 
+					chunks, bytesIn, bytesOut, getElapsedTime(), getThroughput() / 1e6, getOverlap(), 
+					copyIn, stage, copyOut, getReadingTime(), getWritingTime(), getWaitingTime());
+		}
+	}
+	
+	private Context context;
+	private int chunkSize;
+	private Slot[] slots;
+	private Finish finish = new Finish();
+	
+	/**
+	 * Create a pipeline whose output chunks are the size of its input chunks.
+	 * @param ctx The context.
+	 * @param chunkSize The size of a chunk of input in bytes.
+	 * @param depth The number of slots.
+	 */
+	public StreamingPipeline(Context ctx, int chunkSize, int depth) {
+		this(ctx, chunkSize, chunkSize, depth);
+	}
+	
+	/**
+	 * Create a pipeline.
+	 * @param ctx The context.
+	 * @param chunkSize The size of a chunk of input in bytes.
+	 * @param outputSize The size of the output buffers, or 0 for the stage to work in place in the input buffer.
+	 * @param depth The number of slots.
+	 */
+	public StreamingPipeline(Context ctx, int chunkSize, int outputSize, int depth) {
+		if (chunkSize <= 0 || outputSize < 0 || depth < 1) throw new IllegalArgumentException();
+		context = ctx;
+		this.chunkSize = chunkSize;
+		slots = new Slot[depth];
+		try {
+			for (int i = 0; i < depth; i++) {
+				Slot s = new Slot();
+				slots[i] = s;
+				s.stream = ctx.createStream();
+				s.hostInput = new NativeByteArray(ctx, chunkSize);
+				// in place, the output is copied back over the input, which has been used by then
+				s.hostOutput = outputSize == 0 ? s.hostInput : new NativeByteArray(ctx, outputSize);
+				s.chunk.stream = s.stream;
+				s.chunk.input = new DevicePointer(ctx, chunkSize, s.stream);
+				s.chunk.output = outputSize == 0 ? s.chunk.input : new DevicePointer(ctx, outputSize, s.stream);
+			}
+		} catch (RuntimeException e) {
+			close();
+			throw e;
+		}
+		finish.backend = ctx.getBackend();
+	}
+	
+	public int getChunkSize() {
+		return chunkSize;
+	}
+	
+	public int getDepth() {
+		return slots.length;
+	}
+	
+	/**
+	 * Stream all of a source through the device.
+	 * 
+	 * A pipeline runs one stream of data at a time; runs on several threads take turns.
+	 * @param source The input.
+	 * @param stage The work on each chunk.
+	 * @param sink The output, or null if nothing is copied back.
+	 * @return What the run did.
+	 * @throws IOException If the source or sink failed. The run stops after the chunks already queued.
+	 */
+	public synchronized Statistics run(Source source, Stage stage, Sink sink) throws IOException {
+		if (slots == null) throw new IllegalStateException("Pipeline closed");
+		Statistics statistics = new Statistics();
+		long start = System.nanoTime();
+		long index = 0;
+		long offset = 0;
+		try {
+			while (true) {
+				Slot s = slots[(int)(index % slots.length)];
+				if (s.busy) finish(s, sink, statistics);
+				
+				long reading = System.nanoTime();
+				int size = source.read(s.hostInput);
+				statistics.reading += System.nanoTime() - reading;
+				if (size <= 0) break;
+				if (size > chunkSize) throw new IllegalStateException("Source read more than a chunk");
+				
+				Chunk chunk = s.chunk;
+				chunk.index = index;
+				chunk.offset = offset;
+				chunk.size = size;
+				s.busy = true;
+				s.copyIn = true;
+				context.run(s);
+				int output = stage.process(chunk);
+				if (output > s.hostOutput.getByteSize() || output > chunk.output.getSize()) {
+					throw new IllegalStateException("Stage output larger than the output buffer");
+				}
+				s.outputBytes = sink == null ? 0 : output;
+				s.copyIn = false;
+				context.run(s);
+				
+				statistics.chunks++;
+				statistics.bytesIn += size;
+				index++;
+				offset += size;
+			}
+			// the rest in order, oldest first
+			for (int i = 0; i < slots.length; i++) {
+				Slot s = slots[(int)((index + i) % slots.length)];
+				if (s.busy) finish(s, sink, statistics);
+			}
+		} finally {
+			// after a failure, let whatever was queued finish before the buffers are used again
+			for (Slot s : slots) {
+				if (s.busy) {
+					s.busy = false;
+					s.stream.synchronise();
+					discard(s);
+				}
+			}
+		}
+		statistics.elapsed = System.nanoTime() - start;
+		return statistics;
+	}
+	
+	private void finish(Slot s, Sink sink, Statistics statistics) throws IOException {
+		long waiting = System.nanoTime();
+		finish.events = s.events;
+		try {
+			context.run(finish);
+		} finally {
+			s.busy = false;
+		}
+		statistics.waiting += System.nanoTime() - waiting;
+		statistics.copyIn += finish.copyIn;
+		statistics.stage += finish.stage;
+		statistics.copyOut += finish.copyOut;
+		
+		if (s.outputBytes > 0) {
+			long writing = System.nanoTime();
+			sink.write(s.hostOutput, s.outputBytes);
+			statistics.writing += System.nanoTime() - writing;
+			statistics.bytesOut += s.outputBytes;
+		}
+	}
+	
+	private void discard(final Slot s) {
+		final Backend backend = context.getBackend();
+		context.run(new Runnable() {
+			public void run() {
+				for (int i = 0; i < s.events.length; i++) {
+					if (s.events[i] != null) backend.destroyEvent(s.events[i]);
+					s.events[i] = null;
+				}
+			}
+		});
+	}
+	
+	/**
+	 * Read the input from a host array.
+	 */
+	public static Source fromArray(final NativeByteArray array) {
+		return new Source() {
+			private int position;
+			public int read(NativeByteArray staging) {
+				int size = Math.min(staging.getByteSize(), array.getByteSize() - position);
+				ByteBuffer from = array.asByteBuffer();
+				from.position(position).limit(position + size);
+				staging.asByteBuffer().put(from);
+				position += size;
+				return size;
+			}
+		};
+	}
+	
+	/**
+	 * Read the input from a channel, such as a FileChannel, until it ends.
+	 */
+	public static Source fromChannel(final ReadableByteChannel channel) {
+		return new Source() {
+			public int read(NativeByteArray staging) throws IOException {
+				ByteBuffer to = staging.asByteBuffer();
+				while (to.hasRemaining()) {
+					if (channel.read(to) < 0) break;
+				}
+				return to.position();
+			}
+		};
+	}
+	
+	/**
+	 * Write the output into a host array, one chunk after another.
+	 */
+	public static Sink toArray(final NativeByteArray array) {
+		return new Sink() {
+			private int position;
+			public void write(NativeByteArray staging, int bytes) {
+				if (position + bytes > array.getByteSize()) throw new IndexOutOfBoundsException("Output array full");
+				ByteBuffer from = staging.asByteBuffer();
+				from.limit(bytes);
+				ByteBuffer to = array.asByteBuffer();
+				to.position(position);
+				to.put(from);
+				position += bytes;
+			}
+		};
+	}
+	
+	/**
+	 * Write the output to a channel, such as a FileChannel.
+	 */
+	public static Sink toChannel(final WritableByteChannel channel) {
+		return new Sink() {
+			public void write(NativeByteArray staging, int bytes) throws IOException {
+				ByteBuffer from = staging.asByteBuffer();
+				from.limit(bytes);
+				while (from.hasRemaining()) channel.write(from);
+			}
+		};
+	}
+	
+	/**
+	 * Free the staging arrays and device buffers and destroy the streams.
+	 */
+	public synchronized void close() {
+		if (slots == null) return;
+		for (Slot s : slots) {
+			if (s == null) continue;
+			if (s.stream != null) s.stream.synchronise();
+			if (s.chunk.output != null && s.chunk.output != s.chunk.input) s.chunk.output.free();
+			if (s.chunk.input != null) s.chunk.input.free();
+			if (s.hostOutput != null && s.hostOutput != s.hostInput) s.hostOutput.free();
+			if (s.hostInput != null) s.hostInput.free();
+			if (s.stream != null) s.stream.destroy();
+		}
+		slots = null;
+	}
+}
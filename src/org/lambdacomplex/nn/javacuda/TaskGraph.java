@@ -0,0 +1,561 @@
+/*
+* Copyright 2009 Gabriel Collin
+*
+* This file is part of javaCUDA.
+*
+* javaCUDA is free software: you can redistribute it and/or modify it
+* under the terms of the GNU Lesser General Public License as published
+* by the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* javaCUDA is distributed in the hope that it will be useful, but WITHOUT
+* ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+* FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public
+* License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public
+* License along with javaCUDA. If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package org.lambdacomplex.nn.javacuda;
+
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+
+import org.lambdacomplex.nn.javacuda.array.NativeByteArray;
+
+/**
+ * Copies and launches declared with the buffers they read and write, run over a pool of streams.
+ * 
+ * Each task depends on the earlier tasks that touch the same memory: reading after a write, writing after a 
+ * read and writing after a write. Device buffers are compared by address range, so slices of one allocation 
+ * overlap as they should; host arrays are compared by identity. The order the tasks are added in is the order 
+ * the program means, so independent tasks can run in any order while dependent ones keep theirs.
+ * 
+ * When the graph is executed, each task is put on the stream where it could start earliest, counting every 
+ * task as one unit of time, or as the time it took when the graph was last executed timed. A stream waits for 
+ * a task on another stream with an event, and not at all if it already waits for a later task of that stream. 
+ * Where the backend has a device-side wait, as PanamaBackend and CpuBackend do, queuing the graph does not 
+ * block the host. The SWIG wrapper predates cuStreamWaitEvent, so there each wait, and the join of the 
+ * streams at the end, waits on the host, and execute only returns once the graph has nearly finished. The 
+ * graph can be executed again; the next execution starts after this one.
+ * <pre>
+ * TaskGraph graph = new TaskGraph(ctx, 4);
+ * for (int i = 0; i < chunks; i++) {
+ *     graph.copyToDevice(input[i], host[i]);
+ *     graph.launch(function, new Function.Argument[]{ new Function.PointerArgument(input[i]), 
+ *         new Function.PointerArgument(output[i]) }, new DevicePointer[]{ input[i] }, new DevicePointer[]{ output[i] });
+ *     graph.copyToHost(result[i], output[i]);
+ * }
+ * graph.execute().join();
+ * </pre>
+ * The grid and block size of a function are taken when it is added. Host arrays should be page-locked, as 
+ * for any asynchronous copy, or the copies do not overlap with anything.
+ * @author NewName
+ *
+ */
+public class TaskGraph implements AutoCloseable {
+	
+	/**
+	 * A copy or launch in the graph.
+	 * @author NewName
+	 *
+	 */
+	public static abstract class Task {
+		private String name;
+		private int index;
+		private Task[] dependencies;
+		
+		// the plan
+		private int stream = -1;
+		private int position;
+		private int[] clock;
+		private Task[] waits;
+		private boolean signals;
+		private double finish;
+		
+		// one execution
+		private Object event;
+		private Object started;
+		private float time = Float.NaN;
+		
+		Task(String n) { name = n; }
+		
+		abstract void run(Backend backend, Object stream);
+		
+		void free() {}
+		
+		public String getName() {
+			return name;
+		}
+		
+		/**
+		 * The tasks this one has to wait for, found from the buffers they use.
+		 */
+		public List<Task> getDependencies() {
+			return Collections.unmodifiableList(Arrays.asList(dependencies));
+		}
+		
+		/**
+		 * The stream the task was put on, from 0 up to the number of streams of the graph.
+		 * @return The index of the stream, or -1 before the graph is first executed.
+		 */
+		public int getStream() {
+			return stream;
+		}
+		
+		/**
+		 * The tasks on other streams that the stream of this task waits for before it.
+		 */
+		public List<Task> getWaits() {
+			return waits == null ? Collections.<Task>emptyList() : Collections.unmodifiableList(Arrays.asList(waits));
+		}
+		
+		/**
+		 * The time the device took for this task, when the graph was last executed timed.
+		 * @return The time in milliseconds, or NaN.
+		 */
+		public float getTime() {
+			return time;
+		}
+		
+		public String toString() {
+			return name + "#" + index;
+		}
+	}
+	
+	private static class Copy extends Task {
+		private boolean toDevice;
+		private DevicePointer device;
+		private NativeByteArray host;
+		
+		Copy(boolean toDevice, DevicePointer device, NativeByteArray host) {
+			super(toDevice ? "copyToDevice" : "copyToHost");
+			this.toDevice = toDevice;
+			this.device = device;
+			this.host = host;
+		}
+		
+		void run(Backend backend, Object stream) {
+			if (device.isFreed() || host.isFreed()) throw new IllegalStateException("Buffer of " + this + " freed");
+			if (toDevice) {
+				backend.copyToDevice(device.getValue(), host, host.getByteSize(), stream);
+			} else {
+				backend.copyFromDevice(host, device.getValue(), host.getByteSize(), stream);
+			}
+		}
+	}
+	
+	private static class Launch extends Task {
+		private Object function;
+		private Function.GridSize grid;
+		private Function.BlockSize block;
+		private KernelArguments arguments;
+		
+		Launch(Function f, KernelArguments a) {
+			super(f.getName());
+			function = f.getHandle();
+			grid = f.getGridSize();
+			block = f.getBlockSize();
+			arguments = a;
+		}
+		
+		void run(Backend backend, Object stream) {
+			backend.launch(function, grid, block, arguments.getParams(), arguments.getSize(), stream);
+		}
+		
+		void free() {
+			arguments.free();
+		}
+	}
+	
+	/**
+	 * A use of some memory by a task, kept until a later write covers it.
+	 */
+	private static class Access {
+		Task task;
+		boolean write;
+		// device memory
+		long start, end;
+		// or a host array
+		NativeByteArray host;
+		
+		boolean overlaps(Access a) {
+			if (host != null || a.host != null) return host == a.host;
+			return start < a.end && a.start < end;
+		}
+		
+		boolean covers(Access a) {
+			if (host != null || a.host != null) return host == a.host;
+			return start <= a.start && a.end <= end;
+		}
+	}
+	
+	private Context context;
+	private Stream[] streams;
+	private List<Task> tasks = new ArrayList<Task>();
+	private List<Access> accesses = new ArrayList<Access>();
+	private boolean planned;
+	private boolean timed;
+	private boolean pendingTimes;
+	// reached once everything of the last execution is done
+	private Object joined;
+	
+	/**
+	 * Create an empty graph with its own streams.
+	 * @param ctx The context.
+	 * @param streamCount The number of streams to spread the tasks over.
+	 */
+	public TaskGraph(Context ctx, int streamCount) {
+		if (streamCount < 1) throw new IllegalArgumentException("At least one stream is needed");
+		context = ctx;
+		streams = new Stream[streamCount];
+		for (int i = 0; i < streamCount; i++) streams[i] = ctx.createStream();
+	}
+	
+	/**
+	 * Add a copy of a whole host array to the start of a device buffer.
+	 * @return The task.
+	 */
+	public Task copyToDevice(DevicePointer dst, NativeByteArray src) {
+		if (src.getByteSize() > dst.getSize()) throw new IndexOutOfBoundsException("Array larger than the device buffer");
+		List<Access> uses = new ArrayList<Access>();
+		uses.add(host(src, false));
+		uses.add(device(dst, src.getByteSize(), true));
+		return add(new Copy(true, dst, src), uses);
+	}
+	
+	/**
+	 * Add a copy of the start of a device buffer into a whole host array.
+	 * @return The task.
+	 */
+	public Task copyToHost(NativeByteArray dst, DevicePointer src) {
+		if (dst.getByteSize() > src.getSize()) throw new IndexOutOfBoundsException("Array larger than the device buffer");
+		List<Access> uses = new ArrayList<Access>();
+		uses.add(device(src, dst.getByteSize(), false));
+		uses.add(host(dst, true));
+		return add(new Copy(false, src, dst), uses);
+	}
+	
+	/**
+	 * Add a launch, taking every pointer argument to be both read and written.
+	 * @return The task.
+	 */
+	public Task launch(Function function, Function.Argument... args) {
+		List<DevicePointer> pointers = new ArrayList<DevicePointer>();
+		for (Function.Argument a : args) {
+			if (a instanceof Function.PointerArgument) pointers.add(((Function.PointerArgument)a).getPointer());
+		}
+		DevicePointer[] both = pointers.toArray(new DevicePointer[pointers.size()]);
+		return launch(function, args, both, both);
+	}
+	
+	/**
+	 * Add a launch.
+	 * @param function The function, with its grid and block size set.
+	 * @param args The arguments.
+	 * @param reads The device buffers the function reads.
+	 * @param writes The device buffers the function writes.
+	 * @return The task.
+	 */
+	public Task launch(Function function, Function.Argument[] args, DevicePointer[] reads, DevicePointer[] writes) {
+		if (function.getGridSize() == null || function.getBlockSize() == null) {
+			throw new IllegalStateException("Set the grid and block size of " + function.getName() + " first");
+		}
+		List<Access> uses = new ArrayList<Access>();
+		for (DevicePointer p : reads) uses.add(device(p, p.getSize(), false));
+		for (DevicePointer p : writes) uses.add(device(p, p.getSize(), true));
+		KernelArguments arguments = function.createArguments();
+		try {
+			for (Function.Argument a : args) a.addTo(arguments);
+		} catch (RuntimeException e) {
+			arguments.free();
+			throw e;
+		}
+		return add(new Launch(function, arguments), uses);
+	}
+	
+	private static Access device(DevicePointer p, long size, boolean write) {
+		if (p.isFreed()) throw new IllegalStateException("Device buffer freed");
+		Access a = new Access();
+		a.start = p.getValue();
+		a.end = a.start + size;
+		a.write = write;
+		return a;
+	}
+	
+	private static Access host(NativeByteArray array, boolean write) {
+		Access a = new Access();
+		a.host = array;
+		a.write = write;
+		return a;
+	}
+	
+	private Task add(Task task, List<Access> uses) {
+		if (streams == null) {
+			task.free();
+			throw new IllegalStateException("Graph closed");
+		}
+		Set<Task> dependencies = new LinkedHashSet<Task>();
+		for (Access use : uses) {
+			for (Access earlier : accesses) {
+				if ((use.write || earlier.write) && use.overlaps(earlier)) dependencies.add(earlier.task);
+			}
+		}
+		for (Access use : uses) {
+			use.task = task;
+			if (use.write) {
+				// whatever comes later depends on this write, which depends on everything it covers
+				Iterator<Access> i = accesses.iterator();
+				while (i.hasNext()) {
+					if (use.covers(i.next())) i.remove();
+				}
+			}
+			accesses.add(use);
+		}
+		task.index = tasks.size();
+		task.dependencies = dependencies.toArray(new Task[dependencies.size()]);
+		tasks.add(task);
+		planned = false;
+		return task;
+	}
+	
+	public List<Task> getTasks() {
+		return Collections.unmodifiableList(tasks);
+	}
+	
+	public int getStreamCount() {
+		return streams == null ? 0 : streams.length;
+	}
+	
+	/**
+	 * Time every task with a pair of events on the next executions, for getTime, getCriticalPath and the plan 
+	 * of later executions.
+	 */
+	public void setTimed(boolean timed) {
+		this.timed = timed;
+	}
+	
+	private double cost(Task t) {
+		return Float.isNaN(t.time) ? 1 : t.time;
+	}
+	
+	/**
+	 * Assign each task a stream, and find the waits between streams.
+	 */
+	private void plan() {
+		int n = streams.length;
+		double[] free = new double[n];
+		int[] count = new int[n];
+		Task[] last = new Task[n];
+		// known[s][o] is the position of the last task on stream o that stream s has waited for
+		int[][] known = new int[n][n];
+		List<Task> waits = new ArrayList<Task>();
+		
+		for (Task t : tasks) {
+			double ready = 0;
+			for (Task d : t.dependencies) ready = Math.max(ready, d.finish);
+			int best = 0;
+			double bestStart = Double.MAX_VALUE;
+			boolean bestFollows = false;
+			for (int s = 0; s < n; s++) {
+				double start = Math.max(ready, free[s]);
+				boolean follows = last[s] != null && Arrays.asList(t.dependencies).contains(last[s]);
+				if (start < bestStart || (start == bestStart && follows && !bestFollows)) {
+					best = s;
+					bestStart = start;
+					bestFollows = follows;
+				}
+			}
+			
+			int s = best;
+			t.stream = s;
+			t.position = ++count[s];
+			waits.clear();
+			// the latest dependencies first, as waiting for them can make waiting for the earlier ones unnecessary
+			Task[] latest = t.dependencies.clone();
+			Arrays.sort(latest, new Comparator<Task>() {
+				public int compare(Task a, Task b) { return b.index - a.index; }
+			});
+			for (Task d : latest) {
+				if (d.stream == s || known[s][d.stream] >= d.position) continue;
+				waits.add(d);
+				d.signals = true;
+				for (int o = 0; o < n; o++) known[s][o] = Math.max(known[s][o], d.clock[o]);
+			}
+			t.waits = waits.toArray(new Task[waits.size()]);
+			t.clock = known[s].clone();
+			t.clock[s] = t.position;
+			t.finish = bestStart + cost(t);
+			free[s] = t.finish;
+			last[s] = t;
+		}
+		planned = true;
+	}
+	
+	/**
+	 * Queue every task on the streams.
+	 */
+	private class Issue implements Runnable {
+		public void run() {
+			Backend backend = context.getBackend();
+			Object first = streams[0].getValue();
+			boolean issued = false;
+			try {
+				if (joined != null) {
+					for (int s = 1; s < streams.length; s++) backend.waitEvent(streams[s].getValue(), joined);
+					backend.destroyEvent(joined);
+					joined = null;
+				}
+				for (Task t : tasks) {
+					Object stream = streams[t.stream].getValue();
+					for (Task w : t.waits) backend.waitEvent(stream, w.event);
+					if (timed) t.started = backend.recordEvent(stream);
+					t.run(backend, stream);
+					if (timed || t.signals) t.event = backend.recordEvent(stream);
+				}
+				for (int s = 1; s < streams.length; s++) {
+					Object end = backend.recordEvent(streams[s].getValue());
+					try {
+						backend.waitEvent(first, end);
+					} finally {
+						backend.destroyEvent(end);
+					}
+				}
+				joined = backend.recordEvent(first);
+				issued = true;
+			} finally {
+				// the events of a timed execution are kept for collectTimes, unless it failed and never gets there
+				if (!timed || !issued) {
+					for (Task t : tasks) {
+						if (t.event != null) backend.destroyEvent(t.event);
+						if (t.started != null) backend.destroyEvent(t.started);
+						t.event = null;
+						t.started = null;
+					}
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Queue every task on the streams, after anything already queued on them.
+	 * 
+	 * With a backend that waits for events on the host, this blocks until the tasks on every stream but the 
+	 * first have finished.
+	 * @return A future that completes once every task is done.
+	 */
+	public CompletableFuture<TaskGraph> execute() {
+		if (streams == null) throw new IllegalStateException("Graph closed");
+		if (pendingTimes) collectTimes();
+		if (!planned) plan();
+		context.run(new Issue());
+		if (timed) pendingTimes = true;
+		return streams[0].track(this);
+	}
+	
+	/**
+	 * Read the times of the last timed execution, waiting for it if need be.
+	 */
+	private void collectTimes() {
+		pendingTimes = false;
+		final Backend backend = context.getBackend();
+		context.run(new Runnable() {
+			public void run() {
+				for (Task t : tasks) {
+					if (t.started == null) continue;
+					try {
+						backend.synchronizeEvent(t.event);
+						t.time = backend.elapsedTime(t.started, t.event);
+					} finally {
+						backend.destroyEvent(t.started);
+						backend.destroyEvent(t.event);
+						t.started = null;
+						t.event = null;
+					}
+				}
+			}
+		});
+		// later executions are planned with the times
+		planned = false;
+	}
+	
+	/**
+	 * Find the longest chain of dependent tasks, which no number of streams can run in less time.
+	 * 
+	 * After a timed execution the length is its time, otherwise the number of tasks. Times are waited for if 
+	 * the execution has not finished.
+	 * @return The tasks of the critical path in order.
+	 */
+	public List<Task> getCriticalPath() {
+		if (pendingTimes) collectTimes();
+		double[] length = new double[tasks.size()];
+		Task[] previous = new Task[tasks.size()];
+		Task end = null;
+		for (Task t : tasks) {
+			double before = 0;
+			for (Task d : t.dependencies) {
+				if (length[d.index] > before) {
+					before = length[d.index];
+					previous[t.index] = d;
+				}
+			}
+			length[t.index] = before + cost(t);
+			if (end == null || length[t.index] > length[end.index]) end = t;
+		}
+		LinkedList<Task> path = new LinkedList<Task>();
+		for (Task t = end; t != null; t = previous[t.index]) path.addFirst(t);
+		return path;
+	}
+	
+	/**
+	 * The length of the critical path.
+	 * @return The time in milliseconds after a timed execution, otherwise the number of tasks on it.
+	 */
+	public double getCriticalPathLength() {
+		double length = 0;
+		for (Task t : getCriticalPath()) length += cost(t);
+		return length;
+	}
+	
+	/**
+	 * Describe the plan of the next execution: the stream and waits of each task, with the times of the last 
+	 * timed execution, then the critical path.
+	 */
+	public String report() {
+		List<Task> path = getCriticalPath();
+		if (!planned) plan();
+		StringBuilder b = new StringBuilder();
+		for (Task t : tasks) {
+			b.append(String.format("%-24s stream %d", t, t.stream));
+			if (!Float.isNaN(t.time)) b.append(String.format(" %10.3f ms", t.time));
+			if (t.waits.length > 0) b.append(" waits for ").append(Arrays.toString(t.waits));
+			b.append('\n');
+		}
+		b.append("critical path ").append(path).append(String.format(", length %.3f%n", getCriticalPathLength()));
+		return b.toString();
+	}
+	
+	/**
+	 * Destroy the streams and free the launch arguments, once the last execution is done.
+	 */
+	public void close() {
+		if (streams == null) return;
+		streams[0].synchronise();
+		if (pendingTimes) collectTimes();
+		if (joined != null) {
+			final Backend backend = context.getBackend();
+			final Object event = joined;
+			context.run(new Runnable() {
+				public void run() {
+					backend.destroyEvent(event);
+				}
+			});
+			joined = null;
+		}
+		for (Stream s : streams) s.destroy();
+		for (Task t : tasks) t.free();
+		streams = null;
+		accesses.clear();
+	}
+}
@@ -0,0 +1,38 @@
+/*
+* Copyright 2009 Gabriel Collin
+*
+* This file is part of javaCUDA.
+*
+* javaCUDA is free software: you can redistribute it and/or modify it
+* under the terms of the GNU Lesser General Public License as published
+* by the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* javaCUDA is distributed in the hope that it will be useful, but WITHOUT
+* ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+* FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public
+* License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public
+* License along with javaCUDA. If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package org.lambdacomplex.nn.javacuda.array;
+
+import jdk.jfr.*;
+
+/**
+ * A flight recorder event for allocating page-locked host memory from the driver.
+ * 
+ * Arrays taken from a context's host memory pool only allocate when the pool has no free block big enough.
+ * @author NewName
+ *
+ */
+@Name("org.lambdacomplex.nn.javacuda.HostAllocation")
+@Label("Page-locked Host Allocation")
+@Category("javaCUDA")
+class HostAllocationEvent extends Event {
+	@Label("Size")
+	@DataAmount
+	long bytes;
+}
@@ -0,0 +1,41 @@
+/*
+* Copyright 2009 Gabriel Collin
+*
+* This file is part of javaCUDA.
+*
+* javaCUDA is free software: you can redistribute it and/or modify it
+* under the terms of the GNU Lesser General Public License as published
+* by the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* javaCUDA is distributed in the hope that it will be useful, but WITHOUT
+* ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+* FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public
+* License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public
+* License along with javaCUDA. If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package org.lambdacomplex.nn.javacuda.array;
+
+/**
+ * A source of raw host memory for a HostMemoryPool.
+ * @author NewName
+ * 
+ * @param <T> The type that refers to a block of allocated memory.
+ */
+public interface HostAllocator<T> {
+	/**
+	 * Allocate a block of memory.
+	 * @param size The size of the block in bytes.
+	 * @return The new block.
+	 */
+	public T allocate(int size);
+	
+	/**
+	 * Release a block of memory obtained from allocate.
+	 * @param memory The block to release.
+	 */
+	public void free(T memory);
+}
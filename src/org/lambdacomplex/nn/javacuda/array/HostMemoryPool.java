@@ -0,0 +1,273 @@
+/*
+* Copyright 2009 Gabriel Collin
+*
+* This file is part of javaCUDA.
+*
+* javaCUDA is free software: you can redistribute it and/or modify it
+* under the terms of the GNU Lesser General Public License as published
+* by the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* javaCUDA is distributed in the hope that it will be useful, but WITHOUT
+* ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+* FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public
+* License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public
+* License along with javaCUDA. If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package org.lambdacomplex.nn.javacuda.array;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A pool that recycles blocks of host memory instead of returning them to the allocator.
+ * 
+ * Requests are rounded up to a power-of-two size class, and freed blocks are kept on a free list
+ * for their class until the pool is trimmed or the cap on cached memory is reached. Requests larger
+ * than the largest size class bypass the pool.
+ * 
+ * Page-locked arrays created with NativeByteArray(Context, int) come from the pool of that context.
+ * @author NewName
+ * 
+ * @param <T> The type that refers to a block of allocated memory.
+ */
+public class HostMemoryPool<T> {
+	public static final int DEFAULT_MIN_BLOCK_SIZE = 4 * 1024;
+	public static final int DEFAULT_MAX_BLOCK_SIZE = 64 * 1024 * 1024;
+	public static final long DEFAULT_MAX_CACHED_BYTES = 256L * 1024 * 1024;
+	// the largest power of two an int holds
+	public static final int MAX_BLOCK_SIZE = 1 << 30;
+	
+	/**
+	 * A block of memory handed out by the pool.
+	 * @author NewName
+	 * 
+	 * @param <T> The type that refers to a block of allocated memory.
+	 */
+	public static class Block<T> {
+		private T memory;
+		private int capacity;
+		private int sizeClass;
+		private boolean released;
+		
+		private Block(T memory, int capacity, int sizeClass) {
+			this.memory = memory;
+			this.capacity = capacity;
+			this.sizeClass = sizeClass;
+		}
+		
+		public T getMemory() {
+			return memory;
+		}
+		
+		/**
+		 * The usable size of this block, which may be larger than the size requested.
+		 * @return The size in bytes.
+		 */
+		public int getCapacity() {
+			return capacity;
+		}
+	}
+	
+	private HostAllocator<T> allocator;
+	private int minBlockSize;
+	private int maxBlockSize;
+	private long maxCachedBytes;
+	private List<ArrayDeque<Block<T>>> freeLists;
+	
+	private long bytesInUse;
+	private long highWaterBytes;
+	private long cachedBytes;
+	private long hits;
+	private long misses;
+	
+	public HostMemoryPool(HostAllocator<T> allocator) {
+		this(allocator, DEFAULT_MIN_BLOCK_SIZE, DEFAULT_MAX_BLOCK_SIZE, DEFAULT_MAX_CACHED_BYTES);
+	}
+	
+	/**
+	 * Create a pool.
+	 * @param allocator The allocator the pool gets its memory from.
+	 * @param minBlockSize The smallest size class, rounded up to a power of two.
+	 * @param maxBlockSize The largest size class, rounded up to a power of two, at most MAX_BLOCK_SIZE. Larger 
+	 * requests are not pooled.
+	 * @param maxCachedBytes The most memory that may be held on the free lists at once.
+	 */
+	public HostMemoryPool(HostAllocator<T> allocator, int minBlockSize, int maxBlockSize, long maxCachedBytes) {
+		if (minBlockSize <= 0 || maxBlockSize < minBlockSize || maxBlockSize > MAX_BLOCK_SIZE) 
+			throw new IllegalArgumentException();
+		this.allocator = allocator;
+		this.minBlockSize = roundUp(minBlockSize);
+		this.maxBlockSize = roundUp(maxBlockSize);
+		this.maxCachedBytes = maxCachedBytes;
+		int classes = sizeClass(this.maxBlockSize) + 1;
+		freeLists = new ArrayList<ArrayDeque<Block<T>>>(classes);
+		for (int i = 0; i < classes; i++) {
+			freeLists.add(new ArrayDeque<Block<T>>());
+		}
+	}
+	
+	private static int roundUp(int size) {
+		int rounded = Integer.highestOneBit(size);
+		return rounded == size ? size : rounded << 1;
+	}
+	
+	private int sizeClass(int size) {
+		if (size <= minBlockSize) return 0;
+		return Integer.numberOfTrailingZeros(roundUp(size)) - Integer.numberOfTrailingZeros(minBlockSize);
+	}
+	
+	/**
+	 * Get a block of at least the given size, reusing a free block if there is one.
+	 * @param size The size needed in bytes.
+	 * @return The block.
+	 */
+	public Block<T> acquire(int size) {
+		if (size < 0) throw new IllegalArgumentException();
+		
+		if (size > maxBlockSize) {
+			Block<T> block = new Block<T>(allocator.allocate(size), size, -1);
+			synchronized (this) {
+				misses++;
+				addInUse(size);
+			}
+			return block;
+		}
+		
+		int sizeClass = sizeClass(size);
+		int capacity = minBlockSize << sizeClass;
+		synchronized (this) {
+			Block<T> block = freeLists.get(sizeClass).pollFirst();
+			if (block != null) {
+				hits++;
+				cachedBytes -= capacity;
+				addInUse(capacity);
+				block.released = false;
+				return block;
+			}
+			misses++;
+		}
+		
+		// allocate outside the lock, the allocator may be slow
+		Block<T> block = new Block<T>(allocator.allocate(capacity), capacity, sizeClass);
+		synchronized (this) {
+			addInUse(capacity);
+		}
+		return block;
+	}
+	
+	private void addInUse(long bytes) {
+		bytesInUse += bytes;
+		if (bytesInUse > highWaterBytes) highWaterBytes = bytesInUse;
+	}
+	
+	/**
+	 * Return a block to the pool.
+	 * 
+	 * The block is kept for reuse unless it is too large to pool or the cache is full, in which case it is freed.
+	 * @param block The block to return.
+	 */
+	public void release(Block<T> block) {
+		synchronized (this) {
+			if (block.released) throw new IllegalStateException("Block allready released");
+			block.released = true;
+			bytesInUse -= block.capacity;
+			if (block.sizeClass >= 0 && cachedBytes + block.capacity <= maxCachedBytes) {
+				freeLists.get(block.sizeClass).addFirst(block);
+				cachedBytes += block.capacity;
+				return;
+			}
+		}
+		allocator.free(block.memory);
+	}
+	
+	/**
+	 * Free every cached block.
+	 */
+	public void trim() {
+		trim(0);
+	}
+	
+	/**
+	 * Free cached blocks, largest first, until no more than the given amount is cached.
+	 * @param targetBytes The amount of cached memory to keep in bytes.
+	 */
+	public void trim(long targetBytes) {
+		ArrayDeque<Block<T>> toFree = new ArrayDeque<Block<T>>();
+		synchronized (this) {
+			for (int i = freeLists.size() - 1; i >= 0 && cachedBytes > targetBytes; i--) {
+				while (cachedBytes > targetBytes && !freeLists.get(i).isEmpty()) {
+					Block<T> block = freeLists.get(i).pollLast();
+					cachedBytes -= block.capacity;
+					toFree.add(block);
+				}
+			}
+		}
+		for (Block<T> block : toFree) {
+			allocator.free(block.memory);
+		}
+	}
+	
+	/**
+	 * Set the most memory that may be held on the free lists at once, trimming the pool if it already holds more.
+	 * @param bytes The cap in bytes.
+	 */
+	public void setMaxCachedBytes(long bytes) {
+		synchronized (this) {
+			maxCachedBytes = bytes;
+		}
+		trim(bytes);
+	}
+	
+	public synchronized long getMaxCachedBytes() {
+		return maxCachedBytes;
+	}
+	
+	/**
+	 * The memory currently handed out by the pool, including rounding.
+	 * @return The amount in bytes.
+	 */
+	public synchronized long getBytesInUse() {
+		return bytesInUse;
+	}
+	
+	/**
+	 * The largest amount of memory that has been handed out at once since creation or the last reset.
+	 * @return The amount in bytes.
+	 */
+	public synchronized long getHighWaterBytes() {
+		return highWaterBytes;
+	}
+	
+	public synchronized void resetHighWaterBytes() {
+		highWaterBytes = bytesInUse;
+	}
+	
+	/**
+	 * The memory held on the free lists waiting to be reused.
+	 * @return The amount in bytes.
+	 */
+	public synchronized long getCachedBytes() {
+		return cachedBytes;
+	}
+	
+	/**
+	 * The number of requests served from the free lists.
+	 * @return The hit count.
+	 */
+	public synchronized long getHits() {
+		return hits;
+	}
+	
+	/**
+	 * The number of requests that had to go to the allocator.
+	 * @return The miss count.
+	 */
+	public synchronized long getMisses() {
+		return misses;
+	}
+}
@@ -19,18 +19,23 @@
 
 package org.lambdacomplex.nn.javacuda.array;
 
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
 import org.lambdacomplex.nn.javacuda.swig.*;
 import org.lambdacomplex.nn.javacuda.*;
 
-public class NativeByteArray {
-	static {
-		System.loadLibrary("CUDAWrapper");
-	}
-	
+public class NativeByteArray implements AutoCloseable {
+	// null when there is no CUDA driver and the memory is a direct buffer
 	private CUByteArray backer;
+	// the driver's pointers to the array, converted on first use and kept
+	private SWIGTYPE_p_signed_char nativePointer;
+	private SWIGTYPE_p_void voidPointer;
+	private ByteBuffer buffer;
 	private int size;
 	private boolean pageLocked;
-	private Context context;
+	private HostMemoryPool.Block<CUByteArray> block;
+	private ResourceCleaner.Handle handle;
 	
 	public enum Type {
 		Paged,
@@ -38,36 +43,156 @@ public class NativeByteArray {
 	}
 	
 	public NativeByteArray(int size) {
-		backer = new CUByteArray(size);
 		this.size = size;
 		pageLocked = false;
+		if (CudaBackend.isAvailable()) {
+			backer = new CUByteArray(size);
+			buffer = wrap(backer, size);
+			handle = register(buffer, new Deleter(backer));
+		} else {
+			buffer = ByteBuffer.allocateDirect(size).order(ByteOrder.LITTLE_ENDIAN);
+		}
 	}
 	
-	public NativeByteArray(Context ctx, final int size) {
-		final CUPvoid mem = new CUPvoid();
-		ctx.run(new Runnable(){
-			public void run() { 
-				CUresult result = Cuda.cuMemAllocHost(mem.cast(), size);
-				if ( result != CUresult.CUDA_SUCCESS)
-					throw new CudaAPIError(result.toString());
-			}
-		});
-		backer = CUByteArray.frompointer(Cuda.toByteArray(mem.value()));
-		context = ctx;
+	/**
+	 * Create a page-locked array, taking its memory from the context's host memory pool.
+	 * 
+	 * If the context's backend has no page-locked memory, the array is ordinary native memory.
+	 * @param ctx The context the memory is page-locked for.
+	 * @param size The size of the array in bytes.
+	 */
+	public NativeByteArray(Context ctx, int size) {
+		if (!ctx.getBackend().hasPageLockedMemory()) {
+			this.size = size;
+			pageLocked = true;
+			buffer = ByteBuffer.allocateDirect(size).order(ByteOrder.LITTLE_ENDIAN);
+			return;
+		}
+		HostMemoryPool<CUByteArray> pool = ctx.getHostMemoryPool();
+		block = pool.acquire(size);
+		backer = block.getMemory();
 		this.size = size;
 		pageLocked = true;
+		buffer = wrap(backer, size);
+		handle = register(buffer, new Releaser(pool, block));
+	}
+	
+	/**
+	 * Create an array that views part of another array.
+	 * 
+	 * No memory is allocated, and the view must not be used once the parent is freed. Freeing the view does not free the parent.
+	 * @param parent The array to view.
+	 * @param offset The index in the parent of the first byte of the view.
+	 * @param size The size of the view in bytes.
+	 */
+	public NativeByteArray(NativeByteArray parent, int offset, int size) {
+		if (parent.isFreed()) throw new IllegalStateException();
+		if (offset < 0 || size < 0 || offset + size > parent.size) throw new IndexOutOfBoundsException();
+		if (parent.backer != null) backer = CUByteArray.frompointer(Cuda.byteOffset(parent.backer.cast(), offset));
+		ByteBuffer b = parent.buffer.duplicate();
+		b.position(offset);
+		b.limit(offset + size);
+		buffer = b.slice().order(ByteOrder.LITTLE_ENDIAN);
+		this.size = size;
+		pageLocked = parent.pageLocked;
+	}
+	
+	private static class Deleter implements Runnable {
+		private CUByteArray array;
+		Deleter(CUByteArray a) { array = a; }
+		public void run() { array.delete(); }
+	}
+	
+	private static class Releaser implements Runnable {
+		private HostMemoryPool<CUByteArray> pool;
+		private HostMemoryPool.Block<CUByteArray> block;
+		Releaser(HostMemoryPool<CUByteArray> p, HostMemoryPool.Block<CUByteArray> b) { pool = p; block = b; }
+		public void run() { pool.release(block); }
+	}
+	
+	/**
+	 * Tie the memory to the buffer over it rather than to this object. Every duplicate and slice of a direct 
+	 * buffer refers to the buffer it came from, so the memory stays until this array and all the buffers from 
+	 * asByteBuffer and views are unreachable.
+	 */
+	private static ResourceCleaner.Handle register(ByteBuffer buffer, Runnable release) {
+		return ResourceCleaner.register(buffer, NativeByteArray.class.getSimpleName(), release);
+	}
+	
+	private static ByteBuffer wrap(CUByteArray array, int size) {
+		return Cuda.toByteBuffer(array.cast(), size).order(ByteOrder.LITTLE_ENDIAN);
 	}
 	
 	public void setByte(int index, byte b) {
-		backer.setitem(index, b);
+		buffer.put(index, b);
 	}
 	
 	public byte getByte(int index) {
-		return backer.getitem(index);
+		return buffer.get(index);
+	}
+	
+	/**
+	 * Copy a range of bytes into this array in a single operation.
+	 * @param index The index in this array to start writing at.
+	 * @param src The array to copy from.
+	 * @param offset The index in src to start reading from.
+	 * @param length The number of bytes to copy.
+	 */
+	public void put(int index, byte[] src, int offset, int length) {
+		ByteBuffer b = buffer.duplicate();
+		b.position(index);
+		b.put(src, offset, length);
+	}
+	
+	/**
+	 * Copy a range of bytes out of this array in a single operation.
+	 * @param index The index in this array to start reading from.
+	 * @param dst The array to copy into.
+	 * @param offset The index in dst to start writing at.
+	 * @param length The number of bytes to copy.
+	 */
+	public void get(int index, byte[] dst, int offset, int length) {
+		ByteBuffer b = buffer.duplicate();
+		b.position(index);
+		b.get(dst, offset, length);
+	}
+	
+	/**
+	 * Get a direct, little-endian ByteBuffer that views the native memory of this array.
+	 * 
+	 * No data is copied, writes to the buffer are writes to the array. The buffer keeps the memory from being 
+	 * released by the garbage collector, but must not be used after the array is freed explicitly.
+	 * @return A new buffer viewing the whole array.
+	 */
+	public ByteBuffer asByteBuffer() {
+		if (isFreed()) throw new IllegalStateException();
+		return buffer.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+	}
+	
+	/**
+	 * The shared little-endian view of this array, for absolute reads and writes only.
+	 * @return The buffer backing this array.
+	 */
+	protected ByteBuffer getBuffer() {
+		return buffer;
 	}
 	
+	/**
+	 * Get the CUDA driver's pointer to this array.
+	 * @return The pointer, or null if the array is not CUDA driver memory.
+	 */
 	public SWIGTYPE_p_signed_char getNativePointer() {
-		return backer.cast();
+		if (nativePointer == null && backer != null) nativePointer = backer.cast();
+		return nativePointer;
+	}
+	
+	/**
+	 * Get the CUDA driver's pointer to this array as a void pointer, as the driver's copies take it.
+	 * @return The pointer, or null if the array is not CUDA driver memory.
+	 */
+	public SWIGTYPE_p_void getVoidPointer() {
+		if (voidPointer == null && backer != null) voidPointer = Cuda.toPVoid(getNativePointer());
+		return voidPointer;
 	}
 	
 	public int getSize() {
@@ -78,31 +203,32 @@ public class NativeByteArray {
 		return size;
 	}
 	
+	/**
+	 * Returns whether this array is page-locked, and so can be used for asynchronous copies.
+	 * @return Whether the memory is page-locked.
+	 */
+	public boolean isPageLocked() {
+		return pageLocked;
+	}
+	
 	public boolean isFreed() {
-		return backer == null;
+		return buffer == null;
 	}
 	
-	public void free() {
+	public synchronized void free() {
 		if (isFreed()) return;
-		if (!pageLocked) {
-			backer.delete();
-		} else {
-			context.run(new Runnable(){
-				public void run() { 
-					CUresult result = Cuda.cuMemFreeHost(Cuda.toPVoid(backer.cast()));
-					if ( result != CUresult.CUDA_SUCCESS)
-						throw new CudaAPIError(result.toString());
-				}
-			});
-		}
+		if (handle != null) handle.release();
+		block = null;
 		backer = null;
+		nativePointer = null;
+		voidPointer = null;
+		buffer = null;
 	}
 	
-	public void finalize() throws Throwable {
-		try {
-			free();
-		} finally {
-			super.finalize();
-		}
+	/**
+	 * Free the array, so that it can be used in a try-with-resources statement.
+	 */
+	public void close() {
+		free();
 	}
 }
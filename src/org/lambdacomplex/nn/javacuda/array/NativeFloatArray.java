@@ -19,6 +19,8 @@
 
 package org.lambdacomplex.nn.javacuda.array;
 
+import java.nio.FloatBuffer;
+
 import org.lambdacomplex.nn.javacuda.*;
 
 public class NativeFloatArray extends NativeIntArray {
@@ -32,11 +34,47 @@ public class NativeFloatArray extends NativeIntArray {
 		super(ctx, size);
 	}
 	
+	/**
+	 * Create an array that views part of another array.
+	 * @param parent The array to view.
+	 * @param offset The index in bytes in the parent of the first element of the view.
+	 * @param size The number of elements in the view.
+	 */
+	public NativeFloatArray(NativeByteArray parent, int offset, int size) {
+		super(parent, offset, size);
+	}
+	
 	public void setFloat(int index, float f) {
-		setInt(index, Float.floatToIntBits(f));
+		getBuffer().putFloat(index * intSize, f);
 	}
 	
 	public float getFloat(int index) {
-		return Float.intBitsToFloat(getInt(index));
+		return getBuffer().getFloat(index * intSize);
+	}
+	
+	/**
+	 * Copy a range of floats into this array in a single operation.
+	 * @param index The element index in this array to start writing at.
+	 * @param src The array to copy from.
+	 * @param offset The index in src to start reading from.
+	 * @param length The number of floats to copy.
+	 */
+	public void put(int index, float[] src, int offset, int length) {
+		FloatBuffer b = getBuffer().asFloatBuffer();
+		b.position(index);
+		b.put(src, offset, length);
+	}
+	
+	/**
+	 * Copy a range of floats out of this array in a single operation.
+	 * @param index The element index in this array to start reading from.
+	 * @param dst The array to copy into.
+	 * @param offset The index in dst to start writing at.
+	 * @param length The number of floats to copy.
+	 */
+	public void get(int index, float[] dst, int offset, int length) {
+		FloatBuffer b = getBuffer().asFloatBuffer();
+		b.position(index);
+		b.get(dst, offset, length);
 	}
 }
@@ -19,6 +19,8 @@
 
 package org.lambdacomplex.nn.javacuda.array;
 
+import java.nio.IntBuffer;
+
 import org.lambdacomplex.nn.javacuda.*;
 
 public class NativeIntArray extends NativeByteArray {
@@ -32,21 +34,48 @@ public class NativeIntArray extends NativeByteArray {
 		super(ctx,size*intSize);
 	}
 	
+	/**
+	 * Create an array that views part of another array.
+	 * @param parent The array to view.
+	 * @param offset The index in bytes in the parent of the first element of the view.
+	 * @param size The number of elements in the view.
+	 */
+	public NativeIntArray(NativeByteArray parent, int offset, int size) {
+		super(parent, offset, size*intSize);
+	}
+	
 	public void setInt(int index, int i) {
-		index = index * intSize;
-		setByte(index+0,(byte)i);
-		setByte(index+1,(byte)(i>>8));
-		setByte(index+2,(byte)(i>>16));
-		setByte(index+3,(byte)(i>>24));
+		getBuffer().putInt(index * intSize, i);
 	}
 	
 	public int getInt(int index) {
-		index = index*intSize;
-		return
-			 (((int)getByte(index+0) & 0xFF))
-			+(((int)getByte(index+1) & 0xFF) << 8)
-			+(((int)getByte(index+2) & 0xFF) << 16)
-			+(((int)getByte(index+3) & 0xFF) << 24);
+		return getBuffer().getInt(index * intSize);
+	}
+	
+	/**
+	 * Copy a range of ints into this array in a single operation.
+	 * @param index The element index in this array to start writing at.
+	 * @param src The array to copy from.
+	 * @param offset The index in src to start reading from.
+	 * @param length The number of ints to copy.
+	 */
+	public void put(int index, int[] src, int offset, int length) {
+		IntBuffer b = getBuffer().asIntBuffer();
+		b.position(index);
+		b.put(src, offset, length);
+	}
+	
+	/**
+	 * Copy a range of ints out of this array in a single operation.
+	 * @param index The element index in this array to start reading from.
+	 * @param dst The array to copy into.
+	 * @param offset The index in dst to start writing at.
+	 * @param length The number of ints to copy.
+	 */
+	public void get(int index, int[] dst, int offset, int length) {
+		IntBuffer b = getBuffer().asIntBuffer();
+		b.position(index);
+		b.get(dst, offset, length);
 	}
 	
 	public int getSize() {
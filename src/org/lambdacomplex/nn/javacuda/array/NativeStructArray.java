@@ -34,6 +34,18 @@ public class NativeStructArray<T extends NativeStruct> extends NativeByteArray {
 		this.length = length;
 	}
 	
+	/**
+	 * Create an array that views part of another array.
+	 * @param parent The array to view.
+	 * @param offset The index in bytes in the parent of the first struct of the view.
+	 * @param size The number of structs in the view.
+	 * @param length The length in bytes of each struct.
+	 */
+	public NativeStructArray(NativeByteArray parent, int offset, int size, int length) {
+		super(parent, offset, size*length);
+		this.length = length;
+	}
+	
 	public void setStruct(int index, NativeStruct s) {
 		s.serialiseInto(this, index * length);
 	}
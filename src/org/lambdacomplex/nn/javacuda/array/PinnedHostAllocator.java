@@ -0,0 +1,64 @@
+/*
+* Copyright 2009 Gabriel Collin
+*
+* This file is part of javaCUDA.
+*
+* javaCUDA is free software: you can redistribute it and/or modify it
+* under the terms of the GNU Lesser General Public License as published
+* by the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* javaCUDA is distributed in the hope that it will be useful, but WITHOUT
+* ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+* FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public
+* License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public
+* License along with javaCUDA. If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package org.lambdacomplex.nn.javacuda.array;
+
+import org.lambdacomplex.nn.javacuda.swig.*;
+import org.lambdacomplex.nn.javacuda.*;
+
+/**
+ * Allocates page-locked host memory for a context using cuMemAllocHost.
+ * @author NewName
+ *
+ */
+public class PinnedHostAllocator implements HostAllocator<CUByteArray> {
+	private Context context;
+	
+	public PinnedHostAllocator(Context ctx) {
+		context = ctx;
+	}
+	
+	public CUByteArray allocate(final int size) {
+		final CUPvoid mem = new CUPvoid();
+		HostAllocationEvent event = new HostAllocationEvent();
+		event.begin();
+		context.run(new Runnable(){
+			public void run() {
+				CUresult result = Cuda.cuMemAllocHost(mem.cast(), size);
+				if ( result != CUresult.CUDA_SUCCESS)
+					throw new CudaAPIError(result.toString());
+			}
+		});
+		CUByteArray result = CUByteArray.frompointer(Cuda.toByteArray(mem.value()));
+		mem.delete();
+		event.bytes = size;
+		event.commit();
+		return result;
+	}
+	
+	public void free(final CUByteArray memory) {
+		context.runUnlessDestroyed(new Runnable(){
+			public void run() {
+				CUresult result = Cuda.cuMemFreeHost(Cuda.toPVoid(memory.cast()));
+				if ( result != CUresult.CUDA_SUCCESS)
+					throw new CudaAPIError(result.toString());
+			}
+		});
+	}
+}
@@ -0,0 +1,353 @@
+/*
+* Copyright 2009 Gabriel Collin
+*
+* This file is part of javaCUDA.
+*
+* javaCUDA is free software: you can redistribute it and/or modify it
+* under the terms of the GNU Lesser General Public License as published
+* by the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* javaCUDA is distributed in the hope that it will be useful, but WITHOUT
+* ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+* FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public
+* License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public
+* License along with javaCUDA. If not, see <http://www.gnu.org/licenses/>.
+*/
+
+/*
+ * A stand-in for the CUDA driver library, implementing the entry points the
+ * bindings use, so they can be tested and their overhead measured without a GPU.
+ *
+ * Device memory is host memory, and all work is done when it is queued, so
+ * streams and events are always complete. Kernels do nothing. The context
+ * stack is kept per thread, and calls that need a context fail without one,
+ * as they do with the real driver.
+ *
+ * The number of devices is 1, or the value of JAVACUDA_STUB_DEVICES.
+ */
+
+#include <stdlib.h>
+#include <string.h>
+#include <time.h>
+
+typedef int CUresult;
+typedef int CUdevice;
+typedef unsigned long long CUdeviceptr;
+
+typedef struct Context { CUdevice device; } *CUcontext;
+typedef struct Stream { int unused; } *CUstream;
+typedef struct Event { int recorded; struct timespec time; } *CUevent;
+typedef struct Module { int functions; } *CUmodule;
+typedef struct Function { CUmodule module; } *CUfunction;
+
+#define CUDA_SUCCESS 0
+#define CUDA_ERROR_INVALID_VALUE 1
+#define CUDA_ERROR_OUT_OF_MEMORY 2
+#define CUDA_ERROR_NOT_INITIALIZED 3
+#define CUDA_ERROR_NO_DEVICE 100
+#define CUDA_ERROR_INVALID_DEVICE 101
+#define CUDA_ERROR_INVALID_IMAGE 200
+#define CUDA_ERROR_INVALID_CONTEXT 201
+#define CUDA_ERROR_INVALID_HANDLE 400
+#define CUDA_ERROR_NOT_FOUND 500
+#define CUDA_ERROR_NOT_READY 600
+
+#define CU_DEVICE_ATTRIBUTE_CLOCK_RATE 13
+#define CU_DEVICE_ATTRIBUTE_MULTIPROCESSOR_COUNT 16
+#define CU_DEVICE_ATTRIBUTE_MAX 128
+
+#define CU_LAUNCH_PARAM_END ((void *)0)
+#define CU_LAUNCH_PARAM_BUFFER_POINTER ((void *)1)
+#define CU_LAUNCH_PARAM_BUFFER_SIZE ((void *)2)
+
+#define MAX_DEPTH 64
+
+static int initialised;
+static int deviceCount;
+
+static __thread CUcontext stack[MAX_DEPTH];
+static __thread int depth;
+
+#define NEED_CONTEXT if (!initialised) return CUDA_ERROR_NOT_INITIALIZED; \
+	if (depth == 0) return CUDA_ERROR_INVALID_CONTEXT;
+
+CUresult cuInit(unsigned int flags) {
+	const char *devices = getenv("JAVACUDA_STUB_DEVICES");
+	if (flags != 0) return CUDA_ERROR_INVALID_VALUE;
+	deviceCount = devices ? atoi(devices) : 1;
+	initialised = 1;
+	return deviceCount > 0 ? CUDA_SUCCESS : CUDA_ERROR_NO_DEVICE;
+}
+
+CUresult cuGetErrorName(CUresult error, const char **name) {
+	switch (error) {
+	case CUDA_SUCCESS: *name = "CUDA_SUCCESS"; break;
+	case CUDA_ERROR_INVALID_VALUE: *name = "CUDA_ERROR_INVALID_VALUE"; break;
+	case CUDA_ERROR_OUT_OF_MEMORY: *name = "CUDA_ERROR_OUT_OF_MEMORY"; break;
+	case CUDA_ERROR_NOT_INITIALIZED: *name = "CUDA_ERROR_NOT_INITIALIZED"; break;
+	case CUDA_ERROR_NO_DEVICE: *name = "CUDA_ERROR_NO_DEVICE"; break;
+	case CUDA_ERROR_INVALID_DEVICE: *name = "CUDA_ERROR_INVALID_DEVICE"; break;
+	case CUDA_ERROR_INVALID_IMAGE: *name = "CUDA_ERROR_INVALID_IMAGE"; break;
+	case CUDA_ERROR_INVALID_CONTEXT: *name = "CUDA_ERROR_INVALID_CONTEXT"; break;
+	case CUDA_ERROR_INVALID_HANDLE: *name = "CUDA_ERROR_INVALID_HANDLE"; break;
+	case CUDA_ERROR_NOT_FOUND: *name = "CUDA_ERROR_NOT_FOUND"; break;
+	case CUDA_ERROR_NOT_READY: *name = "CUDA_ERROR_NOT_READY"; break;
+	default: *name = 0; return CUDA_ERROR_INVALID_VALUE;
+	}
+	return CUDA_SUCCESS;
+}
+
+CUresult cuDeviceGetCount(int *count) {
+	if (!initialised) return CUDA_ERROR_NOT_INITIALIZED;
+	*count = deviceCount;
+	return CUDA_SUCCESS;
+}
+
+/* the attributes of a compute capability 7.0 device, 0 where it has none */
+static const int attributes[CU_DEVICE_ATTRIBUTE_MAX] = {
+	[1] = 1024, [2] = 1024, [3] = 1024, [4] = 64, [5] = 2147483647, [6] = 65535, [7] = 65535,
+	[8] = 49152, [9] = 65536, [10] = 32, [11] = 2147483647, [12] = 65536, [14] = 512, [15] = 1,
+	[19] = 1, [31] = 1, [36] = 877000, [37] = 4096, [38] = 6291456, [39] = 2048, [40] = 6,
+	[75] = 7, [76] = 0, [81] = 98304, [82] = 65536
+};
+
+CUresult cuDeviceGetAttribute(int *value, int attribute, CUdevice device) {
+	if (!initialised) return CUDA_ERROR_NOT_INITIALIZED;
+	if (device < 0 || device >= deviceCount) return CUDA_ERROR_INVALID_DEVICE;
+	if (attribute <= 0 || attribute >= CU_DEVICE_ATTRIBUTE_MAX) return CUDA_ERROR_INVALID_VALUE;
+	if (attribute == CU_DEVICE_ATTRIBUTE_CLOCK_RATE) {
+		/* later devices have faster clocks but fewer multiprocessors, so the fastest is the first */
+		*value = 1000000 + device * 1000;
+	} else if (attribute == CU_DEVICE_ATTRIBUTE_MULTIPROCESSOR_COUNT) {
+		*value = 8 * (deviceCount - device);
+	} else {
+		*value = attributes[attribute];
+	}
+	return CUDA_SUCCESS;
+}
+
+CUresult cuDeviceComputeCapability(int *major, int *minor, CUdevice device) {
+	if (!initialised) return CUDA_ERROR_NOT_INITIALIZED;
+	if (device < 0 || device >= deviceCount) return CUDA_ERROR_INVALID_DEVICE;
+	*major = attributes[75];
+	*minor = attributes[76];
+	return CUDA_SUCCESS;
+}
+
+CUresult cuDeviceTotalMem_v2(size_t *bytes, CUdevice device) {
+	if (!initialised) return CUDA_ERROR_NOT_INITIALIZED;
+	if (device < 0 || device >= deviceCount) return CUDA_ERROR_INVALID_DEVICE;
+	*bytes = (size_t)16 << 30;
+	return CUDA_SUCCESS;
+}
+
+CUresult cuDeviceTotalMem(unsigned int *bytes, CUdevice device) {
+	if (!initialised) return CUDA_ERROR_NOT_INITIALIZED;
+	if (device < 0 || device >= deviceCount) return CUDA_ERROR_INVALID_DEVICE;
+	/* the 32-bit entry point can't report more than 4GB */
+	*bytes = 0xFFFFFFFFu;
+	return CUDA_SUCCESS;
+}
+
+CUresult cuDeviceGetName(char *name, int length, CUdevice device) {
+	if (!initialised) return CUDA_ERROR_NOT_INITIALIZED;
+	if (device < 0 || device >= deviceCount) return CUDA_ERROR_INVALID_DEVICE;
+	if (length <= 0) return CUDA_ERROR_INVALID_VALUE;
+	strncpy(name, "javaCUDA stub device", length);
+	name[length - 1] = 0;
+	return CUDA_SUCCESS;
+}
+
+CUresult cuCtxCreate_v2(CUcontext *context, unsigned int flags, CUdevice device) {
+	if (!initialised) return CUDA_ERROR_NOT_INITIALIZED;
+	if (device < 0 || device >= deviceCount) return CUDA_ERROR_INVALID_DEVICE;
+	if (depth == MAX_DEPTH) return CUDA_ERROR_OUT_OF_MEMORY;
+	*context = malloc(sizeof(struct Context));
+	(*context)->device = device;
+	/* a new context is left current, like the driver does */
+	stack[depth++] = *context;
+	return CUDA_SUCCESS;
+}
+
+CUresult cuCtxDestroy_v2(CUcontext context) {
+	if (context == 0) return CUDA_ERROR_INVALID_VALUE;
+	/* a context current to this thread is popped, other threads must not be using it */
+	if (depth > 0 && stack[depth - 1] == context) depth--;
+	free(context);
+	return CUDA_SUCCESS;
+}
+
+CUresult cuCtxPushCurrent_v2(CUcontext context) {
+	if (context == 0) return CUDA_ERROR_INVALID_VALUE;
+	if (depth == MAX_DEPTH) return CUDA_ERROR_INVALID_CONTEXT;
+	stack[depth++] = context;
+	return CUDA_SUCCESS;
+}
+
+CUresult cuCtxPopCurrent_v2(CUcontext *context) {
+	if (depth == 0) return CUDA_ERROR_INVALID_CONTEXT;
+	depth--;
+	if (context) *context = stack[depth];
+	return CUDA_SUCCESS;
+}
+
+CUresult cuCtxSynchronize(void) {
+	NEED_CONTEXT
+	return CUDA_SUCCESS;
+}
+
+CUresult cuMemAlloc_v2(CUdeviceptr *pointer, size_t size) {
+	void *memory;
+	NEED_CONTEXT
+	if (size == 0) return CUDA_ERROR_INVALID_VALUE;
+	memory = malloc(size);
+	if (!memory) return CUDA_ERROR_OUT_OF_MEMORY;
+	*pointer = (CUdeviceptr)memory;
+	return CUDA_SUCCESS;
+}
+
+CUresult cuMemFree_v2(CUdeviceptr pointer) {
+	NEED_CONTEXT
+	free((void *)pointer);
+	return CUDA_SUCCESS;
+}
+
+CUresult cuMemcpyHtoD_v2(CUdeviceptr dst, const void *src, size_t size) {
+	NEED_CONTEXT
+	memcpy((void *)dst, src, size);
+	return CUDA_SUCCESS;
+}
+
+CUresult cuMemcpyDtoH_v2(void *dst, CUdeviceptr src, size_t size) {
+	NEED_CONTEXT
+	memcpy(dst, (void *)src, size);
+	return CUDA_SUCCESS;
+}
+
+CUresult cuMemcpyHtoDAsync_v2(CUdeviceptr dst, const void *src, size_t size, CUstream stream) {
+	return cuMemcpyHtoD_v2(dst, src, size);
+}
+
+CUresult cuMemcpyDtoHAsync_v2(void *dst, CUdeviceptr src, size_t size, CUstream stream) {
+	return cuMemcpyDtoH_v2(dst, src, size);
+}
+
+CUresult cuStreamCreate(CUstream *stream, unsigned int flags) {
+	NEED_CONTEXT
+	*stream = malloc(sizeof(struct Stream));
+	return CUDA_SUCCESS;
+}
+
+CUresult cuStreamDestroy_v2(CUstream stream) {
+	NEED_CONTEXT
+	if (stream == 0) return CUDA_ERROR_INVALID_HANDLE;
+	free(stream);
+	return CUDA_SUCCESS;
+}
+
+CUresult cuStreamQuery(CUstream stream) {
+	NEED_CONTEXT
+	return CUDA_SUCCESS;
+}
+
+CUresult cuStreamSynchronize(CUstream stream) {
+	NEED_CONTEXT
+	return CUDA_SUCCESS;
+}
+
+CUresult cuStreamWaitEvent(CUstream stream, CUevent event, unsigned int flags) {
+	NEED_CONTEXT
+	if (event == 0) return CUDA_ERROR_INVALID_HANDLE;
+	return CUDA_SUCCESS;
+}
+
+CUresult cuEventCreate(CUevent *event, unsigned int flags) {
+	NEED_CONTEXT
+	*event = calloc(1, sizeof(struct Event));
+	return CUDA_SUCCESS;
+}
+
+CUresult cuEventRecord(CUevent event, CUstream stream) {
+	NEED_CONTEXT
+	if (event == 0) return CUDA_ERROR_INVALID_HANDLE;
+	clock_gettime(CLOCK_MONOTONIC, &event->time);
+	event->recorded = 1;
+	return CUDA_SUCCESS;
+}
+
+CUresult cuEventQuery(CUevent event) {
+	NEED_CONTEXT
+	if (event == 0) return CUDA_ERROR_INVALID_HANDLE;
+	return CUDA_SUCCESS;
+}
+
+CUresult cuEventSynchronize(CUevent event) {
+	return cuEventQuery(event);
+}
+
+CUresult cuEventElapsedTime(float *time, CUevent start, CUevent end) {
+	NEED_CONTEXT
+	if (start == 0 || end == 0) return CUDA_ERROR_INVALID_HANDLE;
+	if (!start->recorded || !end->recorded) return CUDA_ERROR_NOT_READY;
+	*time = (end->time.tv_sec - start->time.tv_sec) * 1000.0f 
+		+ (end->time.tv_nsec - start->time.tv_nsec) / 1000000.0f;
+	return CUDA_SUCCESS;
+}
+
+CUresult cuEventDestroy_v2(CUevent event) {
+	if (event == 0) return CUDA_ERROR_INVALID_HANDLE;
+	free(event);
+	return CUDA_SUCCESS;
+}
+
+CUresult cuModuleLoadData(CUmodule *module, const void *image) {
+	NEED_CONTEXT
+	if (image == 0) return CUDA_ERROR_INVALID_IMAGE;
+	*module = calloc(1, sizeof(struct Module));
+	return CUDA_SUCCESS;
+}
+
+CUresult cuModuleUnload(CUmodule module) {
+	NEED_CONTEXT
+	if (module == 0) return CUDA_ERROR_INVALID_HANDLE;
+	/* functions belong to their module, so they go with it */
+	free(module);
+	return CUDA_SUCCESS;
+}
+
+CUresult cuModuleGetFunction(CUfunction *function, CUmodule module, const char *name) {
+	NEED_CONTEXT
+	if (module == 0) return CUDA_ERROR_INVALID_HANDLE;
+	if (name == 0 || *name == 0) return CUDA_ERROR_NOT_FOUND;
+	/* the driver keeps functions until the module is unloaded, this leaks them instead */
+	*function = malloc(sizeof(struct Function));
+	(*function)->module = module;
+	module->functions++;
+	return CUDA_SUCCESS;
+}
+
+CUresult cuLaunchKernel(CUfunction function, 
+		unsigned int gridX, unsigned int gridY, unsigned int gridZ, 
+		unsigned int blockX, unsigned int blockY, unsigned int blockZ, 
+		unsigned int sharedMemBytes, CUstream stream, void **kernelParams, void **extra) {
+	NEED_CONTEXT
+	if (function == 0) return CUDA_ERROR_INVALID_HANDLE;
+	if (gridX == 0 || gridY == 0 || gridZ == 0 || blockX == 0 || blockY == 0 || blockZ == 0) 
+		return CUDA_ERROR_INVALID_VALUE;
+	if (kernelParams && extra) return CUDA_ERROR_INVALID_VALUE;
+	if (extra) {
+		void *buffer = 0;
+		size_t *size = 0;
+		while (*extra != CU_LAUNCH_PARAM_END) {
+			if (extra[0] == CU_LAUNCH_PARAM_BUFFER_POINTER) buffer = extra[1];
+			else if (extra[0] == CU_LAUNCH_PARAM_BUFFER_SIZE) size = extra[1];
+			else return CUDA_ERROR_INVALID_VALUE;
+			extra += 2;
+		}
+		if (!buffer != !size) return CUDA_ERROR_INVALID_VALUE;
+	}
+	return CUDA_SUCCESS;
+}
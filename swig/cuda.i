@@ -23,6 +23,10 @@
  #include "cuda.h"
  %}
  
+ /* cuDeviceGetName fills in a byte[] */
+ %include "various.i"
+ %apply char *BYTE { char *name };
+ 
  /* Parse the header file to generate wrappers */
  %include "cuda.h"
 
@@ -53,12 +57,9 @@
   }
 %}
 
-%typemap(javafinalize) SWIGTYPE %{
-  protected void finalize() {
-    if (!swigMemManage) return;
-    delete();
-  }
-%}
+/* No finalizers on the generated classes, the library releases what it owns
+   explicitly and through org.lambdacomplex.nn.javacuda.ResourceCleaner. */
+%typemap(javafinalize) SWIGTYPE ""
 
 %inline %{
 typedef void* void_p;
@@ -80,3 +81,22 @@ typedef void* void_p;
 %pointer_cast(void *, signed char *, toByteArray);
 %pointer_cast(signed char *, void *, toPVoid);
 %pointer_cast(int, CUstream, toStream);
+
+/* Direct ByteBuffer views of native memory, so that element access and bulk
+   copies don't have to cross JNI once per byte. */
+%typemap(in, numinputs=0) JNIEnv *jenv %{ $1 = jenv; %}
+%typemap(jni) jobject "jobject"
+%typemap(jtype) jobject "java.nio.ByteBuffer"
+%typemap(jstype) jobject "java.nio.ByteBuffer"
+%typemap(javaout) jobject { return $jnicall; }
+%typemap(out) jobject %{ $result = $1; %}
+
+%inline %{
+signed char *byteOffset(signed char *data, int offset) {
+	return data + offset;
+}
+
+jobject toByteBuffer(JNIEnv *jenv, signed char *data, long long size) {
+	return (*jenv)->NewDirectByteBuffer(jenv, data, (jlong)size);
+}
+%}
@@ -0,0 +1,184 @@
+/*
+* Copyright 2009 Gabriel Collin
+*
+* This file is part of javaCUDA.
+*
+* javaCUDA is free software: you can redistribute it and/or modify it
+* under the terms of the GNU Lesser General Public License as published
+* by the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* javaCUDA is distributed in the hope that it will be useful, but WITHOUT
+* ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+* FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public
+* License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public
+* License along with javaCUDA. If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package org.lambdacomplex.nn.javacuda.bench;
+
+import java.nio.ByteBuffer;
+import java.util.*;
+
+import org.lambdacomplex.nn.javacuda.*;
+import org.lambdacomplex.nn.javacuda.array.*;
+
+/**
+ * Element and bulk access to native arrays, and serialising structs into them. Each call touches every element 
+ * of a 4096 element array, and the results are per element.
+ */
+public class ArrayBenchmarks {
+	private static final int SIZE = 4096;
+	
+	public static List<Benchmark> getBenchmarks() {
+		List<Benchmark> list = new ArrayList<Benchmark>();
+		
+		list.add(new Benchmark("array.int.set", SIZE) {
+			private NativeIntArray array;
+			public void setUp(Context ctx) { array = new NativeIntArray(SIZE); }
+			public long run() {
+				for (int i = 0; i < SIZE; i++) array.setInt(i, i);
+				return array.getInt(SIZE - 1);
+			}
+			public void tearDown() { array.free(); }
+		});
+		
+		list.add(new Benchmark("array.int.get", SIZE) {
+			private NativeIntArray array;
+			public void setUp(Context ctx) { array = new NativeIntArray(SIZE); }
+			public long run() {
+				long sum = 0;
+				for (int i = 0; i < SIZE; i++) sum += array.getInt(i);
+				return sum;
+			}
+			public void tearDown() { array.free(); }
+		});
+		
+		list.add(new Benchmark("array.int.put", SIZE) {
+			private NativeIntArray array;
+			private int[] data = new int[SIZE];
+			public void setUp(Context ctx) { array = new NativeIntArray(SIZE); }
+			public long run() {
+				array.put(0, data, 0, SIZE);
+				return array.getInt(0);
+			}
+			public void tearDown() { array.free(); }
+		});
+		
+		list.add(new Benchmark("array.int.bulkGet", SIZE) {
+			private NativeIntArray array;
+			private int[] data = new int[SIZE];
+			public void setUp(Context ctx) { array = new NativeIntArray(SIZE); }
+			public long run() {
+				array.get(0, data, 0, SIZE);
+				return data[SIZE - 1];
+			}
+			public void tearDown() { array.free(); }
+		});
+		
+		list.add(new Benchmark("array.float.set", SIZE) {
+			private NativeFloatArray array;
+			public void setUp(Context ctx) { array = new NativeFloatArray(SIZE); }
+			public long run() {
+				for (int i = 0; i < SIZE; i++) array.setFloat(i, i * 0.5f);
+				return array.getInt(SIZE - 1);
+			}
+			public void tearDown() { array.free(); }
+		});
+		
+		list.add(new Benchmark("array.float.get", SIZE) {
+			private NativeFloatArray array;
+			public void setUp(Context ctx) { array = new NativeFloatArray(SIZE); }
+			public long run() {
+				float sum = 0;
+				for (int i = 0; i < SIZE; i++) sum += array.getFloat(i);
+				return Float.floatToRawIntBits(sum);
+			}
+			public void tearDown() { array.free(); }
+		});
+		
+		list.add(new Benchmark("array.float.put", SIZE) {
+			private NativeFloatArray array;
+			private float[] data = new float[SIZE];
+			public void setUp(Context ctx) { array = new NativeFloatArray(SIZE); }
+			public long run() {
+				array.put(0, data, 0, SIZE);
+				return array.getInt(0);
+			}
+			public void tearDown() { array.free(); }
+		});
+		
+		list.add(new Benchmark("array.float.bulkGet", SIZE) {
+			private NativeFloatArray array;
+			private float[] data = new float[SIZE];
+			public void setUp(Context ctx) { array = new NativeFloatArray(SIZE); }
+			public long run() {
+				array.get(0, data, 0, SIZE);
+				return Float.floatToRawIntBits(data[SIZE - 1]);
+			}
+			public void tearDown() { array.free(); }
+		});
+		
+		list.add(new Benchmark("array.struct.serialise", SIZE) {
+			private NativeStructArray<Particle> array;
+			private Particle particle = new Particle();
+			public void setUp(Context ctx) { array = new NativeStructArray<Particle>(SIZE, Particle.LENGTH); }
+			public long run() {
+				for (int i = 0; i < SIZE; i++) {
+					particle.id = i;
+					array.setStruct(i, particle);
+				}
+				return array.getByte(0);
+			}
+			public void tearDown() { array.free(); }
+		});
+		
+		list.add(new Benchmark("array.struct.reconstruct", SIZE) {
+			private NativeStructArray<Particle> array;
+			private Particle particle = new Particle();
+			public void setUp(Context ctx) { array = new NativeStructArray<Particle>(SIZE, Particle.LENGTH); }
+			public long run() {
+				long sum = 0;
+				for (int i = 0; i < SIZE; i++) {
+					particle.reconstructFrom(array, i * Particle.LENGTH);
+					sum += particle.id;
+				}
+				return sum;
+			}
+			public void tearDown() { array.free(); }
+		});
+		
+		return list;
+	}
+	
+	/**
+	 * A struct of three floats and an int, as a particle system would keep.
+	 */
+	static class Particle implements NativeStruct {
+		static final int LENGTH = 16;
+		float x, y, z;
+		int id;
+		
+		public void serialiseInto(NativeByteArray array, int startIndex) {
+			ByteBuffer b = array.asByteBuffer();
+			b.putFloat(startIndex, x);
+			b.putFloat(startIndex + 4, y);
+			b.putFloat(startIndex + 8, z);
+			b.putInt(startIndex + 12, id);
+		}
+		
+		public void reconstructFrom(NativeByteArray array, int startIndex) {
+			ByteBuffer b = array.asByteBuffer();
+			x = b.getFloat(startIndex);
+			y = b.getFloat(startIndex + 4);
+			z = b.getFloat(startIndex + 8);
+			id = b.getInt(startIndex + 12);
+		}
+		
+		public int length() {
+			return LENGTH;
+		}
+	}
+}
@@ -0,0 +1,53 @@
+// Generated by LauncherGenerator from LaunchBenchmarks, do not edit.
+
+package org.lambdacomplex.nn.javacuda.bench;
+
+import org.lambdacomplex.nn.javacuda.AbstractKernelLauncher;
+import org.lambdacomplex.nn.javacuda.DevicePointer;
+import org.lambdacomplex.nn.javacuda.Function;
+import org.lambdacomplex.nn.javacuda.KernelArguments;
+import org.lambdacomplex.nn.javacuda.KernelLauncher;
+import org.lambdacomplex.nn.javacuda.Module;
+
+/**
+ * Typed launch methods for the kernels of LaunchBenchmarks.
+ */
+public interface BenchKernels extends KernelLauncher {
+	/**
+	 * Launch extern "C" __global__ void noop_kernel(int *a, int b, const float * __restrict__ c, unsigned int d)
+	 */
+	public void noop_kernel(DevicePointer a, int b, DevicePointer c, int d);
+	
+	/**
+	 * Bind the kernels of a module.
+	 * @param module The module.
+	 * @return A launcher for the calling thread.
+	 */
+	public static BenchKernels bind(Module module) {
+		return new BenchKernelsLauncher(module);
+	}
+}
+
+class BenchKernelsLauncher extends AbstractKernelLauncher implements BenchKernels {
+	private Function noop_kernel;
+	private KernelArguments noop_kernelArguments;
+	private int noop_kernelOffset0, noop_kernelOffset1, noop_kernelOffset2, noop_kernelOffset3;
+	
+	BenchKernelsLauncher(Module module) {
+		super(module);
+		noop_kernel = bind("noop_kernel");
+		noop_kernelArguments = arguments(noop_kernel);
+		noop_kernelOffset0 = noop_kernelArguments.putPointer(0L);
+		noop_kernelOffset1 = noop_kernelArguments.putInt(0);
+		noop_kernelOffset2 = noop_kernelArguments.putPointer(0L);
+		noop_kernelOffset3 = noop_kernelArguments.putInt(0);
+	}
+	
+	public void noop_kernel(DevicePointer a, int b, DevicePointer c, int d) {
+		noop_kernelArguments.setPointer(noop_kernelOffset0, a);
+		noop_kernelArguments.setInt(noop_kernelOffset1, b);
+		noop_kernelArguments.setPointer(noop_kernelOffset2, c);
+		noop_kernelArguments.setInt(noop_kernelOffset3, d);
+		noop_kernel.launch(noop_kernelArguments, getStream());
+	}
+}
@@ -0,0 +1,69 @@
+/*
+* Copyright 2009 Gabriel Collin
+*
+* This file is part of javaCUDA.
+*
+* javaCUDA is free software: you can redistribute it and/or modify it
+* under the terms of the GNU Lesser General Public License as published
+* by the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* javaCUDA is distributed in the hope that it will be useful, but WITHOUT
+* ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+* FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public
+* License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public
+* License along with javaCUDA. If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package org.lambdacomplex.nn.javacuda.bench;
+
+import org.lambdacomplex.nn.javacuda.Context;
+
+/**
+ * One measured operation, run over and over by BenchmarkRunner.
+ * 
+ * The runner sets the benchmark up in a context, calls run in batches until each measured iteration has taken 
+ * its time, and divides by the number of operations done.
+ */
+public abstract class Benchmark {
+	private String name;
+	private int operations;
+	
+	/**
+	 * @param name The name of the benchmark, dotted by group, such as array.int.get.
+	 * @param operations How many operations one call of run does, such as the number of elements it touches.
+	 */
+	protected Benchmark(String name, int operations) {
+		this.name = name;
+		this.operations = operations;
+	}
+	
+	public String getName() {
+		return name;
+	}
+	
+	public int getOperations() {
+		return operations;
+	}
+	
+	/**
+	 * Make whatever the operation needs. Nothing made here is measured.
+	 * @param ctx The context to run in.
+	 */
+	public void setUp(Context ctx) {
+	}
+	
+	/**
+	 * Do the operation once.
+	 * @return A value that depends on the work, which the runner keeps so the work cannot be optimised away.
+	 */
+	public abstract long run();
+	
+	/**
+	 * Free whatever setUp made.
+	 */
+	public void tearDown() {
+	}
+}
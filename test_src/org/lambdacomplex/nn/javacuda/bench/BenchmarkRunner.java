@@ -0,0 +1,245 @@
+/*
+* Copyright 2009 Gabriel Collin
+*
+* This file is part of javaCUDA.
+*
+* javaCUDA is free software: you can redistribute it and/or modify it
+* under the terms of the GNU Lesser General Public License as published
+* by the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* javaCUDA is distributed in the hope that it will be useful, but WITHOUT
+* ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+* FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public
+* License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public
+* License along with javaCUDA. If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package org.lambdacomplex.nn.javacuda.bench;
+
+import java.io.*;
+import java.util.*;
+import java.util.regex.Pattern;
+
+import org.lambdacomplex.nn.javacuda.*;
+
+/**
+ * Runs the benchmarks and writes the results as text, CSV or JSON, so they can be kept and compared over time.
+ * 
+ * No device is needed: the default cpu backend runs the kernels in Java, and with the stub driver in the 'stub' 
+ * directory the CUDA bindings are measured with kernels that do nothing.
+ * Usage: BenchmarkRunner [options] [pattern...], where each pattern is a regular expression found in the names 
+ * of the benchmarks to run. Options are
+ *   -b backend         named as for javacuda.backend, cpu by default
+ *   -f text|csv|json   the format of the results, text by default
+ *   -o file            write the results to a file instead of standard output
+ *   -w n               warm up iterations, 5 by default
+ *   -i n               measured iterations, 10 by default
+ *   -t ms              the time of each iteration, 200 by default
+ *   -l                 list the benchmarks and stop
+ */
+public class BenchmarkRunner {
+	private static String backendName = "cpu";
+	private static String format = "text";
+	private static String outputFile = null;
+	private static int warmups = 5;
+	private static int iterations = 10;
+	private static long iterationNanos = 200 * 1000000L;
+	
+	// results are summed in here so the work behind them is kept
+	private static long sink;
+	
+	/**
+	 * The measurements of one benchmark.
+	 */
+	static class Result {
+		String name;
+		int operations;
+		long calls;
+		double[] nanosPerOperation;
+		
+		double mean() {
+			double s = 0;
+			for (double d : nanosPerOperation) s += d;
+			return s / nanosPerOperation.length;
+		}
+		
+		double deviation() {
+			if (nanosPerOperation.length < 2) return 0;
+			double m = mean(), s = 0;
+			for (double d : nanosPerOperation) s += (d - m) * (d - m);
+			return Math.sqrt(s / (nanosPerOperation.length - 1));
+		}
+		
+		double min() {
+			double m = Double.MAX_VALUE;
+			for (double d : nanosPerOperation) m = Math.min(m, d);
+			return m;
+		}
+		
+		double max() {
+			double m = 0;
+			for (double d : nanosPerOperation) m = Math.max(m, d);
+			return m;
+		}
+	}
+	
+	public static List<Benchmark> getBenchmarks() {
+		List<Benchmark> all = new ArrayList<Benchmark>();
+		all.addAll(ArrayBenchmarks.getBenchmarks());
+		all.addAll(LaunchBenchmarks.getBenchmarks());
+		all.addAll(PipelineBenchmarks.getBenchmarks());
+		return all;
+	}
+	
+	public static void main(String args[]) throws IOException {
+		List<Pattern> patterns = new ArrayList<Pattern>();
+		boolean list = false;
+		for (int i = 0; i < args.length; i++) {
+			String a = args[i];
+			if (a.equals("-b")) backendName = args[++i];
+			else if (a.equals("-f")) format = args[++i];
+			else if (a.equals("-o")) outputFile = args[++i];
+			else if (a.equals("-w")) warmups = Integer.parseInt(args[++i]);
+			else if (a.equals("-i")) iterations = Integer.parseInt(args[++i]);
+			else if (a.equals("-t")) iterationNanos = Long.parseLong(args[++i]) * 1000000L;
+			else if (a.equals("-l")) list = true;
+			else patterns.add(Pattern.compile(a));
+		}
+		if (!format.equals("text") && !format.equals("csv") && !format.equals("json")) {
+			throw new IllegalArgumentException("Unknown format " + format);
+		}
+		
+		List<Benchmark> chosen = new ArrayList<Benchmark>();
+		for (Benchmark b : getBenchmarks()) {
+			if (patterns.isEmpty()) chosen.add(b);
+			for (Pattern p : patterns) {
+				if (p.matcher(b.getName()).find()) {
+					chosen.add(b);
+					break;
+				}
+			}
+		}
+		if (list) {
+			for (Benchmark b : chosen) System.out.println(b.getName());
+			return;
+		}
+		
+		PipelineBenchmarks.registerKernels();
+		Backend backend = Device.createBackend(backendName);
+		Context ctx = Device.getDevice(backend, 0).getContext();
+		
+		List<Result> results = new ArrayList<Result>();
+		for (Benchmark b : chosen) {
+			// progress goes to standard error, so standard output is only the results
+			System.err.println("Running " + b.getName());
+			b.setUp(ctx);
+			try {
+				results.add(measure(b));
+			} finally {
+				b.tearDown();
+			}
+		}
+		ctx.destroy();
+		
+		Writer out = outputFile == null ? new OutputStreamWriter(System.out) : new FileWriter(outputFile);
+		try {
+			if (format.equals("csv")) {
+				writeCSV(out, backend, results);
+			} else if (format.equals("json")) {
+				writeJSON(out, backend, results);
+			} else {
+				writeText(out, backend, results);
+			}
+		} finally {
+			out.flush();
+			if (outputFile != null) out.close();
+		}
+		if (sink == 42) System.err.println();
+	}
+	
+	private static Result measure(Benchmark b) {
+		// grow the batch until one takes a millisecond, so reading the clock costs little next to the work
+		int batch = 1;
+		while (true) {
+			long start = System.nanoTime();
+			for (int i = 0; i < batch; i++) sink += b.run();
+			if (System.nanoTime() - start > 1000000 || batch >= 1 << 24) break;
+			batch *= 2;
+		}
+		
+		for (int i = 0; i < warmups; i++) iteration(b, batch);
+		
+		Result r = new Result();
+		r.name = b.getName();
+		r.operations = b.getOperations();
+		r.nanosPerOperation = new double[iterations];
+		for (int i = 0; i < iterations; i++) {
+			long[] measured = iteration(b, batch);
+			r.calls += measured[1];
+			r.nanosPerOperation[i] = (double)measured[0] / measured[1] / b.getOperations();
+		}
+		return r;
+	}
+	
+	/**
+	 * Run batches until the iteration time has passed.
+	 * @return The time taken and the number of calls.
+	 */
+	private static long[] iteration(Benchmark b, int batch) {
+		long calls = 0;
+		long start = System.nanoTime(), now;
+		do {
+			for (int i = 0; i < batch; i++) sink += b.run();
+			calls += batch;
+			now = System.nanoTime();
+		} while (now - start < iterationNanos);
+		return new long[] {now - start, calls};
+	}
+	
+	private static void writeText(Writer out, Backend backend, List<Result> results) throws IOException {
+		out.write("Backend " + backend.getName() + ", " + iterations + " iterations of " 
+				+ iterationNanos / 1000000 + "ms\n");
+		for (Result r : results) {
+			out.write(String.format(Locale.ROOT, "%-40s %12.3f +- %10.3f ns/op  (min %.3f, max %.3f)%n", 
+					r.name, r.mean(), r.deviation(), r.min(), r.max()));
+		}
+	}
+	
+	private static void writeCSV(Writer out, Backend backend, List<Result> results) throws IOException {
+		out.write("benchmark,backend,iterations,operations_per_call,calls,ns_per_op_mean,ns_per_op_stddev,"
+				+ "ns_per_op_min,ns_per_op_max\n");
+		for (Result r : results) {
+			out.write(String.format(Locale.ROOT, "%s,%s,%d,%d,%d,%.3f,%.3f,%.3f,%.3f%n", r.name, backend.getName(), 
+					r.nanosPerOperation.length, r.operations, r.calls, r.mean(), r.deviation(), r.min(), r.max()));
+		}
+	}
+	
+	private static void writeJSON(Writer out, Backend backend, List<Result> results) throws IOException {
+		out.write("{\n");
+		out.write("  \"backend\": \"" + backend.getName() + "\",\n");
+		out.write("  \"java\": \"" + System.getProperty("java.version") + "\",\n");
+		out.write("  \"os\": \"" + System.getProperty("os.name") + " " + System.getProperty("os.arch") + "\",\n");
+		out.write("  \"processors\": " + Runtime.getRuntime().availableProcessors() + ",\n");
+		out.write("  \"time\": " + System.currentTimeMillis() + ",\n");
+		out.write("  \"iterationMillis\": " + iterationNanos / 1000000 + ",\n");
+		out.write("  \"results\": [");
+		for (int i = 0; i < results.size(); i++) {
+			Result r = results.get(i);
+			out.write(i == 0 ? "\n" : ",\n");
+			out.write("    {\"benchmark\": \"" + r.name + "\", \"operationsPerCall\": " + r.operations 
+					+ ", \"calls\": " + r.calls + ", \"unit\": \"ns/op\"");
+			out.write(String.format(Locale.ROOT, ", \"mean\": %.3f, \"stddev\": %.3f, \"min\": %.3f, \"max\": %.3f", 
+					r.mean(), r.deviation(), r.min(), r.max()));
+			out.write(", \"iterations\": [");
+			for (int j = 0; j < r.nanosPerOperation.length; j++) {
+				if (j > 0) out.write(", ");
+				out.write(String.format(Locale.ROOT, "%.3f", r.nanosPerOperation[j]));
+			}
+			out.write("]}");
+		}
+		out.write("\n  ]\n}\n");
+	}
+}
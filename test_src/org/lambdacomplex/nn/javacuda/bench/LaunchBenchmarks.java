@@ -0,0 +1,187 @@
+/*
+* Copyright 2009 Gabriel Collin
+*
+* This file is part of javaCUDA.
+*
+* javaCUDA is free software: you can redistribute it and/or modify it
+* under the terms of the GNU Lesser General Public License as published
+* by the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* javaCUDA is distributed in the hope that it will be useful, but WITHOUT
+* ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+* FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public
+* License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public
+* License along with javaCUDA. If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package org.lambdacomplex.nn.javacuda.bench;
+
+import java.util.*;
+
+import org.lambdacomplex.nn.javacuda.*;
+import org.lambdacomplex.nn.javacuda.Module;
+import org.lambdacomplex.nn.javacuda.array.*;
+
+/**
+ * The host side cost of launches and of making a context current.
+ * 
+ * Launches are of a kernel that does nothing, 64 to a call followed by a synchronise, and the results are per 
+ * launch. Comparing the launches with 1, 4 and 16 arguments gives the cost of marshalling arguments.
+ */
+public class LaunchBenchmarks {
+	private static final int LAUNCHES = 64;
+	private static final int NESTED = 100;
+	
+	public static List<Benchmark> getBenchmarks() {
+		List<Benchmark> list = new ArrayList<Benchmark>();
+		list.add(new LaunchBenchmark("launch.args1", 1, false));
+		list.add(new LaunchBenchmark("launch.args4", 4, false));
+		list.add(new LaunchBenchmark("launch.args16", 16, false));
+		list.add(new LaunchBenchmark("launch.call.args4", 4, true));
+		list.add(new LaunchBenchmark("launch.typed.args4", 4, false) {
+			private BenchKernels kernels;
+			public void setUp(Context ctx) {
+				super.setUp(ctx);
+				kernels = BenchKernels.bind(getModule());
+				kernels.setStream(getStream());
+			}
+			public long run() {
+				DevicePointer p = getPointer();
+				for (int i = 0; i < LAUNCHES; i++) {
+					kernels.noop_kernel(p, 1, p, 3);
+				}
+				getStream().synchronise();
+				return LAUNCHES;
+			}
+			public void tearDown() {
+				kernels.close();
+				super.tearDown();
+			}
+		});
+		list.add(new LaunchBenchmark("launch.prepared.args4", 4, false) {
+			private KernelArguments prepared;
+			public void setUp(Context ctx) {
+				super.setUp(ctx);
+				prepared = getFunction().createArguments();
+				for (int i = 0; i < 4; i++) {
+					if (i % 2 == 0) prepared.putPointer(getPointer()); else prepared.putInt(i);
+				}
+			}
+			public long run() {
+				for (int i = 0; i < LAUNCHES; i++) {
+					getFunction().launch(prepared, getStream());
+				}
+				getStream().synchronise();
+				return LAUNCHES;
+			}
+			public void tearDown() {
+				prepared.free();
+				super.tearDown();
+			}
+		});
+		
+		list.add(new Benchmark("context.run", 1) {
+			private Context context;
+			private Runnable nothing = new Runnable() {
+				public void run() {}
+			};
+			public void setUp(Context ctx) { context = ctx; }
+			public long run() {
+				context.run(nothing);
+				return 1;
+			}
+		});
+		
+		list.add(new Benchmark("context.run.nested", NESTED) {
+			private Context context;
+			private Runnable nothing = new Runnable() {
+				public void run() {}
+			};
+			private Context.Task<Long> outer = new Context.Task<Long>() {
+				public Long run() {
+					// the context is already current, so these do not push or pop it
+					for (int i = 0; i < NESTED; i++) context.run(nothing);
+					return 1L;
+				}
+			};
+			public void setUp(Context ctx) { context = ctx; }
+			public long run() {
+				return context.execute(outer);
+			}
+		});
+		
+		list.add(new Benchmark("context.run.driverThread", 1) {
+			private Context context;
+			private Runnable nothing = new Runnable() {
+				public void run() {}
+			};
+			public void setUp(Context ctx) {
+				context = Device.getDevice(ctx.getBackend(), 0).getContext(Context.Flags.SCHEDULER_AUTO, 
+						Context.ExecutionMode.DRIVER_THREAD);
+			}
+			public long run() {
+				context.run(nothing);
+				return 1;
+			}
+			public void tearDown() { context.destroy(); }
+		});
+		
+		return list;
+	}
+	
+	private static class LaunchBenchmark extends Benchmark {
+		private int argumentCount;
+		private boolean future;
+		private Stream stream;
+		private DevicePointer pointer;
+		private Module module;
+		private Function function;
+		private Function.Argument[] arguments;
+		
+		LaunchBenchmark(String name, int argumentCount, boolean future) {
+			super(name, LAUNCHES);
+			this.argumentCount = argumentCount;
+			this.future = future;
+		}
+		
+		public void setUp(Context ctx) {
+			stream = ctx.createStream();
+			NativeByteArray host = new NativeByteArray(64);
+			pointer = DevicePointer.toDevice(ctx, host);
+			host.free();
+			module = ctx.loadCubin(new Cubin(new byte[] {1, 2, 3, 4}));
+			function = module.getFunction("noop_kernel");
+			function.setBlockSize(new Function.BlockSize(1,1,1));
+			function.setGridSize(new Function.GridSize(1,1));
+			arguments = new Function.Argument[argumentCount];
+			for (int i = 0; i < argumentCount; i++) {
+				arguments[i] = i % 2 == 0 ? new Function.PointerArgument(pointer) : new Function.IntegerArgument(i);
+			}
+		}
+		
+		public long run() {
+			for (int i = 0; i < LAUNCHES; i++) {
+				if (future) {
+					function.call(arguments, stream);
+				} else {
+					function.launch(arguments, stream);
+				}
+			}
+			stream.synchronise();
+			return LAUNCHES;
+		}
+		
+		public void tearDown() {
+			stream.destroy();
+			pointer.free();
+		}
+		
+		Module getModule() { return module; }
+		Function getFunction() { return function; }
+		DevicePointer getPointer() { return pointer; }
+		Stream getStream() { return stream; }
+	}
+}
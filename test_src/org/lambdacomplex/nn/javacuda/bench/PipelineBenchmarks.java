@@ -0,0 +1,263 @@
+/*
+* Copyright 2009 Gabriel Collin
+*
+* This file is part of javaCUDA.
+*
+* javaCUDA is free software: you can redistribute it and/or modify it
+* under the terms of the GNU Lesser General Public License as published
+* by the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* javaCUDA is distributed in the hope that it will be useful, but WITHOUT
+* ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+* FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public
+* License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public
+* License along with javaCUDA. If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package org.lambdacomplex.nn.javacuda.bench;
+
+import java.nio.ByteBuffer;
+import java.util.*;
+
+import org.lambdacomplex.nn.javacuda.*;
+import org.lambdacomplex.nn.javacuda.array.*;
+
+/**
+ * Whole jobs, modelled on the Mandelbrot and Asynchronous examples: fill the input, copy it to the device, 
+ * launch, copy the result back and read it. The results are per element.
+ * 
+ * On the CPU backend the kernels are Java versions of the examples' kernels. The Mandelbrot one stops at 1000 
+ * iterations instead of 100000, so that a call takes milliseconds rather than seconds.
+ * 
+ * The small pipeline copies a thousand ints in, increments them three times and copies them back, once 
+ * call by call and once as a CommandGraph. With so little work the difference is the overhead per command.
+ */
+public class PipelineBenchmarks {
+	private static final int INCREMENT_SIZE = 1024 * 1024;
+	private static final int WIDTH = 256, HEIGHT = 256;
+	private static final int MAX_ITERATIONS = 1000;
+	private static final int SMALL_SIZE = 1024;
+	private static final int SMALL_STEPS = 3;
+	
+	/**
+	 * Register the Java versions of the kernels the benchmarks launch with CpuBackend.
+	 */
+	public static void registerKernels() {
+		CpuBackend.register("noop_kernel", new CpuKernel() {
+			public void run(CpuKernel.Block block) {
+			}
+		});
+		
+		CpuBackend.register("increment_kernel", new CpuKernel() {
+			public void run(CpuKernel.Block block) {
+				ByteBuffer data = block.getPointer(0);
+				int inc = block.getInt(4);
+				int first = block.getBlockX() * block.getBlockDimX();
+				for (int i = first * 4; i < (first + block.getBlockDimX()) * 4; i += 4) {
+					data.putInt(i, data.getInt(i) + inc);
+				}
+			}
+		});
+		
+		CpuBackend.register("squarecmplx", new CpuKernel() {
+			public void run(CpuKernel.Block block) {
+				ByteBuffer real = block.getPointer(0);
+				ByteBuffer imaginary = block.getPointer(4);
+				int resX = block.getInt(8);
+				int resY = block.getInt(12);
+				for (int ty = 0; ty < block.getBlockDimY(); ty++) {
+					for (int tx = 0; tx < block.getBlockDimX(); tx++) {
+						int x = block.getBlockX() * block.getBlockDimX() + tx;
+						int y = block.getBlockY() * block.getBlockDimY() + ty;
+						if (x >= resX || y >= resY) continue;
+						
+						int index = (x + y * resX) * 4;
+						float initRx = real.getFloat(index);
+						float initIm = imaginary.getFloat(index);
+						float rx = initRx, im = initIm;
+						int i;
+						for (i = 0; i < MAX_ITERATIONS; i++) {
+							float oldrx = rx;
+							rx = rx*rx - im*im + initRx;
+							im = 2 * oldrx * im + initIm;
+							if (rx*rx + im*im > 4) break;
+						}
+						real.putFloat(index, i == MAX_ITERATIONS ? -101 : i);
+					}
+				}
+			}
+		});
+	}
+	
+	public static List<Benchmark> getBenchmarks() {
+		List<Benchmark> list = new ArrayList<Benchmark>();
+		
+		list.add(new Benchmark("pipeline.asynchronous", INCREMENT_SIZE) {
+			private Context context;
+			private Stream stream;
+			private NativeIntArray input;
+			private Function function;
+			
+			public void setUp(Context ctx) {
+				context = ctx;
+				stream = ctx.createStream();
+				input = new NativeIntArray(ctx, INCREMENT_SIZE);
+				function = ctx.loadCubin(new Cubin(new byte[] {1, 2, 3, 4})).getFunction("increment_kernel");
+				function.setBlockSize(new Function.BlockSize(256,1,1));
+				function.setGridSize(new Function.GridSize(INCREMENT_SIZE/256,1));
+			}
+			
+			public long run() {
+				for (int i = 0; i < INCREMENT_SIZE; i++) input.setInt(i, i);
+				DevicePointer input_gpu = DevicePointer.toDeviceAsync(context, input, stream);
+				function.call(new Function.Argument[]{
+						new Function.PointerArgument(input_gpu),
+						new Function.IntegerArgument(25)
+					}, stream);
+				input_gpu.copyToAsync(input, stream);
+				stream.synchronise();
+				input_gpu.free();
+				return input.getInt(INCREMENT_SIZE - 1);
+			}
+			
+			public void tearDown() {
+				stream.destroy();
+				input.free();
+			}
+		});
+		
+		list.add(new Benchmark("pipeline.mandelbrot", WIDTH * HEIGHT) {
+			private Context context;
+			private NativeFloatArray2D real, imaginary;
+			private NativeFloatArray result;
+			private Function function;
+			
+			public void setUp(Context ctx) {
+				context = ctx;
+				real = new NativeFloatArray2D(WIDTH, HEIGHT);
+				imaginary = new NativeFloatArray2D(WIDTH, HEIGHT);
+				result = new NativeFloatArray(WIDTH * HEIGHT);
+				function = ctx.loadCubin(new Cubin(new byte[] {1, 2, 3, 4})).getFunction("squarecmplx");
+				function.setBlockSize(new Function.BlockSize(16,16,1));
+				function.setGridSize(Function.GridSize.toFit(function.getBlockSize(), WIDTH, HEIGHT));
+			}
+			
+			public long run() {
+				for (int y = 0; y < HEIGHT; y++) {
+					for (int x = 0; x < WIDTH; x++) {
+						real.setFloat(x,y, -2 + x*(4f/WIDTH));
+						imaginary.setFloat(x,y, -2 + y*(4f/HEIGHT));
+					}
+				}
+				DevicePointer real_gpu = DevicePointer.toDevice(context, real.get1DArray());
+				DevicePointer imaginary_gpu = DevicePointer.toDevice(context, imaginary.get1DArray());
+				function.call(new Function.Argument[]{
+						new Function.PointerArgument(real_gpu),
+						new Function.PointerArgument(imaginary_gpu),
+						new Function.IntegerArgument(WIDTH),
+						new Function.IntegerArgument(HEIGHT),
+					});
+				real_gpu.copyTo(result);
+				real_gpu.free();
+				imaginary_gpu.free();
+				
+				float sum = 0;
+				for (int i = 0; i < WIDTH * HEIGHT; i++) sum += result.getFloat(i);
+				return Float.floatToRawIntBits(sum);
+			}
+			
+			public void tearDown() {
+				real.get1DArray().free();
+				imaginary.get1DArray().free();
+				result.free();
+			}
+		});
+		
+		list.add(new SmallPipeline("pipeline.small.steps") {
+			private KernelArguments arguments;
+			
+			public void setUp(Context ctx) {
+				super.setUp(ctx);
+				arguments = function.createArguments();
+				arguments.putPointer(data_gpu);
+				arguments.putInt(1);
+			}
+			
+			protected void queue() {
+				data_gpu.copyFromAsync(data, stream);
+				for (int i = 0; i < SMALL_STEPS; i++) function.launch(arguments, stream);
+				data_gpu.copyToAsync(data, stream);
+			}
+			
+			public void tearDown() {
+				arguments.free();
+				super.tearDown();
+			}
+		});
+		
+		list.add(new SmallPipeline("pipeline.small.graph") {
+			private CommandGraph graph;
+			
+			public void setUp(Context ctx) {
+				super.setUp(ctx);
+				CommandGraph.Builder builder = new CommandGraph.Builder(ctx);
+				CommandGraph.DeviceSlot device = builder.deviceSlot("data_gpu");
+				CommandGraph.HostSlot host = builder.hostSlot("data");
+				builder.copyToDevice(device, host);
+				for (int i = 0; i < SMALL_STEPS; i++) builder.launch(function, device, 1);
+				builder.copyToHost(host, device);
+				graph = builder.build();
+				graph.bind(device, data_gpu);
+				graph.bind(host, data);
+			}
+			
+			protected void queue() {
+				graph.replay(stream);
+			}
+			
+			public void tearDown() {
+				graph.close();
+				super.tearDown();
+			}
+		});
+		
+		return list;
+	}
+	
+	private static abstract class SmallPipeline extends Benchmark {
+		protected Stream stream;
+		protected NativeIntArray data;
+		protected DevicePointer data_gpu;
+		protected Function function;
+		
+		SmallPipeline(String name) {
+			super(name, 1);
+		}
+		
+		public void setUp(Context ctx) {
+			stream = ctx.createStream();
+			data = new NativeIntArray(ctx, SMALL_SIZE);
+			data_gpu = DevicePointer.toDevice(ctx, data);
+			function = ctx.loadCubin(new Cubin(new byte[] {1, 2, 3, 4})).getFunction("increment_kernel");
+			function.setBlockSize(new Function.BlockSize(256,1,1));
+			function.setGridSize(new Function.GridSize(SMALL_SIZE/256,1));
+		}
+		
+		protected abstract void queue();
+		
+		public long run() {
+			queue();
+			stream.synchronise();
+			return data.getInt(0);
+		}
+		
+		public void tearDown() {
+			data_gpu.free();
+			stream.destroy();
+			data.free();
+		}
+	}
+}
@@ -0,0 +1,210 @@
+/*
+* Copyright 2009 Gabriel Collin
+*
+* This file is part of javaCUDA.
+*
+* javaCUDA is free software: you can redistribute it and/or modify it
+* under the terms of the GNU Lesser General Public License as published
+* by the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* javaCUDA is distributed in the hope that it will be useful, but WITHOUT
+* ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+* FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public
+* License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public
+* License along with javaCUDA. If not, see <http://www.gnu.org/licenses/>.
+*/
+
+
+package org.lambdacomplex.nn.javacuda.test;
+
+import java.lang.management.ManagementFactory;
+
+import org.lambdacomplex.nn.javacuda.*;
+import org.lambdacomplex.nn.javacuda.Module;
+import org.lambdacomplex.nn.javacuda.array.*;
+import org.lambdacomplex.nn.javacuda.bench.BenchKernels;
+
+/**
+ * Counts the bytes allocated by the calling thread for each copy, launch, query and timing call.
+ * 
+ * By default the calls go to a simulated driver that allocates nothing itself, so what is counted is the 
+ * library's own allocation. Backends can also be named as for javacuda.backend, such as cuda with the wrapper 
+ * built against the stub driver, or cpu, whose streams allocate for each copy and launch they queue.
+ * Usage: AllocationCount [iterations] [backend...]
+ */
+public class AllocationCount {
+	private static int iterations = 1000000;
+	private static com.sun.management.ThreadMXBean threads = 
+		(com.sun.management.ThreadMXBean)ManagementFactory.getThreadMXBean();
+	
+	public static void main(String args[]) {
+		if (args.length > 0) iterations = Integer.parseInt(args[0]);
+		
+		// for the cpu backend, which runs kernels registered by name
+		CpuBackend.register("noop_kernel", new CpuKernel() {
+			public void run(CpuKernel.Block block) {
+			}
+		});
+		
+		if (args.length < 2) {
+			doit(new SimulatedBackend());
+		}
+		for (int i = 1; i < args.length; i++) {
+			doit(Device.createBackend(args[i]));
+		}
+	}
+	
+	public static void doit(Backend backend) {
+		System.out.println("Backend " + backend.getName());
+		Context ctx = Device.getDevice(backend, 0).getContext();
+		Stream stream = ctx.createStream();
+		NativeByteArray host = new NativeByteArray(64);
+		DevicePointer device = DevicePointer.toDevice(ctx, host);
+		
+		Module module = ctx.loadCubin(new Cubin(new byte[] {1, 2, 3, 4}));
+		Function function = module.getFunction("noop_kernel");
+		function.setBlockSize(new Function.BlockSize(1,1,1));
+		function.setGridSize(new Function.GridSize(1,1));
+		Function.Argument[] arguments = new Function.Argument[]{
+				new Function.PointerArgument(device),
+				new Function.IntegerArgument(1)
+			};
+		BenchKernels kernels = BenchKernels.bind(module);
+		kernels.setStream(stream);
+		KernelArguments prepared = function.createArguments();
+		int value = prepared.putPointer(device);
+		prepared.putInt(1);
+		CommandGraph.Builder builder = new CommandGraph.Builder(ctx);
+		CommandGraph.DeviceSlot deviceSlot = builder.deviceSlot("device");
+		CommandGraph.HostSlot hostSlot = builder.hostSlot("host");
+		CommandGraph.ScalarSlot increment = builder.scalarSlot("increment", KernelSignature.Kind.INT);
+		builder.copyToDevice(deviceSlot, hostSlot).launch(function, deviceSlot, increment).copyToHost(hostSlot, deviceSlot);
+		CommandGraph graph = builder.build();
+		graph.bind(hostSlot, host);
+		Stream.Event start = stream.createEvent();
+		Stream.Event end = stream.createEvent();
+		
+		// the first passes are warm up, so the counted one runs compiled and past any deoptimisation
+		for (int pass = 0; pass < 3; pass++) {
+			long before = allocated();
+			for (int i = 0; i < iterations; i++) {
+				device.copyFrom(host);
+				device.copyTo(host);
+			}
+			report(pass, "copy to and from the device", before);
+			
+			before = allocated();
+			for (int i = 0; i < iterations; i++) {
+				function.launch(arguments, stream);
+			}
+			report(pass, "launch", before);
+			
+			before = allocated();
+			for (int i = 0; i < iterations; i++) {
+				prepared.setPointer(value, device);
+				function.launch(prepared, stream);
+			}
+			report(pass, "launch with reused arguments", before);
+			
+			before = allocated();
+			for (int i = 0; i < iterations; i++) {
+				kernels.noop_kernel(device, 1, device, 3);
+			}
+			report(pass, "typed launch", before);
+			
+			before = allocated();
+			for (int i = 0; i < iterations; i++) {
+				graph.bind(deviceSlot, device);
+				graph.setInt(increment, i);
+				graph.replay(stream);
+			}
+			report(pass, "command graph replay", before);
+			
+			before = allocated();
+			for (int i = 0; i < iterations; i++) {
+				end.isReached();
+				stream.isReady();
+			}
+			report(pass, "event and stream query", before);
+			
+			before = allocated();
+			for (int i = 0; i < iterations; i++) {
+				Stream.Event.elapsedTime(start, end);
+			}
+			report(pass, "elapsed time", before);
+			
+			before = allocated();
+			for (int i = 0; i < iterations; i++) {
+				stream.synchronise();
+				ctx.synchronise();
+			}
+			report(pass, "stream and context synchronise", before);
+		}
+		
+		start.destroy();
+		end.destroy();
+		prepared.free();
+		graph.close();
+		kernels.close();
+		device.free();
+		host.free();
+		stream.destroy();
+		ctx.destroy();
+	}
+	
+	private static long allocated() {
+		return threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+	}
+	
+	private static void report(int pass, String what, long before) {
+		long bytes = allocated() - before;
+		if (pass < 2) return;
+		System.out.println("  " + what + ": " + (double)bytes / iterations + " bytes per call, " + bytes + " in all");
+	}
+	
+	/**
+	 * A driver that does nothing, and allocates nothing once its handles are made.
+	 */
+	static class SimulatedBackend implements Backend {
+		private long next = 0x10000;
+		
+		public String getName() { return "simulated"; }
+		public int getDeviceCount() { return 1; }
+		public int getAttribute(int device, DeviceInfo.Attribute attribute) { return -1; }
+		public long getTotalMemory(int device) { return 0; }
+		public String getDeviceName(int device) { return "simulated"; }
+		public boolean hasPageLockedMemory() { return false; }
+		public boolean needsCubinImage() { return false; }
+		public int getPointerSize() { return 8; }
+		public Object createContext(int device, Context.Flags flags) { return new Object(); }
+		public void destroyContext(Object context) {}
+		public void pushContext(Object context) {}
+		public void popContext() {}
+		public void synchronizeContext() {}
+		public synchronized long allocate(long size) { long a = next; next += (size + 255) / 256 * 256; return a; }
+		public void free(long address) {}
+		public void copyToDevice(long address, NativeByteArray src, long size, Object stream) {}
+		public void copyFromDevice(NativeByteArray dst, long address, long size, Object stream) {}
+		public Object getDefaultStream(Object context) { return new Object(); }
+		public Object createStream() { return new Object(); }
+		public void destroyStream(Object stream) {}
+		public boolean queryStream(Object stream) { return true; }
+		public void synchronizeStream(Object stream) {}
+		public Object recordEvent(Object stream) { return new Object(); }
+		public boolean queryEvent(Object event) { return true; }
+		public void synchronizeEvent(Object event) {}
+		public void waitEvent(Object stream, Object event) {}
+		public float elapsedTime(Object start, Object end) { return 0; }
+		public void destroyEvent(Object event) {}
+		public Object loadModule(Cubin cubin) { return new Object(); }
+		public void unloadModule(Object module) {}
+		public Object getFunction(Object module, String name) { return new Object(); }
+		public void releaseFunction(Object function) {}
+		public void setSharedMemory(Object function, long size) {}
+		public void launch(Object function, Function.GridSize grid, Function.BlockSize block, 
+				NativeByteArray params, int paramSize, Object stream) {}
+	}
+}
@@ -3,6 +3,7 @@ package org.lambdacomplex.nn.javacuda.test;
 import java.io.*;
 
 import org.lambdacomplex.nn.javacuda.*;
+import org.lambdacomplex.nn.javacuda.Module;
 import org.lambdacomplex.nn.javacuda.array.*;
 
 public class Asynchronous {
@@ -56,15 +57,14 @@ public class Asynchronous {
 		long stopTime = System.nanoTime();
 		Stream.Event stop = ctx.getDefaultStream().createEvent();
 		
-		long counter = 0;
-		while (!stop.isReached()) counter++;
+		// wait for the stream without spinning, the context's poller completes the future
+		stop.getCompletion().join();
 		
 		float gpuTime = Stream.Event.elapsedTime(start, stop);
 		float cpuTime = (float)(stopTime - startTime)/1000000;
 		
 		System.out.println("Time spent in CPU: " + cpuTime);
 		System.out.println("Time spent in GPU: " + gpuTime);
-		System.out.println("Number of CPU cycles elapsed waiting :" + counter);
 		
 		for (int i = 0; i < inputSize; i++) {
 			if (input.getInt(i) - 25 != i) {
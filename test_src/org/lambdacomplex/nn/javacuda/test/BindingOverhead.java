@@ -0,0 +1,104 @@
+/*
+* Copyright 2009 Gabriel Collin
+*
+* This file is part of javaCUDA.
+*
+* javaCUDA is free software: you can redistribute it and/or modify it
+* under the terms of the GNU Lesser General Public License as published
+* by the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* javaCUDA is distributed in the hope that it will be useful, but WITHOUT
+* ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+* FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public
+* License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public
+* License along with javaCUDA. If not, see <http://www.gnu.org/licenses/>.
+*/
+
+
+package org.lambdacomplex.nn.javacuda.test;
+
+import org.lambdacomplex.nn.javacuda.*;
+import org.lambdacomplex.nn.javacuda.array.*;
+
+/**
+ * Measures the cost of single driver calls through each backend, for comparing bindings.
+ * 
+ * The module image is not a real cubin, so for the CUDA bindings run this against the stub driver in the 
+ * 'stub' directory: for PanamaBackend with -Djavacuda.driver=working/libcudastub.so, and for the SWIG wrapper 
+ * by building it against the stub instead of libcuda. On the CPU backend the kernel is a Java no-op.
+ * Usage: BindingOverhead [iterations] [backend...], where backends are named as for javacuda.backend, 
+ * such as cpu or org.lambdacomplex.nn.javacuda.PanamaBackend.
+ */
+public class BindingOverhead {
+	private static int iterations = 200000;
+	
+	public static void main(String args[]) {
+		if (args.length > 0) iterations = Integer.parseInt(args[0]);
+		
+		CpuBackend.register("noop_kernel", new CpuKernel() {
+			public void run(CpuKernel.Block block) {
+			}
+		});
+		
+		if (args.length < 2) {
+			doit(Device.createBackend("auto"));
+		}
+		for (int i = 1; i < args.length; i++) {
+			doit(Device.createBackend(args[i]));
+		}
+	}
+	
+	public static void doit(Backend backend) {
+		System.out.println("Backend " + backend.getName());
+		Context ctx = Device.getDevice(backend, 0).getContext();
+		Stream stream = ctx.createStream();
+		NativeByteArray host = new NativeByteArray(64);
+		DevicePointer device = DevicePointer.toDevice(ctx, host);
+		
+		Function function = ctx.loadCubin(new Cubin(new byte[] {1, 2, 3, 4})).getFunction("noop_kernel");
+		function.setBlockSize(new Function.BlockSize(1,1,1));
+		function.setGridSize(new Function.GridSize(1,1));
+		Function.Argument[] arguments = new Function.Argument[]{
+				new Function.PointerArgument(device),
+				new Function.IntegerArgument(1)
+			};
+		
+		// twice, so the second pass is compiled
+		for (int pass = 0; pass < 2; pass++) {
+			long start = System.nanoTime();
+			for (int i = 0; i < iterations; i++) {
+				Stream.Event event = stream.createEvent();
+				event.isReached();
+				event.destroy();
+			}
+			report(pass, "event record, query and destroy", start);
+			
+			start = System.nanoTime();
+			for (int i = 0; i < iterations; i++) {
+				device.copyFrom(host);
+				device.copyTo(host);
+			}
+			report(pass, "64 byte copy to and from the device", start);
+			
+			start = System.nanoTime();
+			for (int i = 0; i < iterations; i++) {
+				function.call(arguments, stream);
+			}
+			stream.synchronise();
+			report(pass, "launch", start);
+		}
+		
+		device.free();
+		host.free();
+		stream.destroy();
+		ctx.destroy();
+	}
+	
+	private static void report(int pass, String what, long start) {
+		if (pass == 0) return;
+		System.out.println("  " + what + ": " + (System.nanoTime() - start) / iterations + "ns");
+	}
+}
@@ -0,0 +1,83 @@
+/*
+* Copyright 2009 Gabriel Collin
+*
+* This file is part of javaCUDA.
+*
+* javaCUDA is free software: you can redistribute it and/or modify it
+* under the terms of the GNU Lesser General Public License as published
+* by the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* javaCUDA is distributed in the hope that it will be useful, but WITHOUT
+* ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+* FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public
+* License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public
+* License along with javaCUDA. If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package org.lambdacomplex.nn.javacuda.test;
+
+import org.lambdacomplex.nn.javacuda.array.*;
+
+/**
+ * Compares filling a native array one element at a time with filling it in bulk.
+ * 
+ * Only needs the wrapper library, not a device.
+ */
+public class BulkFill {
+	public static void main(String args[]) {
+		doit();
+	}
+	
+	private static int inputSize = 4*1024*1024;
+	private static int rounds = 10;
+	
+	public static void doit() {
+		NativeIntArray array = new NativeIntArray(inputSize);
+		int[] values = new int[inputSize];
+		for (int i = 0; i < inputSize; i++) values[i] = i;
+		
+		// warm up both paths before timing
+		perElement(array, values);
+		bulk(array, values);
+		
+		long start = System.nanoTime();
+		for (int r = 0; r < rounds; r++) perElement(array, values);
+		long perElementTime = System.nanoTime() - start;
+		
+		start = System.nanoTime();
+		for (int r = 0; r < rounds; r++) bulk(array, values);
+		long bulkTime = System.nanoTime() - start;
+		
+		System.out.println("Elements per fill: " + inputSize);
+		System.out.println("Per-element fill: " + throughput(perElementTime) + " M elements/s");
+		System.out.println("Bulk fill: " + throughput(bulkTime) + " M elements/s");
+		
+		int[] check = new int[inputSize];
+		array.get(0, check, 0, inputSize);
+		for (int i = 0; i < inputSize; i++) {
+			if (check[i] != i || array.getInt(i) != i) {
+				System.out.println("Data incorrect at " + i);
+				return;
+			}
+		}
+		System.out.println("Data correct");
+		array.free();
+	}
+	
+	private static void perElement(NativeIntArray array, int[] values) {
+		for (int i = 0; i < values.length; i++) {
+			array.setInt(i, values[i]);
+		}
+	}
+	
+	private static void bulk(NativeIntArray array, int[] values) {
+		array.put(0, values, 0, values.length);
+	}
+	
+	private static float throughput(long nanos) {
+		return (float)((double)inputSize * rounds * 1000 / nanos);
+	}
+}
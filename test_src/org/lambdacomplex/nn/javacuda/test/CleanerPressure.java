@@ -0,0 +1,131 @@
+/*
+* Copyright 2009 Gabriel Collin
+*
+* This file is part of javaCUDA.
+*
+* javaCUDA is free software: you can redistribute it and/or modify it
+* under the terms of the GNU Lesser General Public License as published
+* by the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* javaCUDA is distributed in the hope that it will be useful, but WITHOUT
+* ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+* FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public
+* License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public
+* License along with javaCUDA. If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package org.lambdacomplex.nn.javacuda.test;
+
+import java.lang.management.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.lambdacomplex.nn.javacuda.*;
+
+/**
+ * Compares the garbage collection cost of handles released by finalize() with handles
+ * released through ResourceCleaner, both when they are closed and when they are dropped.
+ * 
+ * The handles stand in for native resources, so no device or wrapper library is needed.
+ */
+// the finalizer is what is being measured
+@SuppressWarnings({"deprecation", "removal"})
+public class CleanerPressure {
+	public static void main(String args[]) throws Throwable {
+		doit();
+	}
+	
+	private static int handles = 2000000;
+	private static AtomicLong released = new AtomicLong();
+	
+	public static void doit() throws Throwable {
+		// warm up
+		run("finalize, dropped", new FinalizedFactory(), false);
+		run("cleaner, dropped", new CleanedFactory(), false);
+		
+		run("finalize, dropped", new FinalizedFactory(), false);
+		run("cleaner, dropped", new CleanedFactory(), false);
+		run("finalize, closed", new FinalizedFactory(), true);
+		run("cleaner, closed", new CleanedFactory(), true);
+	}
+	
+	private static void run(String name, Factory factory, boolean close) throws Throwable {
+		System.gc();
+		released.set(0);
+		long gcCount = gcCount(), gcTime = gcTime();
+		long start = System.nanoTime();
+		for (int i = 0; i < handles; i++) {
+			AutoCloseable h = factory.create();
+			if (close) h.close();
+		}
+		long allocTime = System.nanoTime() - start;
+		
+		// wait until the collector has caught up with every handle
+		while (released.get() < handles) {
+			System.gc();
+			Thread.sleep(10);
+		}
+		long totalTime = System.nanoTime() - start;
+		
+		System.out.println(name + ": allocate " + allocTime / 1000000 + "ms, all released "
+				+ totalTime / 1000000 + "ms, " + (gcCount() - gcCount) + " collections, "
+				+ (gcTime() - gcTime) + "ms in GC");
+	}
+	
+	private static long gcCount() {
+		long count = 0;
+		for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+			count += gc.getCollectionCount();
+		}
+		return count;
+	}
+	
+	private static long gcTime() {
+		long time = 0;
+		for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+			time += gc.getCollectionTime();
+		}
+		return time;
+	}
+	
+	private interface Factory {
+		AutoCloseable create();
+	}
+	
+	private static class FinalizedFactory implements Factory {
+		public AutoCloseable create() { return new FinalizedHandle(); }
+	}
+	
+	private static class CleanedFactory implements Factory {
+		public AutoCloseable create() { return new CleanedHandle(); }
+	}
+	
+	private static class FinalizedHandle implements AutoCloseable {
+		private boolean freed;
+		public synchronized void close() {
+			if (freed) return;
+			freed = true;
+			released.incrementAndGet();
+		}
+		protected void finalize() throws Throwable {
+			try {
+				close();
+			} finally {
+				super.finalize();
+			}
+		}
+	}
+	
+	private static class CleanedHandle implements AutoCloseable {
+		private ResourceCleaner.Handle handle = ResourceCleaner.register(this, new Release());
+		public void close() {
+			handle.release();
+		}
+	}
+	
+	private static class Release implements Runnable {
+		public void run() { released.incrementAndGet(); }
+	}
+}
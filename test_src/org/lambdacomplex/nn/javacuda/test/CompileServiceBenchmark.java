@@ -0,0 +1,96 @@
+/*
+* Copyright 2009 Gabriel Collin
+*
+* This file is part of javaCUDA.
+*
+* javaCUDA is free software: you can redistribute it and/or modify it
+* under the terms of the GNU Lesser General Public License as published
+* by the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* javaCUDA is distributed in the hope that it will be useful, but WITHOUT
+* ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+* FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public
+* License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public
+* License along with javaCUDA. If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package org.lambdacomplex.nn.javacuda.test;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.lambdacomplex.nn.javacuda.*;
+
+/**
+ * Compares compiling a number of Cubins one after another with compiling them on a CompileService,
+ * using a stand-in compiler script that sleeps to simulate nvcc.
+ * 
+ * Also measures how long the last Cubin submitted takes to become ready when it is needed first.
+ * Usage: CompileServiceBenchmark [cubins] [compile ms] [processes]
+ */
+public class CompileServiceBenchmark {
+	public static void main(String args[]) throws Throwable {
+		if (args.length > 0) count = Integer.parseInt(args[0]);
+		if (args.length > 1) delay = Integer.parseInt(args[1]);
+		if (args.length > 2) processes = Integer.parseInt(args[2]);
+		doit();
+	}
+	
+	private static int count = 24;
+	private static int delay = 250;
+	private static int processes = 8;
+	
+	public static void doit() throws Throwable {
+		File dir = Files.createTempDirectory("compileServiceBenchmark").toFile();
+		CubinCompiler compiler = new CubinCompiler(CubinCacheCheck.fakeCompiler(dir, delay).getPath(), null);
+		System.out.println(count + " cubins, " + delay + "ms each, " + processes + " processes");
+		
+		long start = System.nanoTime();
+		for (Cubin c : cubins(compiler)) c.compile();
+		System.out.println("sequential: " + (System.nanoTime() - start) / 1000000 + "ms");
+		
+		final AtomicInteger lines = new AtomicInteger();
+		CompileService service = new CompileService(processes, new CompileService.Listener() {
+			public void diagnostic(Cubin cubin, String line) {
+				lines.incrementAndGet();
+			}
+		});
+		
+		start = System.nanoTime();
+		List<Cubin> cubins = cubins(compiler);
+		service.submitAll(cubins).join();
+		System.out.println("service: " + (System.nanoTime() - start) / 1000000 + "ms, " 
+				+ lines.get() + " diagnostic lines");
+		
+		// the last cubin is needed first, it should not wait for the queue
+		start = System.nanoTime();
+		cubins = cubins(compiler);
+		service.submitAll(cubins);
+		cubins.get(cubins.size() - 1).ensureCompiled(null);
+		System.out.println("last submitted, needed first: ready after " 
+				+ (System.nanoTime() - start) / 1000000 + "ms, " + service.getQueued() + " still queued");
+		service.close();
+		
+		// a failing compile is reported through the future
+		Cubin broken = new Cubin(new StringReader(""), new CubinCompiler("/bin/false", null), null);
+		try {
+			new CompileService(1).submit(broken).join();
+		} catch (RuntimeException e) {
+			System.out.println("failed compile: " + e.getCause().getClass().getSimpleName());
+		}
+	}
+	
+	private static List<Cubin> cubins(CubinCompiler compiler) {
+		List<Cubin> result = new ArrayList<Cubin>();
+		for (int i = 0; i < count; i++) {
+			String source = "extern \"C\" __global__ void kernel" + i + "(int *g_data) { g_data[0] = " + i + "; }\n";
+			result.add(new Cubin(new StringReader(source), compiler, null));
+		}
+		return result;
+	}
+}
@@ -0,0 +1,114 @@
+/*
+* Copyright 2009 Gabriel Collin
+*
+* This file is part of javaCUDA.
+*
+* javaCUDA is free software: you can redistribute it and/or modify it
+* under the terms of the GNU Lesser General Public License as published
+* by the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* javaCUDA is distributed in the hope that it will be useful, but WITHOUT
+* ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+* FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public
+* License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public
+* License along with javaCUDA. If not, see <http://www.gnu.org/licenses/>.
+*/
+
+
+package org.lambdacomplex.nn.javacuda.test;
+
+import java.nio.ByteBuffer;
+
+import org.lambdacomplex.nn.javacuda.*;
+import org.lambdacomplex.nn.javacuda.Module;
+import org.lambdacomplex.nn.javacuda.array.*;
+
+/**
+ * Runs the job of the Asynchronous example on the CPU backend, with the kernel written in Java, first on 
+ * one thread and then on a thread per processor.
+ * 
+ * No device or wrapper library is needed.
+ * Usage: CpuIncrement [input size] [repeats]
+ */
+public class CpuIncrement {
+	public static void main(String args[]) {
+		if (args.length > 0) inputSize = Integer.parseInt(args[0]);
+		if (args.length > 1) repeats = Integer.parseInt(args[1]);
+		
+		CpuBackend.register("increment_kernel", new CpuKernel() {
+			public void run(CpuKernel.Block block) {
+				ByteBuffer data = block.getPointer(0);
+				int inc = block.getInt(4);
+				int first = block.getBlockX() * block.getBlockDimX();
+				for (int i = first * 4; i < (first + block.getBlockDimX()) * 4; i += 4) {
+					data.putInt(i, data.getInt(i) + inc);
+				}
+			}
+		});
+		
+		int processors = Runtime.getRuntime().availableProcessors();
+		doit(new CpuBackend(1));
+		doit(new CpuBackend(processors));
+	}
+	
+	private static int inputSize = 16*1024*1024;
+	private static int repeats = 10;
+	
+	public static void doit(CpuBackend backend) {
+		System.out.println("Backend " + backend.getName() + " with " + backend.getPool().getParallelism() + " threads");
+		Context ctx = Device.getDevice(backend, 0).getContext();
+		
+		// the CPU backend never compiles the source, the kernel is found by name
+		Module module = ctx.loadCubin(new Cubin(Asynchronous.getKernel()));
+		Function function = module.getFunction("increment_kernel");
+		
+		NativeIntArray input = new NativeIntArray(ctx, inputSize);
+		for (int i = 0; i < inputSize; i++) {
+			input.setInt(i, i);
+		}
+		
+		function.setBlockSize(new Function.BlockSize(256,1,1));
+		function.setGridSize(new Function.GridSize(inputSize/256,1));
+		
+		Stream stream = ctx.createStream();
+		DevicePointer input_gpu = DevicePointer.toDeviceAsync(ctx, input, stream);
+		Function.Argument[] arguments = new Function.Argument[]{
+				new Function.PointerArgument(input_gpu),
+				new Function.IntegerArgument(1)
+			};
+		
+		long startTime = System.nanoTime();
+		Stream.Event start = stream.createEvent();
+		for (int i = 0; i < repeats; i++) {
+			function.call(arguments, stream);
+		}
+		Stream.Event stop = stream.createEvent();
+		input_gpu.copyToAsync(input, stream);
+		stop.getCompletion().join();
+		stream.synchronise();
+		
+		float kernelTime = Stream.Event.elapsedTime(start, stop);
+		float totalTime = (float)(System.nanoTime() - startTime)/1000000;
+		
+		System.out.println("Time in kernels: " + kernelTime + "ms, " 
+				+ (long)((double)inputSize * repeats / kernelTime / 1000) + " M elements/s");
+		System.out.println("Total time: " + totalTime + "ms");
+		
+		for (int i = 0; i < inputSize; i++) {
+			if (input.getInt(i) - repeats != i) {
+				System.out.println("CPU data incorrect!");
+				System.out.println("Value at " + i + " is " + input.getInt(i));
+				return;
+			}
+		}
+		System.out.println("CPU data correct");
+		
+		input_gpu.free();
+		stream.destroy();
+		input.free();
+		ctx.destroy();
+	}
+}
@@ -0,0 +1,98 @@
+/*
+* Copyright 2009 Gabriel Collin
+*
+* This file is part of javaCUDA.
+*
+* javaCUDA is free software: you can redistribute it and/or modify it
+* under the terms of the GNU Lesser General Public License as published
+* by the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* javaCUDA is distributed in the hope that it will be useful, but WITHOUT
+* ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+* FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public
+* License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public
+* License along with javaCUDA. If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package org.lambdacomplex.nn.javacuda.test;
+
+import java.io.*;
+import java.nio.file.Files;
+
+import org.lambdacomplex.nn.javacuda.*;
+
+/**
+ * Exercises the cubin cache with a fake compiler, a shell script that copies its input to its 
+ * output after a delay, so no CUDA installation is needed.
+ */
+public class CubinCacheCheck {
+	public static void main(String args[]) throws Throwable {
+		doit();
+	}
+	
+	public static void doit() throws Throwable {
+		File dir = Files.createTempDirectory("cubinCacheCheck").toFile();
+		CubinCompiler compiler = new CubinCompiler(fakeCompiler(dir, 200).getPath(), "sm_13");
+		File cacheDir = new File(dir, "cache");
+		
+		CubinCache cache = new CubinCache(cacheDir, 1 << 20, 1 << 20);
+		time("first compile", new Cubin(new StringReader(kernel(0)), compiler, cache));
+		time("same source", new Cubin(new StringReader(kernel(0)), compiler, cache));
+		
+		// a new cache on the same directory stands in for another process
+		CubinCache other = new CubinCache(cacheDir, 1 << 20, 1 << 20);
+		time("same source, new process", new Cubin(new StringReader(kernel(0)), compiler, other));
+		
+		CubinCompiler otherArch = new CubinCompiler(compiler.getExecutable(), "sm_20");
+		time("other architecture", new Cubin(new StringReader(kernel(0)), otherArch, other));
+		CubinCompiler otherFlags = new CubinCompiler(compiler.getExecutable(), "sm_13", "-O3");
+		time("other flags", new Cubin(new StringReader(kernel(0)), otherFlags, other));
+		
+		System.out.println("memory hits " + other.getMemoryHits() + ", disk hits " + other.getDiskHits() 
+				+ ", misses " + other.getMisses());
+		
+		// a small cache keeps only the most recently used entries
+		CubinCompiler fast = new CubinCompiler(fakeCompiler(dir, 0).getPath(), "sm_13");
+		CubinCache small = new CubinCache(new File(dir, "small"), 3 * kernel(0).length() + 100, 0);
+		for (int i = 0; i < 10; i++) {
+			new Cubin(new StringReader(kernel(i)), fast, small).compile();
+		}
+		System.out.println("small cache holds " + small.getDirectory().list().length + " of 10 cubins");
+	}
+	
+	private static void time(String name, Cubin cubin) throws Throwable {
+		long start = System.nanoTime();
+		cubin.compile();
+		System.out.println(name + ": " + (System.nanoTime() - start) / 1000000 + "ms");
+	}
+	
+	private static String kernel(int i) {
+		return "extern \"C\" __global__ void kernel" + i + "(int *g_data) { g_data[0] = " + i + "; }\n";
+	}
+	
+	/**
+	 * Write a script that takes nvcc's arguments and copies the .cu file to the -o file.
+	 */
+	static File fakeCompiler(File dir, int delayMillis) throws IOException {
+		File script = new File(dir, "fake-nvcc-" + delayMillis);
+		Writer w = new FileWriter(script);
+		w.write("#!/bin/sh\n");
+		w.write("if [ \"$1\" = --version ]; then echo 'fake nvcc 1.0'; exit 0; fi\n");
+		w.write("while [ $# -gt 0 ]; do\n");
+		w.write("  case \"$1\" in\n");
+		w.write("    -o) out=\"$2\"; shift ;;\n");
+		w.write("    *.cu) in=\"$1\" ;;\n");
+		w.write("  esac\n");
+		w.write("  shift\n");
+		w.write("done\n");
+		w.write("sleep " + delayMillis / 1000.0 + "\n");
+		w.write("echo \"compiling $in\"\n");
+		w.write("cp \"$in\" \"$out\"\n");
+		w.close();
+		script.setExecutable(true);
+		return script;
+	}
+}
@@ -0,0 +1,185 @@
+/*
+* Copyright 2009 Gabriel Collin
+*
+* This file is part of javaCUDA.
+*
+* javaCUDA is free software: you can redistribute it and/or modify it
+* under the terms of the GNU Lesser General Public License as published
+* by the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* javaCUDA is distributed in the hope that it will be useful, but WITHOUT
+* ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+* FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public
+* License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public
+* License along with javaCUDA. If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package org.lambdacomplex.nn.javacuda.test;
+
+import java.util.*;
+
+import org.lambdacomplex.nn.javacuda.*;
+
+/**
+ * Checks DeviceMemoryArena against a fake address space that counts what is reserved and released, so no 
+ * device is needed.
+ * 
+ * Covers reuse within a size class, memory freed in stream order being held back by its fence, trimming, and 
+ * trimming to make room when the address space runs out.
+ */
+public class DeviceMemoryArenaCheck {
+	private static final long BLOCK = 64 * 1024, MAX_SMALL = 16 * 1024;
+	
+	public static void main(String args[]) {
+		sizeClasses();
+		fences();
+		trimming();
+		outOfMemory();
+		System.out.println("DeviceMemoryArena OK");
+	}
+	
+	private static void sizeClasses() {
+		FakeAddressSpace space = new FakeAddressSpace(Long.MAX_VALUE);
+		DeviceMemoryArena arena = new DeviceMemoryArena(space, BLOCK, MAX_SMALL);
+		
+		DeviceMemoryArena.Allocation a = arena.allocate(1000);
+		check(a.getCapacity() == 1024, "1000 bytes rounded up to 1024");
+		arena.free(a);
+		DeviceMemoryArena.Allocation b = arena.allocate(700);
+		check(b.getAddress() == a.getAddress(), "same size class reused");
+		DeviceMemoryArena.Allocation c = arena.allocate(3000);
+		check(c.getAddress() != b.getAddress(), "other size class not reused");
+		check(space.reserves == 1, "small allocations carved from one block");
+		
+		DeviceMemoryArena.Allocation large = arena.allocate(3 * 1024 * 1024);
+		arena.free(large);
+		DeviceMemoryArena.Allocation again = arena.allocate(3 * 1024 * 1024 - 1000);
+		check(again.getAddress() == large.getAddress(), "large range reused");
+		check(space.reserves == 2, "large allocation reserved on its own");
+		check(arena.getHits() == 3 && arena.getMisses() == 2, "hits and misses counted");
+		check(arena.getMisses() == space.reserves, "a miss for each reservation");
+		check(arena.getBytesInUse() == 700 + 3000 + 3 * 1024 * 1024 - 1000, "bytes in use");
+	}
+	
+	private static void fences() {
+		FakeAddressSpace space = new FakeAddressSpace(Long.MAX_VALUE);
+		DeviceMemoryArena arena = new DeviceMemoryArena(space, BLOCK, MAX_SMALL);
+		Object streamA = new Object(), streamB = new Object();
+		
+		DeviceMemoryArena.Allocation a = arena.allocate(4096, streamA);
+		FakeFence fence = new FakeFence();
+		arena.free(a, streamA, fence);
+		check(arena.allocate(4096, streamB).getAddress() != a.getAddress(), "not reused on another stream");
+		check(arena.allocate(4096).getAddress() != a.getAddress(), "not reused without a stream");
+		check(arena.allocate(4096, streamA).getAddress() == a.getAddress(), "reused on the same stream");
+		check(fence.released == 1, "fence released on reuse by the same stream");
+		
+		DeviceMemoryArena.Allocation b = arena.allocate(2048, streamA);
+		FakeFence other = new FakeFence();
+		arena.free(b, streamA, other);
+		check(arena.allocate(2048, streamB).getAddress() != b.getAddress(), "not reused before the fence");
+		other.passed = true;
+		check(arena.allocate(2048, streamB).getAddress() == b.getAddress(), "reused once the fence has passed");
+		check(other.released == 1, "fence released once passed");
+	}
+	
+	private static void trimming() {
+		FakeAddressSpace space = new FakeAddressSpace(Long.MAX_VALUE);
+		DeviceMemoryArena arena = new DeviceMemoryArena(space, BLOCK, MAX_SMALL);
+		Object stream = new Object();
+		
+		// four blocks' worth of small allocations and two large ones
+		List<DeviceMemoryArena.Allocation> small = new ArrayList<DeviceMemoryArena.Allocation>();
+		for (int i = 0; i < 16; i++) small.add(arena.allocate(MAX_SMALL));
+		DeviceMemoryArena.Allocation large1 = arena.allocate(2 * 1024 * 1024);
+		DeviceMemoryArena.Allocation large2 = arena.allocate(5 * 1024 * 1024);
+		check(space.reserves == 6, "four blocks and two large ranges reserved");
+		
+		arena.trim();
+		check(space.releases == 0, "nothing in use is released");
+		
+		for (int i = 0; i < 12; i++) arena.free(small.get(i));
+		arena.free(large1);
+		// the last block is kept back by memory waiting on a fence
+		FakeFence fence = new FakeFence();
+		for (int i = 12; i < 16; i++) arena.free(small.get(i), stream, i == 15 ? fence : null);
+		arena.free(large2);
+		
+		arena.trim();
+		check(space.releases == 5, "three free blocks and both large ranges released");
+		check(arena.getReservedBytes() == BLOCK, "one block left reserved");
+		check(arena.getCachedBytes() == BLOCK, "the pending block still cached");
+		
+		fence.passed = true;
+		arena.trim();
+		check(space.releases == 6 && space.live.isEmpty(), "everything released once the fence has passed");
+		check(fence.released == 1, "fence released by trim");
+		check(arena.getReservedBytes() == 0 && arena.getCachedBytes() == 0, "nothing reserved or cached");
+	}
+	
+	private static void outOfMemory() {
+		FakeAddressSpace space = new FakeAddressSpace(3 * 1024 * 1024);
+		DeviceMemoryArena arena = new DeviceMemoryArena(space, BLOCK, MAX_SMALL);
+		
+		arena.free(arena.allocate(2 * 1024 * 1024));
+		DeviceMemoryArena.Allocation a = arena.allocate(3 * 1024 * 1024);
+		check(space.releases == 1, "cached range given back to make room");
+		check(arena.getReservedBytes() == a.getCapacity(), "only the new range reserved");
+		
+		boolean failed = false;
+		try {
+			arena.allocate(1);
+		} catch (CudaAPIError e) {
+			failed = true;
+		}
+		check(failed, "out of memory with nothing cached");
+	}
+	
+	private static void check(boolean condition, String what) {
+		if (!condition) throw new IllegalStateException("Failed: " + what);
+		System.out.println("ok: " + what);
+	}
+	
+	private static class FakeAddressSpace implements DeviceAddressSpace {
+		private long limit, used, top = 0x10000;
+		private Map<Long, Long> live = new HashMap<Long, Long>();
+		private int reserves, releases;
+		
+		FakeAddressSpace(long limit) {
+			this.limit = limit;
+		}
+		
+		public synchronized long reserve(long size) {
+			if (used + size > limit) throw new CudaAPIError("CUDA_ERROR_OUT_OF_MEMORY");
+			long address = top;
+			top += size;
+			used += size;
+			live.put(address, size);
+			reserves++;
+			return address;
+		}
+		
+		public synchronized void release(long address) {
+			Long size = live.remove(address);
+			if (size == null) throw new IllegalStateException("Released twice or never reserved: " + address);
+			used -= size;
+			releases++;
+		}
+	}
+	
+	private static class FakeFence implements DeviceMemoryArena.Fence {
+		private volatile boolean passed;
+		private int released;
+		
+		public boolean isPassed() {
+			return passed;
+		}
+		
+		public void release() {
+			released++;
+		}
+	}
+}
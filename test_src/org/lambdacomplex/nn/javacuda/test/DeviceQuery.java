@@ -0,0 +1,54 @@
+/*
+* Copyright 2009 Gabriel Collin
+*
+* This file is part of javaCUDA.
+*
+* javaCUDA is free software: you can redistribute it and/or modify it
+* under the terms of the GNU Lesser General Public License as published
+* by the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* javaCUDA is distributed in the hope that it will be useful, but WITHOUT
+* ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+* FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public
+* License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public
+* License along with javaCUDA. If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package org.lambdacomplex.nn.javacuda.test;
+
+import java.util.List;
+
+import org.lambdacomplex.nn.javacuda.*;
+
+/**
+ * Prints what each device of a backend is capable of, and the devices fastest first.
+ * 
+ * The attributes are queried once per device; asking again must give back the same DeviceInfo, and the device 
+ * getMaxGFlopsDevice picks must be the first of the ranking.
+ * Usage: DeviceQuery [backend]
+ */
+public class DeviceQuery {
+	
+	public static void main(String args[]) {
+		Backend backend = args.length > 0 ? Device.createBackend(args[0]) : Device.getDefaultBackend();
+		
+		for (Device device : Device.getDevices(backend)) {
+			DeviceInfo info = device.getInfo();
+			System.out.println(info);
+			if (device.getInfo() != info) throw new IllegalStateException("Device " + device.getID() + " queried twice");
+		}
+		
+		List<DeviceInfo> ranking = DeviceInfo.rank(backend);
+		System.out.println("Fastest first:");
+		for (DeviceInfo info : ranking) {
+			String peak = info.getPeakGFlops() > 0 ? String.format("%.1f GFLOP/s", info.getPeakGFlops()) : "peak unknown";
+			System.out.println("  " + info.getDeviceID() + " " + info.getName() + ", " + peak);
+		}
+		
+		if (!ranking.isEmpty() && Device.getMaxGFlopsDevice(backend).getID() != ranking.get(0).getDeviceID()) 
+			throw new IllegalStateException("getMaxGFlopsDevice does not agree with the ranking");
+	}
+}
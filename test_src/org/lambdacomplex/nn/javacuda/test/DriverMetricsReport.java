@@ -0,0 +1,87 @@
+/*
+* Copyright 2009 Gabriel Collin
+*
+* This file is part of javaCUDA.
+*
+* javaCUDA is free software: you can redistribute it and/or modify it
+* under the terms of the GNU Lesser General Public License as published
+* by the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* javaCUDA is distributed in the hope that it will be useful, but WITHOUT
+* ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+* FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public
+* License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public
+* License along with javaCUDA. If not, see <http://www.gnu.org/licenses/>.
+*/
+
+
+package org.lambdacomplex.nn.javacuda.test;
+
+import java.lang.management.ManagementFactory;
+
+import javax.management.ObjectName;
+
+import org.lambdacomplex.nn.javacuda.*;
+import org.lambdacomplex.nn.javacuda.array.*;
+
+/**
+ * Times copies and launches with driver metrics off and on, then prints the metrics and reads them back over JMX.
+ * Usage: DriverMetricsReport [iterations] [backend], the backend named as for javacuda.backend.
+ */
+public class DriverMetricsReport {
+	private static int iterations = 200000;
+	
+	public static void main(String args[]) throws Exception {
+		if (args.length > 0) iterations = Integer.parseInt(args[0]);
+		Backend backend = Device.createBackend(args.length > 1 ? args[1] : "cpu");
+		
+		CpuBackend.register("noop_kernel", new CpuKernel() {
+			public void run(CpuKernel.Block block) {
+			}
+		});
+		
+		Context ctx = Device.getDevice(backend, 0).getContext();
+		Stream stream = ctx.createStream();
+		NativeByteArray host = new NativeByteArray(64);
+		DevicePointer device = DevicePointer.toDevice(ctx, host);
+		Function function = ctx.loadCubin(new Cubin(new byte[] {1, 2, 3, 4})).getFunction("noop_kernel");
+		function.setBlockSize(new Function.BlockSize(1,1,1));
+		function.setGridSize(new Function.GridSize(1,1));
+		Function.Argument[] arguments = new Function.Argument[]{
+				new Function.PointerArgument(device),
+				new Function.IntegerArgument(1)
+			};
+		
+		for (int pass = 0; pass < 4; pass++) {
+			boolean on = pass % 2 == 1;
+			DriverMetrics.setEnabled(on);
+			long start = System.nanoTime();
+			for (int i = 0; i < iterations; i++) {
+				device.copyFrom(host);
+				device.copyTo(host);
+				function.launch(arguments, stream);
+			}
+			stream.synchronise();
+			// the first two passes warm up
+			if (pass >= 2) {
+				System.out.println("Metrics " + (on ? "on" : "off") + ": " 
+						+ (System.nanoTime() - start) / iterations + "ns per copy pair and launch");
+			}
+		}
+		DriverMetrics.setEnabled(false);
+		
+		System.out.print(DriverMetrics.get());
+		
+		ObjectName name = new ObjectName("org.lambdacomplex.nn.javacuda:type=DriverMetrics");
+		System.out.println("Over JMX, bytes to the device: " 
+				+ ManagementFactory.getPlatformMBeanServer().getAttribute(name, "BytesToDevice"));
+		
+		device.free();
+		host.free();
+		stream.destroy();
+		ctx.destroy();
+	}
+}
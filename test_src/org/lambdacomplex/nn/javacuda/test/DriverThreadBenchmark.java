@@ -0,0 +1,154 @@
+/*
+* Copyright 2009 Gabriel Collin
+*
+* This file is part of javaCUDA.
+*
+* javaCUDA is free software: you can redistribute it and/or modify it
+* under the terms of the GNU Lesser General Public License as published
+* by the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* javaCUDA is distributed in the hope that it will be useful, but WITHOUT
+* ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+* FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public
+* License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public
+* License along with javaCUDA. If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package org.lambdacomplex.nn.javacuda.test;
+
+import java.util.concurrent.*;
+
+import org.lambdacomplex.nn.javacuda.DriverThread;
+
+/**
+ * Compares the two ways a Context can run driver calls when many threads share it: pushing
+ * and popping the context under its lock for every call, and sending every call to a
+ * DriverThread that keeps the context current.
+ * 
+ * The driver is simulated by busy waiting, so no device or wrapper library is needed.
+ * Usage: DriverThreadBenchmark [threads] [calls per thread] [push/pop ns] [call ns]
+ */
+public class DriverThreadBenchmark {
+	public static void main(String args[]) throws Throwable {
+		if (args.length > 0) threads = Integer.parseInt(args[0]);
+		if (args.length > 1) calls = Integer.parseInt(args[1]);
+		if (args.length > 2) switchNanos = Long.parseLong(args[2]);
+		if (args.length > 3) callNanos = Long.parseLong(args[3]);
+		doit();
+	}
+	
+	private static int threads = 16;
+	private static int calls = 20000;
+	private static long switchNanos = 300;
+	private static long callNanos = 500;
+	
+	public static void doit() throws Throwable {
+		System.out.println(threads + " threads, " + calls + " calls each, push/pop " + switchNanos 
+				+ "ns, call " + callNanos + "ns");
+		// warm up
+		run("monitor", new Monitor());
+		DriverThread driver = new DriverThread("simulated driver", new Busy(switchNanos), new Busy(switchNanos));
+		run("driver thread", new Synchronous(driver));
+		run("driver thread, pipelined", new Pipelined(driver));
+		
+		run("monitor", new Monitor());
+		run("driver thread", new Synchronous(driver));
+		run("driver thread, pipelined", new Pipelined(driver));
+		driver.shutdown();
+	}
+	
+	private static void run(String name, final Caller caller) throws Throwable {
+		final CountDownLatch start = new CountDownLatch(1);
+		Thread[] workers = new Thread[threads];
+		for (int i = 0; i < threads; i++) {
+			workers[i] = new Thread() {
+				public void run() {
+					try {
+						start.await();
+						caller.call(calls);
+					} catch (Exception e) {
+						e.printStackTrace();
+					}
+				}
+			};
+			workers[i].start();
+		}
+		long time = System.nanoTime();
+		start.countDown();
+		for (Thread t : workers) t.join();
+		time = System.nanoTime() - time;
+		
+		long total = (long)threads * calls;
+		System.out.println(name + ": " + time / 1000000 + "ms, " + total * 1000000000L / time + " calls/s");
+	}
+	
+	private static void spin(long nanos) {
+		long end = System.nanoTime() + nanos;
+		while (System.nanoTime() < end);
+	}
+	
+	private static class Busy implements Runnable {
+		private long nanos;
+		Busy(long n) { nanos = n; }
+		public void run() { spin(nanos); }
+	}
+	
+	private static class Call implements Callable<Void> {
+		public Void call() {
+			spin(callNanos);
+			return null;
+		}
+	}
+	
+	private interface Caller {
+		void call(int count) throws Exception;
+	}
+	
+	/**
+	 * Push, call and pop under the context's lock, as a Context in ExecutionMode.MONITOR does.
+	 */
+	private static class Monitor implements Caller {
+		public void call(int count) {
+			for (int i = 0; i < count; i++) {
+				synchronized (this) {
+					spin(switchNanos);
+					spin(callNanos);
+					spin(switchNanos);
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Send each call to the driver thread and wait for it, as Context.execute does.
+	 */
+	private static class Synchronous implements Caller {
+		private DriverThread driver;
+		Synchronous(DriverThread d) { driver = d; }
+		public void call(int count) throws Exception {
+			Call call = new Call();
+			for (int i = 0; i < count; i++) {
+				driver.submit(call).get();
+			}
+		}
+	}
+	
+	/**
+	 * Send all the calls to the driver thread and wait for the last, as Context.submit allows.
+	 */
+	private static class Pipelined implements Caller {
+		private DriverThread driver;
+		Pipelined(DriverThread d) { driver = d; }
+		public void call(int count) throws Exception {
+			Call call = new Call();
+			Future<Void> last = null;
+			for (int i = 0; i < count; i++) {
+				last = driver.submit(call);
+			}
+			last.get();
+		}
+	}
+}
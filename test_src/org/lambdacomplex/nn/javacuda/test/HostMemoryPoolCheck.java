@@ -0,0 +1,139 @@
+/*
+* Copyright 2009 Gabriel Collin
+*
+* This file is part of javaCUDA.
+*
+* javaCUDA is free software: you can redistribute it and/or modify it
+* under the terms of the GNU Lesser General Public License as published
+* by the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* javaCUDA is distributed in the hope that it will be useful, but WITHOUT
+* ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+* FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public
+* License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public
+* License along with javaCUDA. If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package org.lambdacomplex.nn.javacuda.test;
+
+import java.util.*;
+
+import org.lambdacomplex.nn.javacuda.array.*;
+
+/**
+ * Checks HostMemoryPool against a fake allocator that counts what is allocated and freed, so no page-locked 
+ * memory is needed.
+ * 
+ * Covers hits and misses within size classes, requests too large to pool, the cap on cached memory, the high 
+ * water mark, trimming and the largest size class.
+ */
+public class HostMemoryPoolCheck {
+	
+	public static void main(String args[]) {
+		sizeClasses();
+		cachedBytesCap();
+		highWater();
+		largestSizeClass();
+		System.out.println("HostMemoryPool OK");
+	}
+	
+	private static void sizeClasses() {
+		CountingAllocator allocator = new CountingAllocator();
+		HostMemoryPool<Integer> pool = new HostMemoryPool<Integer>(allocator, 1024, 64 * 1024, 1 << 20);
+		
+		HostMemoryPool.Block<Integer> a = pool.acquire(1000);
+		check(a.getCapacity() == 1024, "1000 bytes rounded up to 1024");
+		pool.release(a);
+		HostMemoryPool.Block<Integer> b = pool.acquire(600);
+		check(b.getMemory().equals(a.getMemory()), "same size class reused");
+		HostMemoryPool.Block<Integer> c = pool.acquire(3000);
+		check(c.getCapacity() == 4096 && !c.getMemory().equals(b.getMemory()), "other size class allocated");
+		check(pool.getHits() == 1 && pool.getMisses() == 2, "hits and misses counted");
+		
+		HostMemoryPool.Block<Integer> large = pool.acquire(100000);
+		check(large.getCapacity() == 100000, "too large to pool, not rounded");
+		pool.release(large);
+		check(allocator.frees == 1 && pool.getCachedBytes() == 0, "too large to pool, freed on release");
+		
+		pool.release(b);
+		pool.release(c);
+		pool.trim();
+		check(allocator.live.isEmpty() && pool.getCachedBytes() == 0, "trim frees everything cached");
+	}
+	
+	private static void cachedBytesCap() {
+		CountingAllocator allocator = new CountingAllocator();
+		HostMemoryPool<Integer> pool = new HostMemoryPool<Integer>(allocator, 1024, 64 * 1024, 8192);
+		
+		List<HostMemoryPool.Block<Integer>> blocks = new ArrayList<HostMemoryPool.Block<Integer>>();
+		for (int i = 0; i < 3; i++) blocks.add(pool.acquire(4096));
+		for (HostMemoryPool.Block<Integer> block : blocks) pool.release(block);
+		check(pool.getCachedBytes() == 8192, "cache filled up to the cap");
+		check(allocator.frees == 1, "block over the cap freed");
+		
+		pool.setMaxCachedBytes(4096);
+		check(pool.getCachedBytes() == 4096 && allocator.frees == 2, "lowering the cap trims");
+		pool.acquire(4096);
+		check(pool.getHits() == 1 && allocator.allocations == 3, "cached block still reused");
+	}
+	
+	private static void highWater() {
+		CountingAllocator allocator = new CountingAllocator();
+		HostMemoryPool<Integer> pool = new HostMemoryPool<Integer>(allocator, 1024, 64 * 1024, 1 << 20);
+		
+		HostMemoryPool.Block<Integer> a = pool.acquire(4096);
+		pool.acquire(4096);
+		check(pool.getBytesInUse() == 8192 && pool.getHighWaterBytes() == 8192, "high water follows use");
+		pool.release(a);
+		pool.acquire(1024);
+		check(pool.getBytesInUse() == 5120 && pool.getHighWaterBytes() == 8192, "high water kept after release");
+		pool.resetHighWaterBytes();
+		check(pool.getHighWaterBytes() == 5120, "high water reset to what is in use");
+		pool.acquire(100000);
+		check(pool.getHighWaterBytes() == 105120, "unpooled blocks counted");
+	}
+	
+	private static void largestSizeClass() {
+		CountingAllocator allocator = new CountingAllocator();
+		HostMemoryPool<Integer> pool = new HostMemoryPool<Integer>(allocator, 1024, HostMemoryPool.MAX_BLOCK_SIZE, 1 << 20);
+		HostMemoryPool.Block<Integer> a = pool.acquire(1000);
+		pool.release(a);
+		pool.release(pool.acquire(1000));
+		check(pool.getHits() == 1, "pooled with the largest size class");
+		
+		boolean rejected = false;
+		try {
+			new HostMemoryPool<Integer>(allocator, 1024, HostMemoryPool.MAX_BLOCK_SIZE + 1, 1 << 20);
+		} catch (IllegalArgumentException e) {
+			rejected = true;
+		}
+		check(rejected, "size class too large for an int rejected");
+	}
+	
+	private static void check(boolean condition, String what) {
+		if (!condition) throw new IllegalStateException("Failed: " + what);
+		System.out.println("ok: " + what);
+	}
+	
+	/**
+	 * Hands out numbered blocks and counts them.
+	 */
+	private static class CountingAllocator implements HostAllocator<Integer> {
+		private Set<Integer> live = new HashSet<Integer>();
+		private int allocations, frees;
+		
+		public synchronized Integer allocate(int size) {
+			allocations++;
+			live.add(allocations);
+			return allocations;
+		}
+		
+		public synchronized void free(Integer memory) {
+			if (!live.remove(memory)) throw new IllegalStateException("Freed twice or never allocated: " + memory);
+			frees++;
+		}
+	}
+}
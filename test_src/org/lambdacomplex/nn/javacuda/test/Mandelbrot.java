@@ -24,6 +24,7 @@ import java.awt.*;
 import javax.swing.*;
 
 import org.lambdacomplex.nn.javacuda.*;
+import org.lambdacomplex.nn.javacuda.Module;
 import org.lambdacomplex.nn.javacuda.array.*;
 
 public class Mandelbrot {
@@ -49,7 +50,8 @@ public class Mandelbrot {
 		
 		System.out.println("Loading kernel");
 		Module module = ctx.loadCubin(cubin);
-		Function function = module.getFunction("squarecmplx");
+		MandelbrotKernels kernels = MandelbrotKernels.bind(module);
+		Function function = kernels.getFunction("squarecmplx");
 		
 		System.out.println("Allocating input");
 		NativeFloatArray2D real = new NativeFloatArray2D(1000, 1000);
@@ -71,12 +73,7 @@ public class Mandelbrot {
 		function.setGridSize(Function.GridSize.toFit(function.getBlockSize(), 1000, 1000));
 		
 		function.setSharedMemory(33);
-		function.call(new Function.Argument[]{
-				new Function.PointerArgument(real_gpu),
-				new Function.PointerArgument(imaginary_gpu),
-				new Function.IntegerArgument(1000),
-				new Function.IntegerArgument(1000),
-			});
+		kernels.squarecmplx(real_gpu, imaginary_gpu, 1000, 1000);
 		
 		System.out.println("Retreiving data");
 		NativeFloatArray resultBytes = new NativeFloatArray(1000*1000);
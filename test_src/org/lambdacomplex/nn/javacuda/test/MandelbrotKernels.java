@@ -0,0 +1,53 @@
+// Generated by LauncherGenerator from Mandelbrot.getKernel(), do not edit.
+
+package org.lambdacomplex.nn.javacuda.test;
+
+import org.lambdacomplex.nn.javacuda.AbstractKernelLauncher;
+import org.lambdacomplex.nn.javacuda.DevicePointer;
+import org.lambdacomplex.nn.javacuda.Function;
+import org.lambdacomplex.nn.javacuda.KernelArguments;
+import org.lambdacomplex.nn.javacuda.KernelLauncher;
+import org.lambdacomplex.nn.javacuda.Module;
+
+/**
+ * Typed launch methods for the kernels of Mandelbrot.getKernel().
+ */
+public interface MandelbrotKernels extends KernelLauncher {
+	/**
+	 * Launch extern "C" __global__ void squarecmplx(float *real, float *imaginary, int resX, int resY)
+	 */
+	public void squarecmplx(DevicePointer real, DevicePointer imaginary, int resX, int resY);
+	
+	/**
+	 * Bind the kernels of a module.
+	 * @param module The module.
+	 * @return A launcher for the calling thread.
+	 */
+	public static MandelbrotKernels bind(Module module) {
+		return new MandelbrotKernelsLauncher(module);
+	}
+}
+
+class MandelbrotKernelsLauncher extends AbstractKernelLauncher implements MandelbrotKernels {
+	private Function squarecmplx;
+	private KernelArguments squarecmplxArguments;
+	private int squarecmplxOffset0, squarecmplxOffset1, squarecmplxOffset2, squarecmplxOffset3;
+	
+	MandelbrotKernelsLauncher(Module module) {
+		super(module);
+		squarecmplx = bind("squarecmplx");
+		squarecmplxArguments = arguments(squarecmplx);
+		squarecmplxOffset0 = squarecmplxArguments.putPointer(0L);
+		squarecmplxOffset1 = squarecmplxArguments.putPointer(0L);
+		squarecmplxOffset2 = squarecmplxArguments.putInt(0);
+		squarecmplxOffset3 = squarecmplxArguments.putInt(0);
+	}
+	
+	public void squarecmplx(DevicePointer real, DevicePointer imaginary, int resX, int resY) {
+		squarecmplxArguments.setPointer(squarecmplxOffset0, real);
+		squarecmplxArguments.setPointer(squarecmplxOffset1, imaginary);
+		squarecmplxArguments.setInt(squarecmplxOffset2, resX);
+		squarecmplxArguments.setInt(squarecmplxOffset3, resY);
+		squarecmplx.launch(squarecmplxArguments, getStream());
+	}
+}
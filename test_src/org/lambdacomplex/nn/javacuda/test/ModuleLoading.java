@@ -0,0 +1,96 @@
+/*
+* Copyright 2009 Gabriel Collin
+*
+* This file is part of javaCUDA.
+*
+* javaCUDA is free software: you can redistribute it and/or modify it
+* under the terms of the GNU Lesser General Public License as published
+* by the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* javaCUDA is distributed in the hope that it will be useful, but WITHOUT
+* ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+* FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public
+* License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public
+* License along with javaCUDA. If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package org.lambdacomplex.nn.javacuda.test;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.util.*;
+
+import org.lambdacomplex.nn.javacuda.*;
+import org.lambdacomplex.nn.javacuda.Module;
+
+/**
+ * Measures the time taken to load a number of modules at startup: from cubin files, from images 
+ * already in memory, and lazily when only a few of them are used straight away.
+ * Usage: ModuleLoading [modules] [used]
+ */
+public class ModuleLoading {
+	public static void main(String args[]) throws Throwable {
+		if (args.length > 0) modules = Integer.parseInt(args[0]);
+		if (args.length > 1) used = Integer.parseInt(args[1]);
+		doit();
+	}
+	
+	private static int modules = 50;
+	private static int used = 5;
+	
+	public static void doit() throws Throwable {
+		Device dev = Device.getMaxGFlopsDevice();
+		Context ctx = dev.getContext();
+		
+		System.out.println("Compiling " + modules + " kernels");
+		File dir = Files.createTempDirectory("moduleLoading").toFile();
+		List<byte[]> images = new ArrayList<byte[]>();
+		List<File> files = new ArrayList<File>();
+		for (int i = 0; i < modules; i++) {
+			byte[] image = CubinCompiler.getDefault().compile(kernel(i), null);
+			File f = new File(dir, "kernel" + i + ".cubin");
+			Files.write(f.toPath(), image);
+			f.deleteOnExit();
+			images.add(image);
+			files.add(f);
+		}
+		
+		// warm up the driver
+		load(ctx, new Cubin(images.get(0)), 0).unload();
+		
+		long start = System.nanoTime();
+		List<Module> loaded = new ArrayList<Module>();
+		for (int i = 0; i < modules; i++) loaded.add(load(ctx, new Cubin(files.get(i)), i));
+		report("from files, all loaded", start, loaded);
+		
+		start = System.nanoTime();
+		for (int i = 0; i < modules; i++) loaded.add(load(ctx, new Cubin(images.get(i)), i));
+		report("from memory, all loaded", start, loaded);
+		
+		start = System.nanoTime();
+		for (int i = 0; i < modules; i++) loaded.add(ctx.loadCubin(new Cubin(images.get(i))));
+		for (int i = 0; i < used; i++) loaded.get(i).getFunction("kernel" + i);
+		report("from memory, " + used + " used", start, loaded);
+		
+		ctx.destroy();
+	}
+	
+	private static Module load(Context ctx, Cubin cubin, int i) {
+		Module module = ctx.loadCubin(cubin);
+		module.getFunction("kernel" + i);
+		return module;
+	}
+	
+	private static void report(String name, long start, List<Module> loaded) {
+		System.out.println(name + ": " + (System.nanoTime() - start) / 1000000 + "ms");
+		for (Module m : loaded) m.unload();
+		loaded.clear();
+	}
+	
+	private static String kernel(int i) {
+		return "extern \"C\" __global__ void kernel" + i + "(int *g_data) { g_data[0] = " + i + "; }\n";
+	}
+}
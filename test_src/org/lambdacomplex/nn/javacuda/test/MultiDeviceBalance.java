@@ -0,0 +1,112 @@
+/*
+* Copyright 2009 Gabriel Collin
+*
+* This file is part of javaCUDA.
+*
+* javaCUDA is free software: you can redistribute it and/or modify it
+* under the terms of the GNU Lesser General Public License as published
+* by the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* javaCUDA is distributed in the hope that it will be useful, but WITHOUT
+* ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+* FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public
+* License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public
+* License along with javaCUDA. If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package org.lambdacomplex.nn.javacuda.test;
+
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+import org.lambdacomplex.nn.javacuda.*;
+
+/**
+ * Checks the balancing of MultiDeviceExecutor with simulated devices of different speeds.
+ * 
+ * Each device is a context of its own CPU backend, and does a chunk by sleeping for as long as the chunk 
+ * would take at the device's speed, so the balance does not depend on the processors of the machine. The 
+ * first job is shared out equally and balanced by stealing, the later ones are shared out by the throughput 
+ * measured on the earlier ones. Every item must be done exactly once, and in the last job each device should 
+ * do about its speed's share of the items.
+ * Usage: MultiDeviceBalance [items] [speed...]
+ */
+public class MultiDeviceBalance {
+	private static int items = 200000;
+	private static double[] speeds = { 1, 2, 4 };
+	// the time an item takes on a device of speed 1
+	private static long nanosPerItem = 4000;
+	
+	public static void main(String args[]) {
+		if (args.length > 0) items = Integer.parseInt(args[0]);
+		if (args.length > 1) {
+			speeds = new double[args.length - 1];
+			for (int i = 1; i < args.length; i++) speeds[i - 1] = Double.parseDouble(args[i]);
+		}
+		
+		List<Context> contexts = new ArrayList<Context>();
+		for (int i = 0; i < speeds.length; i++) contexts.add(Device.getDevice(new CpuBackend(1), 0).getContext());
+		MultiDeviceExecutor executor = new MultiDeviceExecutor(contexts);
+		
+		double total = 0;
+		for (double s : speeds) total += s;
+		System.out.println("Ideal time " + String.format("%.3f", items * nanosPerItem / total / 1e6) + " ms");
+		
+		MultiDeviceExecutor.Statistics statistics = null;
+		for (int job = 0; job < 3; job++) {
+			final AtomicIntegerArray done = new AtomicIntegerArray(items);
+			statistics = executor.execute(items, new MultiDeviceExecutor.Work() {
+				public void run(int device, Context context, MultiDeviceExecutor.Range range) {
+					for (long i = range.getStart(); i < range.getEnd(); i++) done.incrementAndGet((int)i);
+					sleep((long)(range.getSize() * nanosPerItem / speeds[device]));
+				}
+			});
+			System.out.print("Job " + job + ": " + statistics);
+			for (int i = 0; i < items; i++) {
+				if (done.get(i) != 1) {
+					System.out.println("Item " + i + " done " + done.get(i) + " times");
+					return;
+				}
+			}
+		}
+		
+		// a 2D job, in bands of rows
+		final int width = 100, height = items / width;
+		final AtomicIntegerArray rows = new AtomicIntegerArray(height);
+		System.out.print("2D job: " + executor.execute(width, height, new MultiDeviceExecutor.Work() {
+			public void run(int device, Context context, MultiDeviceExecutor.Range range) {
+				for (long y = range.getStart(); y < range.getEnd(); y++) rows.incrementAndGet((int)y);
+				sleep((long)(range.getSize() * nanosPerItem / speeds[device]));
+			}
+		}));
+		for (int y = 0; y < height; y++) {
+			if (rows.get(y) != 1) {
+				System.out.println("Row " + y + " done " + rows.get(y) + " times");
+				return;
+			}
+		}
+		
+		boolean balanced = true;
+		for (int i = 0; i < speeds.length; i++) {
+			double share = (double)statistics.getItems(i) / items;
+			System.out.println(String.format("Device %d: %.3f of the items, speed share %.3f", i, share, speeds[i] / total));
+			if (Math.abs(share - speeds[i] / total) > 0.1) balanced = false;
+		}
+		System.out.println(balanced ? "Balanced" : "Not balanced!");
+		
+		executor.close();
+		for (Context c : contexts) c.destroy();
+	}
+	
+	private static void sleep(long nanos) {
+		try {
+			TimeUnit.NANOSECONDS.sleep(nanos);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+}
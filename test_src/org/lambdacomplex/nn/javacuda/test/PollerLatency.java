@@ -0,0 +1,145 @@
+/*
+* Copyright 2009 Gabriel Collin
+*
+* This file is part of javaCUDA.
+*
+* javaCUDA is free software: you can redistribute it and/or modify it
+* under the terms of the GNU Lesser General Public License as published
+* by the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* javaCUDA is distributed in the hope that it will be useful, but WITHOUT
+* ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+* FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public
+* License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public
+* License along with javaCUDA. If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package org.lambdacomplex.nn.javacuda.test;
+
+import java.lang.management.*;
+import java.util.concurrent.*;
+import java.util.function.Consumer;
+
+import org.lambdacomplex.nn.javacuda.CompletionPoller;
+
+/**
+ * Measures how late a CompletionPoller completes futures, and how much CPU it uses doing so, against 
+ * spinning on each source the way the Asynchronous example used to.
+ * 
+ * The sources are fake events that are reached at a fixed time, so no device or wrapper library is needed.
+ * Usage: PollerLatency [batches] [sources per batch] [work us]
+ */
+public class PollerLatency {
+	public static void main(String args[]) throws Throwable {
+		if (args.length > 0) batches = Integer.parseInt(args[0]);
+		if (args.length > 1) sources = Integer.parseInt(args[1]);
+		if (args.length > 2) workNanos = Long.parseLong(args[2]) * 1000;
+		doit();
+	}
+	
+	private static int batches = 200;
+	private static int sources = 8;
+	private static long workNanos = 500000;
+	
+	public static void doit() throws Throwable {
+		System.out.println(batches + " batches of " + sources + " events, each reached after " 
+				+ workNanos / 1000 + "us");
+		CompletionPoller poller = new CompletionPoller("fake completion");
+		// warm up
+		spin(batches / 4);
+		poll(poller, batches / 4);
+		
+		spin(batches);
+		poll(poller, batches);
+		
+		// a failing source completes its future exceptionally
+		CompletableFuture<String> failed = poller.watch(new Failing(), "unused");
+		try {
+			failed.join();
+			System.out.println("failing source: not reported");
+		} catch (CompletionException e) {
+			System.out.println("failing source: " + e.getCause());
+		}
+		
+		// shutting down cancels what is still being watched
+		CompletableFuture<String> never = poller.watch(new FakeEvent(Long.MAX_VALUE), "unused");
+		poller.shutdown();
+		System.out.println("after shutdown: cancelled " + never.isCancelled() 
+				+ ", still watching " + poller.getPending());
+	}
+	
+	private static void spin(int count) {
+		long cpu = cpuTime();
+		long late = 0;
+		long start = System.nanoTime();
+		for (int b = 0; b < count; b++) {
+			FakeEvent[] events = batch();
+			for (FakeEvent e : events) {
+				while (!e.isComplete());
+				late += System.nanoTime() - e.time;
+			}
+		}
+		report("spinning", start, cpu, late, count);
+	}
+	
+	private static void poll(CompletionPoller poller, int count) throws Exception {
+		long cpu = cpuTime();
+		final long[] late = new long[1];
+		long start = System.nanoTime();
+		for (int b = 0; b < count; b++) {
+			FakeEvent[] events = batch();
+			CompletableFuture<?>[] futures = new CompletableFuture<?>[events.length];
+			for (int i = 0; i < events.length; i++) {
+				futures[i] = poller.watch(events[i], events[i]).thenAccept(new Late(late));
+			}
+			CompletableFuture.allOf(futures).get();
+		}
+		report("poller", start, cpu, late[0], count);
+	}
+	
+	private static FakeEvent[] batch() {
+		FakeEvent[] events = new FakeEvent[sources];
+		long now = System.nanoTime();
+		for (int i = 0; i < sources; i++) {
+			events[i] = new FakeEvent(now + workNanos * (i + 1) / sources);
+		}
+		return events;
+	}
+	
+	private static void report(String name, long start, long cpu, long late, int count) {
+		long wall = System.nanoTime() - start;
+		System.out.println(name + ": " + wall / 1000000 + "ms, " + (cpuTime() - cpu) / 1000000 + "ms CPU, " 
+				+ late / (count * sources) / 1000 + "us late on average");
+	}
+	
+	private static long cpuTime() {
+		ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		long total = 0;
+		for (long id : threads.getAllThreadIds()) {
+			long time = threads.getThreadCpuTime(id);
+			if (time > 0) total += time;
+		}
+		return total;
+	}
+	
+	private static class FakeEvent implements CompletionPoller.Source {
+		private long time;
+		FakeEvent(long t) { time = t; }
+		public boolean isComplete() { return System.nanoTime() >= time; }
+	}
+	
+	private static class Failing implements CompletionPoller.Source {
+		public boolean isComplete() { throw new IllegalStateException("query failed"); }
+	}
+	
+	private static class Late implements Consumer<Object> {
+		private long[] late;
+		Late(long[] l) { late = l; }
+		public void accept(Object event) {
+			late[0] += System.nanoTime() - ((FakeEvent)event).time;
+		}
+	}
+}
@@ -0,0 +1,160 @@
+/*
+* Copyright 2009 Gabriel Collin
+*
+* This file is part of javaCUDA.
+*
+* javaCUDA is free software: you can redistribute it and/or modify it
+* under the terms of the GNU Lesser General Public License as published
+* by the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* javaCUDA is distributed in the hope that it will be useful, but WITHOUT
+* ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+* FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public
+* License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public
+* License along with javaCUDA. If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package org.lambdacomplex.nn.javacuda.test;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+
+import org.lambdacomplex.nn.javacuda.*;
+import org.lambdacomplex.nn.javacuda.Module;
+import org.lambdacomplex.nn.javacuda.array.*;
+
+/**
+ * Runs chunks of work through a TaskGraph: each chunk is copied in and incremented, then added to the next 
+ * chunk and copied out, so the adds need work from two chunks and so from two streams.
+ * 
+ * The graph runs once on one stream and once on four, timed, and the plan and critical path of the second 
+ * are printed. It runs on the CPU backend by default, with the kernels written in Java.
+ * Usage: ScheduledIncrement [chunks] [chunk size] [backend]
+ */
+public class ScheduledIncrement {
+	private static int chunks = 16;
+	private static int chunkSize = 64*1024;
+	
+	public static void main(String args[]) {
+		if (args.length > 0) chunks = Integer.parseInt(args[0]);
+		if (args.length > 1) chunkSize = Integer.parseInt(args[1]);
+		String backend = args.length > 2 ? args[2] : "cpu";
+		
+		CpuBackend.register("increment_kernel", new CpuKernel() {
+			public void run(CpuKernel.Block block) {
+				ByteBuffer data = block.getPointer(0);
+				int inc = block.getInt(4);
+				int first = block.getBlockX() * block.getBlockDimX();
+				for (int i = first * 4; i < (first + block.getBlockDimX()) * 4; i += 4) {
+					data.putInt(i, data.getInt(i) + inc);
+				}
+			}
+		});
+		CpuBackend.register("add_kernel", new CpuKernel() {
+			public void run(CpuKernel.Block block) {
+				ByteBuffer out = block.getPointer(0);
+				ByteBuffer a = block.getPointer(4);
+				ByteBuffer b = block.getPointer(8);
+				int first = block.getBlockX() * block.getBlockDimX();
+				for (int i = first * 4; i < (first + block.getBlockDimX()) * 4; i += 4) {
+					out.putInt(i, a.getInt(i) + b.getInt(i));
+				}
+			}
+		});
+		
+		Context ctx = Device.getDevice(Device.createBackend(backend), 0).getContext();
+		doit(ctx, 1, false);
+		doit(ctx, 4, true);
+		ctx.destroy();
+	}
+	
+	public static void doit(Context ctx, int streams, boolean report) {
+		Module module = ctx.loadCubin(new Cubin(getKernels()));
+		Function increment = module.getFunction("increment_kernel");
+		Function add = module.getFunction("add_kernel");
+		for (Function f : new Function[]{ increment, add }) {
+			f.setBlockSize(new Function.BlockSize(256,1,1));
+			f.setGridSize(new Function.GridSize(chunkSize/256,1));
+		}
+		
+		NativeIntArray[] input = new NativeIntArray[chunks];
+		NativeIntArray[] output = new NativeIntArray[chunks];
+		DevicePointer[] input_gpu = new DevicePointer[chunks];
+		DevicePointer[] output_gpu = new DevicePointer[chunks];
+		for (int c = 0; c < chunks; c++) {
+			input[c] = new NativeIntArray(ctx, chunkSize);
+			output[c] = new NativeIntArray(ctx, chunkSize);
+			for (int i = 0; i < chunkSize; i++) input[c].setInt(i, c * chunkSize + i);
+			input_gpu[c] = DevicePointer.toDevice(ctx, input[c]);
+			output_gpu[c] = DevicePointer.toDevice(ctx, output[c]);
+		}
+		
+		TaskGraph graph = new TaskGraph(ctx, streams);
+		for (int c = 0; c < chunks; c++) {
+			graph.copyToDevice(input_gpu[c], input[c]);
+			graph.launch(increment, new Function.PointerArgument(input_gpu[c]), new Function.IntegerArgument(1));
+		}
+		for (int c = 0; c < chunks; c++) {
+			DevicePointer next = input_gpu[(c + 1) % chunks];
+			graph.launch(add, new Function.Argument[]{
+					new Function.PointerArgument(output_gpu[c]),
+					new Function.PointerArgument(input_gpu[c]),
+					new Function.PointerArgument(next)
+				}, new DevicePointer[]{ input_gpu[c], next }, new DevicePointer[]{ output_gpu[c] });
+			graph.copyToHost(output[c], output_gpu[c]);
+		}
+		
+		// the first execution plans with every task the same length, the second with the times of the first
+		graph.setTimed(true);
+		graph.execute().join();
+		long startTime = System.nanoTime();
+		graph.execute().join();
+		float totalTime = (float)(System.nanoTime() - startTime)/1000000;
+		
+		System.out.println(streams + " streams: " + totalTime + "ms, critical path " 
+				+ String.format("%.3f", graph.getCriticalPathLength()) + "ms of device time");
+		if (report) System.out.print(graph.report());
+		
+		boolean correct = true;
+		for (int c = 0; c < chunks && correct; c++) {
+			int n = (c + 1) % chunks;
+			for (int i = 0; i < chunkSize; i++) {
+				int expected = (c * chunkSize + i + 1) + (n * chunkSize + i + 1);
+				if (output[c].getInt(i) != expected) {
+					System.out.println("Value at " + i + " of chunk " + c + " is " + output[c].getInt(i) 
+							+ ", not " + expected);
+					correct = false;
+					break;
+				}
+			}
+		}
+		System.out.println(correct ? "Data correct" : "Data incorrect!");
+		
+		graph.close();
+		for (int c = 0; c < chunks; c++) {
+			input_gpu[c].free();
+			output_gpu[c].free();
+			input[c].free();
+			output[c].free();
+		}
+	}
+	
+	public static Reader getKernels() {
+		String kernels = 
+		"extern \"C\" __global__ void increment_kernel(int *g_data, int inc_value)" +
+		"{"+ 
+			"int idx = blockIdx.x * blockDim.x + threadIdx.x;"+
+			"g_data[idx] = g_data[idx] + inc_value;"+
+		"}"+
+		"extern \"C\" __global__ void add_kernel(int *out, const int *a, const int *b)" +
+		"{"+ 
+			"int idx = blockIdx.x * blockDim.x + threadIdx.x;"+
+			"out[idx] = a[idx] + b[idx];"+
+		"}"
+		;
+		return new StringReader(kernels);
+	}
+}
@@ -0,0 +1,154 @@
+/*
+* Copyright 2009 Gabriel Collin
+*
+* This file is part of javaCUDA.
+*
+* javaCUDA is free software: you can redistribute it and/or modify it
+* under the terms of the GNU Lesser General Public License as published
+* by the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* javaCUDA is distributed in the hope that it will be useful, but WITHOUT
+* ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+* FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public
+* License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public
+* License along with javaCUDA. If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package org.lambdacomplex.nn.javacuda.test;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+
+import org.lambdacomplex.nn.javacuda.*;
+import org.lambdacomplex.nn.javacuda.Module;
+
+/**
+ * Streams a file of ints through the device in chunks with a StreamingPipeline, adding one to each, into 
+ * another file, at each depth from one to four.
+ * 
+ * It runs on the CPU backend with copies slowed down to the given bandwidth, so that the overlap of copies and 
+ * kernels shows without a device.
+ * Usage: StreamingIncrement [megabytes] [chunk kilobytes] [simulated MB/s]
+ */
+public class StreamingIncrement {
+	private static int megabytes = 64;
+	private static int chunkSize = 4*1024*1024;
+	private static long bandwidth = 2000;
+	
+	public static void main(String args[]) throws IOException {
+		if (args.length > 0) megabytes = Integer.parseInt(args[0]);
+		if (args.length > 1) chunkSize = Integer.parseInt(args[1]) * 1024;
+		if (args.length > 2) bandwidth = Long.parseLong(args[2]);
+		
+		CpuBackend.register("increment_copy", new CpuKernel() {
+			public void run(CpuKernel.Block block) {
+				ByteBuffer out = block.getPointer(0);
+				ByteBuffer in = block.getPointer(4);
+				int inc = block.getInt(8);
+				int count = block.getInt(12);
+				int first = block.getBlockX() * block.getBlockDimX();
+				int last = Math.min(first + block.getBlockDimX(), count);
+				for (int i = first * 4; i < last * 4; i += 4) {
+					out.putInt(i, in.getInt(i) + inc);
+				}
+			}
+		});
+		
+		CpuBackend backend = new CpuBackend();
+		backend.simulateTransfers(10000, bandwidth * 1000000);
+		Context ctx = Device.getDevice(backend, 0).getContext();
+		Module module = ctx.loadCubin(new Cubin(getKernel()));
+		final Function function = module.getFunction("increment_copy");
+		function.setBlockSize(new Function.BlockSize(256,1,1));
+		
+		Path input = Files.createTempFile("javacuda", ".in");
+		Path output = Files.createTempFile("javacuda", ".out");
+		try {
+			int ints = megabytes * 1024 * 1024 / 4;
+			try (FileChannel channel = FileChannel.open(input, StandardOpenOption.WRITE)) {
+				ByteBuffer buffer = ByteBuffer.allocateDirect(1024 * 1024).order(ByteOrder.LITTLE_ENDIAN);
+				for (int i = 0; i < ints; ) {
+					buffer.clear();
+					while (buffer.hasRemaining() && i < ints) buffer.putInt(i++);
+					buffer.flip();
+					while (buffer.hasRemaining()) channel.write(buffer);
+				}
+			}
+			
+			StreamingPipeline.Stage stage = new StreamingPipeline.Stage() {
+				public int process(StreamingPipeline.Chunk chunk) {
+					int count = chunk.getSize() / 4;
+					function.setGridSize(new Function.GridSize((count + 255) / 256, 1));
+					function.launch(new Function.Argument[]{
+							new Function.PointerArgument(chunk.getOutput()),
+							new Function.PointerArgument(chunk.getInput()),
+							new Function.IntegerArgument(1),
+							new Function.IntegerArgument(count)
+						}, chunk.getStream());
+					return chunk.getSize();
+				}
+			};
+			
+			// the first run warms up
+			run(ctx, stage, input, output, 2);
+			for (int depth = 1; depth <= 4; depth++) {
+				System.out.println("Depth " + depth + ": " + run(ctx, stage, input, output, depth));
+				if (!check(output, ints)) return;
+			}
+			System.out.println("Data correct");
+		} finally {
+			Files.delete(input);
+			Files.delete(output);
+			ctx.destroy();
+		}
+	}
+	
+	private static StreamingPipeline.Statistics run(Context ctx, StreamingPipeline.Stage stage, Path input, 
+			Path output, int depth) throws IOException {
+		StreamingPipeline pipeline = new StreamingPipeline(ctx, chunkSize, depth);
+		try (FileChannel in = FileChannel.open(input, StandardOpenOption.READ); 
+				FileChannel out = FileChannel.open(output, StandardOpenOption.WRITE, 
+						StandardOpenOption.TRUNCATE_EXISTING)) {
+			return pipeline.run(StreamingPipeline.fromChannel(in), stage, StreamingPipeline.toChannel(out));
+		} finally {
+			pipeline.close();
+		}
+	}
+	
+	private static boolean check(Path output, int ints) throws IOException {
+		try (FileChannel channel = FileChannel.open(output, StandardOpenOption.READ)) {
+			if (channel.size() != (long)ints * 4) {
+				System.out.println("Output is " + channel.size() + " bytes, not " + (long)ints * 4);
+				return false;
+			}
+			IntBuffer data = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size())
+					.order(ByteOrder.LITTLE_ENDIAN).asIntBuffer();
+			for (int i = 0; i < ints; i++) {
+				if (data.get(i) != i + 1) {
+					System.out.println("Data incorrect!");
+					System.out.println("Value at " + i + " is " + data.get(i));
+					return false;
+				}
+			}
+		}
+		return true;
+	}
+	
+	public static Reader getKernel() {
+		String kernel = 
+		"extern \"C\" __global__ void increment_copy(int *out, const int *in, int inc_value, int count)" +
+		"{"+ 
+			"int idx = blockIdx.x * blockDim.x + threadIdx.x;"+
+			"if (idx < count) out[idx] = in[idx] + inc_value;"+
+		"}"
+		;
+		return new StringReader(kernel);
+	}
+}